@@ -0,0 +1,38 @@
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Exposes the package private parts of Smack that a {@link Connection} implementation outside of
+ * this package needs, i.e. the <code>saros.net.stream.LoopbackConnection</code>.
+ */
+public final class LoopbackConnectionAccess {
+
+  private LoopbackConnectionAccess() {
+    // NOP
+  }
+
+  /** Creates the roster of the given connection. */
+  public static Roster createRoster(final Connection connection) {
+    return new Roster(connection);
+  }
+
+  /** Returns whether the initial presence should be sent after the login. */
+  public static boolean isSendPresence(final ConnectionConfiguration config) {
+    return config.isSendPresence();
+  }
+
+  /** Remembers the login information, see {@link Connection#login(String, String, String)}. */
+  public static void setLoginInfo(
+      final ConnectionConfiguration config,
+      final String username,
+      final String password,
+      final String resource) {
+    config.setLoginInfo(username, password, resource);
+  }
+
+  /** Hands an incoming packet to the given collector. */
+  public static void processPacket(final PacketCollector collector, final Packet packet) {
+    collector.processPacket(packet);
+  }
+}
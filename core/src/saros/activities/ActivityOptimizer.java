@@ -24,6 +24,10 @@ public class ActivityOptimizer {
    *         exec(activity)
    * </pre>
    *
+   * <p>Besides dropping outdated selections and viewports, adjacent {@link TextEditActivity text
+   * edits} of the same user on the same file are merged into one edit, e.g. consecutive key strokes
+   * or backspaces. Only edits that directly follow each other in the given order are merged.
+   *
    * @param activities a collection containing the activities to optimize
    * @return a list which may contains a reduced amount of activities
    */
@@ -68,8 +72,73 @@ public class ActivityOptimizer {
 
     activityIdx = 0;
 
-    for (IActivity activity : activities) if (!dropActivityIdx[activityIdx++]) result.add(activity);
+    for (IActivity activity : activities) {
+      if (dropActivityIdx[activityIdx++]) continue;
+
+      int last = result.size() - 1;
+
+      if (last >= 0
+          && activity instanceof TextEditActivity
+          && result.get(last) instanceof TextEditActivity) {
+
+        TextEditActivity merged =
+            merge((TextEditActivity) result.get(last), (TextEditActivity) activity);
+
+        if (merged != null) {
+          result.set(last, merged);
+          continue;
+        }
+      }
+
+      result.add(activity);
+    }
 
     return result;
   }
+
+  /**
+   * Merges two text edits that are executed one after another into one edit.
+   *
+   * @param first the edit that is executed first
+   * @param second the edit that is executed afterwards
+   * @return the merged edit or <code>null</code> if the edits cannot be merged
+   */
+  public static TextEditActivity merge(TextEditActivity first, TextEditActivity second) {
+
+    if (!first.getSource().equals(second.getSource())) return null;
+
+    if (!first.getPath().equals(second.getPath())) return null;
+
+    final int end = first.getOffset() + first.getText().length();
+
+    /*
+     * the second edit starts right behind the text of the first one, e.g.
+     * typing or forward deletion, so it replaces the text that follows the
+     * replaced text of the first edit
+     */
+    if (second.getOffset() == end) {
+      return new TextEditActivity(
+          first.getSource(),
+          first.getOffset(),
+          first.getText() + second.getText(),
+          first.getReplacedText() + second.getReplacedText(),
+          first.getPath());
+    }
+
+    /*
+     * the first edit only deleted text and the second one ends where that
+     * deletion took place, e.g. backspaces
+     */
+    if (first.getText().isEmpty()
+        && second.getOffset() + second.getReplacedText().length() == first.getOffset()) {
+      return new TextEditActivity(
+          first.getSource(),
+          second.getOffset(),
+          second.getText(),
+          second.getReplacedText() + first.getReplacedText(),
+          first.getPath());
+    }
+
+    return null;
+  }
 }
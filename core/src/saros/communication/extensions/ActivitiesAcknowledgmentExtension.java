@@ -0,0 +1,41 @@
+package saros.communication.extensions;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+
+/**
+ * Acknowledges the receipt of {@link ActivitiesExtension activities} and grants the sender new
+ * credits for sending further activities.
+ */
+@XStreamAlias("ADOS_ACK")
+public class ActivitiesAcknowledgmentExtension extends SarosSessionPacketExtension {
+
+  public static final Provider PROVIDER = new Provider();
+
+  @XStreamAlias("seq")
+  @XStreamAsAttribute
+  private final int sequenceNumber;
+
+  /**
+   * @param sessionID the session id the acknowledged activities belong to
+   * @param sequenceNumber the sequence number of the next activity that is expected, i.e all
+   *     activities with a lower sequence number are acknowledged
+   */
+  public ActivitiesAcknowledgmentExtension(String sessionID, int sequenceNumber) {
+    super(sessionID);
+    this.sequenceNumber = sequenceNumber;
+  }
+
+  /** Returns the sequence number of the next activity that is expected by the receiver. */
+  public int getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  public static class Provider
+      extends SarosSessionPacketExtension.Provider<ActivitiesAcknowledgmentExtension> {
+
+    private Provider() {
+      super("adosack", ActivitiesAcknowledgmentExtension.class);
+    }
+  }
+}
@@ -1,14 +1,32 @@
 package saros.communication.extensions;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
 
 @XStreamAlias("PING")
 public class PingExtension extends SarosSessionPacketExtension {
 
   public static final Provider PROVIDER = new Provider();
 
-  public PingExtension(String sessionID) {
+  /**
+   * Value of {@link System#nanoTime()} on the host when the ping was sent. It is echoed by the
+   * {@link PongExtension} and only meaningful to the host.
+   */
+  @XStreamAlias("t")
+  @XStreamAsAttribute
+  private final long timestamp;
+
+  public PingExtension(String sessionID, long timestamp) {
     super(sessionID);
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Returns the time the ping was sent by the host or <code>0</code> if the sender did not include
+   * one.
+   */
+  public long getTimestamp() {
+    return timestamp;
   }
 
   public static class Provider extends SarosSessionPacketExtension.Provider<PingExtension> {
@@ -1,14 +1,28 @@
 package saros.communication.extensions;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
 
 @XStreamAlias("PONG")
 public class PongExtension extends SarosSessionPacketExtension {
 
   public static final Provider PROVIDER = new Provider();
 
-  public PongExtension(String sessionID) {
+  /** timestamp of the {@link PingExtension} that is answered by this pong */
+  @XStreamAlias("t")
+  @XStreamAsAttribute
+  private final long timestamp;
+
+  public PongExtension(String sessionID, long timestamp) {
     super(sessionID);
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Returns the timestamp of the answered {@link PingExtension} or <code>0</code> if it is unknown.
+   */
+  public long getTimestamp() {
+    return timestamp;
   }
 
   public static class Provider extends SarosSessionPacketExtension.Provider<PongExtension> {
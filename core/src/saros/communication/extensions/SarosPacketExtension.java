@@ -2,10 +2,10 @@ package saros.communication.extensions;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
-import org.jivesoftware.smack.filter.AndFilter;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
 import saros.misc.xstream.XStreamExtensionProvider;
+import saros.net.RoutablePacketFilter;
 
 /**
  * @JTourBusStop 1, Creating custom network messages, Packet Extensions:
@@ -39,18 +39,18 @@ public abstract class SarosPacketExtension {
     }
 
     @Override
-    public PacketFilter getPacketFilter() {
-
-      return new AndFilter(
-          super.getPacketFilter(),
-          new PacketFilter() {
-            @Override
-            public boolean accept(Packet packet) {
-              SarosPacketExtension extension = getPayload(packet);
-
-              return extension != null && VERSION.equals(extension.version);
-            }
-          });
+    public RoutablePacketFilter getPacketFilter() {
+
+      return super.getPacketFilter()
+          .and(
+              new PacketFilter() {
+                @Override
+                public boolean accept(Packet packet) {
+                  SarosPacketExtension extension = getPayload(packet);
+
+                  return extension != null && VERSION.equals(extension.version);
+                }
+              });
     }
   }
 }
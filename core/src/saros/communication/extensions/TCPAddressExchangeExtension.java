@@ -0,0 +1,76 @@
+package saros.communication.extensions;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packet used to exchange the addresses a peer accepts direct TCP connections on. A request only
+ * contains an exchange ID. The response additionally contains the local addresses of the remote
+ * side and a one time token that must be presented when connecting to one of these addresses.
+ *
+ * <p>A response without a token or without any addresses indicates that the remote side does not
+ * accept direct TCP connections.
+ */
+@XStreamAlias(/* TCPAddressExchange */ "TCPADDREX")
+public class TCPAddressExchangeExtension extends SarosPacketExtension {
+
+  public static final Provider PROVIDER = new Provider();
+
+  @XStreamAlias("id")
+  @XStreamAsAttribute
+  private final String exchangeID;
+
+  @XStreamAlias("token")
+  @XStreamAsAttribute
+  private String token;
+
+  @XStreamAlias("addresses")
+  private ArrayList<String> addresses = new ArrayList<String>();
+
+  public TCPAddressExchangeExtension(String exchangeID) {
+    this.exchangeID = exchangeID;
+  }
+
+  public String getExchangeID() {
+    return exchangeID;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public void setToken(String token) {
+    this.token = token;
+  }
+
+  /**
+   * Adds an address the local side is listening on.
+   *
+   * @param host the textual representation of the IP address
+   * @param port the port number
+   */
+  public void addAddress(String host, int port) {
+    addresses.add(host + "/" + port);
+  }
+
+  /**
+   * Returns the announced addresses in the form <code>host/port</code>.
+   *
+   * @return list of announced addresses, never <code>null</code>
+   */
+  public List<String> getAddresses() {
+    // XStream does not call the constructor
+    if (addresses == null) addresses = new ArrayList<String>();
+
+    return addresses;
+  }
+
+  public static class Provider extends SarosPacketExtension.Provider<TCPAddressExchangeExtension> {
+
+    private Provider() {
+      super("tcpaddrex", TCPAddressExchangeExtension.class);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.List;
 import org.apache.log4j.Logger;
 import saros.account.XMPPAccountStore;
+import saros.communication.extensions.ActivitiesAcknowledgmentExtension;
 import saros.communication.extensions.ActivitiesExtension;
 import saros.communication.extensions.CancelInviteExtension;
 import saros.communication.extensions.CancelProjectNegotiationExtension;
@@ -132,6 +133,7 @@ public class ContainerContext implements IContainerContext {
 
       // General session extensions
       Class.forName(ActivitiesExtension.class.getName());
+      Class.forName(ActivitiesAcknowledgmentExtension.class.getName());
       Class.forName(KickUserExtension.class.getName());
       Class.forName(UserListExtension.class.getName());
       Class.forName(LeaveSessionExtension.class.getName());
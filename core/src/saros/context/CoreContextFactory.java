@@ -15,12 +15,15 @@ import saros.net.DispatchThreadContext;
 import saros.net.IConnectionManager;
 import saros.net.IReceiver;
 import saros.net.ITransmitter;
+import saros.net.internal.CompressionPolicy;
 import saros.net.internal.DataTransferManager;
 import saros.net.internal.XMPPReceiver;
 import saros.net.internal.XMPPTransmitter;
+import saros.net.metrics.TransportMetrics;
 import saros.net.stream.IBBStreamService;
 import saros.net.stream.IStreamService;
 import saros.net.stream.Socks5StreamService;
+import saros.net.stream.TCPTransport;
 import saros.net.stun.IStunService;
 import saros.net.stun.internal.StunServiceImpl;
 import saros.net.upnp.IUPnPAccess;
@@ -84,6 +87,9 @@ public class CoreContextFactory extends AbstractContextFactory {
       Component.create(
           BindKey.bindKey(IStreamService.class, IContextKeyBindings.Socks5StreamService.class),
           Socks5StreamService.class),
+      Component.create(
+          BindKey.bindKey(IStreamService.class, IContextKeyBindings.TCPStreamService.class),
+          TCPTransport.class),
       Component.create(RosterTracker.class),
       Component.create(XMPPConnectionService.class),
       Component.create(IStunService.class, StunServiceImpl.class),
@@ -91,6 +97,8 @@ public class CoreContextFactory extends AbstractContextFactory {
       Component.create(XMPPContactsService.class),
       Component.create(IUPnPService.class, UPnPServiceImpl.class),
       Component.create(IUPnPAccess.class, UPnPAccessImpl.class),
+      Component.create(CompressionPolicy.class),
+      Component.create(TransportMetrics.class),
       Component.create(IReceiver.class, XMPPReceiver.class),
       Component.create(ITransmitter.class, XMPPTransmitter.class),
       Component.create(RemoteProgressManager.class),
@@ -41,6 +41,7 @@ import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.xmlpull.v1.XmlPullParser;
+import saros.net.RoutablePacketFilter;
 
 /**
  * Flexible extension provider using XStream to serialize arbitrary data objects.
@@ -265,8 +266,12 @@ public class XStreamExtensionProvider<T> implements PacketExtensionProvider, IQP
    * PacketFilter for Packets which contain a PacketExtension matching the {@link
    * XStreamExtensionProvider#elementName} and {@link XStreamExtensionProvider#namespace}.
    */
-  public PacketFilter getPacketFilter() {
-    return new PacketExtensionFilter(getElementName(), getNamespace());
+  public RoutablePacketFilter getPacketFilter() {
+    return new RoutablePacketFilter(
+        getElementName(),
+        getNamespace(),
+        null,
+        new PacketExtensionFilter(getElementName(), getNamespace()));
   }
 
   public String getNamespace() {
@@ -0,0 +1,61 @@
+package saros.net;
+
+import java.io.IOException;
+import org.jivesoftware.smack.packet.PacketExtension;
+import saros.net.xmpp.JID;
+
+/**
+ * A codec that converts packet extensions with a specific element name and namespace into a compact
+ * binary representation and back, bypassing their XML representation. Codecs are installed on the
+ * {@link ITransmitter} and {@link IReceiver}. Packet extensions are sent as XML if no codec is
+ * installed or the codec cannot encode the extension for the recipient.
+ */
+public interface IPacketExtensionCodec {
+
+  /** Returns the element name of the packet extensions this codec handles. */
+  public String getElementName();
+
+  /** Returns the namespace of the packet extensions this codec handles. */
+  public String getNamespace();
+
+  /**
+   * Encodes the given packet extension.
+   *
+   * @param recipient the recipient of the packet extension
+   * @param extension the packet extension to encode
+   * @return the binary representation or <code>null</code> if the extension should be sent as XML,
+   *     e.g. because the recipient does not understand the binary representation
+   * @throws IOException if the extension could not be encoded
+   */
+  public byte[] encode(JID recipient, PacketExtension extension) throws IOException;
+
+  /**
+   * Encodes the given packet extension like {@link #encode(JID, PacketExtension)} but keeps the
+   * part that is the same for all recipients apart. Codecs should return the same body for the same
+   * content so it only has to be encoded and compressed once if it is sent to several recipients.
+   * The default implementation does not share anything.
+   *
+   * @param recipient the recipient of the packet extension
+   * @param extension the packet extension to encode
+   * @return the binary representation or <code>null</code> if the extension should be sent as XML
+   * @throws IOException if the extension could not be encoded
+   */
+  public default SharedEncoding encodeShared(JID recipient, PacketExtension extension)
+      throws IOException {
+    final byte[] data = encode(recipient, extension);
+
+    return data == null ? null : new SharedEncoding(new byte[0], data);
+  }
+
+  /**
+   * Decodes a packet extension that was encoded with {@link #encode(JID, PacketExtension)}.
+   *
+   * @param sender the sender of the packet extension
+   * @param data the array containing the binary representation
+   * @param offset the offset of the binary representation in the array
+   * @param length the length of the binary representation
+   * @return the decoded packet extension
+   * @throws IOException if the data is malformed
+   */
+  public PacketExtension decode(JID sender, byte[] data, int offset, int length) throws IOException;
+}
@@ -66,4 +66,16 @@ public interface IReceiver {
   public default void removePacketInterceptor(IPacketInterceptor interceptor) {
     // NOP
   }
+
+  /**
+   * Installs a codec for the packet extensions with the element name and namespace of the codec. An
+   * already installed codec for the same packet extensions is replaced.
+   */
+  public default void addPacketExtensionCodec(IPacketExtensionCodec codec) {
+    // NOP
+  }
+
+  public default void removePacketExtensionCodec(IPacketExtensionCodec codec) {
+    // NOP
+  }
 }
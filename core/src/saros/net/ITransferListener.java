@@ -1,6 +1,7 @@
 package saros.net;
 
 import saros.net.stream.StreamMode;
+import saros.net.xmpp.JID;
 
 /**
  * Listener for tracking network traffic. <b>Note:</b> It is up to the implementation to do
@@ -17,7 +18,25 @@ public interface ITransferListener {
    * @param sizeUncompressed the uncompressed size of the data
    * @param duration time in milliseconds it took to send the data
    */
-  public void sent(StreamMode mode, long sizeCompressed, long sizeUncompressed, long duration);
+  public default void sent(
+      StreamMode mode, long sizeCompressed, long sizeUncompressed, long duration) {
+    // NOP
+  }
+
+  /**
+   * Gets called when data was sent to the given peer. The default implementation calls {@link
+   * #sent(StreamMode, long, long, long)}.
+   *
+   * @param peer the recipient of the data
+   * @param mode the {@link StreamMode mode} used for sending
+   * @param sizeCompressed the compressed size of the data
+   * @param sizeUncompressed the uncompressed size of the data
+   * @param duration time in milliseconds it took to send the data
+   */
+  public default void sent(
+      JID peer, StreamMode mode, long sizeCompressed, long sizeUncompressed, long duration) {
+    sent(mode, sizeCompressed, sizeUncompressed, duration);
+  }
 
   /**
    * Gets called when data was received. The actual size of the real data that was received is the
@@ -28,5 +47,23 @@ public interface ITransferListener {
    * @param sizeUncompressed the uncompressed size of the data
    * @param duration time in milliseconds it took to receive the data
    */
-  public void received(StreamMode mode, long sizeCompressed, long sizeUncompressed, long duration);
+  public default void received(
+      StreamMode mode, long sizeCompressed, long sizeUncompressed, long duration) {
+    // NOP
+  }
+
+  /**
+   * Gets called when data was received from the given peer. The default implementation calls {@link
+   * #received(StreamMode, long, long, long)}.
+   *
+   * @param peer the sender of the data
+   * @param mode the {@link StreamMode mode} used for receiving
+   * @param sizeCompressed the compressed size of the data
+   * @param sizeUncompressed the uncompressed size of the data
+   * @param duration time in milliseconds it took to receive the data
+   */
+  public default void received(
+      JID peer, StreamMode mode, long sizeCompressed, long sizeUncompressed, long duration) {
+    received(mode, sizeCompressed, sizeUncompressed, duration);
+  }
 }
@@ -0,0 +1,95 @@
+package saros.net;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * A packet filter that only accepts packets containing a packet extension with a specific element
+ * name and namespace and optionally belonging to a specific session.
+ *
+ * <p>The {@link IReceiver} uses this information to route a packet directly to the listeners whose
+ * filters can accept it instead of evaluating the filters of all registered listeners. The routing
+ * information is only a hint, the filter itself must still reject every packet that does not match
+ * it.
+ */
+public class RoutablePacketFilter implements PacketFilter {
+
+  private final String elementName;
+  private final String namespace;
+  private final String sessionID;
+  private final PacketFilter filter;
+
+  /**
+   * Creates a new filter.
+   *
+   * @param elementName the element name of the packet extension
+   * @param namespace the namespace of the packet extension
+   * @param sessionID the ID of the session the packet must belong to or <code>null</code> if the
+   *     filter is not restricted to a session. Subclasses that pass a session ID <b>must</b>
+   *     override {@link #getSessionID(Packet)}.
+   * @param filter the filter that decides whether a packet is accepted
+   */
+  public RoutablePacketFilter(
+      final String elementName,
+      final String namespace,
+      final String sessionID,
+      final PacketFilter filter) {
+
+    if (elementName == null || namespace == null || filter == null)
+      throw new IllegalArgumentException("element name, namespace and filter must not be null");
+
+    this.elementName = elementName;
+    this.namespace = namespace;
+    this.sessionID = sessionID;
+    this.filter = filter;
+  }
+
+  @Override
+  public boolean accept(final Packet packet) {
+    return filter.accept(packet);
+  }
+
+  public String getElementName() {
+    return elementName;
+  }
+
+  public String getNamespace() {
+    return namespace;
+  }
+
+  /**
+   * Returns the ID of the session the accepted packets must belong to.
+   *
+   * @return the session ID or <code>null</code> if the filter is not restricted to a session
+   */
+  public String getSessionID() {
+    return sessionID;
+  }
+
+  /**
+   * Returns the ID of the session the given packet belongs to. Filters for the same element name
+   * and namespace must all determine the session ID in the same way.
+   *
+   * @param packet the packet to examine
+   * @return the session ID or <code>null</code> if the packet does not belong to a session
+   */
+  public String getSessionID(final Packet packet) {
+    return null;
+  }
+
+  /**
+   * Returns a filter with the same routing information that only accepts packets that are accepted
+   * by this and the given filter.
+   */
+  public RoutablePacketFilter and(final PacketFilter other) {
+    final RoutablePacketFilter self = this;
+
+    return new RoutablePacketFilter(elementName, namespace, sessionID, new AndFilter(self, other)) {
+      @Override
+      public String getSessionID(final Packet packet) {
+        return self.getSessionID(packet);
+      }
+    };
+  }
+}
@@ -0,0 +1,46 @@
+package saros.net;
+
+/**
+ * The binary representation of a packet extension that is split into a small header that depends on
+ * the recipient, e.g. a sequence number, and a body that is the same for every recipient of the
+ * same content. A codec that hands out the same body array to several recipients allows the {@link
+ * ITransmitter} to compress that body only once.
+ */
+public final class SharedEncoding {
+
+  private final byte[] header;
+  private final byte[] body;
+
+  /**
+   * @param header the recipient specific part
+   * @param body the shared part, it is identified by its identity and must therefore never be
+   *     modified
+   */
+  public SharedEncoding(final byte[] header, final byte[] body) {
+    this.header = header;
+    this.body = body;
+  }
+
+  public byte[] getHeader() {
+    return header;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /** Returns the size of the binary representation in bytes. */
+  public int getLength() {
+    return header.length + body.length;
+  }
+
+  /** Returns the binary representation, i.e the header followed by the body. */
+  public byte[] toByteArray() {
+    final byte[] data = new byte[getLength()];
+
+    System.arraycopy(header, 0, data, 0, header.length);
+    System.arraycopy(body, 0, data, header.length, body.length);
+
+    return data;
+  }
+}
@@ -10,8 +10,22 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ProtocolException;
 import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import org.apache.log4j.Logger;
 import saros.net.stream.ByteStream;
 import saros.net.stream.StreamMode;
@@ -24,7 +38,27 @@ import saros.net.xmpp.JID;
  * <p>The threading requirements of this class are the following:
  *
  * <p>send() is a reentrant method for sending data. Any number of threads can call it in parallel.
- * <b>Note:</b> The maximum number of concurrent threads is 32 !
+ * <b>Note:</b> The number of concurrent transfers is limited by the number of available fragment
+ * IDs (65536). If all IDs are in use, send() blocks until a transfer completes.
+ *
+ * <p>Outgoing data is not written by the sending threads. Instead it is split into frames which are
+ * put into an outgoing queue that is drained by a dedicated writer thread. The writer writes all
+ * frames that are currently queued and flushes the stream only once afterwards. A call to send()
+ * returns after the writer flushed the last frame of the data.
+ *
+ * <p>The writer schedules the frames of pending transfers by their {@link
+ * TransferDescription.Priority priority}. Frames of a higher priority are written first and the
+ * frames of transfers with the same priority are interleaved, so a small transfer never has to wait
+ * until a large transfer is completely written. To keep a steady stream of high priority transfers
+ * from starving the others, a waiting transfer of a lower priority gets one frame written after it
+ * was overtaken by {@link #MAX_OVERTAKING_FRAMES} frames.
+ *
+ * <p>If stream compression is enabled, the writer announces this to the remote side and compresses
+ * everything it writes afterwards with a single {@link Deflater} that is flushed with {@link
+ * Deflater#SYNC_FLUSH} whenever the stream is flushed. As the compression context is kept for the
+ * lifetime of the connection, repeated element names, JIDs and paths are compressed much better
+ * than with a new context for every packet. Each direction of the connection decides on its own
+ * whether it is compressed.
  *
  * @author sszuecs
  * @author coezbek
@@ -36,40 +70,167 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
   private static final long TERMINATE_TIMEOUT = 10000L;
 
+  /** Whether outgoing data is compressed on the stream level by default. */
+  private static final boolean STREAM_COMPRESSION =
+      Boolean.valueOf(
+          System.getProperty(
+              "saros.net.binarychannel.STREAM_COMPRESSION", Boolean.TRUE.toString()));
+
+  /** The compression level used for the compressed stream. */
+  private static final int STREAM_COMPRESSION_LEVEL =
+      Integer.getInteger(
+          "saros.net.binarychannel.STREAM_COMPRESSION_LEVEL", Deflater.DEFAULT_COMPRESSION);
+
+  /** Size of the buffers of the compressing and decompressing streams */
+  private static final int COMPRESSION_BUFFER_SIZE = 8 * 1024;
+
   private static class Opcode {
     /* these opcodes will be cropped to byte values, do not exceed 0xFF ! */
 
-    private static final int TRANSFERDESCRIPTION = 0xFA;
+    /* 0xFA was used for transfer descriptions without the payload length */
+    private static final int TRANSFERDESCRIPTION = 0xFC;
     private static final int DATA = 0xFB;
 
     private static final int NAMESPACE_UPDATE = 0x64;
+
+    /* all data after this opcode is compressed */
+    private static final int STREAM_COMPRESSION = 0x66;
     private static final int ELEMENT_NAME_UPDATE = 0x65;
   }
 
+  /* flags of a transfer description */
+  private static final int FLAG_COMPRESSED = 0x01;
+  private static final int FLAG_BINARY_CONTENT = 0x02;
+
   /** Max size of data chunks */
   private static final int CHUNKSIZE = 32 * 1024 - 1;
 
+  /** Size of the buffer that is used to coalesce outgoing frames */
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Number of frames of a higher priority that are written while frames of a lower priority are
+   * waiting, before one frame of the lower priority is written.
+   */
+  private static final int MAX_OVERTAKING_FRAMES =
+      Math.max(1, Integer.getInteger("saros.net.binarychannel.MAX_OVERTAKING_FRAMES", 8));
+
+  /**
+   * An encoded frame that is waiting to be written. The frame consists of a header and an optional
+   * slice of payload data that is not copied.
+   */
+  private static final class Frame {
+    private final byte[] header;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    private Frame(byte[] header, byte[] data, int offset, int length) {
+      this.header = header;
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * The frames of a single send() call or of cache updates. Cache updates do not have a priority
+   * and are written as soon as the writer takes them from the queue.
+   */
+  private static final class OutgoingMessage {
+    private final Frame[] frames;
+    private final TransferDescription.Priority priority;
+    private final SendCompletion completion;
+
+    private int nextFrame;
+
+    private OutgoingMessage(
+        List<Frame> frames, TransferDescription.Priority priority, SendCompletion completion) {
+      this.frames = frames.toArray(new Frame[frames.size()]);
+      this.priority = priority;
+      this.completion = completion;
+    }
+
+    private boolean isControl() {
+      return priority == null;
+    }
+  }
+
+  /** Used to signal a sending thread that all frames of its data were written. */
+  private static final class SendCompletion {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile IOException failure;
+
+    private synchronized void complete(IOException failure) {
+      if (done.getCount() == 0) return;
+
+      this.failure = failure;
+      done.countDown();
+    }
+
+    private void await() throws IOException {
+      boolean interrupted = false;
+
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) Thread.currentThread().interrupt();
+
+      if (failure != null) throw new IOException(failure.getMessage(), failure);
+    }
+  }
+
   private IByteStreamConnectionListener listener;
   private ReceiverThread receiveThread;
+  private WriterThread writerThread;
+
+  private final Queue<OutgoingMessage> outgoingMessages =
+      new ConcurrentLinkedQueue<OutgoingMessage>();
+  private final AtomicInteger outgoingQueueSize = new AtomicInteger();
+  private volatile boolean writerTerminated;
+
+  /** messages taken from the outgoing queue, accessed only by the writer thread */
+  private final List<ArrayDeque<OutgoingMessage>> scheduledMessages =
+      new ArrayList<ArrayDeque<OutgoingMessage>>();
+
+  /**
+   * number of frames of a higher priority that were written since the last frame of the priority
+   * was written, accessed only by the writer thread
+   */
+  private final int[] overtakingFrames = new int[TransferDescription.Priority.values().length];
 
   private final JID remoteAddress;
   private final JID localAddress;
 
   private final String connectionID;
 
-  private IDPool idPool = new IDPool();
+  private final IDPool idPool = new IDPool();
 
-  private boolean connected;
+  private volatile boolean connected;
   private boolean initialized;
 
-  private Map<Integer, ByteArrayOutputStream> pendingFragmentedPackets =
-      new HashMap<Integer, ByteArrayOutputStream>();
   private Map<Integer, BinaryXMPPExtension> pendingXMPPExtensions =
       new HashMap<Integer, BinaryXMPPExtension>();
 
   private DataInputStream inputStream;
   private DataOutputStream outputStream;
 
+  /* the buffered streams of the connection without compression */
+  private BufferedInputStream rawInputStream;
+  private BufferedOutputStream rawOutputStream;
+
+  private volatile boolean compressOutgoingStream = STREAM_COMPRESSION;
+
+  /* only accessed by the receiver and writer thread respectively */
+  private Inflater inflater;
+  private Deflater deflater;
+
   private ByteStream stream;
   private StreamMode mode;
 
@@ -105,6 +266,50 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         LOG.error(connection + " internal error: " + e.getMessage(), e);
       } finally {
         close();
+
+        if (inflater != null) inflater.end();
+      }
+    }
+  }
+
+  private class WriterThread extends Thread {
+
+    @Override
+    public void run() {
+      String connection = BinaryChannelConnection.this.toString();
+
+      LOG.debug(connection + " WriterThread started.");
+
+      IOException failure = null;
+
+      try {
+        if (compressOutgoingStream) enableStreamCompression();
+
+        writeFrames();
+      } catch (IOException e) {
+        failure = e;
+
+        if (connected) LOG.error(connection + " network error: " + e.getMessage(), e);
+        else LOG.debug(connection + " connection closed locally: " + e.getMessage());
+
+      } catch (RuntimeException e) {
+        failure = new IOException("internal error: " + e.getMessage(), e);
+        LOG.error(connection + " internal error: " + e.getMessage(), e);
+      } finally {
+        writerTerminated = true;
+
+        if (failure == null) failure = new EOFException("connection is closed");
+
+        for (final ArrayDeque<OutgoingMessage> messages : scheduledMessages) {
+          for (final OutgoingMessage message : messages) failMessage(message, failure);
+
+          messages.clear();
+        }
+
+        failQueuedMessages(failure);
+        close();
+
+        if (deflater != null) deflater.end();
       }
     }
   }
@@ -127,8 +332,32 @@ public class BinaryChannelConnection implements IByteStreamConnection {
     this.stream.setReadTimeout(0); // keep connection alive
     this.mode = mode;
 
-    outputStream = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream()));
-    inputStream = new DataInputStream(new BufferedInputStream(stream.getInputStream()));
+    for (int i = 0; i < TransferDescription.Priority.values().length; i++)
+      scheduledMessages.add(new ArrayDeque<OutgoingMessage>());
+
+    rawOutputStream = new BufferedOutputStream(stream.getOutputStream(), OUTPUT_BUFFER_SIZE);
+    rawInputStream = new BufferedInputStream(stream.getInputStream());
+
+    outputStream = new DataOutputStream(rawOutputStream);
+    inputStream = new DataInputStream(rawInputStream);
+  }
+
+  /**
+   * Sets whether the data sent over this connection is compressed on the stream level. The default
+   * is controlled by the system property <code>saros.net.binarychannel.STREAM_COMPRESSION</code>.
+   * Must be called before {@link #initialize()}.
+   *
+   * @param enable <code>true</code> to compress outgoing data
+   */
+  void setStreamCompression(boolean enable) {
+    if (initialized) throw new IllegalStateException("connection is already initialized");
+
+    compressOutgoingStream = enable;
+  }
+
+  @Override
+  public boolean isStreamCompressed() {
+    return compressOutgoingStream;
   }
 
   @Override
@@ -148,9 +377,12 @@ public class BinaryChannelConnection implements IByteStreamConnection {
      */
     receiveThread = new ReceiverThread();
     receiveThread.setName("BinaryChannel-" + remoteAddress.getName());
-    receiveThread.start();
+    writerThread = new WriterThread();
+    writerThread.setName("BinaryChannelWriter-" + remoteAddress.getName());
     connected = true;
     initialized = true;
+    receiveThread.start();
+    writerThread.start();
   }
 
   @Override
@@ -178,6 +410,22 @@ public class BinaryChannelConnection implements IByteStreamConnection {
     }
 
     assert receiveThread != null;
+    assert writerThread != null;
+
+    LockSupport.unpark(writerThread);
+
+    if (Thread.currentThread() != writerThread) {
+      try {
+        writerThread.join(TERMINATE_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (writerThread.isAlive()) {
+        LOG.warn("timeout while waiting for closure of binary channel writer " + this);
+        writerThread.interrupt();
+      }
+    }
 
     if (Thread.currentThread() != receiveThread) {
       try {
@@ -210,15 +458,22 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
     if (!isConnected()) throw new EOFException("connection is closed");
 
-    final int fragmentId = idPool.nextID();
+    final int fragmentId;
 
-    if (fragmentId < 0) throw new IOException("concurrent access threshold exceeded");
+    try {
+      fragmentId = idPool.nextID();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a free fragment id");
+    }
 
     try {
 
       Integer namespaceId;
       Integer elementNameId;
 
+      final List<Frame> frames = new ArrayList<Frame>();
+
       synchronized (this) {
         final String namespace = data.getNamespace();
         namespaceId = outNamespaceCache.get(namespace);
@@ -236,9 +491,12 @@ public class BinaryChannelConnection implements IByteStreamConnection {
                     + " , namespace: "
                     + namespace);
 
-          outputStream.write(Opcode.NAMESPACE_UPDATE);
-          outputStream.write(namespaceId);
-          outputStream.writeUTF(namespace);
+          final ByteArrayOutputStream header = new ByteArrayOutputStream();
+          final DataOutputStream out = new DataOutputStream(header);
+          out.write(Opcode.NAMESPACE_UPDATE);
+          out.write(namespaceId);
+          out.writeUTF(namespace);
+          frames.add(new Frame(header.toByteArray(), null, 0, 0));
         }
 
         final String elementName = data.getElementName();
@@ -257,20 +515,39 @@ public class BinaryChannelConnection implements IByteStreamConnection {
                     + " , element name: "
                     + elementName);
 
-          outputStream.write(Opcode.ELEMENT_NAME_UPDATE);
-          outputStream.writeShort(elementNameId);
-          outputStream.writeUTF(elementName);
+          final ByteArrayOutputStream header = new ByteArrayOutputStream();
+          final DataOutputStream out = new DataOutputStream(header);
+          out.write(Opcode.ELEMENT_NAME_UPDATE);
+          out.writeShort(elementNameId);
+          out.writeUTF(elementName);
+          frames.add(new Frame(header.toByteArray(), null, 0, 0));
         }
+
+        /*
+         * the cache updates must be queued while holding the lock, otherwise
+         * another thread may queue data that refers to a cache entry the
+         * remote side does not know yet
+         */
+        if (!frames.isEmpty()) enqueue(new OutgoingMessage(frames, null, null));
       }
 
       assert content.length > 0;
 
       int chunks = ((content.length - 1) / CHUNKSIZE) + 1;
 
-      sendTransferDescription(
-          fragmentId, chunks, namespaceId, elementNameId, data.compressContent());
+      frames.clear();
 
-      splitAndSend(content, chunks, fragmentId);
+      frames.add(
+          createTransferDescriptionFrame(
+              fragmentId, chunks, namespaceId, elementNameId, getFlags(data), content.length));
+
+      splitIntoFrames(content, chunks, fragmentId, frames);
+
+      final SendCompletion completion = new SendCompletion();
+
+      enqueue(new OutgoingMessage(frames, data.getPriority(), completion));
+
+      completion.await();
     } catch (IOException e) {
       close();
       throw e;
@@ -279,6 +556,17 @@ public class BinaryChannelConnection implements IByteStreamConnection {
     }
   }
 
+  /**
+   * Returns the number of frames that are currently queued and waiting to be written by the writer
+   * thread.
+   *
+   * @return the number of queued frames
+   */
+  @Override
+  public int getOutgoingQueueSize() {
+    return outgoingQueueSize.get();
+  }
+
   /**
    * Reads the next XMPP extension.
    *
@@ -301,7 +589,7 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
       switch (opcode) {
         case Opcode.TRANSFERDESCRIPTION:
-          fragmentId = inputStream.readShort();
+          fragmentId = inputStream.readUnsignedShort();
           final int chunks = inputStream.readInt();
 
           if (LOG.isTraceEnabled()) {
@@ -316,7 +604,15 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
           final int namespaceId = inputStream.readUnsignedByte();
           final int elementNameId = inputStream.readUnsignedShort();
-          final int compressed = inputStream.readUnsignedByte();
+          final int flags = inputStream.readUnsignedByte();
+          final int totalLength = inputStream.readInt();
+
+          if (totalLength <= 0 || chunks != ((totalLength - 1) / CHUNKSIZE) + 1)
+            throw new ProtocolException(
+                "payload length field contains corrupted value: "
+                    + totalLength
+                    + " , chunks: "
+                    + chunks);
 
           final String namespace = inNamespaceCache.get(Integer.valueOf(namespaceId));
 
@@ -328,18 +624,23 @@ public class BinaryChannelConnection implements IByteStreamConnection {
           transferDescription.setRecipient(localAddress);
           transferDescription.setNamespace(namespace);
           transferDescription.setElementName(elementName);
-          transferDescription.setCompressContent(compressed == 1);
+          transferDescription.setCompressContent((flags & FLAG_COMPRESSED) != 0);
+          transferDescription.setBinaryContent((flags & FLAG_BINARY_CONTENT) != 0);
+
+          final BinaryXMPPExtension transferObject =
+              new BinaryXMPPExtension(mode, transferDescription, chunks);
+
+          transferObject.preparePayload(totalLength);
 
           BinaryXMPPExtension oldTransferObject =
-              pendingXMPPExtensions.put(
-                  fragmentId, new BinaryXMPPExtension(mode, transferDescription, chunks));
+              pendingXMPPExtensions.put(fragmentId, transferObject);
 
           if (oldTransferObject != null)
             throw new IOException("replaced a XMPP extension that is still transmitted");
           break;
 
         case Opcode.DATA:
-          fragmentId = inputStream.readShort();
+          fragmentId = inputStream.readUnsignedShort();
           final int payloadLength = inputStream.readInt();
 
           if (LOG.isTraceEnabled()) {
@@ -360,32 +661,21 @@ public class BinaryChannelConnection implements IByteStreamConnection {
                     + " <= "
                     + CHUNKSIZE);
 
-          byte[] payload = new byte[payloadLength];
-          inputStream.readFully(payload);
-
-          ByteArrayOutputStream out = pendingFragmentedPackets.get(fragmentId);
-
-          if (out == null) {
-            out = new ByteArrayOutputStream(payloadLength * 2);
-            pendingFragmentedPackets.put(fragmentId, out);
-          }
+          final BinaryXMPPExtension pendingTransferObject = pendingXMPPExtensions.get(fragmentId);
 
-          out.write(payload);
-          out.flush();
+          if (pendingTransferObject == null)
+            throw new ProtocolException("received data for unknown fragment id: " + fragmentId);
 
-          if (!pendingXMPPExtensions.get(fragmentId).isLastChunk()) break;
+          // the chunk is read directly into the payload buffer
+          pendingTransferObject.readPayloadChunk(inputStream, payloadLength);
 
-          pendingFragmentedPackets.remove(fragmentId);
+          if (!pendingTransferObject.isLastChunk()) break;
 
-          BinaryXMPPExtension fullyReceivedTransferObject =
-              pendingXMPPExtensions.remove(fragmentId);
+          pendingXMPPExtensions.remove(fragmentId);
 
-          payload = out.toByteArray();
-          out = null; // help GC
+          pendingTransferObject.completePayload();
 
-          fullyReceivedTransferObject.setPayload(payload.length, payload);
-
-          return fullyReceivedTransferObject;
+          return pendingTransferObject;
 
         case Opcode.ELEMENT_NAME_UPDATE:
           if (LOG.isTraceEnabled()) {
@@ -418,6 +708,27 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
           break;
 
+        case Opcode.STREAM_COMPRESSION:
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("processing opcode 0x" + Integer.toHexString(opcode).toUpperCase() + " [SC]");
+          }
+
+          if (inflater != null) throw new ProtocolException("stream is already compressed");
+
+          inflater = new Inflater();
+
+          /*
+           * the raw stream may already contain compressed data, so the
+           * inflater must read from it and not from the underlying stream
+           */
+          inputStream =
+              new DataInputStream(
+                  new BufferedInputStream(
+                      new InflaterInputStream(rawInputStream, inflater, COMPRESSION_BUFFER_SIZE)));
+
+          LOG.debug(this + " remote side enabled stream compression");
+          break;
+
         default:
           close();
           throw new ProtocolException(
@@ -430,38 +741,65 @@ public class BinaryChannelConnection implements IByteStreamConnection {
     throw new InterruptedIOException("interrupted while reading stream data");
   }
 
-  private synchronized void sendData(int fragmentId, byte[] data, int offset, int length)
-      throws IOException {
+  private Frame createDataFrame(int fragmentId, byte[] data, int offset, int length) {
 
     if (LOG.isTraceEnabled()) {
-      LOG.trace("sending data: id=" + fragmentId + ", len=" + length + " bytes");
+      LOG.trace("queuing data: id=" + fragmentId + ", len=" + length + " bytes");
     }
 
-    outputStream.write(Opcode.DATA);
-    outputStream.writeShort(fragmentId);
-    outputStream.writeInt(length);
-    outputStream.write(data, offset, length);
-    outputStream.flush();
+    final byte[] header = new byte[7];
+
+    header[0] = (byte) Opcode.DATA;
+    header[1] = (byte) (fragmentId >>> 8);
+    header[2] = (byte) fragmentId;
+    header[3] = (byte) (length >>> 24);
+    header[4] = (byte) (length >>> 16);
+    header[5] = (byte) (length >>> 8);
+    header[6] = (byte) length;
+
+    return new Frame(header, data, offset, length);
   }
 
-  private synchronized void sendTransferDescription(
-      int fragmentId, int chunks, int namespaceId, int elementNameId, boolean compress)
-      throws IOException {
+  private static int getFlags(final TransferDescription description) {
+    int flags = 0;
+
+    if (description.compressContent()) flags |= FLAG_COMPRESSED;
+
+    if (description.isBinaryContent()) flags |= FLAG_BINARY_CONTENT;
+
+    return flags;
+  }
+
+  private Frame createTransferDescriptionFrame(
+      int fragmentId, int chunks, int namespaceId, int elementNameId, int flags, int totalLength) {
 
     if (LOG.isTraceEnabled()) {
-      LOG.trace("sending transfer description: id=" + fragmentId);
+      LOG.trace("queuing transfer description: id=" + fragmentId);
     }
 
-    outputStream.write(Opcode.TRANSFERDESCRIPTION);
-    outputStream.writeShort(fragmentId);
-    outputStream.writeInt(chunks);
-    outputStream.write(namespaceId);
-    outputStream.writeShort(elementNameId);
-    outputStream.write(compress ? 1 : 0);
+    final byte[] header = new byte[15];
+
+    header[0] = (byte) Opcode.TRANSFERDESCRIPTION;
+    header[1] = (byte) (fragmentId >>> 8);
+    header[2] = (byte) fragmentId;
+    header[3] = (byte) (chunks >>> 24);
+    header[4] = (byte) (chunks >>> 16);
+    header[5] = (byte) (chunks >>> 8);
+    header[6] = (byte) chunks;
+    header[7] = (byte) namespaceId;
+    header[8] = (byte) (elementNameId >>> 8);
+    header[9] = (byte) elementNameId;
+    header[10] = (byte) flags;
+    header[11] = (byte) (totalLength >>> 24);
+    header[12] = (byte) (totalLength >>> 16);
+    header[13] = (byte) (totalLength >>> 8);
+    header[14] = (byte) totalLength;
+
+    return new Frame(header, null, 0, 0);
   }
 
-  /** Splits the given data into chunks of CHUNKSIZE to send the BinaryPackets. */
-  private void splitAndSend(byte[] data, int chunks, int fragmentId) throws IOException {
+  /** Splits the given data into chunks of CHUNKSIZE and creates a DATA frame for each chunk. */
+  private void splitIntoFrames(byte[] data, int chunks, int fragmentId, List<Frame> frames) {
 
     int offset = 0;
     int length = 0;
@@ -470,45 +808,292 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
       length = Math.min(data.length - offset, CHUNKSIZE);
 
-      sendData(fragmentId, data, offset, length);
+      frames.add(createDataFrame(fragmentId, data, offset, length));
 
       offset += length;
     }
   }
 
+  /** Queues the given message for writing. */
+  private void enqueue(OutgoingMessage message) {
+
+    outgoingQueueSize.addAndGet(message.frames.length);
+    outgoingMessages.offer(message);
+
+    LockSupport.unpark(writerThread);
+
+    /*
+     * the writer may have already terminated and so will not process the
+     * message we just queued
+     */
+    if (writerTerminated) failQueuedMessages(new EOFException("connection is closed"));
+  }
+
+  /**
+   * Announces the stream compression to the remote side and compresses everything written
+   * afterwards.
+   *
+   * @sarosThread must only be called by the writer thread before any frame is written
+   */
+  private void enableStreamCompression() throws IOException {
+    rawOutputStream.write(Opcode.STREAM_COMPRESSION);
+
+    deflater = new Deflater(STREAM_COMPRESSION_LEVEL);
+
+    /*
+     * buffer before the deflater to avoid calling it for every small
+     * header, the deflater flushes with SYNC_FLUSH when the stream is flushed
+     */
+    outputStream =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                new DeflaterOutputStream(rawOutputStream, deflater, COMPRESSION_BUFFER_SIZE, true),
+                OUTPUT_BUFFER_SIZE));
+
+    LOG.debug(this + " enabled stream compression");
+  }
+
+  /**
+   * Writes the frames of all queued messages. The stream is flushed once nothing is left to write,
+   * before continuing with frames of a lower priority after messages were completed, or if the
+   * output buffer was filled since the last flush. Parks the calling thread if there is nothing to
+   * write.
+   *
+   * @sarosThread must only be called by the writer thread
+   */
+  private void writeFrames() throws IOException {
+
+    final List<SendCompletion> completions = new ArrayList<SendCompletion>();
+
+    int framesWritten = 0;
+    int bytesWritten = 0;
+
+    // ordinal of the highest priority that completed a message since the last flush
+    int completedPriority = Integer.MAX_VALUE;
+
+    while (connected && !Thread.currentThread().isInterrupted()) {
+
+      /*
+       * cache updates are written directly, this ensures that they are
+       * written before any frame that refers to them
+       */
+      OutgoingMessage message;
+
+      while ((message = outgoingMessages.poll()) != null) {
+        if (!message.isControl()) {
+          scheduledMessages.get(message.priority.ordinal()).addLast(message);
+          continue;
+        }
+
+        for (final Frame frame : message.frames) {
+          bytesWritten += writeFrame(frame);
+          framesWritten++;
+        }
+      }
+
+      message = pollScheduledMessage();
+
+      if (message == null && framesWritten == 0) {
+        LockSupport.park(this);
+        continue;
+      }
+
+      if (message == null
+          || (!completions.isEmpty()
+              && (message.priority.ordinal() > completedPriority
+                  || bytesWritten >= OUTPUT_BUFFER_SIZE))) {
+
+        outputStream.flush();
+
+        if (LOG.isTraceEnabled())
+          LOG.trace(
+              "flushed " + framesWritten + " frame(s) for " + completions.size() + " send(s)");
+
+        for (final SendCompletion completion : completions) completion.complete(null);
+
+        completions.clear();
+        completedPriority = Integer.MAX_VALUE;
+        framesWritten = 0;
+        bytesWritten = 0;
+      }
+
+      if (message == null) continue;
+
+      bytesWritten += writeFrame(message.frames[message.nextFrame]);
+      framesWritten++;
+
+      if (++message.nextFrame < message.frames.length) {
+        // round robin between messages of the same priority
+        scheduledMessages.get(message.priority.ordinal()).addLast(message);
+        continue;
+      }
+
+      completions.add(message.completion);
+      completedPriority = Math.min(completedPriority, message.priority.ordinal());
+    }
+  }
+
+  /**
+   * Removes the message the next frame should be written of from the scheduled messages. This is
+   * the first message of the highest priority unless a message of a lower priority was overtaken by
+   * too many frames.
+   *
+   * @return the message or <code>null</code> if no messages are scheduled
+   * @sarosThread must only be called by the writer thread
+   */
+  private OutgoingMessage pollScheduledMessage() {
+    // the highest waiting priority unless a lower priority is starving
+    int selected = -1;
+
+    for (int i = 0; i < scheduledMessages.size(); i++) {
+      if (scheduledMessages.get(i).isEmpty()) {
+        overtakingFrames[i] = 0;
+        continue;
+      }
+
+      if (selected == -1 || overtakingFrames[i] >= MAX_OVERTAKING_FRAMES) selected = i;
+    }
+
+    if (selected == -1) return null;
+
+    for (int i = 0; i < scheduledMessages.size(); i++) {
+      if (i == selected) overtakingFrames[i] = 0;
+      else if (i > selected && !scheduledMessages.get(i).isEmpty()) overtakingFrames[i]++;
+    }
+
+    return scheduledMessages.get(selected).pollFirst();
+  }
+
+  /**
+   * Writes the given frame to the (buffered) output stream.
+   *
+   * @return the number of bytes written
+   */
+  private int writeFrame(Frame frame) throws IOException {
+    outgoingQueueSize.decrementAndGet();
+
+    outputStream.write(frame.header);
+
+    if (frame.length > 0) outputStream.write(frame.data, frame.offset, frame.length);
+
+    return frame.header.length + frame.length;
+  }
+
+  /** Removes all queued messages and notifies the waiting senders about the failure. */
+  private void failQueuedMessages(IOException failure) {
+    OutgoingMessage message;
+
+    while ((message = outgoingMessages.poll()) != null) failMessage(message, failure);
+  }
+
+  private void failMessage(OutgoingMessage message, IOException failure) {
+    outgoingQueueSize.addAndGet(-(message.frames.length - message.nextFrame));
+
+    if (message.completion != null) message.completion.complete(failure);
+  }
+
   @Override
   public String toString() {
     return "[mode=" + getMode() + ", id=" + connectionID + "]" + " " + remoteAddress;
   }
 
+  /**
+   * Lock free pool of fragment IDs covering the whole unsigned short range that is used for the
+   * fragment ID on the wire. If all IDs are in use, {@link #nextID()} blocks until an ID is freed.
+   */
   static class IDPool {
 
-    private final int MAX_ID = 32;
-    private int pool = 0; // 32 ids
+    static final int MAX_IDS = 1 << 16;
+
+    private final int capacity;
+
+    /** bit set of the IDs in use, bits beyond the capacity are always set */
+    private final AtomicLongArray pool;
+
+    /** the number of free IDs */
+    private final Semaphore available;
 
-    // see
-    // http://graphics.stanford.edu/~seander/bithacks.html#IntegerLogDeBruijn
-    private static final int LOG_2_TABLE[] = {
-      0, 1, 28, 2, 29, 14, 24, 3, 30, 22, 20, 15, 25, 17, 4, 8, 31, 27, 13, 23, 21, 19, 16, 7, 26,
-      12, 18, 6, 11, 5, 10, 9
-    };
+    /** index of the word where the next search for a free ID starts */
+    private final AtomicInteger nextWord = new AtomicInteger();
 
-    public synchronized int nextID() {
+    IDPool() {
+      this(MAX_IDS);
+    }
+
+    IDPool(int capacity) {
+      if (capacity <= 0 || capacity > MAX_IDS)
+        throw new IllegalArgumentException("invalid capacity: " + capacity);
 
-      final int bitIdx = Integer.lowestOneBit(~pool);
+      this.capacity = capacity;
 
-      if (bitIdx == 0) return -1;
+      pool = new AtomicLongArray((capacity + 63) / 64);
 
-      pool |= bitIdx;
+      if (capacity % 64 != 0) pool.set(pool.length() - 1, -1L << (capacity % 64));
 
-      return LOG_2_TABLE[(bitIdx * 0x077CB531) >>> 27];
+      available = new Semaphore(capacity);
     }
 
-    public synchronized void freeID(int id) {
-      if (id < 0 || id >= MAX_ID) return;
+    /**
+     * Returns an unused ID, blocking until one is available.
+     *
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public int nextID() throws InterruptedException {
+      available.acquire();
+      return allocate();
+    }
+
+    /**
+     * Returns an unused ID if one is available.
+     *
+     * @return an unused ID or -1 if all IDs are in use
+     */
+    public int tryNextID() {
+      if (!available.tryAcquire()) return -1;
+
+      return allocate();
+    }
+
+    public void freeID(int id) {
+      if (id < 0 || id >= capacity) return;
+
+      final int index = id >>> 6;
+      final long bit = 1L << (id & 63);
+
+      long word;
 
-      int bitIdx = 1 << id;
-      pool &= (~bitIdx);
+      do {
+        word = pool.get(index);
+
+        if ((word & bit) == 0) return; // not in use
+
+      } while (!pool.compareAndSet(index, word, word & ~bit));
+
+      available.release();
+    }
+
+    /** Claims a free bit, the caller must have acquired a permit before. */
+    private int allocate() {
+      final int words = pool.length();
+
+      int index = nextWord.get();
+
+      while (true) {
+        long word = pool.get(index);
+
+        while (word != -1L) {
+          final long bit = Long.lowestOneBit(~word);
+
+          if (pool.compareAndSet(index, word, word | bit)) {
+            nextWord.set(index);
+            return (index << 6) + Long.numberOfTrailingZeros(bit);
+          }
+
+          word = pool.get(index);
+        }
+
+        if (++index == words) index = 0;
+      }
     }
   }
 }
@@ -1,15 +1,28 @@
 package saros.net.internal;
 
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.ProtocolException;
 import saros.net.stream.StreamMode;
 
 public final class BinaryXMPPExtension {
 
+  /**
+   * Pool for the buffers incoming payloads are reassembled in. Buffers larger than 1 MiB are not
+   * pooled.
+   */
+  private static final ByteArrayPool PAYLOAD_BUFFERS =
+      new ByteArrayPool(4 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
   private TransferDescription transferDescription;
 
   private int chunkCount;
   private long transferredSize;
   private long uncompressedSize;
   private byte[] payload;
+  private int payloadLength;
+  private int expectedPayloadLength;
+  private boolean pooledPayload;
   private long transferDuration;
   private StreamMode transferMode;
 
@@ -25,12 +38,18 @@ public final class BinaryXMPPExtension {
 
   /**
    * Returns the XMPP packet extension in binary form. <b>Note:</b>The returned byte array <b>must
-   * not</b> be modified directly.
+   * not</b> be modified directly and may be larger than the payload, see {@link
+   * #getPayloadLength()}.
    */
   byte[] getPayload() {
     return payload;
   }
 
+  /** Returns the number of valid bytes of the array returned by {@link #getPayload()}. */
+  int getPayloadLength() {
+    return payloadLength;
+  }
+
   /** Returns the transfer description of this transfer object. */
   // public for STF
   public TransferDescription getTransferDescription() {
@@ -69,11 +88,104 @@ public final class BinaryXMPPExtension {
     if (chunkCount > 0)
       throw new IllegalStateException("there are chunks missing: " + chunkCount + " > 0");
 
+    releasePayload();
+
     payload = data;
+    payloadLength = data.length;
     transferredSize = originalSize;
     uncompressedSize = data.length;
   }
 
+  /**
+   * Prepares this extension for receiving a payload of the given size. The chunks of the payload
+   * must then be read with {@link #readPayloadChunk}. The size is announced by the remote side, so
+   * no memory is allocated up front. Instead the payload buffer grows as the chunks arrive.
+   *
+   * @param size the size of the payload in bytes
+   */
+  void preparePayload(int size) {
+    releasePayload();
+
+    expectedPayloadLength = size;
+  }
+
+  /**
+   * Reads the next chunk of the payload directly into the payload buffer.
+   *
+   * @param in the input to read from
+   * @param length the length of the chunk
+   * @throws ProtocolException if the chunk exceeds the announced payload size
+   * @throws IOException if an I/O error occurs
+   */
+  void readPayloadChunk(DataInput in, int length) throws IOException {
+    if (payloadLength + length > expectedPayloadLength)
+      throw new ProtocolException(
+          "chunk exceeds payload size: "
+              + (payloadLength + length)
+              + " > "
+              + expectedPayloadLength);
+
+    ensurePayloadCapacity(payloadLength + length);
+
+    in.readFully(payload, payloadLength, length);
+    payloadLength += length;
+  }
+
+  /**
+   * Completes the reception of the payload. Must be called after the last chunk was read.
+   *
+   * @throws ProtocolException if the received data does not match the announced payload size
+   */
+  void completePayload() throws ProtocolException {
+    if (chunkCount > 0)
+      throw new IllegalStateException("there are chunks missing: " + chunkCount + " > 0");
+
+    if (payloadLength != expectedPayloadLength)
+      throw new ProtocolException(
+          "received payload size does not match: "
+              + payloadLength
+              + " != "
+              + expectedPayloadLength);
+
+    transferredSize = payloadLength;
+    uncompressedSize = payloadLength;
+  }
+
+  /**
+   * Returns the payload buffer to the pool if it was taken from there. The payload <b>must not</b>
+   * be accessed afterwards.
+   */
+  void releasePayload() {
+    if (pooledPayload) PAYLOAD_BUFFERS.release(payload);
+
+    pooledPayload = false;
+    payload = null;
+    payloadLength = 0;
+  }
+
+  /**
+   * Grows the payload buffer to hold at least the given number of bytes. The capacity is at least
+   * doubled to keep the copying cheap but never exceeds the expected payload size.
+   */
+  private void ensurePayloadCapacity(int capacity) {
+    if (payload != null && payload.length >= capacity) return;
+
+    final int newCapacity =
+        (int)
+            Math.min(
+                expectedPayloadLength,
+                Math.max(capacity, payload == null ? 0 : 2L * payload.length));
+
+    final byte[] newPayload = PAYLOAD_BUFFERS.acquire(newCapacity);
+
+    if (payload != null) System.arraycopy(payload, 0, newPayload, 0, payloadLength);
+
+    if (pooledPayload) PAYLOAD_BUFFERS.release(payload);
+
+    payload = newPayload;
+    pooledPayload = true;
+  }
+
   /**
    * Checks if all outstanding chunks have arrived. This method <b>must</b> be called after a chunk
    * has been received.
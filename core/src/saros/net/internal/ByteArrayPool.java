@@ -0,0 +1,104 @@
+package saros.net.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe pool of byte arrays. Arrays are kept in buckets whose sizes are powers of two
+ * between the minimum and maximum size of the pool. Requests that exceed the maximum size are
+ * served with a new array of the exact size that is not pooled.
+ *
+ * <p>Arrays taken from the pool are not cleared, callers must track the number of valid bytes
+ * themselves. Returning an array to the pool is optional, arrays that are not returned are simply
+ * garbage collected.
+ */
+final class ByteArrayPool {
+
+  private final int minSize;
+  private final int maxSize;
+  private final long maxRetainedBytes;
+
+  private final int minSizeShift;
+
+  private final List<Queue<byte[]>> buckets = new ArrayList<Queue<byte[]>>();
+
+  private final AtomicLong retainedBytes = new AtomicLong();
+
+  /**
+   * Creates a new pool.
+   *
+   * @param minSize the size of the smallest pooled array, must be a power of two
+   * @param maxSize the size of the largest pooled array, must be a power of two
+   * @param maxRetainedBytes the maximum number of bytes the pool keeps for reuse
+   */
+  ByteArrayPool(int minSize, int maxSize, long maxRetainedBytes) {
+    if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize)
+      throw new IllegalArgumentException(
+          "sizes must be powers of two and min <= max: " + minSize + ", " + maxSize);
+
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.maxRetainedBytes = maxRetainedBytes;
+
+    minSizeShift = Integer.numberOfTrailingZeros(minSize);
+
+    for (int size = minSize; size <= maxSize && size > 0; size <<= 1)
+      buckets.add(new ConcurrentLinkedQueue<byte[]>());
+  }
+
+  /**
+   * Returns an array that can hold at least the given number of bytes.
+   *
+   * @param size the number of bytes the array must be able to hold
+   * @return an array with a length of at least <code>size</code>
+   */
+  byte[] acquire(int size) {
+    if (size < 0) throw new IllegalArgumentException("negative size: " + size);
+
+    if (size > maxSize) return new byte[size];
+
+    final int index = getBucketIndex(size);
+
+    final byte[] array = buckets.get(index).poll();
+
+    if (array == null) return new byte[minSize << index];
+
+    retainedBytes.addAndGet(-array.length);
+
+    return array;
+  }
+
+  /**
+   * Returns the given array to the pool. Arrays that were not created by this pool or that would
+   * exceed the retention limit are discarded. The caller must not access the array afterwards.
+   *
+   * @param array the array to return
+   */
+  void release(byte[] array) {
+    if (array == null
+        || array.length < minSize
+        || array.length > maxSize
+        || Integer.bitCount(array.length) != 1) return;
+
+    if (retainedBytes.addAndGet(array.length) > maxRetainedBytes) {
+      retainedBytes.addAndGet(-array.length);
+      return;
+    }
+
+    buckets.get(getBucketIndex(array.length)).offer(array);
+  }
+
+  /** Returns the number of bytes that are currently kept for reuse. */
+  long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  private int getBucketIndex(int size) {
+    if (size <= minSize) return 0;
+
+    return (32 - Integer.numberOfLeadingZeros(size - 1)) - minSizeShift;
+  }
+}
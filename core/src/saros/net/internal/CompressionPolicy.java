@@ -0,0 +1,264 @@
+package saros.net.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import org.apache.log4j.Logger;
+import saros.annotations.Component;
+
+/**
+ * Decides whether the content of a packet extension is compressed before it is sent over a
+ * connection that is not compressed on the stream level.
+ *
+ * <p>The policy tracks the achieved compression ratio and the CPU time spent for every combination
+ * of namespace and element name. Compression is skipped for extensions that do not compress well or
+ * whose compression takes longer than sending the saved bytes over the link would take. Extensions
+ * that are skipped are compressed again from time to time to detect changes in their content.
+ *
+ * <p>Compressed content may use a preset dictionary that contains the XML fragments that occur in
+ * nearly every {@link saros.communication.extensions.ActivitiesExtension}, so even small activities
+ * can be compressed efficiently.
+ *
+ * <p>All settings can be changed at runtime, e.g. to adapt to the speed of the current link.
+ */
+@Component(module = "net")
+public class CompressionPolicy {
+
+  private static final Logger LOG = Logger.getLogger(CompressionPolicy.class);
+
+  /**
+   * Preset dictionary that is used for the compression of packet extensions. It is assembled from
+   * the serialized form of the most common activities. Fragments that occur most often are placed
+   * at the end as they can be referenced with shorter distances. <b>Changing the dictionary breaks
+   * the compatibility with other Saros versions.</b>
+   */
+  static final byte[] PRESET_DICTIONARY =
+      ("<checksumActivity source=\"\" hash=\"\" length=\"\" jupiterTimestamp=\"\"><p></p>"
+              + "</checksumActivity>"
+              + "<editorActivity source=\"\" type=\"ACTIVATED\"><p></p></editorActivity>"
+              + "<progressActivity source=\"\"></progressActivity>"
+              + "<fileActivity source=\"\" type=\"CREATED\" purpose=\"ACTIVITY\""
+              + " encoding=\"UTF-8\">"
+              + "</fileActivity>"
+              + "<o class=\"splitOp\"><op1 class=\"deleteOp\"></op1><op2 class=\"insertOp\"></op2>"
+              + "</o>"
+              + "<o class=\"noOp\"/><o class=\"deleteOp\" position=\"\"><text></text></o>"
+              + "<viewportActivity source=\"\" o=\"\" l=\"\"><p></p></viewportActivity>"
+              + "<textSelectionActivity source=\"\" o=\"\" l=\"\"><p></p></textSelectionActivity>"
+              + "<t class=\"saros.concurrent.jupiter.internal.JupiterVectorTime\""
+              + " local=\"\" remote=\"\"/>"
+              + "<o class=\"insertOp\" position=\"\" origin=\"\"><text></text></o>"
+              + "<jupiterActivity source=\"\"><p></p>"
+              + "</jupiterActivity></ADOS></ados>"
+              + "<ados xmlns=\"saros\"><ADOS v=\"\" sid=\"\" seq=\"\">")
+          .getBytes(StandardCharsets.UTF_8);
+
+  /** Number of samples that are always compressed to collect statistics. */
+  private static final int WARMUP_SAMPLES = 4;
+
+  /** Every n-th extension is compressed although compression does not pay off. */
+  private static final int PROBE_INTERVAL = 32;
+
+  /** Weight of a new sample for the moving averages. */
+  private static final double SAMPLE_WEIGHT = 0.125;
+
+  private static class Statistics {
+    private int samples;
+    private int skipped;
+    private double ratio;
+    private double nanosPerByte;
+
+    private synchronized void add(double ratio, double nanosPerByte) {
+      if (samples == 0) {
+        this.ratio = ratio;
+        this.nanosPerByte = nanosPerByte;
+      } else {
+        this.ratio += (ratio - this.ratio) * SAMPLE_WEIGHT;
+        this.nanosPerByte += (nanosPerByte - this.nanosPerByte) * SAMPLE_WEIGHT;
+      }
+
+      samples++;
+      skipped = 0;
+    }
+  }
+
+  private final Map<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+  private volatile boolean enabled =
+      Boolean.valueOf(System.getProperty("saros.net.compression.ENABLED", Boolean.TRUE.toString()));
+
+  private volatile int minimumSize =
+      Integer.getInteger("saros.net.transmitter.PACKET_EXTENSION_COMPRESS_THRESHOLD", 32);
+
+  private volatile double maximumRatio =
+      Double.parseDouble(System.getProperty("saros.net.compression.MAXIMUM_RATIO", "0.9"));
+
+  private volatile long linkBandwidth =
+      Long.getLong("saros.net.compression.LINK_BANDWIDTH", 1024 * 1024);
+
+  private volatile int level =
+      Integer.getInteger("saros.net.compression.LEVEL", Deflater.DEFAULT_COMPRESSION);
+
+  private volatile boolean usePresetDictionary =
+      Boolean.valueOf(
+          System.getProperty(
+              "saros.net.compression.USE_PRESET_DICTIONARY", Boolean.TRUE.toString()));
+
+  /**
+   * Returns whether an extension with the given namespace, element name and size should be
+   * compressed.
+   */
+  public boolean shouldCompress(String namespace, String elementName, int size) {
+    if (!enabled || size <= minimumSize) return false;
+
+    final Statistics stats = statistics.get(getKey(namespace, elementName));
+
+    if (stats == null) return true;
+
+    synchronized (stats) {
+      if (stats.samples < WARMUP_SAMPLES || paysOff(stats, size)) return true;
+
+      if (++stats.skipped >= PROBE_INTERVAL) {
+        stats.skipped = 0;
+        return true;
+      }
+
+      return false;
+    }
+  }
+
+  /**
+   * Records the result of a compression.
+   *
+   * @param namespace the namespace of the extension
+   * @param elementName the element name of the extension
+   * @param uncompressedSize the size before the compression
+   * @param compressedSize the size after the compression
+   * @param nanos the time the compression took in nanoseconds
+   */
+  public void record(
+      String namespace, String elementName, int uncompressedSize, int compressedSize, long nanos) {
+
+    if (uncompressedSize <= 0) return;
+
+    final String key = getKey(namespace, elementName);
+
+    Statistics stats = statistics.get(key);
+
+    if (stats == null) {
+      statistics.putIfAbsent(key, new Statistics());
+      stats = statistics.get(key);
+    }
+
+    stats.add(
+        (double) compressedSize / uncompressedSize, Math.max(0, nanos) / (double) uncompressedSize);
+
+    if (LOG.isTraceEnabled())
+      LOG.trace(
+          "compressed "
+              + key
+              + " from "
+              + uncompressedSize
+              + " to "
+              + compressedSize
+              + " bytes in "
+              + nanos
+              + " ns");
+  }
+
+  /**
+   * Creates a new deflater that is configured according to the current settings. The caller is
+   * responsible for ending the deflater.
+   */
+  public Deflater createDeflater() {
+    final Deflater deflater = new Deflater(level);
+
+    if (usePresetDictionary) deflater.setDictionary(PRESET_DICTIONARY);
+
+    return deflater;
+  }
+
+  /** Forgets all recorded statistics. */
+  public void reset() {
+    statistics.clear();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public int getMinimumSize() {
+    return minimumSize;
+  }
+
+  /** Sets the size in bytes an extension must exceed to be compressed. */
+  public void setMinimumSize(int minimumSize) {
+    this.minimumSize = minimumSize;
+  }
+
+  public double getMaximumRatio() {
+    return maximumRatio;
+  }
+
+  /**
+   * Sets the ratio of compressed to uncompressed size above which compression is considered as not
+   * paying off.
+   */
+  public void setMaximumRatio(double maximumRatio) {
+    this.maximumRatio = maximumRatio;
+  }
+
+  public long getLinkBandwidth() {
+    return linkBandwidth;
+  }
+
+  /**
+   * Sets the assumed bandwidth of the link in bytes per second. On fast links compression only pays
+   * off if it is cheap, a value of zero or less disables this check.
+   */
+  public void setLinkBandwidth(long linkBandwidth) {
+    this.linkBandwidth = linkBandwidth;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  /** Sets the compression level, see {@link Deflater#setLevel(int)}. */
+  public void setLevel(int level) {
+    if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+      throw new IllegalArgumentException("invalid compression level: " + level);
+
+    this.level = level;
+  }
+
+  public boolean isUsingPresetDictionary() {
+    return usePresetDictionary;
+  }
+
+  public void setUsePresetDictionary(boolean usePresetDictionary) {
+    this.usePresetDictionary = usePresetDictionary;
+  }
+
+  private boolean paysOff(Statistics stats, int size) {
+    if (stats.ratio > maximumRatio) return false;
+
+    final long bandwidth = linkBandwidth;
+
+    if (bandwidth <= 0) return true;
+
+    final double savedNanos = size * (1 - stats.ratio) * 1E9 / bandwidth;
+    final double spentNanos = size * stats.nanosPerByte;
+
+    return spentNanos < savedNanos;
+  }
+
+  private static String getKey(String namespace, String elementName) {
+    return namespace + ":" + elementName;
+  }
+}
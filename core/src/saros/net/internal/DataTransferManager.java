@@ -4,18 +4,24 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
 import saros.annotations.Component;
+import saros.context.IContainerContext;
 import saros.context.IContextKeyBindings.IBBStreamService;
 import saros.context.IContextKeyBindings.Socks5StreamService;
+import saros.context.IContextKeyBindings.TCPStreamService;
 import saros.net.ConnectionState;
 import saros.net.IConnectionManager;
 import saros.net.stream.IStreamService;
@@ -24,6 +30,8 @@ import saros.net.xmpp.IConnectionListener;
 import saros.net.xmpp.JID;
 import saros.net.xmpp.XMPPConnectionService;
 import saros.repackaged.picocontainer.annotations.Nullable;
+import saros.util.ThreadUtils;
+import saros.versioning.VersionManager;
 
 /**
  * This class is responsible for handling all transfers of binary data. It maintains a map of
@@ -44,24 +52,63 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
 
   private static final String OUT = "out";
 
+  /**
+   * Number of additional connections per peer and connection ID that carry bulk transfers, a value
+   * of zero or less disables the bulk lanes
+   */
+  private static final int BULK_LANES = Integer.getInteger("saros.net.transfer.BULK_LANES", 1);
+
+  /** time in milliseconds before a bulk lane is established again after it failed */
+  private static final long BULK_LANE_RETRY_INTERVAL =
+      Long.getLong("saros.net.transfer.BULK_LANE_RETRY_INTERVAL", 60000L);
+
+  private static final String BULK_LANE_SUFFIX = "-bulk-";
+
+  /** Time after a peer the direct stream service failed for is tried with it again. */
+  private static final long DIRECT_SERVICE_RETRY_INTERVAL =
+      Long.getLong("saros.net.transfer.DIRECT_SERVICE_RETRY_INTERVAL", 60000L);
+
   private volatile JID currentLocalJID;
 
   private Connection xmppConnection;
 
   private int serviceMask = -1;
 
+  private final IStreamService directService;
+
   private final IStreamService mainService;
 
   private final IStreamService fallbackService;
 
-  private final Lock connectLock = new ReentrantLock();
+  private final IContainerContext context;
+
+  /**
+   * Connection establishments hold the read lock so they can run concurrently. The write lock is
+   * acquired to wait for running establishments before the stream services are uninitialized.
+   */
+  private final ReadWriteLock connectLock = new ReentrantReadWriteLock();
 
   private final ConnectionPool connectionPool = new ConnectionPool();
 
-  private final Set<String> currentOutgoingConnectionEstablishments = new HashSet<String>();
+  /** running outgoing connection establishments, keyed by their connection ID token */
+  private final ConcurrentMap<String, CompletableFuture<IByteStreamConnection>>
+      currentOutgoingConnectionEstablishments =
+          new ConcurrentHashMap<String, CompletableFuture<IByteStreamConnection>>();
 
   private final List<IStreamService> streamServices = new CopyOnWriteArrayList<IStreamService>();
 
+  /** time of the last failed establishment, keyed by the connection ID token of the bulk lane */
+  private final ConcurrentMap<String, Long> bulkLaneFailures =
+      new ConcurrentHashMap<String, Long>();
+
+  /** connection ID tokens of the bulk lanes that are currently established in the background */
+  private final Set<String> pendingBulkLanes = ConcurrentHashMap.newKeySet();
+
+  private final AtomicInteger nextBulkLane = new AtomicInteger();
+
+  /** time of the last failed establishment over the direct stream service, keyed by the peer */
+  private final ConcurrentMap<JID, Long> directServiceFailures = new ConcurrentHashMap<JID, Long>();
+
   private final CopyOnWriteArrayList<IByteStreamConnectionListener> connectionListeners =
       new CopyOnWriteArrayList<>();
 
@@ -138,7 +185,22 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
       XMPPConnectionService connectionService,
       @Nullable @Socks5StreamService IStreamService mainService,
       @Nullable @IBBStreamService IStreamService fallbackService) {
+    this(connectionService, null, mainService, fallbackService, null);
+  }
 
+  /**
+   * @param context the context to look up the {@link VersionManager} in, the direct stream service
+   *     is only used for peers that announced support for it
+   */
+  public DataTransferManager(
+      XMPPConnectionService connectionService,
+      @Nullable @TCPStreamService IStreamService directService,
+      @Nullable @Socks5StreamService IStreamService mainService,
+      @Nullable @IBBStreamService IStreamService fallbackService,
+      @Nullable IContainerContext context) {
+
+    this.context = context;
+    this.directService = directService;
     this.fallbackService = fallbackService;
     this.mainService = mainService;
     this.setStreamServices();
@@ -166,6 +228,92 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
     return getCurrentConnection(connectionId, peer);
   }
 
+  /**
+   * Returns a connection to the given peer that is reserved for bulk transfers, so large payloads
+   * do not delay the interactive traffic on the connection with the given ID. The bulk transfers
+   * are distributed over the configured number of lanes. A lane that does not exist yet is
+   * established in the background, so the caller is never blocked by the establishment and uses the
+   * interactive connection until the lane is ready. Lanes are only used if the connection with the
+   * given ID is a direct connection as they would not increase the throughput otherwise.
+   *
+   * <p><b>Note:</b> Packets sent over different lanes may arrive in a different order than they
+   * were sent.
+   *
+   * @param connectionID identifier of the interactive connection or <code>null</code> for the
+   *     default one
+   * @param peer JID of the remote side
+   * @return a bulk connection or <code>null</code> if no bulk lane is available and the interactive
+   *     connection should be used instead
+   */
+  public IByteStreamConnection getBulkConnection(final String connectionID, final JID peer) {
+
+    if (BULK_LANES <= 0) return null;
+
+    final IByteStreamConnection interactive = getCurrentConnection(connectionID, peer);
+
+    if (interactive == null || !isDirect(interactive.getMode())) return null;
+
+    final int lane = (nextBulkLane.getAndIncrement() & Integer.MAX_VALUE) % BULK_LANES;
+    final String laneID = toBulkLaneID(connectionID, lane);
+
+    final IByteStreamConnection connection = getCurrentConnection(laneID, peer);
+
+    if (connection != null) return connection;
+
+    final String laneToken = toConnectionIDToken(laneID, OUT, peer);
+    final Long lastFailure = bulkLaneFailures.get(laneToken);
+
+    if (lastFailure != null && System.currentTimeMillis() - lastFailure < BULK_LANE_RETRY_INTERVAL)
+      return null;
+
+    if (!pendingBulkLanes.add(laneToken)) return null;
+
+    ThreadUtils.runSafeAsync(
+        "bulk-lane-" + laneID,
+        LOG,
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              establishBulkLane(laneID, laneToken, peer);
+            } finally {
+              pendingBulkLanes.remove(laneToken);
+            }
+          }
+        });
+
+    return null;
+  }
+
+  private void establishBulkLane(final String laneID, final String laneToken, final JID peer) {
+
+    final IByteStreamConnection connection;
+
+    try {
+      connection = connectInternal(laneID, peer);
+    } catch (IOException e) {
+      LOG.warn("could not establish bulk lane " + laneID + " to " + peer + ": " + e.getMessage());
+      bulkLaneFailures.put(laneToken, System.currentTimeMillis());
+      return;
+    }
+
+    if (!isDirect(connection.getMode())) {
+      LOG.debug(
+          "closing bulk lane "
+              + laneID
+              + " to "
+              + peer
+              + " because it is not direct: "
+              + connection.getMode());
+
+      closeLane(laneID, peer);
+      bulkLaneFailures.put(laneToken, System.currentTimeMillis());
+      return;
+    }
+
+    bulkLaneFailures.remove(laneToken);
+  }
+
   /**
    * @deprecated Disconnects {@link IByteStreamConnection} with the specified peer
    * @param peer {@link JID} of the peer to disconnect the {@link IByteStreamConnection}
@@ -176,9 +324,20 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
     return closeConnection(DEFAULT_CONNECTION_ID, peer);
   }
 
+  /** Closes the connection with the given ID and its bulk lanes. */
   @Override
   public boolean closeConnection(String connectionIdentifier, JID peer) {
 
+    boolean closed = closeLane(connectionIdentifier, peer);
+
+    for (int lane = 0; lane < BULK_LANES; lane++)
+      closed |= closeLane(toBulkLaneID(connectionIdentifier, lane), peer);
+
+    return closed;
+  }
+
+  private boolean closeLane(String connectionIdentifier, JID peer) {
+
     final String outID = toConnectionIDToken(connectionIdentifier, OUT, peer);
 
     final String inID = toConnectionIDToken(connectionIdentifier, IN, peer);
@@ -234,23 +393,71 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
     connectionListeners.remove(listener);
   }
 
+  /**
+   * Establishes an outgoing connection to the given peer. Concurrent calls for the same connection
+   * ID and peer share one establishment, calls for different peers or connection IDs run in
+   * parallel.
+   */
   private IByteStreamConnection connectInternal(String connectionID, JID peer) throws IOException {
 
-    IByteStreamConnection connection = null;
+    IByteStreamConnection connection = getCurrentConnection(connectionID, peer);
+
+    if (connection != null) return connection;
 
     final String connectionIDToken = toConnectionIDToken(connectionID, OUT, peer);
 
-    synchronized (currentOutgoingConnectionEstablishments) {
-      if (!currentOutgoingConnectionEstablishments.contains(connectionIDToken)) {
-        connection = getCurrentConnection(connectionID, peer);
+    final CompletableFuture<IByteStreamConnection> establishment =
+        new CompletableFuture<IByteStreamConnection>();
 
-        if (connection == null) currentOutgoingConnectionEstablishments.add(connectionIDToken);
-      }
+    final CompletableFuture<IByteStreamConnection> currentEstablishment =
+        currentOutgoingConnectionEstablishments.putIfAbsent(connectionIDToken, establishment);
 
-      if (connection != null) return connection;
+    if (currentEstablishment != null) return awaitConnection(currentEstablishment, peer);
+
+    try {
+      connection = establishConnection(connectionID, peer);
+      establishment.complete(connection);
+      return connection;
+    } catch (IOException | RuntimeException | Error e) {
+      establishment.completeExceptionally(e);
+      throw e;
+    } finally {
+      currentOutgoingConnectionEstablishments.remove(connectionIDToken, establishment);
     }
+  }
+
+  /** Waits for a connection establishment that was started by another thread. */
+  private IByteStreamConnection awaitConnection(
+      final CompletableFuture<IByteStreamConnection> establishment, final JID peer)
+      throws IOException {
 
-    connectLock.lock();
+    LOG.debug("waiting for running connection establishment to " + peer);
+
+    try {
+      return establishment.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      IOException io =
+          new InterruptedIOException("connection establishment to " + peer + " aborted");
+      io.initCause(e);
+      throw io;
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+
+      if (cause instanceof IOException)
+        throw new IOException("could not connect to " + peer + ": " + cause.getMessage(), cause);
+
+      throw new IOException(
+          "could not connect to " + peer + " due to an internal error: " + cause, cause);
+    }
+  }
+
+  private IByteStreamConnection establishConnection(String connectionID, JID peer)
+      throws IOException {
+
+    IByteStreamConnection connection = null;
+
+    connectLock.readLock().lock();
 
     try {
 
@@ -266,6 +473,8 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
           new ArrayList<IStreamService>(streamServices);
 
       for (IStreamService streamService : currentStreamServices) {
+        if (streamService == directService && !isDirectServiceUsable(peer)) continue;
+
         LOG.info(
             "establishing connection to "
                 + peer
@@ -275,9 +484,15 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
                 + streamService);
         try {
           connection = streamService.connect(connectionID, peer);
+
+          if (streamService == directService) directServiceFailures.remove(peer);
+
           break;
         } catch (IOException e) {
           LOG.warn("failed to connect to " + peer + " using stream service: " + streamService, e);
+
+          if (streamService == directService)
+            directServiceFailures.put(peer, System.currentTimeMillis());
         } catch (InterruptedException e) {
           LOG.warn(
               "interrupted while connecting to "
@@ -310,24 +525,45 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
               + ", exhausted all available stream services: "
               + currentStreamServices);
     } finally {
-      synchronized (currentOutgoingConnectionEstablishments) {
-        currentOutgoingConnectionEstablishments.remove(connectionIDToken);
-      }
-      connectLock.unlock();
+      connectLock.readLock().unlock();
     }
   }
 
+  /**
+   * Returns whether the direct stream service should be tried for the given peer. It is skipped for
+   * peers that did not announce support for it, as they would never answer, and for peers it failed
+   * for recently, e.g because they are not on the same network, so not every bulk lane waits for it
+   * to time out again.
+   */
+  private boolean isDirectServiceUsable(final JID peer) {
+    final VersionManager versionManager =
+        context == null ? null : context.getComponent(VersionManager.class);
+
+    if (versionManager == null
+        || !versionManager.isFeatureSupported(peer, VersionManager.TCP_TRANSPORT_FEATURE))
+      return false;
+
+    final Long lastFailure = directServiceFailures.get(peer);
+
+    return lastFailure == null
+        || System.currentTimeMillis() - lastFailure >= DIRECT_SERVICE_RETRY_INTERVAL;
+  }
+
   private void setStreamServices() {
     boolean useIBB;
     boolean useSocks5;
+    boolean useTCP;
 
     synchronized (this) {
       useIBB = (serviceMask & IBB_SERVICE) != 0;
       useSocks5 = (serviceMask & SOCKS5_SERVICE) != 0;
+      useTCP = (serviceMask & TCP_SERVICE) != 0;
     }
 
     streamServices.clear();
 
+    if (useTCP && directService != null) streamServices.add(directService);
+
     if (useSocks5 && mainService != null) streamServices.add(mainService);
 
     if (useIBB && fallbackService != null) streamServices.add(fallbackService);
@@ -357,7 +593,7 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
     boolean acquired = false;
 
     try {
-      acquired = connectLock.tryLock(5000, TimeUnit.MILLISECONDS);
+      acquired = connectLock.writeLock().tryLock(5000, TimeUnit.MILLISECONDS);
     } catch (InterruptedException e) {
       acquired = false;
     }
@@ -365,7 +601,7 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
     try {
       for (IStreamService streamService : streamServices) streamService.uninitialize();
     } finally {
-      if (acquired) connectLock.unlock();
+      if (acquired) connectLock.writeLock().unlock();
     }
 
     connectionPool.close();
@@ -399,6 +635,19 @@ public class DataTransferManager implements IConnectionListener, IConnectionMana
     return connectionPool.get(toConnectionIDToken(connectionID, IN, jid));
   }
 
+  private static boolean isDirect(final StreamMode mode) {
+    return mode == StreamMode.TCP
+        || mode == StreamMode.SOCKS5_DIRECT
+        || mode == StreamMode.LOOPBACK;
+  }
+
+  private static String toBulkLaneID(String connectionIdentifier, int lane) {
+
+    if (connectionIdentifier == null) connectionIdentifier = DEFAULT_CONNECTION_ID;
+
+    return connectionIdentifier + BULK_LANE_SUFFIX + lane;
+  }
+
   private static String toConnectionIDToken(String connectionIdentifier, String mode, JID jid) {
 
     if (connectionIdentifier == null) connectionIdentifier = DEFAULT_CONNECTION_ID;
@@ -38,5 +38,23 @@ public interface IByteStreamConnection {
 
   public StreamMode getMode();
 
+  /**
+   * Returns whether the data sent over this connection is compressed on the stream level. If so the
+   * content passed to {@link #send} should not be compressed again.
+   *
+   * @return <code>true</code> if outgoing data is compressed by the connection itself
+   */
+  public boolean isStreamCompressed();
+
+  /**
+   * Returns the number of units that are queued for sending but not yet written to the underlying
+   * stream.
+   *
+   * @return the number of queued units or <code>0</code> if the connection does not queue data
+   */
+  public default int getOutgoingQueueSize() {
+    return 0;
+  }
+
   public void setBinaryXMPPExtensionReceiver(IBinaryXMPPExtensionReceiver receiver);
 }
@@ -0,0 +1,146 @@
+package saros.net.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import saros.net.RoutablePacketFilter;
+
+/**
+ * Immutable index of packet listeners that is used to dispatch a packet only to the listeners whose
+ * filters can accept it.
+ *
+ * <p>Listeners with a {@link RoutablePacketFilter} are indexed by the element name and namespace of
+ * the packet extension and, if present, by the session ID of their filter. All other listeners are
+ * offered every packet.
+ */
+final class PacketRoutingTable {
+
+  static final PacketRoutingTable EMPTY =
+      new PacketRoutingTable(Collections.<PacketListener, PacketFilter>emptyMap());
+
+  private static final class Route {
+    private final PacketListener listener;
+    private final PacketFilter filter;
+
+    private Route(final PacketListener listener, final PacketFilter filter) {
+      this.listener = listener;
+      this.filter = filter;
+    }
+
+    private void dispatch(final Packet packet) {
+      if (filter == null || filter.accept(packet)) listener.processPacket(packet);
+    }
+  }
+
+  /** Routes for packets containing an extension with a specific element name and namespace. */
+  private static final class ExtensionRoutes {
+    private final List<Route> anySession = new ArrayList<Route>();
+    private final Map<String, List<Route>> bySession = new HashMap<String, List<Route>>();
+    private RoutablePacketFilter sessionIDResolver;
+  }
+
+  private final List<Route> unrouted = new ArrayList<Route>();
+
+  private final Map<String, ExtensionRoutes> routes = new HashMap<String, ExtensionRoutes>();
+
+  /**
+   * Creates a routing table for the given listeners and their filters.
+   *
+   * @param listeners the listeners mapped to their filters, a filter may be <code>null</code>
+   */
+  PacketRoutingTable(final Map<PacketListener, PacketFilter> listeners) {
+
+    for (final Entry<PacketListener, PacketFilter> entry : listeners.entrySet()) {
+      final Route route = new Route(entry.getKey(), entry.getValue());
+
+      if (!(route.filter instanceof RoutablePacketFilter)) {
+        unrouted.add(route);
+        continue;
+      }
+
+      final RoutablePacketFilter filter = (RoutablePacketFilter) route.filter;
+      final String key = getKey(filter.getElementName(), filter.getNamespace());
+
+      ExtensionRoutes extensionRoutes = routes.get(key);
+
+      if (extensionRoutes == null) {
+        extensionRoutes = new ExtensionRoutes();
+        routes.put(key, extensionRoutes);
+      }
+
+      final String sessionID = filter.getSessionID();
+
+      if (sessionID == null) {
+        extensionRoutes.anySession.add(route);
+        continue;
+      }
+
+      List<Route> sessionRoutes = extensionRoutes.bySession.get(sessionID);
+
+      if (sessionRoutes == null) {
+        sessionRoutes = new ArrayList<Route>(1);
+        extensionRoutes.bySession.put(sessionID, sessionRoutes);
+      }
+
+      sessionRoutes.add(route);
+
+      if (extensionRoutes.sessionIDResolver == null) extensionRoutes.sessionIDResolver = filter;
+    }
+  }
+
+  /**
+   * Passes the packet to every listener whose filter accepts it. Every listener is notified at most
+   * once.
+   */
+  void dispatch(final Packet packet) {
+    for (final Route route : unrouted) route.dispatch(packet);
+
+    if (routes.isEmpty()) return;
+
+    final Collection<PacketExtension> extensions = packet.getExtensions();
+
+    // nearly every packet carries only one extension, so a list is sufficient
+    List<String> visited = null;
+
+    for (final PacketExtension extension : extensions) {
+      final String key = getKey(extension.getElementName(), extension.getNamespace());
+
+      final ExtensionRoutes extensionRoutes = routes.get(key);
+
+      if (extensionRoutes == null) continue;
+
+      if (extensions.size() > 1) {
+        if (visited == null) visited = new ArrayList<String>(extensions.size());
+        else if (visited.contains(key)) continue;
+
+        visited.add(key);
+      }
+
+      for (final Route route : extensionRoutes.anySession) route.dispatch(packet);
+
+      if (extensionRoutes.sessionIDResolver == null) continue;
+
+      final String sessionID = extensionRoutes.sessionIDResolver.getSessionID(packet);
+
+      if (sessionID == null) continue;
+
+      final List<Route> sessionRoutes = extensionRoutes.bySession.get(sessionID);
+
+      if (sessionRoutes == null) continue;
+
+      for (final Route route : sessionRoutes) route.dispatch(packet);
+    }
+  }
+
+  private static String getKey(final String elementName, final String namespace) {
+    return namespace + ":" + elementName;
+  }
+}
@@ -0,0 +1,186 @@
+package saros.net.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import saros.net.SharedEncoding;
+
+/**
+ * Compresses {@linkplain SharedEncoding shared encodings} so that their body is only compressed
+ * once, no matter to how many recipients it is sent. The zlib stream of every recipient consists of
+ * the header as uncompressed (stored) block followed by the cached compressed body, the checksum of
+ * the whole stream is combined from the checksums of both parts. The result can be inflated like
+ * any other zlib stream.
+ *
+ * <p>The body is compressed without the preset dictionary of the {@link CompressionPolicy} as its
+ * back references must not depend on the data in front of it.
+ */
+final class SharedDeflater {
+
+  /** number of compressed bodies that are kept */
+  private static final int CACHE_SIZE = 16;
+
+  private static final int CHUNKSIZE = 16 * 1024;
+
+  /** largest possible stored block */
+  private static final int MAX_STORED_BLOCK_SIZE = 0xFFFF;
+
+  private static final int ADLER_BASE = 65521;
+
+  /* zlib header: deflate with 32K window, default compression, no dictionary */
+  private static final int ZLIB_CMF = 0x78;
+  private static final int ZLIB_FLG = 0x9C;
+
+  private static final class CompressedBody {
+    private final byte[] data;
+    private final int level;
+    private final int checksum;
+
+    private CompressedBody(final byte[] data, final int level, final int checksum) {
+      this.data = data;
+      this.level = level;
+      this.checksum = checksum;
+    }
+  }
+
+  /** compressed bodies by the identity of the uncompressed body, guarded by its own monitor */
+  private final Map<byte[], CompressedBody> bodies =
+      new LinkedHashMap<byte[], CompressedBody>(CACHE_SIZE, 0.75F, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<byte[], CompressedBody> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  /**
+   * Compresses the given encoding.
+   *
+   * @param encoding the encoding to compress
+   * @param level the compression level, see {@link Deflater#setLevel(int)}
+   * @return a zlib stream containing the header followed by the body of the encoding
+   */
+  byte[] deflate(final SharedEncoding encoding, final int level) {
+    final byte[] header = encoding.getHeader();
+    final CompressedBody body = getCompressedBody(encoding.getBody(), level);
+
+    final int storedBlocks =
+        Math.max(1, (header.length + MAX_STORED_BLOCK_SIZE - 1) / MAX_STORED_BLOCK_SIZE);
+
+    final ByteArrayOutputStream out =
+        new ByteArrayOutputStream(2 + storedBlocks * 5 + header.length + body.data.length + 4);
+
+    out.write(ZLIB_CMF);
+    out.write(ZLIB_FLG);
+
+    int offset = 0;
+
+    do {
+      final int length = Math.min(header.length - offset, MAX_STORED_BLOCK_SIZE);
+
+      // BFINAL = 0, BTYPE = 00 (stored), the remaining bits are padding
+      out.write(0);
+      out.write(length & 0xFF);
+      out.write((length >>> 8) & 0xFF);
+      out.write(~length & 0xFF);
+      out.write((~length >>> 8) & 0xFF);
+      out.write(header, offset, length);
+
+      offset += length;
+    } while (offset < header.length);
+
+    // the compressed body ends with the final block of the stream
+    out.write(body.data, 0, body.data.length);
+
+    final Adler32 headerChecksum = new Adler32();
+    headerChecksum.update(header, 0, header.length);
+
+    final int checksum =
+        combine((int) headerChecksum.getValue(), body.checksum, encoding.getBody().length);
+
+    out.write((checksum >>> 24) & 0xFF);
+    out.write((checksum >>> 16) & 0xFF);
+    out.write((checksum >>> 8) & 0xFF);
+    out.write(checksum & 0xFF);
+
+    return out.toByteArray();
+  }
+
+  /** Forgets all compressed bodies. */
+  void clear() {
+    synchronized (bodies) {
+      bodies.clear();
+    }
+  }
+
+  private CompressedBody getCompressedBody(final byte[] body, final int level) {
+    synchronized (bodies) {
+      final CompressedBody compressedBody = bodies.get(body);
+
+      if (compressedBody != null && compressedBody.level == level) return compressedBody;
+    }
+
+    final Adler32 checksum = new Adler32();
+    checksum.update(body, 0, body.length);
+
+    final CompressedBody compressedBody =
+        new CompressedBody(deflateRaw(body, level), level, (int) checksum.getValue());
+
+    synchronized (bodies) {
+      bodies.put(body, compressedBody);
+    }
+
+    return compressedBody;
+  }
+
+  private static byte[] deflateRaw(final byte[] input, final int level) {
+    final Deflater compressor = new Deflater(level, true);
+
+    try {
+      compressor.setInput(input);
+      compressor.finish();
+
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
+
+      final byte[] buf = new byte[CHUNKSIZE];
+
+      while (!compressor.finished()) {
+        final int count = compressor.deflate(buf);
+        bos.write(buf, 0, count);
+      }
+
+      return bos.toByteArray();
+    } finally {
+      compressor.end();
+    }
+  }
+
+  /**
+   * Combines the Adler-32 checksums of two consecutive byte sequences like <code>adler32_combine
+   * </code> of zlib.
+   *
+   * @param first checksum of the first sequence
+   * @param second checksum of the second sequence
+   * @param secondLength length of the second sequence
+   * @return the checksum of the concatenation of both sequences
+   */
+  static int combine(final int first, final int second, final long secondLength) {
+    final long remainder = secondLength % ADLER_BASE;
+
+    long sum1 = first & 0xFFFF;
+    long sum2 = (remainder * sum1) % ADLER_BASE;
+
+    sum1 += (second & 0xFFFF) + ADLER_BASE - 1;
+    sum2 += ((first >>> 16) & 0xFFFF) + ((second >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+
+    if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+    if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+    if (sum2 >= 2L * ADLER_BASE) sum2 -= 2L * ADLER_BASE;
+    if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+
+    return (int) (sum1 | (sum2 << 16));
+  }
+}
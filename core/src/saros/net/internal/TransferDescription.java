@@ -10,6 +10,20 @@ import saros.net.xmpp.JID;
  */
 public class TransferDescription {
 
+  /**
+   * Scheduling class of a transfer. Frames of transfers with a higher priority are always sent
+   * before frames of transfers with a lower priority that are waiting at the same time. The
+   * priority is only used locally and is not transmitted.
+   */
+  public enum Priority {
+    /** latency sensitive traffic like session activities */
+    INTERACTIVE,
+    /** everything that is not classified otherwise */
+    DEFAULT,
+    /** large payloads like negotiation and recovery data */
+    BULK
+  }
+
   private TransferDescription() {
     // NOP
   }
@@ -25,6 +39,10 @@ public class TransferDescription {
   /** Field used to indicate that the payload may be compressed. */
   private boolean compress;
 
+  private boolean binaryContent;
+
+  private Priority priority = Priority.DEFAULT;
+
   public static TransferDescription newDescription() {
     return new TransferDescription();
   }
@@ -74,6 +92,28 @@ public class TransferDescription {
     return compress;
   }
 
+  TransferDescription setBinaryContent(boolean binaryContent) {
+    this.binaryContent = binaryContent;
+    return this;
+  }
+
+  /**
+   * Returns whether the content was encoded by an {@link saros.net.IPacketExtensionCodec} instead
+   * of being the XML representation of the packet extension.
+   */
+  public boolean isBinaryContent() {
+    return binaryContent;
+  }
+
+  TransferDescription setPriority(Priority priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  public Priority getPriority() {
+    return priority;
+  }
+
   @Override
   public String toString() {
     return "TransferDescription [elementName="
@@ -86,6 +126,10 @@ public class TransferDescription {
         + sender
         + ", compress="
         + compress
+        + ", binaryContent="
+        + binaryContent
+        + ", priority="
+        + priority
         + "]";
   }
 }
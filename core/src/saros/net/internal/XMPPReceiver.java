@@ -3,11 +3,16 @@ package saros.net.internal;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import org.apache.log4j.Logger;
@@ -24,6 +29,7 @@ import org.xmlpull.v1.XmlPullParser;
 import saros.annotations.Component;
 import saros.net.ConnectionState;
 import saros.net.DispatchThreadContext;
+import saros.net.IPacketExtensionCodec;
 import saros.net.IPacketInterceptor;
 import saros.net.IReceiver;
 import saros.net.ITransferListener;
@@ -31,19 +37,55 @@ import saros.net.PacketCollector;
 import saros.net.PacketCollector.CancelHook;
 import saros.net.stream.StreamMode;
 import saros.net.xmpp.IConnectionListener;
+import saros.net.xmpp.JID;
 import saros.net.xmpp.XMPPConnectionService;
-
+import saros.repackaged.picocontainer.Disposable;
+import saros.util.NamedThreadFactory;
+
+/**
+ * IReceiver implementation that receives packets from the XMPP connection and binary XMPP
+ * extensions from the byte stream connections.
+ *
+ * <p>Binary XMPP extensions are decompressed and deserialized by a pool of decoder threads, so
+ * large payloads of one peer do not delay the packets of other peers. Packets of the same sender
+ * are always forwarded to the listeners in the order they have been received.
+ */
 @Component(module = "net")
-public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
+public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver, Disposable {
 
   private static final Logger LOG = Logger.getLogger(XMPPReceiver.class);
 
   private static final int CHUNKSIZE = 16 * 1024;
 
+  /** maximum number of threads that decode binary XMPP extensions concurrently */
+  private static final int DECODE_THREADS =
+      Math.max(
+          1,
+          Integer.getInteger(
+              "saros.net.receiver.DECODE_THREADS",
+              Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+  private static final long DECODE_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+  /** A binary XMPP extension waiting for its own or a preceding decode to complete. */
+  private static class DecodeTask {
+    private final BinaryXMPPExtension extension;
+    private boolean decoded;
+    private Packet packet;
+
+    private DecodeTask(final BinaryXMPPExtension extension) {
+      this.extension = extension;
+    }
+  }
+
   private final DispatchThreadContext dispatchThreadContext;
 
+  /** registered listeners, guarded by itself */
   private final Map<PacketListener, PacketFilter> listeners =
-      Collections.synchronizedMap(new HashMap<PacketListener, PacketFilter>());
+      new HashMap<PacketListener, PacketFilter>();
+
+  /** copy of the listeners that is rebuilt on every change, so dispatching needs no locking */
+  private volatile PacketRoutingTable routingTable = PacketRoutingTable.EMPTY;
 
   private final CopyOnWriteArrayList<ITransferListener> transferListeners =
       new CopyOnWriteArrayList<>();
@@ -51,7 +93,22 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
   private final CopyOnWriteArrayList<IPacketInterceptor> packetInterceptors =
       new CopyOnWriteArrayList<>();
 
-  private XmlPullParser parser;
+  private final Map<String, IPacketExtensionCodec> codecs =
+      new ConcurrentHashMap<String, IPacketExtensionCodec>();
+
+  /** XML pull parsers are not thread safe, so every decoder thread uses its own instance */
+  private final ThreadLocal<XmlPullParser> parser =
+      new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+          return new MXParser();
+        }
+      };
+
+  private final ThreadPoolExecutor decoder;
+
+  /** decode tasks per sender in arrival order, guarded by itself */
+  private final Map<JID, Deque<DecodeTask>> pendingDecodes = new HashMap<JID, Deque<DecodeTask>>();
 
   private final PacketListener smackPacketListener =
       new PacketListener() {
@@ -86,7 +143,17 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
       DataTransferManager dataTransferManager) {
 
     this.dispatchThreadContext = dispatchThreadContext;
-    this.parser = new MXParser();
+
+    decoder =
+        new ThreadPoolExecutor(
+            DECODE_THREADS,
+            DECODE_THREADS,
+            DECODE_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamedThreadFactory("XMPPReceiver-Decoder-"));
+
+    decoder.allowCoreThreadTimeOut(true);
 
     connectionService.addListener(connectionListener);
     dataTransferManager.addConnectionListener(
@@ -103,12 +170,20 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
 
   @Override
   public void addPacketListener(PacketListener listener, PacketFilter filter) {
-    listeners.put(listener, filter);
+    synchronized (listeners) {
+      listeners.put(listener, filter);
+      routingTable = new PacketRoutingTable(listeners);
+    }
   }
 
   @Override
   public void removePacketListener(PacketListener listener) {
-    listeners.remove(listener);
+    synchronized (listeners) {
+      if (!listeners.containsKey(listener)) return;
+
+      listeners.remove(listener);
+      routingTable = new PacketRoutingTable(listeners);
+    }
   }
 
   @Override
@@ -131,6 +206,16 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
     packetInterceptors.remove(interceptor);
   }
 
+  @Override
+  public void addPacketExtensionCodec(final IPacketExtensionCodec codec) {
+    codecs.put(XMPPTransmitter.getCodecKey(codec.getElementName(), codec.getNamespace()), codec);
+  }
+
+  @Override
+  public void removePacketExtensionCodec(final IPacketExtensionCodec codec) {
+    codecs.remove(XMPPTransmitter.getCodecKey(codec.getElementName(), codec.getNamespace()), codec);
+  }
+
   @Override
   public void processPacket(final Packet packet) {
     dispatchThreadContext.executeAsDispatch(
@@ -159,57 +244,109 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
   }
 
   @Override
-  public void receive(BinaryXMPPExtension extension) {
-    dispatchThreadContext.executeAsDispatch(
-        new Runnable() {
+  public void dispose() {
+    decoder.shutdownNow();
+  }
 
-          @Override
-          public void run() {
+  /**
+   * Hands the extension over to the decoder threads. The packet interceptors are invoked directly
+   * as they expect the extensions in the order they have been received.
+   */
+  @Override
+  public void receive(final BinaryXMPPExtension extension) {
 
-            Packet packet = convertBinaryXMPPExtension(extension);
+    boolean dispatchPacket = true;
 
-            if (packet != null) forwardPacket(packet);
-          }
-        });
+    for (IPacketInterceptor packetInterceptor : packetInterceptors)
+      dispatchPacket &= packetInterceptor.receivedPacket(extension);
+
+    // interceptors may hold back the extension and pass it to this method again later
+    if (!dispatchPacket) return;
+
+    final JID sender = extension.getTransferDescription().getSender();
+    final DecodeTask task = new DecodeTask(extension);
+
+    synchronized (pendingDecodes) {
+      Deque<DecodeTask> tasks = pendingDecodes.get(sender);
+
+      if (tasks == null) {
+        tasks = new ArrayDeque<DecodeTask>();
+        pendingDecodes.put(sender, tasks);
+      }
+
+      tasks.add(task);
+    }
+
+    try {
+      decoder.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              Packet packet = null;
+
+              try {
+                packet = convertBinaryXMPPExtension(extension);
+              } catch (RuntimeException e) {
+                LOG.error("internal error while decoding " + extension.getTransferDescription(), e);
+              } finally {
+                completed(sender, task, packet);
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("discarding " + extension.getTransferDescription() + ", receiver is disposed");
+      extension.releasePayload();
+      completed(sender, task, null);
+    }
   }
 
   /**
-   * Dispatches the packet to all registered listeners.
-   *
-   * @sarosThread must be called from the Dispatch Thread
+   * Marks the given task as decoded and forwards all decoded packets of the sender that are not
+   * waiting for the decoding of a preceding packet.
    */
-  private void forwardPacket(Packet packet) {
-    Map<PacketListener, PacketFilter> copy;
+  private void completed(final JID sender, final DecodeTask task, final Packet packet) {
+    synchronized (pendingDecodes) {
+      task.packet = packet;
+      task.decoded = true;
 
-    synchronized (listeners) {
-      copy = new HashMap<PacketListener, PacketFilter>(listeners);
-    }
-    for (Entry<PacketListener, PacketFilter> entry : copy.entrySet()) {
-      PacketListener listener = entry.getKey();
-      PacketFilter filter = entry.getValue();
+      final Deque<DecodeTask> tasks = pendingDecodes.get(sender);
+
+      while (!tasks.isEmpty() && tasks.peekFirst().decoded) {
+        final Packet decodedPacket = tasks.pollFirst().packet;
+
+        if (decodedPacket == null) continue;
 
-      if (filter == null || filter.accept(packet)) {
-        listener.processPacket(packet);
+        // submitted while holding the lock to preserve the order of the packets
+        dispatchThreadContext.executeAsDispatch(
+            new Runnable() {
+              @Override
+              public void run() {
+                forwardPacket(decodedPacket);
+              }
+            });
       }
+
+      if (tasks.isEmpty()) pendingDecodes.remove(sender);
     }
   }
 
+  /**
+   * Dispatches the packet to all registered listeners whose filters accept it.
+   *
+   * @sarosThread must be called from the Dispatch Thread
+   */
+  private void forwardPacket(Packet packet) {
+    routingTable.dispatch(packet);
+  }
+
   /**
    * Deserializes the payload of an {@link BinaryXMPPExtension} back to its original {@link
    * PacketExtension} and returns a new packet containing the deserialized packet extension.
    *
-   * <p>This method is <b>not</b> thread safe and <b>must not</b> accessed by multiple threads
-   * concurrently.
+   * <p>This method is thread safe, every calling thread uses its own XML parser.
    */
   private Packet convertBinaryXMPPExtension(BinaryXMPPExtension extension) {
 
-    boolean dispatchPacket = true;
-
-    for (IPacketInterceptor packetInterceptor : packetInterceptors)
-      dispatchPacket &= packetInterceptor.receivedPacket(extension);
-
-    if (!dispatchPacket) return null;
-
     if (LOG.isTraceEnabled())
       LOG.trace(
           "received binary XMPP extension: "
@@ -223,20 +360,24 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
               + "]");
 
     if (extension.getTransferDescription().compressContent()) {
-      byte[] payload = extension.getPayload();
-      long compressedPayloadLength = payload.length;
+      long compressedPayloadLength = extension.getPayloadLength();
+
+      byte[] payload;
 
       try {
-        payload = inflate(payload);
+        payload = inflate(extension.getPayload(), extension.getPayloadLength());
       } catch (IOException e) {
         LOG.error("could not decompress extension payload", e);
+        extension.releasePayload();
         return null;
       }
 
+      // releases the buffer of the compressed payload
       extension.setPayload(compressedPayloadLength, payload);
     }
 
     notifyDataReceived(
+        extension.getTransferDescription().getSender(),
         extension.getTransferMode(),
         extension.getCompressedSize(),
         extension.getUncompressedSize(),
@@ -246,6 +387,9 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
 
     String name = description.getElementName();
     String namespace = description.getNamespace();
+
+    if (description.isBinaryContent()) return decodeBinaryContent(extension);
+
     // IQ provider?
 
     PacketExtensionProvider provider =
@@ -264,8 +408,12 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
 
     PacketExtension packetExtension = null;
 
+    final XmlPullParser parser = this.parser.get();
+
     try {
-      parser.setInput(new ByteArrayInputStream(extension.getPayload()), "UTF-8");
+      parser.setInput(
+          new ByteArrayInputStream(extension.getPayload(), 0, extension.getPayloadLength()),
+          "UTF-8");
       /*
        * We have to skip the empty start tag because Smack expects a
        * parser that already has started parsing.
@@ -276,10 +424,58 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
       LOG.error("could not deserialize transfer object payload: " + e.getMessage(), e);
 
       // just to be safe
-      parser = new MXParser();
+      this.parser.remove();
+      return null;
+    } finally {
+      /*
+       * the parsed extension does not refer to the payload, so its buffer
+       * can be reused
+       */
+      extension.releasePayload();
+    }
+
+    Packet packet = new Message();
+    packet.setPacketID(Packet.ID_NOT_AVAILABLE);
+    packet.setFrom(description.getSender().toString());
+    packet.setTo(description.getRecipient().toString());
+    packet.addExtension(packetExtension);
+
+    return packet;
+  }
+
+  private Packet decodeBinaryContent(final BinaryXMPPExtension extension) {
+
+    final TransferDescription description = extension.getTransferDescription();
+
+    final IPacketExtensionCodec codec =
+        codecs.get(
+            XMPPTransmitter.getCodecKey(description.getElementName(), description.getNamespace()));
+
+    if (codec == null) {
+      LOG.warn(
+          "could not decode transfer object because no codec with namespace '"
+              + description.getNamespace()
+              + "' and element name '"
+              + description.getElementName()
+              + "' is installed");
+      extension.releasePayload();
       return null;
     }
 
+    final PacketExtension packetExtension;
+
+    try {
+      packetExtension =
+          codec.decode(
+              description.getSender(), extension.getPayload(), 0, extension.getPayloadLength());
+    } catch (IOException | RuntimeException e) {
+      LOG.error("could not decode transfer object payload: " + e.getMessage(), e);
+      return null;
+    } finally {
+      // the codec must not keep a reference to the payload
+      extension.releasePayload();
+    }
+
     Packet packet = new Message();
     packet.setPacketID(Packet.ID_NOT_AVAILABLE);
     packet.setFrom(description.getSender().toString());
@@ -290,6 +486,7 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
   }
 
   private void notifyDataReceived(
+      final JID sender,
       final StreamMode mode,
       final long sizeCompressed,
       final long sizeUncompressed,
@@ -297,31 +494,43 @@ public class XMPPReceiver implements IReceiver, IBinaryXMPPExtensionReceiver {
 
     for (final ITransferListener listener : transferListeners) {
       try {
-        listener.received(mode, sizeCompressed, sizeUncompressed, duration);
+        listener.received(sender, mode, sizeCompressed, sizeUncompressed, duration);
       } catch (RuntimeException e) {
         LOG.error("invoking received() on listener: " + listener + " failed", e);
       }
     }
   }
 
-  private static byte[] inflate(byte[] input) throws IOException {
+  private static byte[] inflate(byte[] input, int length) throws IOException {
 
     ByteArrayOutputStream bos;
     Inflater decompressor = new Inflater();
 
-    decompressor.setInput(input, 0, input.length);
-    bos = new ByteArrayOutputStream(input.length);
+    decompressor.setInput(input, 0, length);
+    bos = new ByteArrayOutputStream(length);
 
     byte[] buf = new byte[CHUNKSIZE];
 
     try {
       while (!decompressor.finished()) {
         int count = decompressor.inflate(buf);
+
+        if (count == 0) {
+          if (decompressor.needsDictionary()) {
+            decompressor.setDictionary(CompressionPolicy.PRESET_DICTIONARY);
+            continue;
+          }
+
+          if (decompressor.needsInput()) throw new IOException("compressed data is truncated");
+        }
+
         bos.write(buf, 0, count);
       }
       return bos.toByteArray();
-    } catch (DataFormatException e) {
+    } catch (DataFormatException | IllegalArgumentException e) {
       throw new IOException("failed to inflate data", e);
+    } finally {
+      decompressor.end();
     }
   }
 }
@@ -21,6 +21,8 @@ package saros.net.internal;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.zip.Deflater;
 import org.apache.log4j.Logger;
@@ -29,10 +31,18 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import saros.annotations.Component;
+import saros.communication.extensions.ActivitiesAcknowledgmentExtension;
+import saros.communication.extensions.ActivitiesExtension;
+import saros.communication.extensions.PingExtension;
+import saros.communication.extensions.PongExtension;
+import saros.communication.extensions.ProjectNegotiationMissingFilesExtension;
+import saros.misc.xstream.XStreamExtensionProvider;
 import saros.net.ConnectionState;
+import saros.net.IPacketExtensionCodec;
 import saros.net.IPacketInterceptor;
 import saros.net.ITransferListener;
 import saros.net.ITransmitter;
+import saros.net.SharedEncoding;
 import saros.net.stream.StreamMode;
 import saros.net.xmpp.IConnectionListener;
 import saros.net.xmpp.JID;
@@ -47,14 +57,39 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
 
   private static final Logger log = Logger.getLogger(XMPPTransmitter.class);
 
-  /** size in bytes that a packet extension must exceed to be compressed */
-  private static final int PACKET_EXTENSION_COMPRESS_THRESHOLD =
-      Integer.getInteger("saros.net.transmitter.PACKET_EXTENSION_COMPRESS_THRESHOLD", 32);
+  /**
+   * size in bytes that a packet extension must exceed to be scheduled as bulk data regardless of
+   * its type
+   */
+  private static final int BULK_TRANSFER_THRESHOLD =
+      Integer.getInteger("saros.net.transmitter.BULK_TRANSFER_THRESHOLD", 64 * 1024);
+
+  /** packet extensions that are scheduled as interactive traffic */
+  private static final XStreamExtensionProvider<?>[] INTERACTIVE_EXTENSIONS = {
+    ActivitiesExtension.PROVIDER,
+    ActivitiesAcknowledgmentExtension.PROVIDER,
+    PingExtension.PROVIDER,
+    PongExtension.PROVIDER
+  };
+
+  /**
+   * packet extensions that may arrive out of order and can therefore be moved to a bulk lane, all
+   * other packet extensions stay on the connection they would use otherwise
+   *
+   * <p>The missing files of a project negotiation are received by a collector that already exists
+   * when they are sent, and the peer does not send anything else in that negotiation before it got
+   * an answer.
+   */
+  private static final XStreamExtensionProvider<?>[] UNORDERED_EXTENSIONS = {
+    ProjectNegotiationMissingFilesExtension.PROVIDER
+  };
 
   private static final int CHUNKSIZE = 16 * 1024;
 
   private final DataTransferManager dataManager;
 
+  private final CompressionPolicy compressionPolicy;
+
   private Connection connection;
 
   private final CopyOnWriteArrayList<ITransferListener> transferListeners =
@@ -63,11 +98,20 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
   private final CopyOnWriteArrayList<IPacketInterceptor> packetInterceptors =
       new CopyOnWriteArrayList<>();
 
+  private final Map<String, IPacketExtensionCodec> codecs =
+      new ConcurrentHashMap<String, IPacketExtensionCodec>();
+
   private volatile JID localJid;
 
-  public XMPPTransmitter(DataTransferManager dataManager, XMPPConnectionService connectionService) {
+  private final SharedDeflater sharedDeflater = new SharedDeflater();
+
+  public XMPPTransmitter(
+      DataTransferManager dataManager,
+      XMPPConnectionService connectionService,
+      CompressionPolicy compressionPolicy) {
     connectionService.addListener(this);
     this.dataManager = dataManager;
+    this.compressionPolicy = compressionPolicy;
   }
 
   @Override
@@ -110,13 +154,39 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
             .setElementName(extension.getElementName())
             .setNamespace(extension.getNamespace());
 
-    byte[] data = extension.toXML().getBytes("UTF-8");
+    final IPacketExtensionCodec codec =
+        codecs.get(getCodecKey(extension.getElementName(), extension.getNamespace()));
+
+    final SharedEncoding encoding = codec != null ? codec.encodeShared(recipient, extension) : null;
+
+    final byte[] data;
 
-    if (data.length > PACKET_EXTENSION_COMPRESS_THRESHOLD) {
+    if (encoding != null) {
+      transferDescription.setBinaryContent(true);
+      data = encoding.toByteArray();
+    } else {
+      data = extension.toXML().getBytes("UTF-8");
+    }
+
+    final TransferDescription.Priority priority = getPriority(extension, data.length);
+
+    if (priority == TransferDescription.Priority.BULK && isUnordered(extension)) {
+      final IByteStreamConnection bulkConnection =
+          dataManager.getBulkConnection(connectionID, recipient);
+
+      if (bulkConnection != null) connection = bulkConnection;
+    }
+
+    // a compressed stream already compresses the data with a shared context
+    if (!connection.isStreamCompressed()
+        && compressionPolicy.shouldCompress(
+            extension.getNamespace(), extension.getElementName(), data.length)) {
       transferDescription.setCompressContent(true);
     }
 
-    sendPacketExtension(connection, transferDescription, data);
+    transferDescription.setPriority(priority);
+
+    sendPacketExtension(connection, transferDescription, data, encoding);
   }
 
   @Override
@@ -166,6 +236,16 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
     packetInterceptors.remove(interceptor);
   }
 
+  @Override
+  public void addPacketExtensionCodec(final IPacketExtensionCodec codec) {
+    codecs.put(getCodecKey(codec.getElementName(), codec.getNamespace()), codec);
+  }
+
+  @Override
+  public void removePacketExtensionCodec(final IPacketExtensionCodec codec) {
+    codecs.remove(getCodecKey(codec.getElementName(), codec.getNamespace()), codec);
+  }
+
   @Override
   public synchronized void connectionStateChanged(Connection connection, ConnectionState state) {
 
@@ -180,12 +260,44 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
       case NOT_CONNECTED:
         this.connection = null;
         localJid = null;
+        sharedDeflater.clear();
         break;
       default:
         break; // NOP
     }
   }
 
+  /**
+   * Returns the scheduling priority for the given packet extension. Session activities and the
+   * session heartbeat are interactive unless they are large, e.g. when they contain the content of
+   * a file during a recovery.
+   */
+  private static TransferDescription.Priority getPriority(PacketExtension extension, int size) {
+
+    if (size > BULK_TRANSFER_THRESHOLD) return TransferDescription.Priority.BULK;
+
+    for (final XStreamExtensionProvider<?> provider : INTERACTIVE_EXTENSIONS) {
+      if (provider.getElementName().equals(extension.getElementName())
+          && provider.getNamespace().equals(extension.getNamespace()))
+        return TransferDescription.Priority.INTERACTIVE;
+    }
+
+    return TransferDescription.Priority.DEFAULT;
+  }
+
+  private static boolean isUnordered(PacketExtension extension) {
+    for (final XStreamExtensionProvider<?> provider : UNORDERED_EXTENSIONS) {
+      if (provider.getElementName().equals(extension.getElementName())
+          && provider.getNamespace().equals(extension.getNamespace())) return true;
+    }
+
+    return false;
+  }
+
+  static String getCodecKey(final String elementName, final String namespace) {
+    return namespace + ":" + elementName;
+  }
+
   /**
    * Determines if the connection can be used. Helper method for error handling.
    *
@@ -196,7 +308,10 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
   }
 
   private void sendPacketExtension(
-      final IByteStreamConnection connection, final TransferDescription description, byte[] payload)
+      final IByteStreamConnection connection,
+      final TransferDescription description,
+      byte[] payload,
+      final SharedEncoding encoding)
       throws IOException {
 
     if (log.isTraceEnabled())
@@ -210,7 +325,24 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
 
     long sizeUncompressed = payload.length;
 
-    if (description.compressContent()) payload = deflate(payload);
+    if (description.compressContent()) {
+      final long compressionStartTime = System.nanoTime();
+
+      /*
+       * shared bodies are compressed only once for all recipients, no matter how small they are,
+       * as the preset dictionary only contains XML and does not help with binary content
+       */
+      if (encoding != null)
+        payload = sharedDeflater.deflate(encoding, compressionPolicy.getLevel());
+      else payload = deflate(payload);
+
+      compressionPolicy.record(
+          description.getNamespace(),
+          description.getElementName(),
+          (int) sizeUncompressed,
+          payload.length,
+          System.nanoTime() - compressionStartTime);
+    }
 
     final long transferStartTime = System.currentTimeMillis();
 
@@ -223,6 +355,7 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
     }
 
     notifyDataSent(
+        description.getRecipient(),
         connection.getMode(),
         payload.length,
         sizeUncompressed,
@@ -230,6 +363,7 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
   }
 
   private void notifyDataSent(
+      final JID recipient,
       final StreamMode mode,
       final long sizeCompressed,
       final long sizeUncompressed,
@@ -237,28 +371,33 @@ public class XMPPTransmitter implements ITransmitter, IConnectionListener {
 
     for (final ITransferListener listener : transferListeners) {
       try {
-        listener.sent(mode, sizeCompressed, sizeUncompressed, duration);
+        listener.sent(recipient, mode, sizeCompressed, sizeUncompressed, duration);
       } catch (RuntimeException e) {
         log.error("invoking sent() on listener: " + listener + " failed", e);
       }
     }
   }
 
-  private static byte[] deflate(byte[] input) {
+  private byte[] deflate(byte[] input) {
 
-    Deflater compressor = new Deflater(Deflater.DEFLATED);
-    compressor.setInput(input);
-    compressor.finish();
+    Deflater compressor = compressionPolicy.createDeflater();
 
-    ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
+    try {
+      compressor.setInput(input);
+      compressor.finish();
 
-    byte[] buf = new byte[CHUNKSIZE];
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
 
-    while (!compressor.finished()) {
-      int count = compressor.deflate(buf);
-      bos.write(buf, 0, count);
-    }
+      byte[] buf = new byte[CHUNKSIZE];
 
-    return bos.toByteArray();
+      while (!compressor.finished()) {
+        int count = compressor.deflate(buf);
+        bos.write(buf, 0, count);
+      }
+
+      return bos.toByteArray();
+    } finally {
+      compressor.end();
+    }
   }
 }
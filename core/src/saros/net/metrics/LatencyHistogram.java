@@ -0,0 +1,87 @@
+package saros.net.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of latencies in milliseconds with exponentially growing buckets. Bucket
+ * <code>0</code> counts latencies below 1 ms, bucket <code>i</code> latencies from <code>
+ * 2<sup>i-1</sup></code> to below <code>2<sup>i</sup></code> ms and the last bucket all latencies
+ * of at least {@value #MAX_BOUND} ms.
+ */
+public final class LatencyHistogram {
+
+  /** number of buckets of every histogram */
+  public static final int BUCKETS = 17;
+
+  /** lower bound in milliseconds of the last bucket */
+  public static final long MAX_BOUND = 1L << (BUCKETS - 2);
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /** Records the given latency in milliseconds. Negative latencies are counted as zero. */
+  public void record(final long latency) {
+    counts.incrementAndGet(getBucket(latency));
+  }
+
+  /** Sets all bucket counts to zero. */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+  }
+
+  /** Returns a copy of the current bucket counts. */
+  public long[] getCounts() {
+    final long[] result = new long[BUCKETS];
+
+    for (int i = 0; i < BUCKETS; i++) result[i] = counts.get(i);
+
+    return result;
+  }
+
+  /**
+   * Returns the bucket the given latency is counted in.
+   *
+   * @param latency latency in milliseconds
+   */
+  public static int getBucket(final long latency) {
+    if (latency <= 0) return 0;
+
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency));
+  }
+
+  /**
+   * Returns the exclusive upper bound of the given bucket in milliseconds or {@link Long#MAX_VALUE}
+   * for the last bucket.
+   */
+  public static long getUpperBound(final int bucket) {
+    return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * Returns an upper bound in milliseconds for the given percentile of the latencies counted in the
+   * given buckets.
+   *
+   * @param counts bucket counts as returned by {@link #getCounts()}
+   * @param percentile percentile between <code>0</code> and <code>100</code>
+   * @return the upper bound of the bucket containing the percentile or <code>0</code> if no latency
+   *     was recorded
+   */
+  public static long getPercentile(final long[] counts, final double percentile) {
+    long total = 0;
+
+    for (final long count : counts) total += count;
+
+    if (total == 0) return 0;
+
+    final double threshold = total * Math.max(0, Math.min(100, percentile)) / 100;
+
+    long seen = 0;
+
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+
+      if (seen >= threshold && counts[i] > 0) return getUpperBound(i);
+    }
+
+    return getUpperBound(counts.length - 1);
+  }
+}
@@ -0,0 +1,186 @@
+package saros.net.metrics;
+
+import saros.net.stream.StreamMode;
+
+/**
+ * Immutable metrics of the traffic exchanged with a single peer using a specific {@link
+ * StreamMode}. All sizes are in bytes and all latencies in milliseconds.
+ */
+public final class LinkMetrics {
+
+  private final String peer;
+  private final StreamMode mode;
+
+  private final long bytesSent;
+  private final long bytesSentUncompressed;
+  private final long packetsSent;
+  private final long bytesReceived;
+  private final long bytesReceivedUncompressed;
+  private final long packetsReceived;
+
+  private final long[] sendLatencies;
+  private final long[] receiveLatencies;
+
+  private final int queueDepth;
+  private final int maxQueueDepth;
+
+  private final long connects;
+  private final long disconnects;
+  private final long reconnects;
+
+  LinkMetrics(
+      final String peer,
+      final StreamMode mode,
+      final long bytesSent,
+      final long bytesSentUncompressed,
+      final long packetsSent,
+      final long bytesReceived,
+      final long bytesReceivedUncompressed,
+      final long packetsReceived,
+      final long[] sendLatencies,
+      final long[] receiveLatencies,
+      final int queueDepth,
+      final int maxQueueDepth,
+      final long connects,
+      final long disconnects,
+      final long reconnects) {
+    this.peer = peer;
+    this.mode = mode;
+    this.bytesSent = bytesSent;
+    this.bytesSentUncompressed = bytesSentUncompressed;
+    this.packetsSent = packetsSent;
+    this.bytesReceived = bytesReceived;
+    this.bytesReceivedUncompressed = bytesReceivedUncompressed;
+    this.packetsReceived = packetsReceived;
+    this.sendLatencies = sendLatencies;
+    this.receiveLatencies = receiveLatencies;
+    this.queueDepth = queueDepth;
+    this.maxQueueDepth = maxQueueDepth;
+    this.connects = connects;
+    this.disconnects = disconnects;
+    this.reconnects = reconnects;
+  }
+
+  /** Returns the JID of the peer. */
+  public String getPeer() {
+    return peer;
+  }
+
+  public StreamMode getMode() {
+    return mode;
+  }
+
+  /** Returns the number of bytes that were sent, i.e. after compression. */
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  /** Returns the number of bytes that were sent before they were compressed. */
+  public long getBytesSentUncompressed() {
+    return bytesSentUncompressed;
+  }
+
+  public long getPacketsSent() {
+    return packetsSent;
+  }
+
+  /** Returns the number of bytes that were received, i.e. before decompression. */
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  /** Returns the number of bytes that were received after they were decompressed. */
+  public long getBytesReceivedUncompressed() {
+    return bytesReceivedUncompressed;
+  }
+
+  public long getPacketsReceived() {
+    return packetsReceived;
+  }
+
+  /**
+   * Returns the histogram of the time it took to send a packet.
+   *
+   * @see LatencyHistogram
+   */
+  public long[] getSendLatencies() {
+    return sendLatencies.clone();
+  }
+
+  /**
+   * Returns the histogram of the time it took to receive a packet.
+   *
+   * @see LatencyHistogram
+   */
+  public long[] getReceiveLatencies() {
+    return receiveLatencies.clone();
+  }
+
+  /** Returns an upper bound of the median of the time it took to send a packet. */
+  public long getSendLatencyMedian() {
+    return LatencyHistogram.getPercentile(sendLatencies, 50);
+  }
+
+  /** Returns an upper bound of the 99th percentile of the time it took to send a packet. */
+  public long getSendLatency99thPercentile() {
+    return LatencyHistogram.getPercentile(sendLatencies, 99);
+  }
+
+  /** Returns the number of units that were queued for sending when the metrics were taken. */
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  /** Returns the highest number of queued units that was observed. */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /** Returns the number of connections that were established. */
+  public long getConnects() {
+    return connects;
+  }
+
+  /** Returns the number of connections that were closed. */
+  public long getDisconnects() {
+    return disconnects;
+  }
+
+  /** Returns the number of connections that were established after a connection was closed. */
+  public long getReconnects() {
+    return reconnects;
+  }
+
+  @Override
+  public String toString() {
+    return "LinkMetrics [peer="
+        + peer
+        + ", mode="
+        + mode
+        + ", sent="
+        + bytesSent
+        + "/"
+        + bytesSentUncompressed
+        + " bytes in "
+        + packetsSent
+        + " packets, received="
+        + bytesReceived
+        + "/"
+        + bytesReceivedUncompressed
+        + " bytes in "
+        + packetsReceived
+        + " packets, send latency median="
+        + getSendLatencyMedian()
+        + " ms, p99="
+        + getSendLatency99thPercentile()
+        + " ms, queue="
+        + queueDepth
+        + " (max "
+        + maxQueueDepth
+        + "), connects="
+        + connects
+        + ", reconnects="
+        + reconnects
+        + "]";
+  }
+}
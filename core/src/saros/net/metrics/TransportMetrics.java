@@ -0,0 +1,337 @@
+package saros.net.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import saros.annotations.Component;
+import saros.net.IReceiver;
+import saros.net.ITransferListener;
+import saros.net.ITransmitter;
+import saros.net.internal.DataTransferManager;
+import saros.net.internal.IByteStreamConnection;
+import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.stream.StreamMode;
+import saros.net.xmpp.JID;
+import saros.repackaged.picocontainer.Disposable;
+
+/**
+ * Registry of transport metrics that are collected per peer and {@link StreamMode}: the number of
+ * bytes and packets sent and received with and without compression, histograms of the send and
+ * receive latencies, the depth of the outgoing queues and the number of (re)connects.
+ *
+ * <p>The metrics are available as a {@link #getSnapshot() snapshot} and, unless disabled by the
+ * system property <code>saros.net.metrics.JMX</code>, over JMX as {@value #OBJECT_NAME}.
+ */
+@Component(module = "net")
+public class TransportMetrics implements TransportMetricsMXBean, Disposable {
+
+  private static final Logger LOG = Logger.getLogger(TransportMetrics.class);
+
+  static final String OBJECT_NAME = "saros.net:type=TransportMetrics";
+
+  private static final boolean JMX_ENABLED =
+      Boolean.valueOf(System.getProperty("saros.net.metrics.JMX", "true"));
+
+  private static final class Key {
+    private final JID peer;
+    private final StreamMode mode;
+
+    private Key(final JID peer, final StreamMode mode) {
+      this.peer = peer;
+      this.mode = mode;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * peer.hashCode() + mode.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) return true;
+
+      if (!(obj instanceof Key)) return false;
+
+      final Key other = (Key) obj;
+
+      return peer.equals(other.peer) && mode == other.mode;
+    }
+  }
+
+  private static final class Link {
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesSentUncompressed = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesReceivedUncompressed = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+
+    private final LatencyHistogram sendLatencies = new LatencyHistogram();
+    private final LatencyHistogram receiveLatencies = new LatencyHistogram();
+
+    private final List<IByteStreamConnection> connections =
+        new CopyOnWriteArrayList<IByteStreamConnection>();
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /** whether the link ever had an open connection, survives {@link #reset()} */
+    private boolean hadConnection;
+
+    private int sampleQueueDepth() {
+      int depth = 0;
+
+      for (final IByteStreamConnection connection : connections)
+        depth += connection.getOutgoingQueueSize();
+
+      int max;
+
+      while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+        // retry
+      }
+
+      return depth;
+    }
+
+    private void reset() {
+      bytesSent.reset();
+      bytesSentUncompressed.reset();
+      packetsSent.reset();
+      bytesReceived.reset();
+      bytesReceivedUncompressed.reset();
+      packetsReceived.reset();
+      sendLatencies.reset();
+      receiveLatencies.reset();
+      maxQueueDepth.set(0);
+      connects.set(0);
+      disconnects.set(0);
+      reconnects.set(0);
+    }
+  }
+
+  private final ConcurrentMap<Key, Link> links = new ConcurrentHashMap<Key, Link>();
+
+  private final IReceiver receiver;
+  private final ITransmitter transmitter;
+  private final DataTransferManager connectionManager;
+
+  private ObjectName objectName;
+
+  private final ITransferListener transferListener =
+      new ITransferListener() {
+
+        @Override
+        public void sent(
+            final JID peer,
+            final StreamMode mode,
+            final long sizeCompressed,
+            final long sizeUncompressed,
+            final long duration) {
+
+          final Link link = getLink(peer, mode);
+
+          link.bytesSent.add(sizeCompressed);
+          link.bytesSentUncompressed.add(sizeUncompressed);
+          link.packetsSent.increment();
+          link.sendLatencies.record(duration);
+          link.sampleQueueDepth();
+        }
+
+        @Override
+        public void received(
+            final JID peer,
+            final StreamMode mode,
+            final long sizeCompressed,
+            final long sizeUncompressed,
+            final long duration) {
+
+          final Link link = getLink(peer, mode);
+
+          link.bytesReceived.add(sizeCompressed);
+          link.bytesReceivedUncompressed.add(sizeUncompressed);
+          link.packetsReceived.increment();
+          link.receiveLatencies.record(duration);
+        }
+      };
+
+  private final IByteStreamConnectionListener connectionListener =
+      new IByteStreamConnectionListener() {
+
+        @Override
+        public void connectionChanged(
+            final String connectionID,
+            final IByteStreamConnection connection,
+            final boolean incomingRequest) {
+
+          final Link link = getLink(connection.getRemoteAddress(), connection.getMode());
+
+          synchronized (link) {
+            // additional connections to the peer, e.g. bulk lanes, are no reconnects
+            if (link.connections.isEmpty() && link.hadConnection) link.reconnects.incrementAndGet();
+
+            link.connections.add(connection);
+            link.connects.incrementAndGet();
+            link.hadConnection = true;
+          }
+        }
+
+        @Override
+        public void connectionClosed(
+            final String connectionID, final IByteStreamConnection connection) {
+
+          final Link link = getLink(connection.getRemoteAddress(), connection.getMode());
+
+          synchronized (link) {
+            if (link.connections.remove(connection)) link.disconnects.incrementAndGet();
+          }
+        }
+      };
+
+  public TransportMetrics(
+      final IReceiver receiver,
+      final ITransmitter transmitter,
+      final DataTransferManager connectionManager) {
+
+    this.receiver = receiver;
+    this.transmitter = transmitter;
+    this.connectionManager = connectionManager;
+
+    receiver.addTransferListener(transferListener);
+    transmitter.addTransferListener(transferListener);
+    connectionManager.addConnectionListener(connectionListener);
+
+    if (JMX_ENABLED) registerMBean();
+  }
+
+  @Override
+  public void dispose() {
+    receiver.removeTransferListener(transferListener);
+    transmitter.removeTransferListener(transferListener);
+    connectionManager.removeConnectionListener(connectionListener);
+
+    unregisterMBean();
+  }
+
+  /** Returns the current metrics of all links. */
+  public TransportMetricsSnapshot getSnapshot() {
+    final List<LinkMetrics> result = new ArrayList<LinkMetrics>();
+
+    for (final Key key : links.keySet()) {
+      final Link link = links.get(key);
+
+      if (link == null) continue;
+
+      final int queueDepth = link.sampleQueueDepth();
+
+      result.add(
+          new LinkMetrics(
+              key.peer.toString(),
+              key.mode,
+              link.bytesSent.sum(),
+              link.bytesSentUncompressed.sum(),
+              link.packetsSent.sum(),
+              link.bytesReceived.sum(),
+              link.bytesReceivedUncompressed.sum(),
+              link.packetsReceived.sum(),
+              link.sendLatencies.getCounts(),
+              link.receiveLatencies.getCounts(),
+              queueDepth,
+              link.maxQueueDepth.get(),
+              link.connects.get(),
+              link.disconnects.get(),
+              link.reconnects.get()));
+    }
+
+    Collections.sort(
+        result,
+        new Comparator<LinkMetrics>() {
+          @Override
+          public int compare(final LinkMetrics a, final LinkMetrics b) {
+            final int result = a.getPeer().compareTo(b.getPeer());
+            return result != 0 ? result : a.getMode().compareTo(b.getMode());
+          }
+        });
+
+    return new TransportMetricsSnapshot(System.currentTimeMillis(), result);
+  }
+
+  @Override
+  public List<LinkMetrics> getLinks() {
+    return getSnapshot().getLinks();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return getSnapshot().getBytesSent();
+  }
+
+  @Override
+  public long getBytesReceived() {
+    return getSnapshot().getBytesReceived();
+  }
+
+  /** Resets all counters and histograms. Open connections are still tracked. */
+  @Override
+  public void reset() {
+    for (final Link link : links.values()) link.reset();
+  }
+
+  private Link getLink(final JID peer, final StreamMode mode) {
+    final Key key = new Key(peer, mode);
+
+    Link link = links.get(key);
+
+    if (link != null) return link;
+
+    link = new Link();
+
+    final Link current = links.putIfAbsent(key, link);
+
+    return current != null ? current : link;
+  }
+
+  private synchronized void registerMBean() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+
+      // another Saros context in the same VM, e.g. during tests
+      if (server.isRegistered(name)) {
+        LOG.warn(OBJECT_NAME + " is already registered, metrics are not available over JMX");
+        return;
+      }
+
+      server.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException | RuntimeException e) {
+      LOG.warn("failed to register transport metrics over JMX", e);
+    }
+  }
+
+  private synchronized void unregisterMBean() {
+    if (objectName == null) return;
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException | RuntimeException e) {
+      LOG.warn("failed to unregister transport metrics from JMX", e);
+    } finally {
+      objectName = null;
+    }
+  }
+}
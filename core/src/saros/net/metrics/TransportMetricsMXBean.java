@@ -0,0 +1,19 @@
+package saros.net.metrics;
+
+import java.util.List;
+
+/** Management interface of the {@link TransportMetrics} that is exposed over JMX. */
+public interface TransportMetricsMXBean {
+
+  /** Returns the metrics of all links ordered by peer and stream mode. */
+  public List<LinkMetrics> getLinks();
+
+  /** Returns the number of bytes sent over all links. */
+  public long getBytesSent();
+
+  /** Returns the number of bytes received over all links. */
+  public long getBytesReceived();
+
+  /** Resets all counters and histograms. */
+  public void reset();
+}
@@ -0,0 +1,57 @@
+package saros.net.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import saros.net.xmpp.JID;
+
+/** Immutable snapshot of the {@link TransportMetrics} of all links. */
+public final class TransportMetricsSnapshot {
+
+  private final long timestamp;
+  private final List<LinkMetrics> links;
+
+  TransportMetricsSnapshot(final long timestamp, final List<LinkMetrics> links) {
+    this.timestamp = timestamp;
+    this.links = Collections.unmodifiableList(new ArrayList<LinkMetrics>(links));
+  }
+
+  /** Returns the time in milliseconds since the epoch when the snapshot was taken. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** Returns the metrics of all links ordered by peer and stream mode. */
+  public List<LinkMetrics> getLinks() {
+    return links;
+  }
+
+  /** Returns the metrics of all links to the given peer. */
+  public List<LinkMetrics> getLinks(final JID peer) {
+    final List<LinkMetrics> result = new ArrayList<LinkMetrics>();
+
+    for (final LinkMetrics link : links) {
+      if (link.getPeer().equals(peer.toString())) result.add(link);
+    }
+
+    return result;
+  }
+
+  /** Returns the number of bytes sent over all links. */
+  public long getBytesSent() {
+    long result = 0;
+
+    for (final LinkMetrics link : links) result += link.getBytesSent();
+
+    return result;
+  }
+
+  /** Returns the number of bytes received over all links. */
+  public long getBytesReceived() {
+    long result = 0;
+
+    for (final LinkMetrics link : links) result += link.getBytesReceived();
+
+    return result;
+  }
+}
@@ -0,0 +1,66 @@
+package saros.net.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smackx.bytestreams.BytestreamSession;
+
+/**
+ * IBB byte stream that receives with Smack's implementation but sends with an {@link
+ * AdaptiveIBBOutputStream}.
+ */
+final class AdaptiveIBBByteStream implements ByteStream {
+
+  private static final Logger LOG = Logger.getLogger(AdaptiveIBBByteStream.class);
+
+  private final BytestreamSession session;
+  private final AdaptiveIBBOutputStream out;
+
+  AdaptiveIBBByteStream(
+      final Connection connection,
+      final BytestreamSession session,
+      final String peer,
+      final String sessionID,
+      final int initialBlockSize,
+      final int maxBlockSize) {
+
+    if (session == null) throw new NullPointerException("session is null");
+
+    this.session = session;
+
+    out = new AdaptiveIBBOutputStream(connection, peer, sessionID, initialBlockSize, maxBlockSize);
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return session.getInputStream();
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return out;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      out.close();
+    } catch (IOException e) {
+      LOG.debug("failed to send remaining IBB data: " + e.getMessage());
+    } finally {
+      session.close();
+    }
+  }
+
+  @Override
+  public int getReadTimeout() throws IOException {
+    return session.getReadTimeout();
+  }
+
+  @Override
+  public void setReadTimeout(int timeout) throws IOException {
+    session.setReadTimeout(timeout);
+  }
+}
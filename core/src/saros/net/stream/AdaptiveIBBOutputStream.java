@@ -0,0 +1,352 @@
+package saros.net.stream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.DataPacketExtension;
+
+/**
+ * Output stream for an IBB session that keeps multiple data blocks in flight and adapts the block
+ * size and the number of unacknowledged blocks to the round trip time of the acknowledgements.
+ *
+ * <p>Smack's own IBB output stream waits for the acknowledgement of every block before sending the
+ * next one, which limits the throughput to one block per round trip. XMPP servers usually throttle
+ * a client by delaying its stanzas, so a growing round trip time is treated as throttling and
+ * reduces the window and, once the window is minimal, the block size.
+ *
+ * <p>The remote side drops blocks with an unexpected sequence number, so a block that is answered
+ * with an error cannot be resent. Such an error fails the stream just like it does for Smack's
+ * implementation.
+ */
+final class AdaptiveIBBOutputStream extends OutputStream {
+
+  private static final Logger LOG = Logger.getLogger(AdaptiveIBBOutputStream.class);
+
+  /** maximum number of unacknowledged blocks */
+  private static final int MAX_WINDOW = Integer.getInteger("saros.net.ibb.MAX_WINDOW", 16);
+
+  private static final int MIN_BLOCK_SIZE = 1024;
+
+  private static final int INITIAL_WINDOW = 2;
+
+  /** interval in milliseconds in which the throughput of the stream is logged */
+  private static final long LOG_INTERVAL = 30000;
+
+  private static final long MAX_SEQUENCE = 65535;
+
+  /** queueing delay in nanoseconds that is always regarded as jitter and not as throttling */
+  private static final long MIN_QUEUEING_DELAY = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private static final class Block {
+    private final long sendTime;
+    private final int size;
+
+    private Block(final long sendTime, final int size) {
+      this.sendTime = sendTime;
+      this.size = size;
+    }
+  }
+
+  private final Connection connection;
+  private final String peer;
+  private final String sessionID;
+  private final int maxBlockSize;
+
+  private final byte[] buffer;
+  private int bufferPointer;
+
+  private final Map<String, Block> blocksInFlight = new HashMap<String, Block>();
+
+  private long sequence;
+  private int blockSize;
+  private int window = INITIAL_WINDOW;
+  private int acknowledgementsSinceIncrease;
+
+  // all times in nanoseconds
+  private long minRoundTripTime = Long.MAX_VALUE;
+  private long smoothedRoundTripTime;
+  private long lastDecrease;
+
+  private IOException error;
+  private boolean closed;
+
+  private final long startTime = System.nanoTime();
+  private long lastLogTime = startTime;
+  private long bytesAcknowledged;
+
+  private final PacketListener acknowledgementListener =
+      new PacketListener() {
+        @Override
+        public void processPacket(final Packet packet) {
+          acknowledged((IQ) packet);
+        }
+      };
+
+  /**
+   * Creates an output stream for an already established IBB session.
+   *
+   * @param connection the XMPP connection the session was established on
+   * @param peer the JID of the remote side
+   * @param sessionID the ID of the IBB session
+   * @param initialBlockSize the block size to start with
+   * @param maxBlockSize the block size that was negotiated for the session
+   */
+  AdaptiveIBBOutputStream(
+      final Connection connection,
+      final String peer,
+      final String sessionID,
+      final int initialBlockSize,
+      final int maxBlockSize) {
+
+    this.connection = connection;
+    this.peer = peer;
+    this.sessionID = sessionID;
+    this.maxBlockSize = Math.max(MIN_BLOCK_SIZE, maxBlockSize);
+    this.blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(initialBlockSize, this.maxBlockSize));
+
+    buffer = new byte[this.maxBlockSize];
+
+    connection.addPacketListener(acknowledgementListener, new PacketTypeFilter(IQ.class));
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(final byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+
+    while (len > 0) {
+      if (bufferPointer >= blockSize) sendBlock();
+
+      final int count = Math.min(len, blockSize - bufferPointer);
+
+      System.arraycopy(b, off, buffer, bufferPointer, count);
+      bufferPointer += count;
+      off += count;
+      len -= count;
+    }
+
+    if (bufferPointer >= blockSize) sendBlock();
+  }
+
+  /** Sends the buffered data without waiting for its acknowledgement. */
+  @Override
+  public synchronized void flush() throws IOException {
+    ensureOpen();
+
+    if (bufferPointer > 0) sendBlock();
+  }
+
+  /**
+   * Sends the buffered data and waits until all blocks are acknowledged. This does <b>not</b> close
+   * the IBB session.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+
+    try {
+      if (error == null) {
+        flush();
+        awaitWindow(1);
+      }
+    } finally {
+      closed = true;
+      connection.removePacketListener(acknowledgementListener);
+      logThroughput(true);
+    }
+
+    if (error != null) throw error;
+  }
+
+  /** Returns the current number of blocks that may be unacknowledged. */
+  synchronized int getWindow() {
+    return window;
+  }
+
+  /** Returns the current block size. */
+  synchronized int getBlockSize() {
+    return blockSize;
+  }
+
+  private void sendBlock() throws IOException {
+    awaitWindow(window);
+
+    final String data = StringUtils.encodeBase64(buffer, 0, bufferPointer, false);
+
+    final Data packet = new Data(new DataPacketExtension(sessionID, sequence, data));
+    packet.setTo(peer);
+
+    blocksInFlight.put(packet.getPacketID(), new Block(System.nanoTime(), bufferPointer));
+
+    sequence = sequence == MAX_SEQUENCE ? 0 : sequence + 1;
+    bufferPointer = 0;
+
+    try {
+      connection.sendPacket(packet);
+    } catch (RuntimeException e) {
+      fail(new IOException("failed to send IBB data to " + peer + ": " + e.getMessage(), e));
+      throw error;
+    }
+  }
+
+  /** Waits until less than the given number of blocks are unacknowledged. */
+  private void awaitWindow(final int size) throws IOException {
+
+    final long timeout = SmackConfiguration.getPacketReplyTimeout();
+    long deadline = System.currentTimeMillis() + timeout;
+    int pending = blocksInFlight.size();
+
+    while (error == null && blocksInFlight.size() >= size) {
+
+      // only time out if no acknowledgement arrives at all
+      if (blocksInFlight.size() < pending) {
+        pending = blocksInFlight.size();
+        deadline = System.currentTimeMillis() + timeout;
+      }
+
+      final long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0) {
+        fail(
+            new IOException(
+                "no acknowledgement for IBB data received from " + peer + " within " + timeout));
+        break;
+      }
+
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for IBB acknowledgements");
+      }
+    }
+
+    if (error != null) throw error;
+  }
+
+  private synchronized void acknowledged(final IQ iq) {
+    final Block block = blocksInFlight.remove(iq.getPacketID());
+
+    if (block == null) return;
+
+    notifyAll();
+
+    if (iq.getType() != IQ.Type.RESULT) {
+      fail(new IOException("IBB data was rejected by " + peer + ": " + iq.getError()));
+      return;
+    }
+
+    final long now = System.nanoTime();
+
+    bytesAcknowledged += block.size;
+
+    adapt(now - block.sendTime, now);
+
+    if (now - lastLogTime >= TimeUnit.MILLISECONDS.toNanos(LOG_INTERVAL)) logThroughput(false);
+  }
+
+  private void adapt(final long roundTripTime, final long now) {
+    minRoundTripTime = Math.min(minRoundTripTime, roundTripTime);
+
+    if (smoothedRoundTripTime == 0) smoothedRoundTripTime = roundTripTime;
+    else smoothedRoundTripTime = (7 * smoothedRoundTripTime + roundTripTime) / 8;
+
+    final long queueingDelay = roundTripTime - minRoundTripTime;
+
+    /*
+     * Acknowledgements queue up at the server if it throttles us, reduce the load at most once per
+     * round trip so the blocks that are already in flight do not count multiple times.
+     */
+    if (queueingDelay > Math.max(2 * minRoundTripTime, MIN_QUEUEING_DELAY)) {
+      acknowledgementsSinceIncrease = 0;
+
+      if (now - lastDecrease < smoothedRoundTripTime) return;
+
+      lastDecrease = now;
+
+      if (window > 1) {
+        window = Math.max(1, window / 2);
+      } else if (blockSize > MIN_BLOCK_SIZE) {
+        blockSize = Math.max(MIN_BLOCK_SIZE, blockSize / 2);
+        // the round trip time depends on the block size
+        minRoundTripTime = Long.MAX_VALUE;
+      }
+
+      return;
+    }
+
+    if (queueingDelay > Math.max(minRoundTripTime / 2, MIN_QUEUEING_DELAY / 2)) return;
+
+    // grow by one block per round trip
+    if (++acknowledgementsSinceIncrease < window) return;
+
+    acknowledgementsSinceIncrease = 0;
+
+    if (window < MAX_WINDOW) {
+      window++;
+    } else if (blockSize < maxBlockSize) {
+      blockSize = Math.min(maxBlockSize, blockSize * 2);
+      minRoundTripTime = Long.MAX_VALUE;
+    }
+  }
+
+  private void fail(final IOException e) {
+    if (error == null) error = e;
+
+    notifyAll();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) throw new IOException("stream is closed");
+
+    if (error != null) throw error;
+  }
+
+  private void logThroughput(final boolean finished) {
+    final long now = System.nanoTime();
+    final long duration = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - startTime));
+
+    lastLogTime = now;
+
+    if (!finished && !LOG.isDebugEnabled()) return;
+
+    final String message =
+        "IBB stream to "
+            + peer
+            + " ["
+            + sessionID
+            + "] "
+            + (finished ? "sent " : "has sent ")
+            + bytesAcknowledged
+            + " bytes in "
+            + duration
+            + " ms ("
+            + (bytesAcknowledged * 1000 / 1024 / duration)
+            + " KiB/s, block size: "
+            + blockSize
+            + ", window: "
+            + window
+            + ", rtt: "
+            + TimeUnit.NANOSECONDS.toMillis(smoothedRoundTripTime)
+            + " ms)";
+
+    if (finished) LOG.info(message);
+    else LOG.debug(message);
+  }
+}
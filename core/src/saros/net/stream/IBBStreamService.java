@@ -5,7 +5,6 @@ import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smackx.bytestreams.BytestreamListener;
-import org.jivesoftware.smackx.bytestreams.BytestreamManager;
 import org.jivesoftware.smackx.bytestreams.BytestreamRequest;
 import org.jivesoftware.smackx.bytestreams.BytestreamSession;
 import org.jivesoftware.smackx.bytestreams.ibb.InBandBytestreamManager;
@@ -17,13 +16,32 @@ import saros.net.xmpp.JID;
 /**
  * This stream service establishes IBB sessions.
  *
+ * <p>Unless disabled, the data is sent with an {@link AdaptiveIBBOutputStream} that keeps multiple
+ * blocks in flight instead of waiting for the acknowledgement of every block.
+ *
  * <p>See http://xmpp.org/extensions/xep-0047.html for more details.
  */
 public class IBBStreamService implements IStreamService, BytestreamListener {
 
   private static final Logger LOG = Logger.getLogger(IBBStreamService.class);
 
+  private static final boolean ADAPTIVE =
+      Boolean.valueOf(System.getProperty("saros.net.ibb.ADAPTIVE", "true"));
+
+  /** maximum block size that is requested for outgoing sessions */
+  private static final int BLOCK_SIZE =
+      Math.min(
+          Integer.getInteger("saros.net.ibb.BLOCK_SIZE", 16 * 1024),
+          InBandBytestreamManager.MAXIMUM_BLOCK_SIZE);
+
+  /**
+   * block size of XEP-0047 that is used as the maximum for incoming sessions as Smack does not
+   * expose the negotiated one
+   */
+  private static final int DEFAULT_BLOCK_SIZE = 4096;
+
   private volatile InBandBytestreamManager manager;
+  private volatile Connection connection;
   private volatile IByteStreamConnectionListener connectionListener;
   private JID localAddress;
 
@@ -48,16 +66,17 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
 
     LOG.debug("establishing IBB bytestream to: " + remoteAddress);
 
-    final BytestreamManager currentManager = manager;
+    final InBandBytestreamManager currentManager = manager;
     final IByteStreamConnectionListener currentConnectionListener = connectionListener;
+    final Connection currentConnection = connection;
 
-    if (currentManager == null || currentConnectionListener == null)
+    if (currentManager == null || currentConnectionListener == null || currentConnection == null)
       throw new IOException(this + " is not initialized");
 
     final BytestreamSession session;
 
     try {
-      session = manager.establishSession(remoteAddress.toString(), connectionID);
+      session = currentManager.establishSession(remoteAddress.toString(), connectionID);
     } catch (XMPPException e) {
       throw new IOException(e);
     }
@@ -66,7 +85,12 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
         localAddress,
         remoteAddress,
         connectionID,
-        new XMPPByteStreamAdapter(session),
+        createByteStream(
+            currentConnection,
+            session,
+            remoteAddress.toString(),
+            connectionID,
+            currentManager.getDefaultBlockSize()),
         StreamMode.IBB,
         currentConnectionListener);
   }
@@ -76,7 +100,11 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
       Connection connection, IByteStreamConnectionListener listener) {
     localAddress = new JID(connection.getUser());
     connectionListener = listener;
+    this.connection = connection;
     manager = InBandBytestreamManager.getByteStreamManager(connection);
+
+    if (ADAPTIVE) manager.setDefaultBlockSize(BLOCK_SIZE);
+
     manager.addIncomingBytestreamListener(this);
   }
 
@@ -87,6 +115,7 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
     manager.removeIncomingBytestreamListener(this);
     manager = null;
     connectionListener = null;
+    connection = null;
   }
 
   // ***************** BytestreamListener interface impl start
@@ -97,10 +126,12 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
     LOG.debug("accepting IBB bytestream from: " + request.getFrom());
 
     final IByteStreamConnectionListener currentConnectionListener = connectionListener;
+    final Connection currentConnection = connection;
 
-    if (currentConnectionListener == null) {
+    if (currentConnectionListener == null || currentConnection == null) {
       LOG.warn(this + " is not initialized, rejecting connection...");
       request.reject();
+      return;
     }
 
     final BytestreamSession session;
@@ -128,7 +159,12 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
               localAddress,
               new JID(request.getFrom()),
               request.getSessionID(),
-              new XMPPByteStreamAdapter(session),
+              createByteStream(
+                  currentConnection,
+                  session,
+                  request.getFrom(),
+                  request.getSessionID(),
+                  DEFAULT_BLOCK_SIZE),
               StreamMode.IBB,
               connectionListener);
     } catch (IOException e) {
@@ -146,6 +182,19 @@ public class IBBStreamService implements IStreamService, BytestreamListener {
 
   // ***************** BytestreamListener interface impl end
 
+  private static ByteStream createByteStream(
+      final Connection connection,
+      final BytestreamSession session,
+      final String peer,
+      final String sessionID,
+      final int blockSize) {
+
+    if (!ADAPTIVE) return new XMPPByteStreamAdapter(session);
+
+    return new AdaptiveIBBByteStream(
+        connection, session, peer, sessionID, Math.min(DEFAULT_BLOCK_SIZE, blockSize), blockSize);
+  }
+
   @Override
   public String toString() {
     return "XMPP-IBB-Stream-Service";
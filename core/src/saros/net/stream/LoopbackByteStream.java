@@ -0,0 +1,173 @@
+package saros.net.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * {@link ByteStream} that is connected to another LoopbackByteStream in the same JVM. The data is
+ * exchanged over two bounded in-memory buffers, one for each direction.
+ */
+class LoopbackByteStream implements ByteStream {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final class Pipe {
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int readPosition;
+    private int count;
+    private boolean closed;
+
+    private synchronized int read(byte[] b, int off, int len, int timeout) throws IOException {
+      if (len == 0) return 0;
+
+      final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+
+      while (count == 0) {
+        if (closed) return -1;
+
+        if (deadline == 0) {
+          await(0);
+          continue;
+        }
+
+        final long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) throw new SocketTimeoutException("read timed out");
+
+        await(remaining);
+      }
+
+      final int read = Math.min(len, Math.min(count, BUFFER_SIZE - readPosition));
+
+      System.arraycopy(buffer, readPosition, b, off, read);
+
+      readPosition = (readPosition + read) % BUFFER_SIZE;
+      count -= read;
+
+      notifyAll();
+      return read;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (closed) throw new IOException("stream is closed");
+
+        if (count == BUFFER_SIZE) {
+          await(0);
+          continue;
+        }
+
+        final int writePosition = (readPosition + count) % BUFFER_SIZE;
+        final int written =
+            Math.min(len, Math.min(BUFFER_SIZE - count, BUFFER_SIZE - writePosition));
+
+        System.arraycopy(b, off, buffer, writePosition, written);
+
+        count += written;
+        off += written;
+        len -= written;
+
+        notifyAll();
+      }
+    }
+
+    private synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+
+    private void await(long timeout) throws InterruptedIOException {
+      try {
+        wait(timeout);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private final Pipe in;
+  private final Pipe out;
+
+  private volatile int readTimeout;
+
+  private final InputStream inputStream =
+      new InputStream() {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+          return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          return in.read(b, off, len, readTimeout);
+        }
+
+        @Override
+        public void close() {
+          LoopbackByteStream.this.close();
+        }
+      };
+
+  private final OutputStream outputStream =
+      new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+          LoopbackByteStream.this.close();
+        }
+      };
+
+  private LoopbackByteStream(final Pipe in, final Pipe out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /** Creates two streams that are connected to each other. */
+  static LoopbackByteStream[] createPair() {
+    final Pipe a = new Pipe();
+    final Pipe b = new Pipe();
+
+    return new LoopbackByteStream[] {new LoopbackByteStream(a, b), new LoopbackByteStream(b, a)};
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public void close() {
+    in.close();
+    out.close();
+  }
+
+  @Override
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  @Override
+  public void setReadTimeout(int timeout) {
+    readTimeout = timeout;
+  }
+}
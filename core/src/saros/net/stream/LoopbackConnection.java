@@ -0,0 +1,455 @@
+package saros.net.stream;
+
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionCreationListener;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.LoopbackConnectionAccess;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * A {@link Connection} that does not connect to a XMPP server but exchanges its packets with the
+ * other connections of the same {@linkplain Network network} inside the current JVM. It allows to
+ * run several clients that communicate with each other in one process without any network access,
+ * e.g for tests and benchmarks.
+ *
+ * <p>The packets are serialized and parsed again on the receiving side like they would be on a real
+ * connection. The network only implements the server side features clients expect during login:
+ * every user that ever logged in to the network is in the roster of all other users with a
+ * subscription of type <code>both</code> and presences are broadcasted to all users. All other
+ * requests that are addressed to the server are answered with an error.
+ */
+public class LoopbackConnection extends Connection {
+
+  private static final Logger LOG = Logger.getLogger(LoopbackConnection.class.getName());
+
+  private static final AtomicInteger CONNECTION_COUNTER = new AtomicInteger();
+
+  /** The in-process replacement for a XMPP server. */
+  public static final class Network {
+
+    private static final Network DEFAULT = new Network();
+
+    /** logged in connections by their resource qualified address */
+    private final Map<String, LoopbackConnection> connections =
+        new ConcurrentHashMap<String, LoopbackConnection>();
+
+    /** last available presences by the resource qualified address of their sender */
+    private final Map<String, String> presences = new ConcurrentHashMap<String, String>();
+
+    /** bare addresses of all users that ever logged in */
+    private final Set<String> accounts =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Returns the network that is shared by all connections that do not choose their own one. */
+    public static Network getDefault() {
+      return DEFAULT;
+    }
+
+    private void register(final LoopbackConnection connection) throws XMPPException {
+      final String user = connection.getUser();
+
+      if (connections.putIfAbsent(user, connection) != null)
+        throw new XMPPException(new XMPPError(XMPPError.Condition.conflict));
+
+      final String bareAddress = StringUtils.parseBareAddress(user);
+
+      if (!accounts.add(bareAddress)) return;
+
+      // roster push of the new account to everybody else
+      for (final LoopbackConnection other : connections.values()) {
+        if (other == connection) continue;
+
+        final RosterPacket push = new RosterPacket();
+        push.setType(IQ.Type.SET);
+        push.setTo(other.getUser());
+        push.addRosterItem(createRosterItem(bareAddress));
+
+        other.deliver(push.toXML());
+      }
+    }
+
+    private void unregister(final LoopbackConnection connection) {
+      final String user = connection.getUser();
+
+      if (user != null) connections.remove(user, connection);
+    }
+
+    private void route(final LoopbackConnection from, final Packet packet) {
+      packet.setFrom(from.getUser());
+
+      final String to = packet.getTo();
+
+      if (to == null
+          || to.equals(from.getServiceName())
+          || to.equals(StringUtils.parseBareAddress(from.getUser()))) {
+        handle(from, packet);
+        return;
+      }
+
+      if (!StringUtils.parseResource(to).isEmpty()) {
+        final LoopbackConnection connection = connections.get(to);
+
+        if (connection != null) connection.deliver(packet.toXML());
+        else reject(from, packet, XMPPError.Condition.service_unavailable);
+
+        return;
+      }
+
+      boolean delivered = false;
+
+      for (final LoopbackConnection connection : connections.values()) {
+        if (!to.equals(StringUtils.parseBareAddress(connection.getUser()))) continue;
+
+        connection.deliver(packet.toXML());
+        delivered = true;
+      }
+
+      if (!delivered) reject(from, packet, XMPPError.Condition.service_unavailable);
+    }
+
+    /** Handles the packets that are addressed to the server. */
+    private void handle(final LoopbackConnection from, final Packet packet) {
+      if (packet instanceof Presence) {
+        handlePresence(from, (Presence) packet);
+        return;
+      }
+
+      if (!(packet instanceof IQ)) return;
+
+      final IQ iq = (IQ) packet;
+
+      if (!(iq instanceof RosterPacket)) {
+        reject(from, iq, XMPPError.Condition.feature_not_implemented);
+        return;
+      }
+
+      if (iq.getType() != IQ.Type.GET) {
+        // changes of the roster are ignored
+        if (iq.getType() == IQ.Type.SET) from.deliver(IQ.createResultIQ(iq).toXML());
+
+        return;
+      }
+
+      final RosterPacket roster = new RosterPacket();
+      roster.setType(IQ.Type.RESULT);
+      roster.setPacketID(iq.getPacketID());
+      roster.setTo(from.getUser());
+
+      final String bareAddress = StringUtils.parseBareAddress(from.getUser());
+
+      for (final String account : accounts) {
+        if (!account.equals(bareAddress)) roster.addRosterItem(createRosterItem(account));
+      }
+
+      from.deliver(roster.toXML());
+    }
+
+    private void handlePresence(final LoopbackConnection from, final Presence presence) {
+      final Presence.Type type = presence.getType();
+
+      if (type != Presence.Type.available && type != Presence.Type.unavailable) return;
+
+      final String xml = presence.toXML();
+
+      boolean initial = false;
+
+      if (type == Presence.Type.available) initial = presences.put(from.getUser(), xml) == null;
+      else presences.remove(from.getUser());
+
+      for (final LoopbackConnection other : connections.values())
+        if (other != from) other.deliver(xml);
+
+      if (!initial) return;
+
+      // the server sends the presences of all contacts after the initial presence
+      for (final Map.Entry<String, String> entry : presences.entrySet())
+        if (!entry.getKey().equals(from.getUser())) from.deliver(entry.getValue());
+    }
+
+    private static void reject(
+        final LoopbackConnection from, final Packet packet, final XMPPError.Condition condition) {
+
+      if (!(packet instanceof IQ)) return;
+
+      final IQ iq = (IQ) packet;
+
+      if (iq.getType() != IQ.Type.GET && iq.getType() != IQ.Type.SET) return;
+
+      from.deliver(IQ.createErrorResponse(iq, new XMPPError(condition)).toXML());
+    }
+
+    private static RosterPacket.Item createRosterItem(final String bareAddress) {
+      final RosterPacket.Item item =
+          new RosterPacket.Item(bareAddress, StringUtils.parseName(bareAddress));
+
+      item.setItemType(RosterPacket.ItemType.both);
+      return item;
+    }
+  }
+
+  private final Network network;
+
+  private final String connectionID;
+
+  private volatile String user;
+
+  private volatile boolean connected;
+
+  private volatile boolean authenticated;
+
+  private Roster roster;
+
+  /** parses incoming packets and hands them to the collectors like the packet reader */
+  private ExecutorService readerExecutor;
+
+  /** notifies the packet listeners in order */
+  private ExecutorService listenerExecutor;
+
+  /**
+   * Creates a connection to the given network.
+   *
+   * @param network the network to connect to
+   * @param config the configuration, only the service name is used
+   */
+  public LoopbackConnection(final Network network, final ConnectionConfiguration config) {
+    super(config);
+    this.network = network;
+    this.connectionID = "loopback-" + CONNECTION_COUNTER.incrementAndGet();
+  }
+
+  @Override
+  public String getUser() {
+    return user;
+  }
+
+  @Override
+  public String getConnectionID() {
+    return connected ? connectionID : null;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public boolean isAuthenticated() {
+    return authenticated;
+  }
+
+  @Override
+  public boolean isAnonymous() {
+    return false;
+  }
+
+  @Override
+  public boolean isSecureConnection() {
+    return false;
+  }
+
+  @Override
+  public boolean isUsingCompression() {
+    return false;
+  }
+
+  @Override
+  public synchronized void connect() throws XMPPException {
+    if (connected) return;
+
+    readerExecutor = Executors.newSingleThreadExecutor(createThreadFactory("Reader"));
+    listenerExecutor = Executors.newSingleThreadExecutor(createThreadFactory("Listener"));
+
+    connected = true;
+
+    for (final ConnectionCreationListener listener : getConnectionCreationListeners())
+      listener.connectionCreated(this);
+  }
+
+  @Override
+  public synchronized void login(String username, String password, String resource)
+      throws XMPPException {
+
+    if (!connected) throw new IllegalStateException("Not connected to server.");
+
+    if (authenticated) throw new IllegalStateException("Already logged in to server.");
+
+    if (resource == null) resource = "Smack";
+
+    // the username may also be given as bare address
+    final String name = username.indexOf('@') == -1 ? username : StringUtils.parseName(username);
+
+    user = name + "@" + getServiceName() + "/" + resource;
+
+    network.register(this);
+
+    authenticated = true;
+
+    roster = LoopbackConnectionAccess.createRoster(this);
+
+    if (config.isRosterLoadedAtLogin()) roster.reload();
+
+    if (LoopbackConnectionAccess.isSendPresence(config))
+      sendPacket(new Presence(Presence.Type.available));
+
+    LoopbackConnectionAccess.setLoginInfo(config, username, password, resource);
+  }
+
+  @Override
+  public void loginAnonymously() throws XMPPException {
+    throw new XMPPException("anonymous logins are not supported");
+  }
+
+  @Override
+  public void sendPacket(final Packet packet) {
+    if (!connected) throw new IllegalStateException("Not connected to server.");
+
+    if (packet == null) throw new NullPointerException("Packet is null.");
+
+    firePacketInterceptors(packet);
+
+    if (authenticated) network.route(this, packet);
+
+    firePacketSendingListeners(packet);
+  }
+
+  @Override
+  public Roster getRoster() {
+    return roster;
+  }
+
+  @Override
+  public void disconnect(final Presence unavailablePresence) {
+    synchronized (this) {
+      if (!connected) return;
+
+      if (authenticated) network.route(this, unavailablePresence);
+
+      network.unregister(this);
+
+      connected = false;
+      authenticated = false;
+
+      readerExecutor.shutdown();
+      listenerExecutor.shutdown();
+    }
+
+    for (final ConnectionListener listener : getConnectionListeners()) {
+      try {
+        listener.connectionClosed();
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "error in connection listener", e);
+      }
+    }
+  }
+
+  /** Returns the network of this connection. */
+  public Network getNetwork() {
+    return network;
+  }
+
+  private void deliver(final String xml) {
+    final ExecutorService executor = readerExecutor;
+
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              processPacket(xml);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // disconnected
+    }
+  }
+
+  private void processPacket(final String xml) {
+    final Packet packet;
+
+    try {
+      packet = parse(xml);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "failed to parse packet: " + xml, e);
+      return;
+    }
+
+    // IQ requests without provider are already answered by the parser
+    if (packet == null) return;
+
+    for (final PacketCollector collector : getPacketCollectors())
+      LoopbackConnectionAccess.processPacket(collector, packet);
+
+    final Collection<ListenerWrapper> listeners = recvListeners.values();
+
+    try {
+      listenerExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              for (final ListenerWrapper listener : listeners) {
+                try {
+                  listener.notifyListener(packet);
+                } catch (RuntimeException e) {
+                  LOG.log(Level.SEVERE, "exception in packet listener", e);
+                }
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // disconnected
+    }
+  }
+
+  private Packet parse(final String xml) throws Exception {
+    final XmlPullParser parser = new MXParser();
+    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    parser.setInput(new StringReader(xml));
+    parser.next();
+
+    final String name = parser.getName();
+
+    if ("message".equals(name)) return PacketParserUtils.parseMessage(parser);
+
+    if ("iq".equals(name)) return PacketParserUtils.parseIQ(parser, this);
+
+    if ("presence".equals(name)) return PacketParserUtils.parsePresence(parser);
+
+    throw new IllegalArgumentException("unknown packet type: " + name);
+  }
+
+  private ThreadFactory createThreadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "Loopback " + name + " (" + connectionID + ")");
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,161 @@
+package saros.net.stream;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.XMPPException;
+import saros.net.ConnectionState;
+import saros.net.stun.IStunService;
+import saros.net.upnp.IUPnPService;
+import saros.net.xmpp.IConnectionListener;
+import saros.net.xmpp.JID;
+import saros.net.xmpp.XMPPConnectionService;
+import saros.repackaged.picocontainer.annotations.Nullable;
+
+/**
+ * Connection service that logs in to the {@linkplain LoopbackConnection.Network#getDefault()
+ * default loopback network} instead of a XMPP server. All contexts of the JVM that use this service
+ * share that network, neither a Socks5 proxy is started nor any port mapping is performed.
+ *
+ * @see LoopbackContextFactory
+ */
+public class LoopbackConnectionService extends XMPPConnectionService {
+
+  private static final Logger LOG = Logger.getLogger(LoopbackConnectionService.class);
+
+  private final List<IConnectionListener> listeners =
+      new CopyOnWriteArrayList<IConnectionListener>();
+
+  private volatile ConnectionState connectionState = ConnectionState.NOT_CONNECTED;
+
+  private LoopbackConnection connection;
+
+  private String resource;
+
+  private JID localJID;
+
+  public LoopbackConnectionService(
+      @Nullable IUPnPService upnpService, @Nullable IStunService stunService) {
+    super(upnpService, stunService);
+  }
+
+  @Override
+  public synchronized void configure(
+      final String resource,
+      final boolean enableDebug,
+      final boolean proxyEnabled,
+      final int proxyPort,
+      final Collection<String> proxyAddresses,
+      final String gatewayDeviceID,
+      final boolean useExternalGatewayDeviceAddress,
+      final String stunServer,
+      final int stunPort,
+      boolean enablePortMapping) {
+
+    if (isConnected())
+      throw new IllegalStateException(
+          "cannot configure the network while a connection is established");
+
+    this.resource = resource;
+  }
+
+  @Override
+  public JID getJID() {
+    return localJID;
+  }
+
+  @Override
+  public Roster getRoster() {
+    return isConnected() ? connection.getRoster() : null;
+  }
+
+  @Override
+  public synchronized void connect(
+      ConnectionConfiguration connectionConfiguration, String username, String password)
+      throws XMPPException {
+
+    if (isConnected()) disconnect();
+
+    Roster.setDefaultSubscriptionMode(Roster.SubscriptionMode.manual);
+
+    connection =
+        new LoopbackConnection(LoopbackConnection.Network.getDefault(), connectionConfiguration);
+
+    try {
+      setConnectionState(ConnectionState.CONNECTING);
+
+      connection.connect();
+      connection.login(username, password, resource);
+
+      localJID = new JID(connection.getUser());
+
+      setConnectionState(ConnectionState.CONNECTED);
+    } catch (XMPPException e) {
+      connection.disconnect();
+      setConnectionState(ConnectionState.NOT_CONNECTED);
+      localJID = null;
+      throw (e);
+    }
+  }
+
+  @Override
+  public synchronized void disconnect() {
+    if (isConnected()) {
+      setConnectionState(ConnectionState.DISCONNECTING);
+
+      connection.disconnect();
+
+      setConnectionState(ConnectionState.NOT_CONNECTED);
+    }
+    localJID = null;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connectionState == ConnectionState.CONNECTED;
+  }
+
+  @Override
+  public ConnectionState getConnectionState() {
+    return connectionState;
+  }
+
+  /** Always returns <code>null</code>, a loopback connection cannot fail. */
+  @Override
+  public Exception getConnectionError() {
+    return null;
+  }
+
+  @Override
+  public Connection getConnection() {
+    return connection;
+  }
+
+  @Override
+  public void addListener(IConnectionListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(IConnectionListener listener) {
+    listeners.remove(listener);
+  }
+
+  private void setConnectionState(ConnectionState state) {
+    connectionState = state;
+
+    LOG.debug("loopback connection state changed to: " + state);
+
+    for (IConnectionListener listener : listeners) {
+      try {
+        listener.connectionStateChanged(connection, state);
+      } catch (RuntimeException e) {
+        LOG.error("internal error in listener: " + listener, e);
+      }
+    }
+  }
+}
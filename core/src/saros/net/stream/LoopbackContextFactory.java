@@ -0,0 +1,28 @@
+package saros.net.stream;
+
+import saros.context.AbstractContextFactory;
+import saros.context.IContextKeyBindings;
+import saros.net.xmpp.XMPPConnectionService;
+import saros.repackaged.picocontainer.BindKey;
+import saros.repackaged.picocontainer.MutablePicoContainer;
+
+/**
+ * Context factory that replaces the XMPP connection and the direct TCP transport of the {@link
+ * saros.context.CoreContextFactory} by their loopback counterparts, so that several contexts of one
+ * JVM form a session without a XMPP server or any network access. It must be added after the core
+ * factory, e.g. as additional factory of a benchmark or test context.
+ */
+public class LoopbackContextFactory extends AbstractContextFactory {
+
+  private static final Object TCP_STREAM_SERVICE_KEY =
+      BindKey.bindKey(IStreamService.class, IContextKeyBindings.TCPStreamService.class);
+
+  @Override
+  public void createComponents(MutablePicoContainer container) {
+    container.removeComponent(TCP_STREAM_SERVICE_KEY);
+    container.removeComponent(XMPPConnectionService.class);
+
+    container.addComponent(TCP_STREAM_SERVICE_KEY, LoopbackStreamService.class);
+    container.addComponent(XMPPConnectionService.class, LoopbackConnectionService.class);
+  }
+}
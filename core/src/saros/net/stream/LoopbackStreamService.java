@@ -0,0 +1,137 @@
+package saros.net.stream;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Connection;
+import saros.net.internal.BinaryChannelConnection;
+import saros.net.internal.IByteStreamConnection;
+import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.xmpp.JID;
+import saros.util.ThreadUtils;
+
+/**
+ * Stream service that connects to the other LoopbackStreamServices of the same JVM using in-memory
+ * streams.
+ *
+ * <p>Together with the {@link LoopbackConnection} it allows to run several Saros contexts in one
+ * JVM that form a session without a XMPP server or any network access, e.g to benchmark the whole
+ * stack. The {@link LoopbackContextFactory} installs both instead of the XMPP connection and the
+ * direct TCP transport.
+ */
+public class LoopbackStreamService implements IStreamService {
+
+  private static final Logger LOG = Logger.getLogger(LoopbackStreamService.class);
+
+  /** initialized services by the resource qualified address of their local user */
+  private static final Map<String, LoopbackStreamService> SERVICES =
+      new ConcurrentHashMap<String, LoopbackStreamService>();
+
+  private volatile IByteStreamConnectionListener connectionListener;
+  private volatile JID localAddress;
+
+  @Override
+  public IByteStreamConnection connect(String connectionID, JID remoteAddress)
+      throws IOException, InterruptedException {
+
+    if (connectionID == null) throw new NullPointerException("connectionID is null");
+
+    if (remoteAddress == null) throw new NullPointerException("remoteAddress is null");
+
+    if (connectionID.isEmpty())
+      throw new IllegalArgumentException("connectionID must not be empty");
+
+    if (connectionID.contains(String.valueOf(IStreamService.SESSION_ID_DELIMITER)))
+      throw new IllegalArgumentException(
+          "connectionID must not contain '" + IStreamService.SESSION_ID_DELIMITER + "'");
+
+    final IByteStreamConnectionListener currentConnectionListener = connectionListener;
+    final JID currentLocalAddress = localAddress;
+
+    if (currentConnectionListener == null || currentLocalAddress == null)
+      throw new IOException(this + " is not initialized");
+
+    final LoopbackStreamService remoteService = SERVICES.get(remoteAddress.getRAW());
+
+    if (remoteService == null)
+      throw new IOException(remoteAddress + " is not reachable over a loopback stream");
+
+    LOG.debug("establishing loopback connection to: " + remoteAddress);
+
+    final LoopbackByteStream[] streams = LoopbackByteStream.createPair();
+
+    final IByteStreamConnection connection =
+        new BinaryChannelConnection(
+            currentLocalAddress,
+            remoteAddress,
+            connectionID,
+            streams[0],
+            StreamMode.LOOPBACK,
+            currentConnectionListener);
+
+    // like a real transport the remote side is notified concurrently
+    ThreadUtils.runSafeAsync(
+        "loopback-accept-" + connectionID,
+        LOG,
+        new Runnable() {
+          @Override
+          public void run() {
+            remoteService.accept(connectionID, currentLocalAddress, streams[1]);
+          }
+        });
+
+    return connection;
+  }
+
+  @Override
+  public synchronized void initialize(
+      Connection connection, IByteStreamConnectionListener listener) {
+    localAddress = new JID(connection.getUser());
+    connectionListener = listener;
+
+    SERVICES.put(localAddress.getRAW(), this);
+  }
+
+  @Override
+  public synchronized void uninitialize() {
+    if (localAddress == null) return;
+
+    SERVICES.remove(localAddress.getRAW(), this);
+
+    localAddress = null;
+    connectionListener = null;
+  }
+
+  private void accept(
+      final String connectionID, final JID remoteAddress, final LoopbackByteStream stream) {
+
+    final IByteStreamConnectionListener currentConnectionListener = connectionListener;
+    final JID currentLocalAddress = localAddress;
+
+    if (currentConnectionListener == null || currentLocalAddress == null) {
+      LOG.warn("rejected loopback connection from " + remoteAddress + ", service is stopped");
+      stream.close();
+      return;
+    }
+
+    final IByteStreamConnection connection;
+
+    try {
+      connection =
+          new BinaryChannelConnection(
+              currentLocalAddress,
+              remoteAddress,
+              connectionID,
+              stream,
+              StreamMode.LOOPBACK,
+              currentConnectionListener);
+    } catch (IOException e) {
+      LOG.error("failed to initialize connection for loopback stream", e);
+      stream.close();
+      return;
+    }
+
+    currentConnectionListener.connectionChanged(connectionID, connection, true);
+  }
+}
@@ -4,19 +4,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
@@ -99,9 +101,93 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
   private static final int TOTAL_CONNECT_TIMEOUT =
       Integer.getInteger("saros.net.socks5.TOTAL_CONNECT_TIMEOUT", 20000);
 
-  private HashMap<String, Exchanger<Socks5BytestreamSession>> runningRemoteConnects =
-      new HashMap<String, Exchanger<Socks5BytestreamSession>>();
-  private ExecutorService executorService;
+  /**
+   * Minimum time to wait for a direct session once a mediated session is available, if the last
+   * connection to the peer was mediated.
+   */
+  private static final int MIN_MEDIATED_GRACE_PERIOD =
+      Integer.getInteger("saros.net.socks5.MIN_MEDIATED_GRACE_PERIOD", 500);
+
+  /** The kind of session that won the last connection establishment to a peer. */
+  private enum RouteKind {
+    /** the peer connected to one of the local stream hosts */
+    DIRECT_OUTGOING,
+    /** the local side connected to one of the stream hosts of the peer */
+    DIRECT_RESPONSE,
+    /** a bidirectional session over a proxy */
+    MEDIATED,
+    /** two unidirectional sessions over a proxy */
+    MEDIATED_WRAPPED
+  }
+
+  /** The route that was used for the last successful connection to a peer. */
+  private static final class Route {
+    private final RouteKind kind;
+
+    /** time in milliseconds it took to establish the connection */
+    private final long establishmentTime;
+
+    private Route(final RouteKind kind, final long establishmentTime) {
+      this.kind = kind;
+      this.establishmentTime = establishmentTime;
+    }
+
+    @Override
+    public String toString() {
+      return kind + " [" + establishmentTime + " ms]";
+    }
+  }
+
+  /**
+   * A session candidate of a running connection establishment, either the outgoing session or the
+   * response session of the peer.
+   */
+  private static final class Candidate {
+    private final boolean response;
+    private final Socks5BytestreamSession session;
+    private final Exception error;
+
+    private Candidate(
+        final boolean response, final Socks5BytestreamSession session, final Exception error) {
+      this.response = response;
+      this.session = session;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Collects the session candidates of a running connection establishment. Candidates that arrive
+   * after the establishment has finished are closed.
+   */
+  private static final class ConnectAttempt {
+    private final BlockingQueue<Candidate> candidates = new LinkedBlockingQueue<Candidate>();
+    private boolean finished;
+
+    private synchronized void offer(final Candidate candidate) {
+      if (finished) closeQuietly(candidate.session);
+      else candidates.add(candidate);
+    }
+
+    private Candidate poll(final long timeout) throws InterruptedException {
+      return candidates.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void finish() {
+      finished = true;
+
+      Candidate candidate;
+
+      while ((candidate = candidates.poll()) != null) closeQuietly(candidate.session);
+    }
+  }
+
+  private final Map<String, ConnectAttempt> runningRemoteConnects =
+      new ConcurrentHashMap<String, ConnectAttempt>();
+
+  /** last successful route per peer */
+  private final Map<JID, Route> routes = new ConcurrentHashMap<JID, Route>();
+
+  private volatile ExecutorService executorService;
 
   private volatile Socks5BytestreamManager socks5Manager;
   private volatile IByteStreamConnectionListener connectionListener;
@@ -131,7 +217,7 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
    * @param future
    */
   private void waitToCloseResponse(final Future<Socks5BytestreamSession> future) {
-    LOG.debug(prefix() + "canceling response connection as it is not needed");
+    LOG.debug(prefix() + "canceling connection as it is not needed");
 
     Thread waitToCloseResponse =
         new Thread("CloseUnneededResponseConnection") {
@@ -323,25 +409,15 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
     String sessionID = getSessionID(request.getSessionID());
 
     // get running connect
-    Exchanger<Socks5BytestreamSession> exchanger = runningRemoteConnects.get(sessionID);
+    ConnectAttempt attempt = sessionID != null ? runningRemoteConnects.get(sessionID) : null;
 
-    if (exchanger == null) {
+    if (attempt == null) {
       LOG.warn(prefix() + "Received response connection without a running connect");
       closeQuietly(inSession);
       return;
     }
 
-    try {
-      exchanger.exchange(inSession, TARGET_RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      LOG.debug(prefix() + "Wrapping bidirectional stream was interrupted.");
-      closeQuietly(inSession);
-    } catch (TimeoutException e) {
-      LOG.error(
-          prefix()
-              + "Wrapping bidirectional stream timed out in Request! Shouldn't have happened.");
-      closeQuietly(inSession);
-    }
+    attempt.offer(new Candidate(true, inSession, null));
   }
 
   /**
@@ -476,149 +552,287 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
   }
 
   /**
-   * Tries to establish a connection to peer and waits for peer to connect. See handleResponse().
+   * Tries to establish a connection to peer and concurrently waits for peer to connect. The first
+   * direct session wins. See handleResponse().
+   *
+   * <p>If the last connection to the peer was mediated, the establishment only waits a short grace
+   * period for a direct session once a mediated session is available.
    */
   private IByteStreamConnection establishBinaryChannel(String connectionIdentifier, String peer)
       throws XMPPException, IOException, InterruptedException {
 
-    Socks5BytestreamManager manager = socks5Manager;
-    IByteStreamConnectionListener listener = connectionListener;
+    final Socks5BytestreamManager manager = socks5Manager;
+    final IByteStreamConnectionListener listener = connectionListener;
+    final ExecutorService executor = executorService;
 
-    if (manager == null || listener == null)
+    if (manager == null || listener == null || executor == null)
       throw new IOException(this + " transport is not initialized");
 
+    final JID peerJID = new JID(peer);
+    final Route lastRoute = routes.get(peerJID);
+
     LOG.debug(
-        prefix() + "establishing connection to " + peer + ", " + verboseLocalProxyInfo() + "...");
+        prefix()
+            + "establishing connection to "
+            + peer
+            + ", last route: "
+            + lastRoute
+            + ", "
+            + verboseLocalProxyInfo()
+            + "...");
+
+    final long startTime = System.currentTimeMillis();
+
+    // before establishing, we have to register the attempt for the response session
+    final ConnectAttempt attempt = new ConnectAttempt();
+
+    final String sessionID = generateSessionID(connectionIdentifier, getNextNegotiationID());
+
+    runningRemoteConnects.put(sessionID, attempt);
+
+    final Future<Socks5BytestreamSession> outFuture =
+        executor.submit(
+            new Callable<Socks5BytestreamSession>() {
+              @Override
+              public Socks5BytestreamSession call() throws Exception {
+                try {
+                  final Socks5BytestreamSession session = manager.establishSession(peer, sessionID);
+                  attempt.offer(new Candidate(false, session, null));
+                  return session;
+                } catch (Exception e) {
+                  attempt.offer(new Candidate(false, null, e));
+                  throw e;
+                }
+              }
+            });
+
+    boolean outgoingDone = false;
+    boolean success = false;
 
-    // before establishing, we have to put the exchanger to the map
-    Exchanger<Socks5BytestreamSession> exchanger = new Exchanger<Socks5BytestreamSession>();
+    Socks5BytestreamSession outSession = null;
+    Socks5BytestreamSession inSession = null;
+    Exception exception = null;
 
-    String sessionID = generateSessionID(connectionIdentifier, getNextNegotiationID());
+    try {
 
-    runningRemoteConnects.put(sessionID, exchanger);
+      final long deadline = startTime + TARGET_RESPONSE_TIMEOUT;
+      long mediatedDeadline = Long.MAX_VALUE;
 
-    try {
+      while (true) {
+        final long timeout = Math.min(deadline, mediatedDeadline) - System.currentTimeMillis();
 
-      Exception exception = null;
-      Socks5BytestreamSession outSession = null;
-      // Do we get a working connection?
-      try {
+        final Candidate candidate = timeout > 0 ? attempt.poll(timeout) : null;
 
-        outSession = manager.establishSession(peer, sessionID);
+        if (candidate == null) break;
 
-        if (outSession.isDirect()) {
-          configureSocks5Socket(outSession);
-          return new BinaryChannelConnection(
-              localAddress,
-              new JID(peer),
-              connectionIdentifier,
-              new XMPPByteStreamAdapter(outSession),
-              StreamMode.SOCKS5_DIRECT,
-              listener);
-        }
+        if (candidate.response) {
+          inSession = candidate.session;
 
-        LOG.debug(
-            prefix()
-                + "connection/session is mediated, performing additional connection optimization...");
+          if (inSession.isDirect()) {
+            LOG.debug(prefix() + "response connection is direct! Discarding the other.");
 
-      } catch (IOException e) {
-        exception = e;
-        LOG.warn(
-            prefix()
-                + "could not establish a connection to "
-                + peer
-                + " due to an error in the socket communictation",
-            e);
-      } catch (XMPPException e) {
-        exception = e;
-        XMPPError error = e.getXMPPError();
-
-        if (error != null && error.getCode() == 406) {
-          LOG.warn(
-              prefix()
-                  + "could not establish a connection to "
-                  + peer
-                  + ", remote Socks5 transport is disabled or encountered an error: "
-                  + e.getMessage());
-          /*
-           * quit here as it makes no sense to wait for the remote
-           * side to connect because this will never happen !
-           */
-          throw e;
-        } else if (error != null && error.getCode() == 404) {
-          LOG.warn(
-              prefix()
-                  + "could not establish a connection to "
-                  + peer
-                  + ", remote side could not connect to any offered stream hosts: "
-                  + e.getMessage());
+            if (outgoingDone) closeQuietly(outSession);
+            else waitToCloseResponse(outFuture);
+
+            outgoingDone = true;
+            outSession = null;
+
+            configureSocks5Socket(inSession);
+
+            final IByteStreamConnection connection =
+                createConnection(
+                    peerJID,
+                    connectionIdentifier,
+                    inSession,
+                    StreamMode.SOCKS5_DIRECT,
+                    RouteKind.DIRECT_RESPONSE,
+                    startTime,
+                    listener);
+
+            success = true;
+            return connection;
+          }
         } else {
-          LOG.error(prefix() + "could not establish a connection to " + peer, e);
+          outgoingDone = true;
+
+          if (candidate.error != null) {
+            exception = candidate.error;
+            handleOutgoingSessionError(peer, exception);
+          } else {
+            outSession = candidate.session;
+
+            if (outSession.isDirect()) {
+              closeQuietly(inSession);
+              inSession = null;
+
+              configureSocks5Socket(outSession);
+              preferLocalStreamHost(outSession);
+
+              final IByteStreamConnection connection =
+                  createConnection(
+                      peerJID,
+                      connectionIdentifier,
+                      outSession,
+                      StreamMode.SOCKS5_DIRECT,
+                      RouteKind.DIRECT_OUTGOING,
+                      startTime,
+                      listener);
+
+              success = true;
+              return connection;
+            }
+
+            LOG.debug(
+                prefix()
+                    + "connection/session is mediated, performing additional connection"
+                    + " optimization...");
+          }
         }
-      } catch (Exception e) {
-        // FIXME handle the InterruptedException correctly !
-        exception = e;
 
-        /*
-         * catch any possible RuntimeException because we must wait for
-         * the peer that may attempt to connect
-         */
-        LOG.error(
-            prefix()
-                + "could not connect to "
-                + peer
-                + " because of an internal error: "
-                + exception.getMessage(),
-            e);
+        // both candidates are known and none of them is direct
+        if (outgoingDone && inSession != null) break;
+
+        if (mediatedDeadline == Long.MAX_VALUE
+            && (outSession != null || inSession != null)
+            && lastRoute != null
+            && lastRoute.kind == RouteKind.MEDIATED) {
+          mediatedDeadline =
+              System.currentTimeMillis()
+                  + Math.max(MIN_MEDIATED_GRACE_PERIOD, 2 * lastRoute.establishmentTime);
+        }
       }
 
-      LOG.debug(prefix() + "waiting for " + peer + " to establish a connection...");
-      Socks5BytestreamSession inSession = null;
+      if (!outgoingDone) {
+        waitToCloseResponse(outFuture);
+        outgoingDone = true;
+      }
 
-      // else wait for request
-      try {
-        inSession = exchanger.exchange(null, TARGET_RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+      if (inSession == null && outSession == null) {
+        String msg = "waiting for a response session timed out (" + TARGET_RESPONSE_TIMEOUT + "ms)";
 
-        if (inSession.isDirect()) {
-          LOG.debug(prefix() + "response connection is direct! Discarding the other.");
-          closeQuietly(outSession);
-          configureSocks5Socket(inSession);
+        throw new IOException(
+            prefix() + msg + " and could not establish a connection from this side, too",
+            exception);
+      }
 
-          return new BinaryChannelConnection(
-              localAddress,
-              new JID(peer),
+      if (inSession == null) LOG.debug(prefix() + "no response session received in time");
+
+      final BytestreamSession session =
+          testAndGetMediatedBidirectionalBytestream(inSession, outSession, false);
+
+      final IByteStreamConnection connection =
+          createConnection(
+              peerJID,
               connectionIdentifier,
-              new XMPPByteStreamAdapter(inSession),
-              StreamMode.SOCKS5_DIRECT,
+              session,
+              StreamMode.SOCKS5_MEDIATED,
+              session instanceof WrappedBidirectionalSocks5BytestreamSession
+                  ? RouteKind.MEDIATED_WRAPPED
+                  : RouteKind.MEDIATED,
+              startTime,
               listener);
-        }
 
-      } catch (TimeoutException e) {
+      success = true;
+      return connection;
+
+    } finally {
+      runningRemoteConnects.remove(sessionID);
+      attempt.finish();
+
+      if (!success) {
+        routes.remove(peerJID);
+
+        if (!outgoingDone) waitToCloseResponse(outFuture);
+
         closeQuietly(outSession);
-        String msg = "waiting for a response session timed out (" + TARGET_RESPONSE_TIMEOUT + "ms)";
-        if (exception != null)
-          throw new IOException(
-              prefix() + msg + " and could not establish a connection from this side, too:",
-              exception);
-        else LOG.debug(msg);
+        closeQuietly(inSession);
       }
+    }
+  }
 
-      BytestreamSession session =
-          testAndGetMediatedBidirectionalBytestream(inSession, outSession, false);
+  /**
+   * Logs the error of the outgoing session.
+   *
+   * @throws XMPPException if it makes no sense to wait for the response session
+   */
+  private void handleOutgoingSessionError(final String peer, final Exception exception)
+      throws XMPPException {
 
-      return new BinaryChannelConnection(
-          localAddress,
-          new JID(peer),
-          connectionIdentifier,
-          new XMPPByteStreamAdapter(session),
-          StreamMode.SOCKS5_MEDIATED,
-          listener);
+    if (exception instanceof IOException) {
+      LOG.warn(
+          prefix()
+              + "could not establish a connection to "
+              + peer
+              + " due to an error in the socket communictation",
+          exception);
+    } else if (exception instanceof XMPPException) {
+      XMPPError error = ((XMPPException) exception).getXMPPError();
+
+      if (error != null && error.getCode() == 406) {
+        LOG.warn(
+            prefix()
+                + "could not establish a connection to "
+                + peer
+                + ", remote Socks5 transport is disabled or encountered an error: "
+                + exception.getMessage());
+        /*
+         * quit here as it makes no sense to wait for the remote
+         * side to connect because this will never happen !
+         */
+        throw (XMPPException) exception;
+      } else if (error != null && error.getCode() == 404) {
+        LOG.warn(
+            prefix()
+                + "could not establish a connection to "
+                + peer
+                + ", remote side could not connect to any offered stream hosts: "
+                + exception.getMessage());
+      } else {
+        LOG.error(prefix() + "could not establish a connection to " + peer, exception);
+      }
+    } else {
+      // FIXME handle the InterruptedException correctly !
 
-    } finally {
-      runningRemoteConnects.remove(sessionID);
+      /*
+       * catch any possible RuntimeException because we must wait for
+       * the peer that may attempt to connect
+       */
+      LOG.error(
+          prefix()
+              + "could not connect to "
+              + peer
+              + " because of an internal error: "
+              + exception.getMessage(),
+          exception);
     }
   }
 
+  /** Creates the connection for the winning session and remembers its route. */
+  private IByteStreamConnection createConnection(
+      final JID peer,
+      final String connectionIdentifier,
+      final BytestreamSession session,
+      final StreamMode mode,
+      final RouteKind kind,
+      final long startTime,
+      final IByteStreamConnectionListener listener)
+      throws IOException {
+
+    final Route route = new Route(kind, System.currentTimeMillis() - startTime);
+
+    routes.put(peer, route);
+
+    LOG.debug(prefix() + "connection to " + peer + " established using route " + route);
+
+    return new BinaryChannelConnection(
+        localAddress,
+        peer,
+        connectionIdentifier,
+        new XMPPByteStreamAdapter(session),
+        mode,
+        listener);
+  }
+
   /**
    * @param peer
    * @return a BytestreamSession with a response ID
@@ -803,19 +1017,48 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
     }
   }
 
-  private void configureSocks5Socket(Socks5BytestreamSession session) {
-
-    Field socketField = null;
-    Socket socket;
-
+  private static Socket getSocket(Socks5BytestreamSession session) {
     try {
-      socketField = Socks5BytestreamSession.class.getDeclaredField("socket");
+      Field socketField = Socks5BytestreamSession.class.getDeclaredField("socket");
       socketField.setAccessible(true);
-      socket = (Socket) socketField.get(session);
+      return (Socket) socketField.get(session);
     } catch (Exception e) {
-      LOG.warn("Smack API has changed, cannot access socket options", e);
-      return;
+      LOG.warn("Smack API has changed, cannot access socket", e);
+      return null;
     }
+  }
+
+  /**
+   * Moves the local stream host address the peer has connected to in front of the addresses that
+   * are offered to peers, so it is tried first by the next connection establishment.
+   */
+  private void preferLocalStreamHost(Socks5BytestreamSession session) {
+    final Socket socket = getSocket(session);
+
+    if (socket == null) return;
+
+    final InetAddress address = socket.getLocalAddress();
+
+    if (address == null) return;
+
+    final String hostAddress = address.getHostAddress();
+
+    final List<String> localAddresses = NetworkingUtils.getSocks5ProxySafe().getLocalAddresses();
+
+    if (localAddresses.isEmpty()
+        || localAddresses.get(0).equals(hostAddress)
+        || !localAddresses.contains(hostAddress)) return;
+
+    LOG.debug(prefix() + "offering stream host address " + hostAddress + " first");
+
+    NetworkingUtils.addProxyAddress(hostAddress, true);
+  }
+
+  private void configureSocks5Socket(Socks5BytestreamSession session) {
+
+    final Socket socket = getSocket(session);
+
+    if (socket == null) return;
 
     try {
       socket.setTcpNoDelay(TCP_NODELAY);
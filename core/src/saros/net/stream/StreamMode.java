@@ -5,7 +5,8 @@ public enum StreamMode {
   IBB("IBB"),
   SOCKS5_MEDIATED("SOCKS5 (M)"),
   SOCKS5_DIRECT("SOCKS5 (D)"),
-  TCP("TCP");
+  TCP("TCP"),
+  LOOPBACK("LOOPBACK");
 
   private final String name;
 
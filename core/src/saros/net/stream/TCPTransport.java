@@ -1,59 +1,894 @@
 package saros.net.stream;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Proxy;
+import java.net.NetworkInterface;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.RosterPacket;
+import org.jivesoftware.smackx.bytestreams.socks5.Socks5Proxy;
+import saros.communication.extensions.TCPAddressExchangeExtension;
+import saros.context.IContainerContext;
 import saros.net.internal.BinaryChannelConnection;
 import saros.net.internal.IByteStreamConnection;
 import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.util.NetworkingUtils;
 import saros.net.xmpp.JID;
+import saros.repackaged.picocontainer.annotations.Nullable;
+import saros.session.ISarosSession;
+import saros.session.ISarosSessionManager;
+import saros.util.NamedThreadFactory;
+import saros.util.ThreadUtils;
 
-// TODO rewrite IStreamService interface
-
+/**
+ * Stream service that establishes plain TCP connections to peers that are directly reachable, e.g
+ * on the same LAN.
+ *
+ * <p>The service listens on a local port of each local address for incoming connections. A peer
+ * that wants to connect first queries the addresses of the remote side over XMPP. Only contacts and
+ * session participants receive an answer that contains the local addresses and a one time token.
+ * The connecting side then tries to connect to all announced addresses in parallel and uses the
+ * first connection that could be established. Afterwards a small handshake is performed which
+ * transmits the JIDs of both sides, the connection ID and the token. As the token was only handed
+ * out over the authenticated XMPP connection the accepting side is able to verify that the JID the
+ * connecting side claims to have is genuine.
+ *
+ * <p>If the local Socks5 proxy is enabled the service only listens on those of its addresses that
+ * belong to a local interface, so a user who restricted the proxy to certain addresses restricts
+ * this service as well.
+ */
 public class TCPTransport implements IStreamService {
 
-  private volatile IByteStreamConnectionListener currentListener;
+  private static final Logger LOG = Logger.getLogger(TCPTransport.class);
+
+  private static final Random ID_GENERATOR = new Random();
+
+  private static final Random TOKEN_GENERATOR = new SecureRandom();
+
+  private static final int HANDSHAKE_MAGIC = 0x53544350;
+
+  private static final int HANDSHAKE_VERSION = 1;
+
+  private static final int HANDSHAKE_ACCEPTED = 1;
+
+  private static final int HANDSHAKE_REJECTED = 0;
+
+  /**
+   * Local port to accept connections on. A value of 0 uses any free port, a negative value disables
+   * incoming connections.
+   */
+  private static final int PORT = Integer.getInteger("saros.net.tcp.PORT", 0);
+
+  private static final boolean TCP_NODELAY =
+      Boolean.valueOf(System.getProperty("saros.net.tcp.TCP_NODELAY", "true"));
+
+  private static final boolean INCLUDE_IPV6_ADDRESSES =
+      Boolean.valueOf(System.getProperty("saros.net.tcp.INCLUDE_IPV6_ADDRESSES", "false"));
+
+  /** Timeout on how long to wait for the remote side to announce its addresses. */
+  private static final int ADDRESS_EXCHANGE_TIMEOUT =
+      Integer.getInteger("saros.net.tcp.ADDRESS_EXCHANGE_TIMEOUT", 5000);
+
+  /** Timeout on how long to try to connect to the announced addresses. */
+  private static final int CONNECT_TIMEOUT =
+      Integer.getInteger("saros.net.tcp.CONNECT_TIMEOUT", 5000);
+
+  /** Timeout for reading the handshake data on both sides. */
+  private static final int HANDSHAKE_TIMEOUT =
+      Integer.getInteger("saros.net.tcp.HANDSHAKE_TIMEOUT", 10000);
+
+  /**
+   * Maximum number of incoming handshakes that are performed at the same time. Each handshake
+   * occupies a thread for up to {@link #HANDSHAKE_TIMEOUT} milliseconds.
+   */
+  private static final int MAX_CONCURRENT_HANDSHAKES =
+      Math.max(1, Integer.getInteger("saros.net.tcp.MAX_CONCURRENT_HANDSHAKES", 4));
+
+  /** Maximum number of accepted connections that wait for their handshake to be performed. */
+  private static final int MAX_PENDING_HANDSHAKES =
+      Math.max(0, Integer.getInteger("saros.net.tcp.MAX_PENDING_HANDSHAKES", 16));
+
+  /** Time after a handed out token becomes invalid. */
+  private static final long TOKEN_TIMEOUT =
+      (long) ADDRESS_EXCHANGE_TIMEOUT + CONNECT_TIMEOUT + HANDSHAKE_TIMEOUT;
+
+  private static final long TERMINATE_TIMEOUT = 10000L;
+
+  private static class Token {
+    private final JID owner;
+    private final long expirationTime;
+
+    private Token(JID owner, long expirationTime) {
+      this.owner = owner;
+      this.expirationTime = expirationTime;
+    }
+  }
+
+  private final Map<String, Token> pendingTokens = new ConcurrentHashMap<String, Token>();
+
+  private volatile Connection connection;
+  private volatile IByteStreamConnectionListener connectionListener;
+  private volatile JID localAddress;
+
+  private final IContainerContext context;
+
+  private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+  private Selector acceptSelector;
+  private Thread acceptThread;
+  private ExecutorService handshakeExecutor;
+
+  private final PacketFilter addressRequestFilter =
+      new AndFilter(
+          TCPAddressExchangeExtension.PROVIDER.getIQFilter(),
+          new PacketFilter() {
+            @Override
+            public boolean accept(Packet packet) {
+              return ((IQ) packet).getType() == IQ.Type.GET;
+            }
+          });
+
+  private final PacketListener addressRequestListener =
+      new PacketListener() {
+        @Override
+        public void processPacket(Packet packet) {
+          handleAddressRequest(packet);
+        }
+      };
+
+  public TCPTransport() {
+    this(null);
+  }
+
+  /**
+   * @param context the context to look up the current session in, if <code>null</code> only
+   *     contacts are allowed to connect
+   */
+  public TCPTransport(@Nullable IContainerContext context) {
+    this.context = context;
+  }
 
   @Override
-  public IByteStreamConnection connect(String connectionID, JID peer)
+  public IByteStreamConnection connect(String connectionID, JID remoteAddress)
       throws IOException, InterruptedException {
 
-    if (true) throw new RuntimeException("NYI");
+    if (connectionID == null) throw new NullPointerException("connectionID is null");
 
-    // TODO this should be configurable;
+    if (remoteAddress == null) throw new NullPointerException("remoteAddress is null");
 
-    final Socket socket = new Socket(Proxy.NO_PROXY);
+    if (connectionID.isEmpty())
+      throw new IllegalArgumentException("connectionID must not be empty");
 
-    final InetSocketAddress address = new InetSocketAddress("localhost", 4711);
+    if (connectionID.contains(String.valueOf(IStreamService.SESSION_ID_DELIMITER)))
+      throw new IllegalArgumentException(
+          "connectionID must not contain '" + IStreamService.SESSION_ID_DELIMITER + "'");
 
-    socket.connect(address, 30000);
-    socket.setTcpNoDelay(true);
+    LOG.debug("establishing TCP connection to: " + remoteAddress);
 
-    final IByteStreamConnectionListener listener = currentListener;
+    final Connection currentConnection = connection;
+    final IByteStreamConnectionListener currentConnectionListener = connectionListener;
+    final JID currentLocalAddress = localAddress;
 
-    if (listener == null) {
-      socket.close();
-      throw new IOException(this + " transport is not initialized");
-    }
+    if (currentConnection == null || currentConnectionListener == null)
+      throw new IOException(this + " is not initialized");
+
+    final TCPAddressExchangeExtension response =
+        queryRemoteAddresses(currentConnection, remoteAddress);
+
+    final List<InetSocketAddress> addresses = parseAddresses(response.getAddresses());
+
+    if (response.getToken() == null || addresses.isEmpty())
+      throw new IOException(remoteAddress + " does not accept direct TCP connections");
+
+    LOG.debug("addresses announced by " + remoteAddress + ": " + addresses);
+
+    final SocketChannel channel = connect(addresses);
+
+    try {
+      final Socket socket = channel.socket();
 
-    final IByteStreamConnection connection =
-        new BinaryChannelConnection(
-            null, peer, connectionID, new TCPByteStream(socket), StreamMode.TCP, listener);
+      configureSocket(socket);
 
-    return connection;
+      performConnectHandshake(
+          socket, currentLocalAddress, remoteAddress, connectionID, response.getToken());
+
+      return new BinaryChannelConnection(
+          currentLocalAddress,
+          remoteAddress,
+          connectionID,
+          new TCPByteStream(socket),
+          StreamMode.TCP,
+          currentConnectionListener);
+    } catch (IOException e) {
+      closeQuietly(channel);
+      throw e;
+    }
   }
 
   @Override
   public void initialize(Connection connection, IByteStreamConnectionListener listener) {
 
-    currentListener = listener;
+    synchronized (this) {
+      localAddress = new JID(connection.getUser());
+      connectionListener = listener;
+      this.connection = connection;
+
+      handshakeExecutor = createHandshakeExecutor();
+
+      if (PORT >= 0) startAcceptor();
+
+      connection.addPacketListener(addressRequestListener, addressRequestFilter);
+    }
   }
 
   @Override
   public void uninitialize() {
-    currentListener = null;
+
+    final Thread currentAcceptThread;
+
+    synchronized (this) {
+      if (connection == null) return;
+
+      connection.removePacketListener(addressRequestListener);
+      connection = null;
+      connectionListener = null;
+
+      for (final ServerSocketChannel serverChannel : serverChannels) closeQuietly(serverChannel);
+
+      if (acceptSelector != null) {
+        try {
+          acceptSelector.close();
+        } catch (IOException e) {
+          LOG.warn("failed to close selector", e);
+        }
+      }
+
+      serverChannels.clear();
+      acceptSelector = null;
+
+      currentAcceptThread = acceptThread;
+      acceptThread = null;
+
+      handshakeExecutor.shutdownNow();
+      handshakeExecutor = null;
+
+      pendingTokens.clear();
+    }
+
+    if (currentAcceptThread == null) return;
+
+    try {
+      currentAcceptThread.join(TERMINATE_TIMEOUT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (currentAcceptThread.isAlive())
+      LOG.warn("timeout while waiting for termination of " + currentAcceptThread.getName());
+  }
+
+  /**
+   * Returns the port the service is currently accepting connections on.
+   *
+   * @return the local port or <code>-1</code> if no connections are currently accepted
+   */
+  public synchronized int getLocalPort() {
+    final List<InetSocketAddress> addresses = getLocalAddresses();
+
+    return addresses.isEmpty() ? -1 : addresses.get(0).getPort();
+  }
+
+  /**
+   * Returns the addresses the service is currently accepting connections on.
+   *
+   * @return the local addresses, empty if no connections are currently accepted
+   */
+  synchronized List<InetSocketAddress> getLocalAddresses() {
+    final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+    for (final ServerSocketChannel serverChannel : serverChannels) {
+      if (!serverChannel.isOpen()) continue;
+
+      addresses.add(
+          new InetSocketAddress(
+              serverChannel.socket().getInetAddress(), serverChannel.socket().getLocalPort()));
+    }
+
+    return addresses;
+  }
+
+  private void startAcceptor() {
+    assert Thread.holdsLock(this);
+
+    try {
+      acceptSelector = Selector.open();
+    } catch (IOException e) {
+      LOG.error("failed to open selector, incoming connections are disabled", e);
+      acceptSelector = null;
+      return;
+    }
+
+    int port = PORT;
+
+    for (final InetAddress address : getBindAddresses()) {
+      ServerSocketChannel serverChannel = null;
+
+      try {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(address, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+      } catch (IOException e) {
+        LOG.warn("failed to open local port " + port + " on " + address, e);
+        closeQuietly(serverChannel);
+        continue;
+      }
+
+      serverChannels.add(serverChannel);
+
+      // use the same port on all addresses if possible
+      if (port == 0) port = serverChannel.socket().getLocalPort();
+    }
+
+    if (serverChannels.isEmpty()) {
+      LOG.error("failed to open local port " + PORT + ", incoming connections are disabled");
+
+      try {
+        acceptSelector.close();
+      } catch (IOException ignore) {
+        // NOP
+      }
+
+      acceptSelector = null;
+      return;
+    }
+
+    LOG.debug("accepting TCP connections on " + getLocalAddresses());
+
+    final Selector selector = acceptSelector;
+    final ExecutorService executor = handshakeExecutor;
+
+    acceptThread =
+        ThreadUtils.runSafeAsync(
+            "TCP-Acceptor",
+            LOG,
+            new Runnable() {
+              @Override
+              public void run() {
+                acceptConnections(selector, executor);
+              }
+            });
+  }
+
+  private void acceptConnections(final Selector selector, final ExecutorService executor) {
+
+    try {
+      while (selector.isOpen()) {
+        selector.select();
+
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+
+          if (!key.isValid() || !key.isAcceptable()) continue;
+
+          final SocketChannel socketChannel = ((ServerSocketChannel) key.channel()).accept();
+
+          if (socketChannel == null) continue;
+
+          LOG.debug("accepted TCP connection from " + socketChannel.socket().getInetAddress());
+
+          try {
+            executor.execute(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    handleIncomingConnection(socketChannel);
+                  }
+                });
+          } catch (RejectedExecutionException e) {
+            // executor is already shutdown or too many handshakes are pending
+            if (!executor.isShutdown())
+              LOG.warn(
+                  "dropped TCP connection from "
+                      + socketChannel.socket().getInetAddress()
+                      + ", too many pending handshakes");
+
+            closeQuietly(socketChannel);
+          }
+        }
+      }
+    } catch (ClosedSelectorException e) {
+      // uninitialize() was called
+    } catch (IOException e) {
+      if (selector.isOpen()) LOG.error("failed to accept TCP connections", e);
+    }
+
+    LOG.debug("stopped accepting TCP connections");
+  }
+
+  private void handleIncomingConnection(final SocketChannel channel) {
+
+    final Socket socket = channel.socket();
+
+    final IByteStreamConnectionListener currentConnectionListener = connectionListener;
+    final JID currentLocalAddress = localAddress;
+
+    final JID remoteAddress;
+    final String connectionID;
+
+    try {
+      configureSocket(socket);
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+      final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+      if (in.readInt() != HANDSHAKE_MAGIC)
+        throw new ProtocolException("connection does not belong to a Saros TCP transport");
+
+      final int version = in.readUnsignedByte();
+
+      if (version != HANDSHAKE_VERSION)
+        throw new ProtocolException("unsupported handshake version: " + version);
+
+      remoteAddress = new JID(in.readUTF());
+      final JID targetAddress = new JID(in.readUTF());
+      connectionID = in.readUTF();
+      final String token = in.readUTF();
+
+      final boolean accepted =
+          currentConnectionListener != null
+              && currentLocalAddress != null
+              && currentLocalAddress.strictlyEquals(targetAddress)
+              && !connectionID.isEmpty()
+              && consumeToken(token, remoteAddress);
+
+      out.writeInt(HANDSHAKE_MAGIC);
+      out.writeByte(accepted ? HANDSHAKE_ACCEPTED : HANDSHAKE_REJECTED);
+      out.flush();
+
+      if (!accepted) {
+        LOG.warn(
+            "rejected TCP connection from "
+                + socket.getInetAddress()
+                + " claiming to be "
+                + remoteAddress
+                + ", token or address is invalid");
+        closeQuietly(channel);
+        return;
+      }
+
+    } catch (IOException e) {
+      LOG.warn("TCP handshake with " + socket.getInetAddress() + " failed: " + e.getMessage());
+      closeQuietly(channel);
+      return;
+    }
+
+    final IByteStreamConnection connection;
+
+    try {
+      connection =
+          new BinaryChannelConnection(
+              currentLocalAddress,
+              remoteAddress,
+              connectionID,
+              new TCPByteStream(socket),
+              StreamMode.TCP,
+              currentConnectionListener);
+    } catch (IOException e) {
+      LOG.error("failed to initialize connection for TCP stream", e);
+      closeQuietly(channel);
+      return;
+    }
+
+    currentConnectionListener.connectionChanged(connectionID, connection, true);
+  }
+
+  private void handleAddressRequest(final Packet packet) {
+
+    final TCPAddressExchangeExtension request =
+        TCPAddressExchangeExtension.PROVIDER.getPayload(packet);
+
+    if (request == null || packet.getFrom() == null) {
+      LOG.warn("cannot reply to address request, packet is malformed");
+      return;
+    }
+
+    final Connection currentConnection = connection;
+
+    if (currentConnection == null) return;
+
+    final JID from = new JID(packet.getFrom());
+
+    final TCPAddressExchangeExtension response =
+        new TCPAddressExchangeExtension(request.getExchangeID());
+
+    final List<InetSocketAddress> localAddresses = getLocalAddresses();
+
+    // the empty answer lets the requester fall back to another stream service immediately
+    if (!isContactOrParticipant(currentConnection, from)) {
+      LOG.warn("denied address request of " + from + ", who is neither contact nor participant");
+    } else if (!localAddresses.isEmpty()) {
+      for (final InetSocketAddress address : localAddresses)
+        response.addAddress(address.getAddress().getHostAddress(), address.getPort());
+
+      response.setToken(createToken(from));
+    }
+
+    final IQ reply = TCPAddressExchangeExtension.PROVIDER.createIQ(response);
+    reply.setType(IQ.Type.RESULT);
+    reply.setPacketID(packet.getPacketID());
+    reply.setTo(packet.getFrom());
+
+    try {
+      currentConnection.sendPacket(reply);
+    } catch (RuntimeException e) {
+      LOG.error("could not send address response to " + from, e);
+      return;
+    }
+
+    LOG.debug("sent address response to " + from + ": " + response.getAddresses());
+  }
+
+  /**
+   * Returns whether the given user is allowed to learn the local addresses, i.e whether the user is
+   * a contact of the local user or a participant of the current session.
+   */
+  boolean isContactOrParticipant(final Connection connection, final JID jid) {
+    final Roster roster = connection.getRoster();
+
+    final RosterEntry entry = roster == null ? null : roster.getEntry(jid.getBase());
+
+    // the local user must have granted the subscription, a pending request is not sufficient
+    if (entry != null
+        && (entry.getType() == RosterPacket.ItemType.both
+            || entry.getType() == RosterPacket.ItemType.from)) return true;
+
+    if (context == null) return false;
+
+    final ISarosSessionManager sessionManager = context.getComponent(ISarosSessionManager.class);
+
+    final ISarosSession session = sessionManager == null ? null : sessionManager.getSession();
+
+    return session != null && session.getUser(jid) != null;
+  }
+
+  /**
+   * Returns the local addresses to accept connections on. If the local Socks5 proxy is enabled its
+   * addresses, which are either configured by the user or detected at login, are used as far as
+   * they belong to a local interface, i.e public addresses discovered by STUN or UPnP are skipped.
+   */
+  private static List<InetAddress> getBindAddresses() {
+    final List<InetAddress> addresses = new ArrayList<InetAddress>();
+
+    if (SmackConfiguration.isLocalSocks5ProxyEnabled()) {
+      for (final String host : Socks5Proxy.getSocks5Proxy().getLocalAddresses()) {
+        try {
+          final InetAddress address = InetAddress.getByName(host);
+
+          if (address instanceof Inet6Address && !INCLUDE_IPV6_ADDRESSES) continue;
+
+          if (NetworkInterface.getByInetAddress(address) != null && !addresses.contains(address))
+            addresses.add(address);
+        } catch (IOException e) {
+          LOG.debug("ignoring Socks5 proxy address " + host + ": " + e.getMessage());
+        }
+      }
+    }
+
+    if (addresses.isEmpty())
+      addresses.addAll(NetworkingUtils.getAllNonLoopbackLocalIPAddresses(INCLUDE_IPV6_ADDRESSES));
+
+    if (addresses.isEmpty()) addresses.add(InetAddress.getLoopbackAddress());
+
+    return addresses;
+  }
+
+  private TCPAddressExchangeExtension queryRemoteAddresses(
+      final Connection connection, final JID remoteAddress) throws IOException {
+
+    final TCPAddressExchangeExtension request =
+        new TCPAddressExchangeExtension(String.valueOf(ID_GENERATOR.nextInt()));
+
+    final IQ iq = TCPAddressExchangeExtension.PROVIDER.createIQ(request);
+    iq.setType(IQ.Type.GET);
+    iq.setTo(remoteAddress.toString());
+
+    final PacketCollector collector =
+        connection.createPacketCollector(new PacketIDFilter(iq.getPacketID()));
+
+    final Packet reply;
+
+    try {
+      connection.sendPacket(iq);
+      reply = collector.nextResult(ADDRESS_EXCHANGE_TIMEOUT);
+    } catch (RuntimeException e) {
+      throw new IOException("failed to query addresses of " + remoteAddress, e);
+    } finally {
+      collector.cancel();
+    }
+
+    if (reply == null)
+      throw new IOException(
+          remoteAddress
+              + " did not announce its addresses within "
+              + ADDRESS_EXCHANGE_TIMEOUT
+              + " ms");
+
+    if (reply instanceof IQ && ((IQ) reply).getType() == IQ.Type.ERROR)
+      throw new IOException(
+          remoteAddress + " does not support direct TCP connections: " + reply.getError());
+
+    final TCPAddressExchangeExtension response =
+        TCPAddressExchangeExtension.PROVIDER.getPayload(reply);
+
+    if (response == null || !request.getExchangeID().equals(response.getExchangeID()))
+      throw new IOException("received malformed address response from " + remoteAddress);
+
+    return response;
+  }
+
+  /**
+   * Tries to connect to all given addresses in parallel and returns the first connection that could
+   * be established. All other pending connection attempts are aborted.
+   *
+   * @return a connected socket channel in blocking mode
+   */
+  static SocketChannel connect(final List<InetSocketAddress> addresses)
+      throws IOException, InterruptedException {
+
+    final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+    SocketChannel established = null;
+    IOException lastException = null;
+
+    final Selector selector = Selector.open();
+
+    try {
+      for (final InetSocketAddress address : addresses) {
+        try {
+          final SocketChannel channel = SocketChannel.open();
+          channels.add(channel);
+          channel.configureBlocking(false);
+
+          if (channel.connect(address)) {
+            established = channel;
+            break;
+          }
+
+          channel.register(selector, SelectionKey.OP_CONNECT, address);
+        } catch (IOException e) {
+          LOG.debug("failed to connect to " + address + ": " + e.getMessage());
+          lastException = e;
+        }
+      }
+
+      final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+
+      while (established == null && !selector.keys().isEmpty()) {
+
+        final long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) break;
+
+        selector.select(remaining);
+
+        if (Thread.interrupted())
+          throw new InterruptedIOException("interrupted while connecting to " + addresses);
+
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+        while (it.hasNext() && established == null) {
+          final SelectionKey key = it.next();
+          it.remove();
+
+          final SocketChannel channel = (SocketChannel) key.channel();
+
+          try {
+            if (!channel.finishConnect()) continue;
+
+            established = channel;
+          } catch (IOException e) {
+            LOG.debug("failed to connect to " + key.attachment() + ": " + e.getMessage());
+            lastException = e;
+            closeQuietly(channel);
+          } finally {
+            key.cancel();
+          }
+        }
+      }
+    } finally {
+      for (final SocketChannel channel : channels) {
+        if (channel != established) closeQuietly(channel);
+      }
+
+      // this also deregisters the established channel
+      selector.close();
+    }
+
+    if (established == null) {
+      final String message =
+          "could not connect to any of " + addresses + " within " + CONNECT_TIMEOUT + " ms";
+
+      if (lastException != null) throw new IOException(message, lastException);
+
+      throw new IOException(message);
+    }
+
+    try {
+      established.configureBlocking(true);
+    } catch (IOException e) {
+      closeQuietly(established);
+      throw e;
+    }
+
+    LOG.debug("connected to " + established.socket().getRemoteSocketAddress());
+
+    return established;
+  }
+
+  static void performConnectHandshake(
+      final Socket socket,
+      final JID localAddress,
+      final JID remoteAddress,
+      final String connectionID,
+      final String token)
+      throws IOException {
+
+    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    final DataOutputStream header = new DataOutputStream(buffer);
+
+    header.writeInt(HANDSHAKE_MAGIC);
+    header.writeByte(HANDSHAKE_VERSION);
+    header.writeUTF(localAddress.toString());
+    header.writeUTF(remoteAddress.toString());
+    header.writeUTF(connectionID);
+    header.writeUTF(token);
+    header.flush();
+
+    socket.getOutputStream().write(buffer.toByteArray());
+    socket.getOutputStream().flush();
+
+    final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+    if (in.readInt() != HANDSHAKE_MAGIC)
+      throw new ProtocolException(remoteAddress + " replied with an invalid handshake");
+
+    if (in.readUnsignedByte() != HANDSHAKE_ACCEPTED)
+      throw new IOException(remoteAddress + " rejected the TCP connection");
+
+    socket.setSoTimeout(0);
+  }
+
+  private String createToken(final JID owner) {
+    return createToken(owner, TOKEN_TIMEOUT);
+  }
+
+  /**
+   * Creates a one time token that allows the given owner to establish one connection within the
+   * given timeout.
+   */
+  String createToken(final JID owner, final long timeout) {
+    final long currentTime = System.currentTimeMillis();
+
+    // remove tokens that were never used
+    final Iterator<Token> it = pendingTokens.values().iterator();
+
+    while (it.hasNext()) if (it.next().expirationTime < currentTime) it.remove();
+
+    final String token =
+        Long.toHexString(TOKEN_GENERATOR.nextLong()) + Long.toHexString(TOKEN_GENERATOR.nextLong());
+
+    pendingTokens.put(token, new Token(owner, currentTime + timeout));
+
+    return token;
+  }
+
+  boolean consumeToken(final String token, final JID owner) {
+    final Token pendingToken = pendingTokens.remove(token);
+
+    return pendingToken != null
+        && pendingToken.expirationTime >= System.currentTimeMillis()
+        && pendingToken.owner.strictlyEquals(owner);
+  }
+
+  static List<InetSocketAddress> parseAddresses(final List<String> addresses) {
+    final List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+
+    for (final String address : addresses) {
+      final int idx = address.lastIndexOf('/');
+
+      if (idx <= 0 || idx == address.length() - 1) {
+        LOG.warn("ignoring malformed address: " + address);
+        continue;
+      }
+
+      try {
+        final int port = Integer.parseInt(address.substring(idx + 1));
+        result.add(new InetSocketAddress(address.substring(0, idx), port));
+      } catch (IllegalArgumentException e) {
+        LOG.warn("ignoring malformed address: " + address);
+      }
+    }
+
+    return result;
+  }
+
+  private static ExecutorService createHandshakeExecutor() {
+    final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            MAX_CONCURRENT_HANDSHAKES,
+            MAX_CONCURRENT_HANDSHAKES,
+            60L,
+            TimeUnit.SECONDS,
+            MAX_PENDING_HANDSHAKES > 0
+                ? new LinkedBlockingQueue<Runnable>(MAX_PENDING_HANDSHAKES)
+                : new SynchronousQueue<Runnable>(),
+            new NamedThreadFactory("TCP-Handshake-"));
+
+    executor.allowCoreThreadTimeOut(true);
+
+    return executor;
+  }
+
+  private static void configureSocket(final Socket socket) {
+    try {
+      socket.setTcpNoDelay(TCP_NODELAY);
+    } catch (IOException e) {
+      LOG.warn("could not modify TCP_NODELAY socket option", e);
+    }
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    if (closeable == null) return;
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // NOP
+    }
   }
 
   @Override
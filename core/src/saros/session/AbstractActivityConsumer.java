@@ -1,5 +1,11 @@
 package saros.session;
 
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import saros.activities.IActivity;
 import saros.activities.IActivityReceiver;
 import saros.activities.TextSelectionActivity;
@@ -52,9 +58,17 @@ import saros.activities.TextSelectionActivity;
  *     }
  * };
  * </pre>
+ *
+ * The {@linkplain #getActivityTypes() activity types} of a consumer are determined by the {@code
+ * receive()} methods it overrides, so the session does not pass any other activities to it. A
+ * consumer that overrides {@link #exec(IActivity) exec()} receives all activities.
  */
 public abstract class AbstractActivityConsumer implements IActivityReceiver, IActivityConsumer {
 
+  /** activity types by consumer class */
+  private static final Map<Class<?>, Set<Class<? extends IActivity>>> ACTIVITY_TYPES =
+      new ConcurrentHashMap<Class<?>, Set<Class<? extends IActivity>>>();
+
   /**
    * @JTourBusStop 11, Activity sending, The second dispatch:
    *
@@ -78,4 +92,44 @@ public abstract class AbstractActivityConsumer implements IActivityReceiver, IAc
   public void exec(IActivity activity) {
     activity.dispatch(this);
   }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation returns the parameter types of the {@code receive()} methods that are
+   * overridden by the subclasses or {@link IActivity} if one of them overrides {@link
+   * #exec(IActivity) exec()}.
+   */
+  @Override
+  public Set<Class<? extends IActivity>> getActivityTypes() {
+    return ACTIVITY_TYPES.computeIfAbsent(
+        getClass(), AbstractActivityConsumer::findOverriddenActivityTypes);
+  }
+
+  private static Set<Class<? extends IActivity>> findOverriddenActivityTypes(Class<?> clazz) {
+    final Set<Class<? extends IActivity>> types = new HashSet<Class<? extends IActivity>>();
+
+    for (Class<?> current = clazz;
+        current != AbstractActivityConsumer.class;
+        current = current.getSuperclass()) {
+
+      for (final Method method : current.getDeclaredMethods()) {
+        if (method.isBridge() || method.isSynthetic()) continue;
+
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+
+        if (parameterTypes.length != 1 || !IActivity.class.isAssignableFrom(parameterTypes[0]))
+          continue;
+
+        // the consumer may handle activities before they are dispatched
+        if (method.getName().equals("exec"))
+          return Collections.<Class<? extends IActivity>>singleton(IActivity.class);
+
+        if (method.getName().equals("receive"))
+          types.add(parameterTypes[0].asSubclass(IActivity.class));
+      }
+    }
+
+    return Collections.unmodifiableSet(types);
+  }
 }
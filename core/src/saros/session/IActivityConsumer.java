@@ -1,5 +1,7 @@
 package saros.session;
 
+import java.util.Collections;
+import java.util.Set;
 import saros.activities.IActivity;
 
 /**
@@ -62,4 +64,18 @@ public interface IActivityConsumer {
    * <p>Implementations may expect that this method is called from the UI thread (EDT).
    */
   public void exec(IActivity activity);
+
+  /**
+   * Returns the types of the activities this consumer is interested in. The session only calls
+   * {@link #exec(IActivity)} for activities that are an instance of at least one of these types, so
+   * consumers that ignore an activity type do not slow down its execution.
+   *
+   * <p>The types must not change while the consumer is registered. The default implementation
+   * returns {@link IActivity}, i.e. the consumer receives all activities.
+   *
+   * @return the activity types this consumer handles
+   */
+  public default Set<Class<? extends IActivity>> getActivityTypes() {
+    return Collections.<Class<? extends IActivity>>singleton(IActivity.class);
+  }
 }
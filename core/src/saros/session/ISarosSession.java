@@ -95,6 +95,24 @@ public interface ISarosSession {
    */
   public boolean isHost();
 
+  /**
+   * Returns the smoothed round trip time to the given user. The round trip time is measured by the
+   * session timeout handling and is therefore only available on the host.
+   *
+   * @param user the remote user
+   * @return the round trip time in milliseconds or <code>-1</code> if it is not known
+   */
+  public long getRoundTripTime(User user);
+
+  /**
+   * Returns the variation (jitter) of the round trip time to the given user. Like {@link
+   * #getRoundTripTime(User)} this is only available on the host.
+   *
+   * @param user the remote user
+   * @return the variation in milliseconds or <code>-1</code> if it is not known
+   */
+  public long getRoundTripTimeVariation(User user);
+
   /**
    * Adds the user to this session. If the session currently serves as host all other session users
    * will be noticed about the new user.
@@ -14,10 +14,12 @@ import saros.misc.xstream.UserConverter;
 import saros.repackaged.picocontainer.MutablePicoContainer;
 import saros.session.internal.ActivityHandler;
 import saros.session.internal.ActivitySequencer;
+import saros.session.internal.BinaryActivityCodec;
 import saros.session.internal.ChangeColorManager;
 import saros.session.internal.DeletionAcknowledgmentDispatcher;
 import saros.session.internal.LeaveAndKickHandler;
 import saros.session.internal.PermissionManager;
+import saros.session.internal.RoundTripTimeTracker;
 import saros.session.internal.UserInformationHandler;
 import saros.session.internal.timeout.ClientSessionTimeoutHandler;
 import saros.session.internal.timeout.ServerSessionTimeoutHandler;
@@ -42,6 +44,7 @@ public class SarosCoreSessionContextFactory implements ISarosSessionContextFacto
     container.addComponent(HeartbeatDispatcher.class);
 
     // Session Timeout Handling
+    container.addComponent(RoundTripTimeTracker.class);
     if (session.isHost()) container.addComponent(ServerSessionTimeoutHandler.class);
     else container.addComponent(ClientSessionTimeoutHandler.class);
 
@@ -55,6 +58,9 @@ public class SarosCoreSessionContextFactory implements ISarosSessionContextFacto
     container.addComponent(SPathConverter.class);
     container.addComponent(UserConverter.class);
 
+    // Binary representation of activities
+    container.addComponent(BinaryActivityCodec.class);
+
     // Other
     container.addComponent(ActivityHandler.class);
     container.addComponent(ActivitySequencer.class);
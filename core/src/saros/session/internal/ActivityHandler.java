@@ -3,7 +3,10 @@ package saros.session.internal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.log4j.Logger;
 import saros.activities.ActivityOptimizer;
 import saros.activities.ChecksumActivity;
@@ -12,6 +15,7 @@ import saros.activities.IResourceActivity;
 import saros.activities.ITargetedActivity;
 import saros.activities.JupiterActivity;
 import saros.activities.QueueItem;
+import saros.activities.TextEditActivity;
 import saros.concurrent.management.ConcurrentDocumentClient;
 import saros.concurrent.management.ConcurrentDocumentServer;
 import saros.concurrent.management.TransformationResult;
@@ -39,9 +43,14 @@ public final class ActivityHandler implements Startable {
   /** join timeout when stopping this component */
   private static final long TIMEOUT = 10000;
 
-  private static final int DISPATCH_MODE_SYNC = 0;
+  /** the dispatch thread waits until the UI thread has executed the activities */
+  static final int DISPATCH_MODE_SYNC = 0;
 
-  private static final int DISPATCH_MODE_ASYNC = 1; // Experimental
+  /**
+   * the activities are queued for the UI thread which executes everything that is queued at once,
+   * nobody waits for the UI thread
+   */
+  static final int DISPATCH_MODE_ASYNC = 1;
 
   private static final int DISPATCH_MODE;
 
@@ -57,6 +66,54 @@ public final class ActivityHandler implements Startable {
   private final LinkedBlockingQueue<List<IActivity>> dispatchQueue =
       new LinkedBlockingQueue<List<IActivity>>();
 
+  /** activities waiting for their execution by the UI thread in async dispatch mode */
+  private final Queue<List<IActivity>> executionQueue =
+      new ConcurrentLinkedQueue<List<IActivity>>();
+
+  /** whether a runnable that executes the queued activities is already scheduled */
+  private final AtomicBoolean isExecutionScheduled = new AtomicBoolean();
+
+  /** whether the UI thread is currently executing queued activities, only used by the UI thread */
+  private boolean isExecuting;
+
+  private final Runnable executionRunnable =
+      ThreadUtils.wrapSafe(
+          LOG,
+          new Runnable() {
+            @Override
+            public void run() {
+              executeQueuedActivities();
+            }
+          });
+
+  /**
+   * the local text edit that is not transformed and sent yet, it is only accessed by the UI thread
+   */
+  private TextEditActivity pendingLocalEdit;
+
+  /**
+   * whether a runnable that sends the pending local text edit is queued for the UI thread, only
+   * used by the UI thread
+   */
+  private boolean isFlushScheduled;
+
+  /** whether local text edits are merged, i.e. this component is started */
+  private volatile boolean isCoalescing;
+
+  private final Runnable flushRunnable =
+      ThreadUtils.wrapSafe(
+          LOG,
+          new Runnable() {
+            @Override
+            public void run() {
+              isFlushScheduled = false;
+
+              if (isCoalescing) flushLocalEdit();
+            }
+          });
+
+  private final int dispatchMode;
+
   private final IActivityHandlerCallback callback;
 
   private final ISarosSession session;
@@ -130,6 +187,17 @@ public final class ActivityHandler implements Startable {
       ConcurrentDocumentServer documentServer,
       ConcurrentDocumentClient documentClient,
       UISynchronizer synchronizer) {
+    this(session, callback, documentServer, documentClient, synchronizer, DISPATCH_MODE);
+  }
+
+  ActivityHandler(
+      ISarosSession session,
+      IActivityHandlerCallback callback,
+      ConcurrentDocumentServer documentServer,
+      ConcurrentDocumentClient documentClient,
+      UISynchronizer synchronizer,
+      int dispatchMode) {
+    this.dispatchMode = dispatchMode;
     this.session = session;
     this.callback = callback;
     this.documentServer = documentServer;
@@ -171,7 +239,7 @@ public final class ActivityHandler implements Startable {
      */
     if (activities.isEmpty()) return;
 
-    if (DISPATCH_MODE == DISPATCH_MODE_ASYNC) dispatchAndExecuteActivities(activities);
+    if (dispatchMode == DISPATCH_MODE_ASYNC) queueActivities(activities);
     else dispatchQueue.add(activities);
   }
 
@@ -236,6 +304,12 @@ public final class ActivityHandler implements Startable {
      * located at the Host, this is why the only recipient of the result is the session's host.
      * Please note: The Host itself has both client and server part, so even his activities will be
      * "sent" to himself first.
+     *
+     * <p>A local text edit is sent at once. Only the edits that follow it before the UI thread
+     * processed its queued runnables, e.g. several edits of one action or key strokes that piled up
+     * while the UI thread was busy, are held back and adjacent edits of the same file are merged
+     * before they are transformed, so such a burst costs only one transformation and one
+     * JupiterActivity.
      */
     synchronizer.syncExec(
         ThreadUtils.wrapSafe(
@@ -246,24 +320,99 @@ public final class ActivityHandler implements Startable {
               public void run() {
                 for (IActivity activity : activities) {
 
-                  IActivity transformationResult = documentClient.transformToJupiter(activity);
+                  if (activity instanceof TextEditActivity && coalesce((TextEditActivity) activity))
+                    continue;
 
-                  callback.send(Collections.singletonList(session.getHost()), transformationResult);
+                  flushLocalEdit();
+                  transformAndSend(activity);
                 }
               }
             }));
   }
 
+  /**
+   * Merges the local text edit with the pending one or makes it the pending one. Must be called by
+   * the UI thread.
+   *
+   * @return <code>true</code> if the edit is pending now, <code>false</code> if it must be sent
+   *     immediately because no edit was sent in the current run of the UI thread or this component
+   *     is not started
+   */
+  private boolean coalesce(final TextEditActivity edit) {
+    if (!isCoalescing) return false;
+
+    if (!isFlushScheduled) {
+      /*
+       * nothing is waiting, so the edit is sent without delay and the
+       * edits that follow until the UI thread runs the flush are merged
+       */
+      isFlushScheduled = true;
+      synchronizer.asyncExec(flushRunnable);
+      return false;
+    }
+
+    if (pendingLocalEdit != null) {
+      final TextEditActivity mergedEdit = ActivityOptimizer.merge(pendingLocalEdit, edit);
+
+      if (mergedEdit != null) {
+        pendingLocalEdit = mergedEdit;
+        return true;
+      }
+
+      flushLocalEdit();
+    }
+
+    pendingLocalEdit = edit;
+
+    return true;
+  }
+
+  /**
+   * Transforms and sends the pending local text edit. This must happen before any other local
+   * activity is sent and before any remote activity is transformed, otherwise the Jupiter algorithm
+   * would not know about a change of the document that already took place. Must be called by the UI
+   * thread.
+   */
+  private void flushLocalEdit() {
+    final TextEditActivity edit = pendingLocalEdit;
+
+    if (edit == null) return;
+
+    pendingLocalEdit = null;
+    transformAndSend(edit);
+  }
+
+  private void transformAndSend(final IActivity activity) {
+    IActivity transformationResult = documentClient.transformToJupiter(activity);
+
+    callback.send(Collections.singletonList(session.getHost()), transformationResult);
+  }
+
   @Override
   public void start() {
-    if (DISPATCH_MODE == DISPATCH_MODE_ASYNC) return;
+    isCoalescing = true;
+
+    if (dispatchMode == DISPATCH_MODE_ASYNC) return;
 
     dispatchThread = ThreadUtils.runSafeAsync("activity-dispatcher", LOG, dispatchThreadRunnable);
   }
 
   @Override
   public void stop() {
-    if (DISPATCH_MODE == DISPATCH_MODE_ASYNC) return;
+    isCoalescing = false;
+
+    // the edit already took place in the document, it must not get lost
+    synchronizer.syncExec(
+        ThreadUtils.wrapSafe(
+            LOG,
+            new Runnable() {
+              @Override
+              public void run() {
+                flushLocalEdit();
+              }
+            }));
+
+    if (dispatchMode == DISPATCH_MODE_ASYNC) return;
 
     dispatchQueue.add(POISON_PILL);
 
@@ -314,55 +463,69 @@ public final class ActivityHandler implements Startable {
    *
    * @param activities the activities to execute
    */
-  /*
-   * Note: transformation and executing has to be performed together in the
-   * SWT thread. Else, it would be possible that local activities are executed
-   * between transformation and application of remote operations. In other
-   * words, the transformation would be applied to an out-dated state.
-   */
   private void dispatchAndExecuteActivities(final List<IActivity> activities) {
 
-    final List<IActivity> optimizedActivities = ActivityOptimizer.optimize(activities);
+    final List<IActivity> optimizedActivities = optimize(activities);
 
-    final Runnable transformingRunnable =
-        new Runnable() {
-          @Override
-          public void run() {
-
-            for (IActivity activity : optimizedActivities) {
-
-              User source = activity.getSource();
-
-              /*
-               * Ensure that we do not execute activities after all
-               * listeners were notified (See SarosSession#removeUser). It
-               * is still possible that a user may left during activity
-               * execution but this is likely no to produce any errors.
-               *
-               * TODO: as the notification for users who left the session
-               * is send in parallel with the activities there will be
-               * race conditions were one user may execute a given
-               * activity but another user will not which may lead to
-               * unwanted inconsistencies if that activity was a resource
-               * activity.
-               */
-              if (!source.isInSession()) {
-                LOG.warn("dropping activity for user that is no longer in session: " + activity);
-                continue;
+    synchronizer.syncExec(
+        ThreadUtils.wrapSafe(
+            LOG,
+            new Runnable() {
+              @Override
+              public void run() {
+                transformAndExecute(optimizedActivities);
               }
+            }));
+  }
+
+  /**
+   * Queues the activities for the execution by the UI thread without waiting for it. The UI thread
+   * executes all activities that are queued at that time together. If the execution of an activity
+   * opens a modal context, which runs the event loop of the UI thread, the activities that arrive
+   * in the meantime are not executed before the current execution has finished, see {@link
+   * #dispatchAndExecuteActivities}.
+   *
+   * @param activities the activities to execute
+   */
+  private void queueActivities(final List<IActivity> activities) {
+    executionQueue.add(activities);
 
-              List<IActivity> transformedActivities = documentClient.transformFromJupiter(activity);
+    if (isExecutionScheduled.compareAndSet(false, true)) synchronizer.asyncExec(executionRunnable);
+  }
 
-              for (IActivity transformedActivity : transformedActivities) {
-                try {
-                  callback.execute(transformedActivity);
-                } catch (Exception e) {
-                  LOG.error("failed to execute activity: " + activity, e);
-                }
-              }
-            }
-          }
-        };
+  private void executeQueuedActivities() {
+    // we are called from a modal context of the current execution
+    if (isExecuting) return;
+
+    isExecuting = true;
+
+    try {
+      while (true) {
+        // activities that are queued from now on need another run
+        isExecutionScheduled.set(false);
+
+        final List<IActivity> activities = new ArrayList<IActivity>();
+
+        List<IActivity> queuedActivities;
+
+        while ((queuedActivities = executionQueue.poll()) != null)
+          activities.addAll(queuedActivities);
+
+        if (activities.isEmpty()) return;
+
+        try {
+          transformAndExecute(optimize(activities));
+        } catch (RuntimeException e) {
+          LOG.error("failed to execute activities: " + activities, e);
+        }
+      }
+    } finally {
+      isExecuting = false;
+    }
+  }
+
+  private List<IActivity> optimize(final List<IActivity> activities) {
+    final List<IActivity> optimizedActivities = ActivityOptimizer.optimize(activities);
 
     if (LOG.isTraceEnabled()) {
 
@@ -374,14 +537,91 @@ public final class ActivityHandler implements Startable {
           "dispatching [#"
               + optimizedActivities.size()
               + "] optimized activities [mode = "
-              + DISPATCH_MODE
+              + dispatchMode
               + "] : "
               + optimizedActivities);
     }
 
-    if (DISPATCH_MODE == DISPATCH_MODE_SYNC)
-      synchronizer.syncExec(ThreadUtils.wrapSafe(LOG, transformingRunnable));
-    else synchronizer.asyncExec(ThreadUtils.wrapSafe(LOG, transformingRunnable));
+    return optimizedActivities;
+  }
+
+  /*
+   * Note: transformation and executing has to be performed together in the
+   * SWT thread. Else, it would be possible that local activities are executed
+   * between transformation and application of remote operations. In other
+   * words, the transformation would be applied to an out-dated state.
+   */
+  private void transformAndExecute(final List<IActivity> activities) {
+
+    flushLocalEdit();
+
+    /*
+     * the transformed text edits are no longer subject to the Jupiter
+     * bookkeeping, so adjacent edits of the same user are executed as
+     * one edit
+     */
+    TextEditActivity pendingEdit = null;
+
+    for (IActivity activity : activities) {
+
+      User source = activity.getSource();
+
+      /*
+       * Ensure that we do not execute activities after all
+       * listeners were notified (See SarosSession#removeUser). It
+       * is still possible that a user may left during activity
+       * execution but this is likely no to produce any errors.
+       *
+       * TODO: as the notification for users who left the session
+       * is send in parallel with the activities there will be
+       * race conditions were one user may execute a given
+       * activity but another user will not which may lead to
+       * unwanted inconsistencies if that activity was a resource
+       * activity.
+       */
+      if (!source.isInSession()) {
+        LOG.warn("dropping activity for user that is no longer in session: " + activity);
+        continue;
+      }
+
+      List<IActivity> transformedActivities = documentClient.transformFromJupiter(activity);
+
+      for (IActivity transformedActivity : transformedActivities) {
+
+        if (transformedActivity instanceof TextEditActivity) {
+          final TextEditActivity edit = (TextEditActivity) transformedActivity;
+
+          final TextEditActivity mergedEdit =
+              pendingEdit == null ? null : ActivityOptimizer.merge(pendingEdit, edit);
+
+          if (mergedEdit == null) {
+            execute(pendingEdit);
+            pendingEdit = edit;
+          } else {
+            pendingEdit = mergedEdit;
+          }
+
+          continue;
+        }
+
+        execute(pendingEdit);
+        pendingEdit = null;
+
+        execute(transformedActivity);
+      }
+    }
+
+    execute(pendingEdit);
+  }
+
+  private void execute(final IActivity activity) {
+    if (activity == null) return;
+
+    try {
+      callback.execute(activity);
+    } catch (Exception e) {
+      LOG.error("failed to execute activity: " + activity, e);
+    }
   }
 
   /**
@@ -1,9 +1,23 @@
 package saros.session.internal;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import org.apache.log4j.Logger;
 import saros.activities.EditorActivity;
 import saros.activities.EditorActivity.Type;
 import saros.activities.IActivity;
@@ -13,14 +27,41 @@ import saros.activities.SPath;
 import saros.filesystem.IProject;
 import saros.session.User;
 
-/** This class enables the queuing of {@linkplain IActivity activities} for given projects. */
+/**
+ * This class enables the queuing of {@linkplain IActivity activities} for given projects.
+ *
+ * <p>Only the last <code>saros.session.queuer.MAX_ACTIVITIES_IN_MEMORY</code> activities of a
+ * project are kept in memory. Older activities are spilled to a temporary file if a {@linkplain
+ * IActivitySerializer serializer} is available, so queuing during a long project negotiation does
+ * not grow the heap with every activity. The file is only appended to and is read again in chunks
+ * when the queue is flushed.
+ */
 public class ActivityQueuer {
 
+  private static final Logger LOG = Logger.getLogger(ActivityQueuer.class);
+
+  /** maximum number of queued activities per project that are kept in memory */
+  private static final int MAX_ACTIVITIES_IN_MEMORY =
+      Math.max(1, Integer.getInteger("saros.session.queuer.MAX_ACTIVITIES_IN_MEMORY", 1024));
+
   private static class ProjectQueue {
     private final IProject project;
     private final List<IResourceActivity> buffer;
     private int readyToFlush;
 
+    /** the file containing the activities in front of the buffer */
+    private File spillFile;
+
+    private DataOutputStream spillOut;
+
+    private int spilledActivities;
+
+    /** set if the buffer could not be spilled, it then stays in memory */
+    private boolean isSpillingDisabled;
+
+    /** the users the spilled activities refer to by their index */
+    private final List<User> spilledUsers = new ArrayList<User>();
+
     private ProjectQueue(IProject project) {
       this.project = project;
       buffer = new ArrayList<IResourceActivity>();
@@ -28,10 +69,24 @@ public class ActivityQueuer {
     }
   }
 
-  private final List<ProjectQueue> projectQueues;
+  private final Map<IProject, ProjectQueue> projectQueues;
+
+  private final IActivitySerializer serializer;
 
+  /** Creates a queuer that keeps all queued activities in memory. */
   public ActivityQueuer() {
-    projectQueues = new ArrayList<ProjectQueue>();
+    this(null);
+  }
+
+  /**
+   * Creates a queuer that spills queued activities to disk.
+   *
+   * @param serializer the serializer for the spilled activities or <code>null</code> to keep all
+   *     activities in memory
+   */
+  ActivityQueuer(final IActivitySerializer serializer) {
+    this.serializer = serializer;
+    projectQueues = new LinkedHashMap<IProject, ProjectQueue>();
   }
 
   /**
@@ -46,16 +101,45 @@ public class ActivityQueuer {
    * @param activities
    * @return the activities that are not queued
    */
-  public synchronized List<IActivity> process(final List<IActivity> activities) {
+  public List<IActivity> process(final List<IActivity> activities) {
+    final List<IActivity> activitiesToExecute = new ArrayList<IActivity>();
+
+    process(activities, activitiesToExecute::addAll);
+
+    return activitiesToExecute;
+  }
+
+  /**
+   * Processes the incoming activities like {@link #process(List)} but hands the activities that are
+   * not queued to the given consumer. Flushed activities that were spilled to disk are handed over
+   * in several chunks, so they never have to be in memory at once.
+   *
+   * @param activities
+   * @param consumer receives the activities that are not queued in their order
+   * @throws IllegalStateException if spilled activities could not be read back, the projects they
+   *     belong to are no longer consistent. All other activities were handed to the consumer.
+   */
+  public synchronized void process(
+      final List<IActivity> activities, final Consumer<List<IActivity>> consumer) {
 
-    if (projectQueues.isEmpty()) return activities;
+    if (projectQueues.isEmpty()) {
+      consumer.accept(activities);
+      return;
+    }
 
     final List<IActivity> activitiesToExecute = new ArrayList<IActivity>();
+    final List<IProject> inconsistentProjects = new ArrayList<IProject>();
 
-    flushQueues(activitiesToExecute);
+    flushQueues(activitiesToExecute, consumer, inconsistentProjects);
     queueActivities(activitiesToExecute, activities);
 
-    return activitiesToExecute;
+    if (!activitiesToExecute.isEmpty()) consumer.accept(activitiesToExecute);
+
+    if (!inconsistentProjects.isEmpty())
+      throw new IllegalStateException(
+          "lost queued activities of projects "
+              + inconsistentProjects
+              + ", they have to be synchronized again");
   }
 
   /**
@@ -68,16 +152,10 @@ public class ActivityQueuer {
    * @param project
    */
   public synchronized void enableQueuing(final IProject project) {
-    for (final ProjectQueue projectQueue : projectQueues) {
-
-      if (projectQueue.project.equals(project)) {
-
-        projectQueue.readyToFlush++;
-        return;
-      }
-    }
+    final ProjectQueue projectQueue = projectQueues.get(project);
 
-    projectQueues.add(new ProjectQueue(project));
+    if (projectQueue != null) projectQueue.readyToFlush++;
+    else projectQueues.put(project, new ProjectQueue(project));
   }
 
   /**
@@ -95,15 +173,16 @@ public class ActivityQueuer {
    * @param project
    */
   public synchronized void disableQueuing(final IProject project) {
-    for (final ProjectQueue projectQueue : projectQueues) {
+    final ProjectQueue projectQueue = projectQueues.get(project);
 
-      if (projectQueue.project.equals(project)) {
+    if (projectQueue != null && projectQueue.readyToFlush > 0) projectQueue.readyToFlush--;
+  }
 
-        if (projectQueue.readyToFlush > 0) projectQueue.readyToFlush--;
+  /** Discards all queued activities and deletes the files they were spilled to. */
+  public synchronized void clear() {
+    for (final ProjectQueue projectQueue : projectQueues.values()) deleteSpillFile(projectQueue);
 
-        return;
-      }
-    }
+    projectQueues.clear();
   }
 
   private boolean alreadyRememberedEditorActivity(
@@ -141,13 +220,16 @@ public class ActivityQueuer {
         // can't queue activities without path
         if (path != null) {
 
-          // try to reuse the queue as lookup is O(n)
+          // activities of the same project usually come in a row
           if (projectQueue == null || !projectQueue.project.equals(path.getProject())) {
-            projectQueue = getProjectQueue(path.getProject());
+            projectQueue = projectQueues.get(path.getProject());
           }
 
           if (projectQueue != null) {
             projectQueue.buffer.add(resourceActivity);
+
+            if (projectQueue.buffer.size() >= MAX_ACTIVITIES_IN_MEMORY) spill(projectQueue);
+
             continue;
           }
         }
@@ -157,10 +239,13 @@ public class ActivityQueuer {
     }
   }
 
-  private void flushQueues(final List<IActivity> activities) {
-    final List<ProjectQueue> projectQueuesToRemove = new ArrayList<ProjectQueue>();
+  private void flushQueues(
+      final List<IActivity> activities,
+      final Consumer<List<IActivity>> consumer,
+      final List<IProject> inconsistentProjects) {
 
-    for (final ProjectQueue projectQueue : projectQueues) {
+    for (final Iterator<ProjectQueue> it = projectQueues.values().iterator(); it.hasNext(); ) {
+      final ProjectQueue projectQueue = it.next();
 
       if (projectQueue.readyToFlush > 0) continue;
 
@@ -176,46 +261,188 @@ public class ActivityQueuer {
 
       final Map<SPath, List<User>> editorActivities = new HashMap<SPath, List<User>>();
 
-      for (final IResourceActivity resourceActivity : projectQueue.buffer) {
+      if (projectQueue.spilledActivities > 0) {
+        if (!replaySpilledActivities(projectQueue, editorActivities, activities, consumer))
+          inconsistentProjects.add(projectQueue.project);
+      } else {
+        deleteSpillFile(projectQueue);
+      }
 
-        // path cannot be null, see for-loop below
-        final SPath path = resourceActivity.getPath();
-        final User source = resourceActivity.getSource();
+      for (final IResourceActivity resourceActivity : projectQueue.buffer)
+        flushActivity(editorActivities, resourceActivity, activities);
 
-        if (resourceActivity instanceof EditorActivity) {
+      it.remove();
+    }
+  }
 
-          final EditorActivity ea = (EditorActivity) resourceActivity;
+  private void flushActivity(
+      final Map<SPath, List<User>> editorActivities,
+      final IResourceActivity resourceActivity,
+      final List<IActivity> activities) {
 
-          if (!alreadyRememberedEditorActivity(editorActivities, path, source)
-              && ea.getType() != Type.ACTIVATED) {
-            activities.add(new EditorActivity(ea.getSource(), Type.ACTIVATED, path));
-          }
+    // path cannot be null, see queueActivities
+    final SPath path = resourceActivity.getPath();
+    final User source = resourceActivity.getSource();
 
-          rememberEditorActivity(editorActivities, path, source);
-        } else if (resourceActivity instanceof JupiterActivity
-            && !alreadyRememberedEditorActivity(editorActivities, path, source)) {
+    if (resourceActivity instanceof EditorActivity) {
 
-          activities.add(new EditorActivity(resourceActivity.getSource(), Type.ACTIVATED, path));
+      final EditorActivity ea = (EditorActivity) resourceActivity;
 
-          rememberEditorActivity(editorActivities, path, source);
-        }
+      if (!alreadyRememberedEditorActivity(editorActivities, path, source)
+          && ea.getType() != Type.ACTIVATED) {
+        activities.add(new EditorActivity(ea.getSource(), Type.ACTIVATED, path));
+      }
+
+      rememberEditorActivity(editorActivities, path, source);
+    } else if (resourceActivity instanceof JupiterActivity
+        && !alreadyRememberedEditorActivity(editorActivities, path, source)) {
 
-        activities.add(resourceActivity);
+      activities.add(new EditorActivity(resourceActivity.getSource(), Type.ACTIVATED, path));
+
+      rememberEditorActivity(editorActivities, path, source);
+    }
+
+    activities.add(resourceActivity);
+  }
+
+  /**
+   * Appends the buffer of the given queue to its spill file. The buffer stays in memory if it
+   * cannot be written.
+   */
+  private void spill(final ProjectQueue projectQueue) {
+    if (serializer == null || projectQueue.isSpillingDisabled) return;
+
+    final List<byte[]> records = new ArrayList<byte[]>(projectQueue.buffer.size());
+
+    for (final IResourceActivity activity : projectQueue.buffer) {
+      final byte[] record = serializer.serialize(activity, projectQueue.spilledUsers);
+
+      if (record == null) {
+        LOG.debug("cannot spill activity, keeping the queue in memory: " + activity);
+        projectQueue.isSpillingDisabled = true;
+        return;
       }
 
-      projectQueuesToRemove.add(projectQueue);
+      records.add(record);
     }
 
-    for (final ProjectQueue projectQueue : projectQueuesToRemove)
-      projectQueues.remove(projectQueue);
+    try {
+      if (projectQueue.spillOut == null) {
+        // the records contain the edited text, the file is only accessible by its owner on POSIX
+        projectQueue.spillFile = Files.createTempFile("saros_activity_queue_", null).toFile();
+        projectQueue.spillFile.deleteOnExit();
+
+        projectQueue.spillOut =
+            new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(projectQueue.spillFile, true)));
+      }
+
+      for (final byte[] record : records) {
+        projectQueue.spillOut.writeInt(record.length);
+        projectQueue.spillOut.write(record);
+      }
+
+      projectQueue.spillOut.flush();
+    } catch (IOException e) {
+      /*
+       * the file may contain a part of the records now, it must not be
+       * appended to anymore
+       */
+      LOG.error("failed to spill queued activities, keeping the queue in memory", e);
+      projectQueue.isSpillingDisabled = true;
+      return;
+    }
+
+    projectQueue.spilledActivities += records.size();
+    projectQueue.buffer.clear();
   }
 
-  private ProjectQueue getProjectQueue(final IProject project) {
+  /**
+   * Reads the spilled activities of the given queue and hands them to the consumer in chunks of at
+   * most {@link #MAX_ACTIVITIES_IN_MEMORY} activities. The already collected activities are handed
+   * over first to keep the order.
+   *
+   * @return <code>false</code> if not all spilled activities could be reconstructed
+   */
+  private boolean replaySpilledActivities(
+      final ProjectQueue projectQueue,
+      final Map<SPath, List<User>> editorActivities,
+      final List<IActivity> activities,
+      final Consumer<List<IActivity>> consumer) {
+
+    int replayedActivities = 0;
+    int lostActivities = 0;
+
+    try {
+      if (projectQueue.spillOut != null) {
+        projectQueue.spillOut.close();
+        projectQueue.spillOut = null;
+      }
+
+      try (final DataInputStream in =
+          new DataInputStream(
+              new BufferedInputStream(new FileInputStream(projectQueue.spillFile)))) {
 
-    for (final ProjectQueue projectQueue : projectQueues) {
-      if (projectQueue.project.equals(project)) return projectQueue;
+        for (; replayedActivities < projectQueue.spilledActivities; replayedActivities++) {
+          final byte[] record = new byte[in.readInt()];
+          in.readFully(record);
+
+          final IActivity activity;
+
+          try {
+            activity = serializer.deserialize(record, projectQueue.spilledUsers);
+          } catch (IOException e) {
+            LOG.error("spilled activity cannot be reconstructed: " + e.getMessage());
+            lostActivities++;
+            continue;
+          }
+
+          if (!(activity instanceof IResourceActivity)
+              || ((IResourceActivity) activity).getPath() == null) {
+            LOG.error("spilled activity cannot be reconstructed without path: " + activity);
+            lostActivities++;
+            continue;
+          }
+
+          flushActivity(editorActivities, (IResourceActivity) activity, activities);
+
+          if (activities.size() >= MAX_ACTIVITIES_IN_MEMORY) {
+            consumer.accept(new ArrayList<IActivity>(activities));
+            activities.clear();
+          }
+        }
+      }
+    } catch (EOFException e) {
+      LOG.error("spill file of the queued activities is truncated", e);
+    } catch (IOException e) {
+      LOG.error("failed to read the spilled queued activities", e);
+    } finally {
+      deleteSpillFile(projectQueue);
     }
 
-    return null;
+    lostActivities += projectQueue.spilledActivities - replayedActivities;
+
+    if (lostActivities == 0) return true;
+
+    LOG.error("lost " + lostActivities + " queued activities of project " + projectQueue.project);
+
+    return false;
+  }
+
+  private void deleteSpillFile(final ProjectQueue projectQueue) {
+    if (projectQueue.spillOut != null) {
+      try {
+        projectQueue.spillOut.close();
+      } catch (IOException e) {
+        // ignore, the file is deleted anyway
+      }
+
+      projectQueue.spillOut = null;
+    }
+
+    if (projectQueue.spillFile != null && !projectQueue.spillFile.delete())
+      LOG.warn("could not delete spill file " + projectQueue.spillFile);
+
+    projectQueue.spillFile = null;
   }
 }
@@ -20,15 +20,21 @@
 package saros.session.internal;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Packet;
@@ -36,6 +42,7 @@ import org.jivesoftware.smack.packet.PacketExtension;
 import saros.activities.ActivityOptimizer;
 import saros.activities.FileActivity;
 import saros.activities.IActivity;
+import saros.communication.extensions.ActivitiesAcknowledgmentExtension;
 import saros.communication.extensions.ActivitiesExtension;
 import saros.net.DispatchThreadContext;
 import saros.net.IReceiver;
@@ -45,11 +52,28 @@ import saros.repackaged.picocontainer.Startable;
 import saros.session.ISarosSession;
 import saros.session.User;
 import saros.util.ThreadUtils;
+import saros.versioning.VersionManager;
 
 /**
  * The ActivitySequencer is responsible for making sure that transformed {@linkplain IActivity
  * activities} are sent and received in the right order.
  *
+ * <p>Every registered user has its own sender thread with its own outgoing queue, so a slow or
+ * stalled connection to one user does not delay the activities that are sent to the other users.
+ * Activities are enqueued without locking, the sequence numbers of a user are only maintained by
+ * its sender thread. Activities that are created in quick succession are sent together, see {@link
+ * BatchingWindow}.
+ *
+ * <p>The sending is flow controlled: only {@value #DEFAULT_WINDOW_SIZE} (see <code>
+ * saros.session.sequencer.WINDOW_SIZE</code>) activities may be unacknowledged per user, further
+ * activities stay in the outgoing queue of the user until the receiver grants new credits by
+ * acknowledging the activities it has executed. Only users that announced the {@linkplain
+ * VersionManager#ACTIVITY_ACKNOWLEDGMENT_FEATURE corresponding feature} acknowledge activities, the
+ * sending to all other users is not limited. The outgoing queue is bounded by <code>
+ * saros.session.sequencer.MAX_QUEUE_SIZE</code>. If it fills up, stale selection and viewport
+ * activities are coalesced. If this does not help, the {@linkplain OverflowPolicy overflow policy}
+ * is applied.
+ *
  * @author rdjemili
  * @author coezbek
  * @author marrin
@@ -61,107 +85,324 @@ public class ActivitySequencer implements Startable {
   /** join timeout when stopping this component */
   private static final long TIMEOUT = 30000;
 
+  /** maximum time in milliseconds {@link #flush(User)} waits for the activities to be sent */
+  private static final long FLUSH_TIMEOUT =
+      Long.getLong("saros.session.sequencer.FLUSH_TIMEOUT", 30000);
+
   /** Sequence numbers for outgoing and incoming activities start with this value. */
   private static final int FIRST_SEQUENCE_NUMBER = 0;
 
-  private static class SequencedActivities {
-    private final int sequenceNumber;
-    private final List<IActivity> activites;
+  private static final int DEFAULT_WINDOW_SIZE = 2048;
+
+  /** maximum number of activities that may be sent to a user without being acknowledged */
+  private static final int WINDOW_SIZE =
+      Math.max(1, Integer.getInteger("saros.session.sequencer.WINDOW_SIZE", DEFAULT_WINDOW_SIZE));
+
+  /** number of received activities after which they are acknowledged */
+  private static final int ACKNOWLEDGE_THRESHOLD = Math.max(1, WINDOW_SIZE / 4);
+
+  /** maximum number of activities that are queued for a user */
+  private static final int MAX_QUEUE_SIZE =
+      Math.max(1, Integer.getInteger("saros.session.sequencer.MAX_QUEUE_SIZE", 8192));
+
+  /** Determines what happens if the outgoing queue of a user overflows. */
+  enum OverflowPolicy {
+    /**
+     * The queue is discarded and the user is handled like a user that can no longer be reached, i.e
+     * it is removed from the session by the host or the session is stopped on a client. The user
+     * has to rejoin which transfers the current state of the session again.
+     */
+    RESYNC,
+    /** The queue keeps growing. This was the behavior before the queues were bounded. */
+    UNBOUNDED
+  }
+
+  private static final OverflowPolicy OVERFLOW_POLICY = getOverflowPolicy();
+
+  private static class IncomingSequence {
+    /** whether the sender expects the received activities to be acknowledged */
+    private final boolean acknowledge;
 
-    private SequencedActivities(List<IActivity> activites, int sequenceNumber) {
-      this.activites = activites;
-      this.sequenceNumber = sequenceNumber;
+    private int nextSequenceNumber = FIRST_SEQUENCE_NUMBER;
+
+    /** the sequence number that was acknowledged last to the sender */
+    private int acknowledgedSequenceNumber = FIRST_SEQUENCE_NUMBER;
+
+    private IncomingSequence(final boolean acknowledge) {
+      this.acknowledge = acknowledge;
     }
   }
 
-  private static class ActivityBuffer<T> {
+  /**
+   * Sends the activities and acknowledgments to one user. The activities are handed over with a
+   * lock free queue, everything else that is not volatile or atomic is only accessed by the sender
+   * thread.
+   */
+  private final class ActivitySender implements Runnable {
+
+    private static final long NO_ACKNOWLEDGMENT = Long.MIN_VALUE;
+
+    private final User user;
+
+    private final JID recipient;
+
+    /** whether the user acknowledges activities, otherwise the sending is not flow controlled */
+    private final boolean isWindowed;
+
+    private final Queue<IActivity> enqueuedActivities = new ConcurrentLinkedQueue<IActivity>();
+
+    /** number of enqueued and unsent activities */
+    private final AtomicInteger queueSize = new AtomicInteger();
+
+    /** sequence number that must be acknowledged to the user */
+    private final AtomicLong pendingAcknowledgment = new AtomicLong(NO_ACKNOWLEDGMENT);
+
+    /** sequence number that was acknowledged last by the user */
+    private volatile int acknowledgedSequenceNumber = FIRST_SEQUENCE_NUMBER;
+
     /**
-     * Helper flag to signal that there pending data is still send even if the buffer is already
+     * Helper flag to signal that there pending data is still send even if the queue is already
      * empty.
      */
-    private boolean isInTransmission;
+    private volatile boolean isInTransmission;
+
+    private volatile boolean stopped;
+
+    private volatile Thread thread;
+
+    private final Deque<IActivity> unsentActivities = new ArrayDeque<IActivity>();
+
+    private int nextSequenceNumber = FIRST_SEQUENCE_NUMBER;
+
+    private int coalesceThreshold = MAX_QUEUE_SIZE;
 
-    private int nextSequenceNumber;
-    private final Deque<T> activities = new LinkedList<T>();
+    private final BatchingWindow batchingWindow = new BatchingWindow();
 
-    private ActivityBuffer(int firstSequenceNumber) {
-      nextSequenceNumber = firstSequenceNumber;
+    /** time the oldest of the unsent activities was queued */
+    private long unsentQueueTime;
+
+    private ActivitySender(final User user, final boolean isWindowed) {
+      this.user = user;
+      this.recipient = user.getJID();
+      this.isWindowed = isWindowed;
     }
-  }
 
-  private final PacketListener activitiesPacketListener =
-      new PacketListener() {
+    private synchronized void start() {
+      if (stopped || thread != null) return;
 
-        @Override
-        public void processPacket(Packet packet) {
-          receiveActivities(packet);
-        }
-      };
+      thread = ThreadUtils.runSafeAsync("activity-sender-" + recipient, LOG, this);
+    }
 
-  private final Runnable activitySender =
-      new Runnable() {
+    private void stop() {
+      synchronized (this) {
+        stopped = true;
+        // notify waiting threads in flush method that nothing will be sent anymore
+        notifyAll();
+      }
 
-        @Override
-        public void run() {
+      wakeUp();
+    }
+
+    private void enqueue(final IActivity activity) {
+      enqueuedActivities.add(activity);
+      queueSize.incrementAndGet();
+      wakeUp();
+    }
+
+    private void acknowledge(final int sequenceNumber) {
+      pendingAcknowledgment.set(sequenceNumber);
+      wakeUp();
+    }
+
+    private void acknowledged(final int sequenceNumber) {
+      // ignore outdated acknowledgments
+      if (sequenceNumber - acknowledgedSequenceNumber <= 0) return;
 
-          Map<JID, SequencedActivities> activitiesToSend = new HashMap<JID, SequencedActivities>();
+      acknowledgedSequenceNumber = sequenceNumber;
 
-          send:
-          while (true) {
-            activitiesToSend.clear();
+      // the queued activities may be sent now
+      wakeUp();
+    }
+
+    private synchronized boolean flush(final long timeout) {
+      final long deadline = System.currentTimeMillis() + timeout;
 
-            synchronized (bufferedOutgoingActivities) {
-              if (stopSending) return;
+      while (!stopped && (queueSize.get() > 0 || isInTransmission)) {
+        final long remaining = deadline - System.currentTimeMillis();
 
-              for (Entry<JID, ActivityBuffer<IActivity>> entry :
-                  bufferedOutgoingActivities.entrySet()) {
+        if (remaining <= 0) return false;
 
-                ActivityBuffer<IActivity> buffer = entry.getValue();
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
 
-                if (buffer == null || buffer.activities.isEmpty()) continue;
+      return true;
+    }
 
-                List<IActivity> optimizedActivities = ActivityOptimizer.optimize(buffer.activities);
+    private void wakeUp() {
+      final Thread currentThread = thread;
 
-                buffer.activities.clear();
-                buffer.isInTransmission = true;
+      if (currentThread != null) LockSupport.unpark(currentThread);
+    }
 
-                int currentSequenceNumber = buffer.nextSequenceNumber;
-                buffer.nextSequenceNumber += optimizedActivities.size();
+    @Override
+    public void run() {
+      /*
+       * publish the thread before looking at the queue for the first time,
+       * otherwise an activity that is enqueued during the start may not
+       * wake up this thread
+       */
+      thread = Thread.currentThread();
 
-                activitiesToSend.put(
-                    entry.getKey(),
-                    new SequencedActivities(optimizedActivities, currentSequenceNumber));
-              }
+      try {
+        while (!stopped) {
+          final long acknowledgment = pendingAcknowledgment.getAndSet(NO_ACKNOWLEDGMENT);
 
-              if (activitiesToSend.isEmpty()) {
-                try {
-                  bufferedOutgoingActivities.wait();
-                  continue send;
-                } catch (InterruptedException e) {
-                  return;
-                }
-              }
-            }
+          if (acknowledgment != NO_ACKNOWLEDGMENT
+              && !sendAcknowledgment(recipient, (int) acknowledgment)) return;
 
-            for (Entry<JID, SequencedActivities> e : activitiesToSend.entrySet()) {
-              sendActivities(e.getKey(), e.getValue().activites, e.getValue().sequenceNumber);
-            }
+          IActivity activity;
 
-            synchronized (bufferedOutgoingActivities) {
-              for (Entry<JID, ActivityBuffer<IActivity>> entry :
-                  bufferedOutgoingActivities.entrySet()) {
+          final boolean hadUnsentActivities = !unsentActivities.isEmpty();
 
-                ActivityBuffer<IActivity> buffer = entry.getValue();
+          while ((activity = enqueuedActivities.poll()) != null) unsentActivities.add(activity);
 
-                if (buffer == null) continue;
+          // enqueue wakes up this thread, so this is about the time the activity was enqueued
+          if (!hadUnsentActivities && !unsentActivities.isEmpty())
+            unsentQueueTime = System.nanoTime();
 
-                buffer.isInTransmission = false;
-              }
+          final int credits =
+              isWindowed
+                  ? WINDOW_SIZE - (nextSequenceNumber - acknowledgedSequenceNumber)
+                  : Integer.MAX_VALUE;
 
-              // notify waiting threads in flush method that we are done
-              bufferedOutgoingActivities.notifyAll();
+          // otherwise wait until the user acknowledges the activities that are in flight
+          if (credits > 0 && !unsentActivities.isEmpty()) {
+            final long now = System.nanoTime();
+            final long roundTripTime = sarosSession.getRoundTripTime(user);
+
+            final long delay = batchingWindow.getDelay(now, unsentActivities.size(), roundTripTime);
+
+            if (delay > 0) {
+              // wait for more activities to send them together
+              LockSupport.parkNanos(this, delay);
+
+              if (Thread.interrupted()) return;
+
+              continue;
             }
+
+            batchingWindow.sent(now, unsentQueueTime, roundTripTime);
+
+            if (!sendUnsentActivities(credits)) return;
+
+            continue;
+          }
+
+          if (unsentActivities.size() >= coalesceThreshold && isOverflowing()) {
+            LOG.error(
+                "outgoing queue of "
+                    + recipient
+                    + " exceeded "
+                    + MAX_QUEUE_SIZE
+                    + " activities, the user has to resynchronize");
+
+            unregisterUser(recipient);
+            notifyTransmissionError(recipient);
+            return;
           }
+
+          LockSupport.park(this);
+
+          if (Thread.interrupted()) return;
+        }
+      } finally {
+        stop();
+      }
+    }
+
+    private boolean sendUnsentActivities(final int credits) {
+      final int size = unsentActivities.size();
+
+      List<IActivity> optimizedActivities = ActivityOptimizer.optimize(unsentActivities);
+
+      unsentActivities.clear();
+
+      if (optimizedActivities.size() > credits) {
+        unsentActivities.addAll(optimizedActivities.subList(credits, optimizedActivities.size()));
+
+        optimizedActivities = new ArrayList<IActivity>(optimizedActivities.subList(0, credits));
+      }
+
+      /*
+       * the remaining activities are already coalesced, but if they still
+       * fill the queue the next check must not wait for another
+       * MAX_QUEUE_SIZE activities
+       */
+      coalesceThreshold = Math.max(MAX_QUEUE_SIZE, unsentActivities.size());
+
+      // must be set before the queue size shrinks, see flush
+      isInTransmission = true;
+
+      queueSize.addAndGet(unsentActivities.size() - size);
+
+      final int currentSequenceNumber = nextSequenceNumber;
+      nextSequenceNumber += optimizedActivities.size();
+
+      final boolean sent = sendActivities(recipient, optimizedActivities, currentSequenceNumber);
+
+      synchronized (this) {
+        isInTransmission = false;
+        // notify waiting threads in flush method that we are done
+        notifyAll();
+      }
+
+      return sent;
+    }
+
+    /**
+     * Coalesces the stale activities of the queue every {@link #MAX_QUEUE_SIZE} activities and
+     * checks if the queue is still too large according to the {@link #OVERFLOW_POLICY}.
+     */
+    private boolean isOverflowing() {
+      final int size = unsentActivities.size();
+
+      final List<IActivity> optimizedActivities = ActivityOptimizer.optimize(unsentActivities);
+
+      unsentActivities.clear();
+      unsentActivities.addAll(optimizedActivities);
+
+      queueSize.addAndGet(optimizedActivities.size() - size);
+
+      coalesceThreshold = getCoalesceThreshold(optimizedActivities.size());
+
+      if (LOG.isDebugEnabled())
+        LOG.debug("coalesced outgoing queue from " + size + " to " + optimizedActivities.size());
+
+      return OVERFLOW_POLICY == OverflowPolicy.RESYNC
+          && optimizedActivities.size() >= MAX_QUEUE_SIZE;
+    }
+  }
+
+  private final PacketListener activitiesPacketListener =
+      new PacketListener() {
+
+        @Override
+        public void processPacket(Packet packet) {
+          receiveActivities(packet);
+        }
+      };
+
+  private final PacketListener acknowledgmentPacketListener =
+      new PacketListener() {
+
+        @Override
+        public void processPacket(Packet packet) {
+          receiveAcknowledgment(packet);
         }
       };
 
@@ -170,37 +411,38 @@ public class ActivitySequencer implements Startable {
   private boolean started = false;
   private boolean stopped = false;
 
-  private boolean stopSending = false;
   private final String currentSessionID;
 
-  private Thread activitySendThread;
-
   private final ISarosSession sarosSession;
 
   private final ITransmitter transmitter;
 
   private final IReceiver receiver;
 
+  private final VersionManager versionManager;
+
   private final DispatchThreadContext dispatchThread;
 
-  private final Map<JID, ActivityBuffer<IActivity>> bufferedIncomingActivities;
+  private final Map<JID, IncomingSequence> bufferedIncomingActivities;
 
-  private final Map<JID, ActivityBuffer<IActivity>> bufferedOutgoingActivities;
+  private final ConcurrentMap<JID, ActivitySender> activitySenders;
 
   public ActivitySequencer(
       final ISarosSession sarosSession,
       final ITransmitter transmitter,
       final IReceiver receiver,
+      final VersionManager versionManager,
       final DispatchThreadContext threadContext) {
 
     this.dispatchThread = threadContext;
     this.sarosSession = sarosSession;
     this.transmitter = transmitter;
     this.receiver = receiver;
+    this.versionManager = versionManager;
     this.currentSessionID = sarosSession.getID();
 
-    this.bufferedIncomingActivities = new HashMap<JID, ActivityBuffer<IActivity>>();
-    this.bufferedOutgoingActivities = new HashMap<JID, ActivityBuffer<IActivity>>();
+    this.bufferedIncomingActivities = new HashMap<JID, IncomingSequence>();
+    this.activitySenders = new ConcurrentHashMap<JID, ActivitySender>();
   }
 
   /**
@@ -249,7 +491,11 @@ public class ActivitySequencer implements Startable {
     receiver.addPacketListener(
         activitiesPacketListener, ActivitiesExtension.PROVIDER.getPacketFilter(currentSessionID));
 
-    activitySendThread = ThreadUtils.runSafeAsync("activity-sender", LOG, activitySender);
+    receiver.addPacketListener(
+        acknowledgmentPacketListener,
+        ActivitiesAcknowledgmentExtension.PROVIDER.getPacketFilter(currentSessionID));
+
+    for (ActivitySender activitySender : activitySenders.values()) activitySender.start();
   }
 
   /**
@@ -271,37 +517,44 @@ public class ActivitySequencer implements Startable {
     }
 
     receiver.removePacketListener(activitiesPacketListener);
+    receiver.removePacketListener(acknowledgmentPacketListener);
 
-    synchronized (bufferedOutgoingActivities) {
-      stopSending = true;
-      bufferedOutgoingActivities.notifyAll();
-    }
+    final List<ActivitySender> stoppedActivitySenders =
+        new ArrayList<ActivitySender>(activitySenders.values());
+
+    activitySenders.clear();
+
+    for (ActivitySender activitySender : stoppedActivitySenders) activitySender.stop();
 
     boolean isStoppingInterrupted = false;
 
-    try {
-      activitySendThread.join(TIMEOUT);
-    } catch (InterruptedException e) {
-      LOG.warn(
-          "interrupted while waiting for " + activitySendThread.getName() + " thread to terminate");
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
 
-      isStoppingInterrupted = true;
-    }
+    for (ActivitySender activitySender : stoppedActivitySenders) {
+      final Thread activitySendThread = activitySender.thread;
+
+      if (activitySendThread == null) continue;
 
-    if (activitySendThread.isAlive())
-      LOG.error(activitySendThread.getName() + " thread is still running");
+      try {
+        activitySendThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        LOG.warn(
+            "interrupted while waiting for "
+                + activitySendThread.getName()
+                + " thread to terminate");
+
+        isStoppingInterrupted = true;
+        break;
+      }
 
-    synchronized (bufferedOutgoingActivities) {
-      bufferedOutgoingActivities.clear();
-      bufferedOutgoingActivities.notifyAll();
+      if (activitySendThread.isAlive())
+        LOG.error(activitySendThread.getName() + " thread is still running");
     }
 
     synchronized (bufferedIncomingActivities) {
       bufferedIncomingActivities.clear();
     }
 
-    activitySendThread = null;
-
     if (isStoppingInterrupted) Thread.currentThread().interrupt();
   }
 
@@ -313,9 +566,11 @@ public class ActivitySequencer implements Startable {
       final JID sender, final List<IActivity> activities, final int sequenceNumber) {
 
     boolean transmissionError = false;
+    int acknowledgment = 0;
+    boolean acknowledge = false;
 
     synchronized (bufferedIncomingActivities) {
-      ActivityBuffer<IActivity> buffer = bufferedIncomingActivities.get(sender);
+      IncomingSequence buffer = bufferedIncomingActivities.get(sender);
 
       if (buffer == null) {
         LOG.warn(
@@ -330,6 +585,14 @@ public class ActivitySequencer implements Startable {
         transmissionError = true;
       } else {
         buffer.nextSequenceNumber += activities.size();
+
+        if (buffer.acknowledge
+            && buffer.nextSequenceNumber - buffer.acknowledgedSequenceNumber
+                >= ACKNOWLEDGE_THRESHOLD) {
+          acknowledge = true;
+          acknowledgment = buffer.nextSequenceNumber;
+          buffer.acknowledgedSequenceNumber = acknowledgment;
+        }
       }
     }
 
@@ -340,16 +603,33 @@ public class ActivitySequencer implements Startable {
     }
 
     sarosSession.exec(activities);
+
+    if (!acknowledge) return;
+
+    final ActivitySender activitySender = activitySenders.get(sender);
+
+    // the activity sender of the user is sending the acknowledgment
+    if (activitySender != null) activitySender.acknowledge(acknowledgment);
   }
 
   /** Sends an activity to the given recipients. */
   public void sendActivity(List<User> recipients, final IActivity activity) {
 
-    ArrayList<User> remoteRecipients = new ArrayList<User>();
     for (User user : recipients) {
 
       if (!user.isLocal()) {
-        remoteRecipients.add(user);
+        ActivitySender activitySender = activitySenders.get(user.getJID());
+
+        if (activitySender == null) {
+          LOG.warn(
+              "cannot send activity to "
+                  + user
+                  + " because it is currently not registers, dropped activity: "
+                  + activity);
+          continue;
+        }
+
+        activitySender.enqueue(activity);
         continue;
       }
 
@@ -363,27 +643,11 @@ public class ActivitySequencer implements Startable {
             }
           });
     }
+  }
 
-    if (remoteRecipients.isEmpty()) return;
-
-    synchronized (bufferedOutgoingActivities) {
-      for (User recipient : remoteRecipients) {
-        ActivityBuffer<IActivity> buffer = bufferedOutgoingActivities.get(recipient.getJID());
-
-        if (buffer == null) {
-          LOG.warn(
-              "cannot send activity to "
-                  + recipient
-                  + " because it is currently not registers, dropped activity: "
-                  + activity);
-          continue;
-        }
-        buffer.activities.add(activity);
-      }
-
-      // ActivitySender thread is flushing the buffers
-      bufferedOutgoingActivities.notifyAll();
-    }
+  /** Returns the next multiple of {@link #MAX_QUEUE_SIZE} that is larger than the given size. */
+  private static int getCoalesceThreshold(int size) {
+    return (size / MAX_QUEUE_SIZE + 1) * MAX_QUEUE_SIZE;
   }
 
   /**
@@ -394,16 +658,23 @@ public class ActivitySequencer implements Startable {
    * @param user
    */
   public void registerUser(User user) {
-    synchronized (bufferedOutgoingActivities) {
-      if (bufferedOutgoingActivities.get(user.getJID()) == null)
-        bufferedOutgoingActivities.put(
-            user.getJID(), new ActivityBuffer<IActivity>(FIRST_SEQUENCE_NUMBER));
+    // both sides use the same check, so the receiver acknowledges exactly if the sender waits for
+    // it
+    final boolean acknowledge =
+        versionManager.isFeatureSupported(
+            user.getJID(), VersionManager.ACTIVITY_ACKNOWLEDGMENT_FEATURE);
+
+    final ActivitySender activitySender = new ActivitySender(user, acknowledge);
+
+    if (activitySenders.putIfAbsent(user.getJID(), activitySender) == null) {
+      synchronized (this) {
+        if (started && !stopped) activitySender.start();
+      }
     }
 
     synchronized (bufferedIncomingActivities) {
       if (bufferedIncomingActivities.get(user.getJID()) == null)
-        bufferedIncomingActivities.put(
-            user.getJID(), new ActivityBuffer<IActivity>(FIRST_SEQUENCE_NUMBER));
+        bufferedIncomingActivities.put(user.getJID(), new IncomingSequence(acknowledge));
     }
   }
 
@@ -418,26 +689,26 @@ public class ActivitySequencer implements Startable {
   }
 
   /**
-   * Waits until all buffered activities for the specific user are sent. Calling {@link
-   * #sendActivity} at the same time may or may not ignore those new activities.
+   * Waits until all buffered activities for the specific user are sent, but at most <code>
+   * saros.session.sequencer.FLUSH_TIMEOUT</code> milliseconds (30 seconds by default). Calling
+   * {@link #sendActivity} at the same time may or may not ignore those new activities.
    *
    * @param user
    */
   public void flush(User user) {
+    if (!flush(user, FLUSH_TIMEOUT))
+      LOG.warn("activities for " + user + " are not sent after " + FLUSH_TIMEOUT + " ms");
+  }
 
-    synchronized (bufferedOutgoingActivities) {
-      while (true) {
-        ActivityBuffer<IActivity> buffer = bufferedOutgoingActivities.get(user.getJID());
-
-        if (buffer == null || (buffer.activities.size() == 0 && !buffer.isInTransmission)) break;
+  /**
+   * Waits until all buffered activities for the specific user are sent or the timeout expires.
+   *
+   * @return <code>false</code> if the timeout expired before all activities were sent
+   */
+  boolean flush(User user, long timeout) {
+    final ActivitySender activitySender = activitySenders.get(user.getJID());
 
-        try {
-          bufferedOutgoingActivities.wait();
-        } catch (InterruptedException e) {
-          return;
-        }
-      }
-    }
+    return activitySender == null || activitySender.flush(timeout);
   }
 
   private void unregisterUser(JID jid) {
@@ -448,19 +719,18 @@ public class ActivitySequencer implements Startable {
      * the user is not present.
      */
 
-    synchronized (bufferedOutgoingActivities) {
-      bufferedOutgoingActivities.put(jid, null);
-      bufferedOutgoingActivities.notifyAll();
-    }
+    final ActivitySender activitySender = activitySenders.remove(jid);
+
+    if (activitySender != null) activitySender.stop();
 
     synchronized (bufferedIncomingActivities) {
       bufferedIncomingActivities.put(jid, null);
     }
   }
 
-  private void sendActivities(JID recipient, List<IActivity> activities, int sequenceNumber) {
+  private boolean sendActivities(JID recipient, List<IActivity> activities, int sequenceNumber) {
 
-    if (activities.size() == 0) return;
+    if (activities.size() == 0) return true;
 
     /*
      * HACK the following logic tries to reduce the HEAP usage while
@@ -529,13 +799,50 @@ public class ActivitySequencer implements Startable {
 
         unregisterUser(recipient);
         notifyTransmissionError(recipient);
-        return;
+        return false;
       } finally {
         sequenceNumber += activitiesToMarshall.size();
         activitiesToMarshall.clear();
         currentFileActivitySize = 0;
       }
     }
+
+    return true;
+  }
+
+  private boolean sendAcknowledgment(JID recipient, int sequenceNumber) {
+    final PacketExtension acknowledgmentPacketExtension =
+        ActivitiesAcknowledgmentExtension.PROVIDER.create(
+            new ActivitiesAcknowledgmentExtension(currentSessionID, sequenceNumber));
+
+    try {
+      transmitter.send(
+          ISarosSession.SESSION_CONNECTION_ID, recipient, acknowledgmentPacketExtension);
+    } catch (IOException e) {
+      LOG.error("failed to acknowledge activities to " + recipient, e);
+
+      unregisterUser(recipient);
+      notifyTransmissionError(recipient);
+      return false;
+    }
+
+    return true;
+  }
+
+  private void receiveAcknowledgment(Packet acknowledgmentPacket) {
+    ActivitiesAcknowledgmentExtension payload =
+        ActivitiesAcknowledgmentExtension.PROVIDER.getPayload(acknowledgmentPacket);
+
+    if (payload == null) {
+      LOG.warn("activity acknowledgment packet payload is corrupted");
+      return;
+    }
+
+    JID from = new JID(acknowledgmentPacket.getFrom());
+
+    final ActivitySender activitySender = activitySenders.get(from);
+
+    if (activitySender != null) activitySender.acknowledged(payload.getSequenceNumber());
   }
 
   private void receiveActivities(Packet activityPacket) {
@@ -585,8 +892,18 @@ public class ActivitySequencer implements Startable {
    * @return
    */
   boolean isUserRegistered(User user) {
-    synchronized (bufferedOutgoingActivities) {
-      return bufferedOutgoingActivities.get(user.getJID()) != null;
+    return activitySenders.containsKey(user.getJID());
+  }
+
+  private static OverflowPolicy getOverflowPolicy() {
+    final String policy =
+        System.getProperty("saros.session.sequencer.OVERFLOW_POLICY", OverflowPolicy.RESYNC.name());
+
+    try {
+      return OverflowPolicy.valueOf(policy);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("unknown overflow policy: " + policy + ", using " + OverflowPolicy.RESYNC);
+      return OverflowPolicy.RESYNC;
     }
   }
 
@@ -0,0 +1,93 @@
+package saros.session.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long the {@link ActivitySequencer} holds back activities for one user to send them
+ * together in one packet, similar to the algorithm of Nagle for TCP.
+ *
+ * <p>The first activity after an idle period is sent immediately. If the oldest activity of a send
+ * was already queued before the window of the previous send expired, the user is busy and the
+ * window doubles, so the longer a burst lasts the more of its activities are sent together. An
+ * activity that is queued after the window expired resets it.
+ *
+ * <p>The window is limited to a quarter of the round trip time to the user, so the added latency
+ * stays small compared to the latency of the network, and to at most the value of <code>
+ * saros.session.sequencer.MAX_BATCH_DELAY</code> in milliseconds. If enough activities are queued
+ * for a full batch they are sent at once.
+ *
+ * <p>This class is not thread safe, it is only used by the sender thread of the user.
+ */
+final class BatchingWindow {
+
+  /** the window a burst starts with */
+  private static final long MIN_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** the limit if the round trip time is not known */
+  private static final long MAX_DELAY =
+      TimeUnit.MILLISECONDS.toNanos(
+          Math.max(0, Integer.getInteger("saros.session.sequencer.MAX_BATCH_DELAY", 20)));
+
+  /** number of queued activities that are sent without further delay */
+  static final int MAX_BATCH_SIZE =
+      Math.max(1, Integer.getInteger("saros.session.sequencer.MAX_BATCH_SIZE", 128));
+
+  private long window;
+
+  private long lastSendTime;
+
+  private boolean hasSent;
+
+  /**
+   * Returns how long the queued activities should be held back.
+   *
+   * @param now the current time as returned by {@link System#nanoTime()}
+   * @param queued the number of queued activities
+   * @param roundTripTime the round trip time to the user in milliseconds or <code>-1</code> if it
+   *     is not known
+   * @return the delay in nanoseconds, the activities should be sent now if it is not positive
+   */
+  long getDelay(final long now, final int queued, final long roundTripTime) {
+    if (!hasSent || queued >= MAX_BATCH_SIZE) return 0;
+
+    return lastSendTime + Math.min(window, getLimit(roundTripTime)) - now;
+  }
+
+  /**
+   * Updates the window after activities were sent.
+   *
+   * @param now the time of the send as returned by {@link System#nanoTime()}
+   * @param queueTime the time the oldest of the sent activities was queued as returned by {@link
+   *     System#nanoTime()}
+   * @param roundTripTime the round trip time to the user in milliseconds or <code>-1</code> if it
+   *     is not known
+   */
+  void sent(final long now, final long queueTime, final long roundTripTime) {
+    final long limit = getLimit(roundTripTime);
+
+    /*
+     * the time between two sends says nothing about the load as the sender
+     * waits for the window anyway, but activities that were queued while
+     * the window was still open mean that the user is busy
+     */
+    final long expiration = lastSendTime + Math.max(MIN_DELAY, Math.min(window, limit));
+
+    if (hasSent && queueTime - expiration < 0)
+      window = Math.min(limit, Math.max(MIN_DELAY, window * 2));
+    else window = 0;
+
+    lastSendTime = now;
+    hasSent = true;
+  }
+
+  /** Returns the current window in nanoseconds. */
+  long getWindow() {
+    return window;
+  }
+
+  private static long getLimit(final long roundTripTime) {
+    if (roundTripTime < 0) return MAX_DELAY;
+
+    return Math.min(MAX_DELAY, TimeUnit.MILLISECONDS.toNanos(roundTripTime) / 4);
+  }
+}
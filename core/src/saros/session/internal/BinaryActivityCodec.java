@@ -0,0 +1,1213 @@
+package saros.session.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.packet.PacketExtension;
+import saros.activities.ChangeColorActivity;
+import saros.activities.ChecksumActivity;
+import saros.activities.ChecksumErrorActivity;
+import saros.activities.DeletionAcknowledgmentActivity;
+import saros.activities.EditorActivity;
+import saros.activities.FileActivity;
+import saros.activities.FolderCreatedActivity;
+import saros.activities.FolderDeletedActivity;
+import saros.activities.IActivity;
+import saros.activities.IResourceActivity;
+import saros.activities.JupiterActivity;
+import saros.activities.NOPActivity;
+import saros.activities.PermissionActivity;
+import saros.activities.ProgressActivity;
+import saros.activities.SPath;
+import saros.activities.StartFollowingActivity;
+import saros.activities.StopActivity;
+import saros.activities.StopFollowingActivity;
+import saros.activities.TargetedFileActivity;
+import saros.activities.TextSelectionActivity;
+import saros.activities.ViewportActivity;
+import saros.annotations.Component;
+import saros.communication.extensions.ActivitiesExtension;
+import saros.concurrent.jupiter.Operation;
+import saros.concurrent.jupiter.Timestamp;
+import saros.concurrent.jupiter.internal.JupiterVectorTime;
+import saros.concurrent.jupiter.internal.text.DeleteOperation;
+import saros.concurrent.jupiter.internal.text.InsertOperation;
+import saros.concurrent.jupiter.internal.text.NoOperation;
+import saros.concurrent.jupiter.internal.text.SplitOperation;
+import saros.concurrent.jupiter.internal.text.TimestampOperation;
+import saros.filesystem.IPathFactory;
+import saros.filesystem.IProject;
+import saros.net.IPacketExtensionCodec;
+import saros.net.IReceiver;
+import saros.net.ITransmitter;
+import saros.net.SharedEncoding;
+import saros.net.xmpp.JID;
+import saros.repackaged.picocontainer.Startable;
+import saros.session.ISarosSession;
+import saros.session.User;
+import saros.versioning.VersionManager;
+
+/**
+ * Encodes {@link ActivitiesExtension}s in a compact binary format that is much cheaper to create
+ * and to parse than their XML representation. The binary format is only used for peers that
+ * announced the {@linkplain VersionManager#BINARY_ACTIVITIES_FEATURE corresponding feature}, all
+ * other peers receive XML.
+ *
+ * <p>The format consists of a format version, the session id, the sequence number and the
+ * activities. Every activity starts with a type tag followed by its fields. Integers are written as
+ * variable length quantities, strings as their length followed by their characters in modified
+ * UTF-8 so that unpaired surrogates survive the transfer. Users and paths are written once per
+ * extension, later occurrences only refer to the first one.
+ *
+ * <p>Activities that refer to users or resources that are no longer part of the session cannot be
+ * reconstructed. They are replaced with a {@link NOPActivity} so the sequence numbers of the
+ * remaining activities stay intact.
+ *
+ * <p>The session id and the sequence number form the header, the activities the body of the
+ * {@linkplain SharedEncoding shared encoding}. When the host sends the same activities to several
+ * peers only the header is encoded for each of them, the body of the last {@value
+ * #SHARED_BODY_CACHE_SIZE} activity lists is kept for reuse. Activity lists are compared by the
+ * identity of their elements.
+ *
+ * <p>As every peer has its own sender that batches the activities independently, the lists sent to
+ * different peers are often split differently. Therefore the encoding of every single activity is
+ * kept as well, up to {@value #SHARED_RECORD_CACHE_BYTES} bytes. A body of another list only
+ * concatenates these records and writes the references to users and paths, which depend on the
+ * other activities of the list.
+ *
+ * <p>The codec also {@linkplain IActivitySerializer serializes} single activities for the {@link
+ * ActivityQueuer} which spills the activities it queues to disk. These activities refer to users by
+ * their index in a list that is kept by the queuer, so they can be reconstructed even if a user
+ * left the session in the meantime.
+ */
+@Component
+public class BinaryActivityCodec implements IPacketExtensionCodec, IActivitySerializer, Startable {
+
+  private static final Logger LOG = Logger.getLogger(BinaryActivityCodec.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  /* type tags of the activities, do not exceed 0xFF ! */
+  private static final int CHANGE_COLOR = 1;
+  private static final int CHECKSUM = 2;
+  private static final int CHECKSUM_ERROR = 3;
+  private static final int DELETION_ACKNOWLEDGMENT = 4;
+  private static final int EDITOR = 5;
+  private static final int FILE = 6;
+  private static final int FOLDER_CREATED = 7;
+  private static final int FOLDER_DELETED = 8;
+  /* 9 is reserved, the deprecated FolderMovedActivity is sent as XML */
+  private static final int JUPITER = 10;
+  private static final int NOP = 11;
+  private static final int PERMISSION = 12;
+  private static final int PROGRESS = 13;
+  private static final int TARGETED_FILE = 14;
+  private static final int START_FOLLOWING = 15;
+  private static final int STOP = 16;
+  private static final int STOP_FOLLOWING = 17;
+  private static final int TEXT_SELECTION = 18;
+  private static final int VIEWPORT = 19;
+
+  /* type tags of the Jupiter operations */
+  private static final int NO_OPERATION = 0;
+  private static final int TIMESTAMP_OPERATION = 1;
+  private static final int INSERT_OPERATION = 2;
+  private static final int DELETE_OPERATION = 3;
+  private static final int SPLIT_OPERATION = 4;
+
+  /* references to users and paths */
+  private static final int NULL_REFERENCE = 0;
+  private static final int NEW_REFERENCE = 1;
+  private static final int FIRST_REFERENCE = 2;
+
+  /** ID of the NOPActivity that replaces activities that could not be reconstructed */
+  private static final int UNDECODABLE_ACTIVITY_ID = -1;
+
+  /** number of encoded activity lists that are kept for other recipients */
+  private static final int SHARED_BODY_CACHE_SIZE = 16;
+
+  /** total size in bytes of the encoded activities that are kept for other recipients */
+  private static final int SHARED_RECORD_CACHE_BYTES = 1024 * 1024;
+
+  private static final Map<Class<?>, Integer> ACTIVITY_TAGS = new HashMap<Class<?>, Integer>();
+
+  static {
+    ACTIVITY_TAGS.put(ChangeColorActivity.class, CHANGE_COLOR);
+    ACTIVITY_TAGS.put(ChecksumActivity.class, CHECKSUM);
+    ACTIVITY_TAGS.put(ChecksumErrorActivity.class, CHECKSUM_ERROR);
+    ACTIVITY_TAGS.put(DeletionAcknowledgmentActivity.class, DELETION_ACKNOWLEDGMENT);
+    ACTIVITY_TAGS.put(EditorActivity.class, EDITOR);
+    ACTIVITY_TAGS.put(FileActivity.class, FILE);
+    ACTIVITY_TAGS.put(FolderCreatedActivity.class, FOLDER_CREATED);
+    ACTIVITY_TAGS.put(FolderDeletedActivity.class, FOLDER_DELETED);
+    ACTIVITY_TAGS.put(JupiterActivity.class, JUPITER);
+    ACTIVITY_TAGS.put(NOPActivity.class, NOP);
+    ACTIVITY_TAGS.put(PermissionActivity.class, PERMISSION);
+    ACTIVITY_TAGS.put(ProgressActivity.class, PROGRESS);
+    ACTIVITY_TAGS.put(TargetedFileActivity.class, TARGETED_FILE);
+    ACTIVITY_TAGS.put(StartFollowingActivity.class, START_FOLLOWING);
+    ACTIVITY_TAGS.put(StopActivity.class, STOP);
+    ACTIVITY_TAGS.put(StopFollowingActivity.class, STOP_FOLLOWING);
+    ACTIVITY_TAGS.put(TextSelectionActivity.class, TEXT_SELECTION);
+    ACTIVITY_TAGS.put(ViewportActivity.class, VIEWPORT);
+  }
+
+  /** Thrown if an activity or operation type is not supported by the binary format. */
+  private static class UnsupportedTypeException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private UnsupportedTypeException(Object object) {
+      super("unsupported type: " + object.getClass().getName());
+    }
+  }
+
+  /**
+   * The encoding of a single activity without its references to users and paths. The references are
+   * written when the record is added to a body, see {@link Encoder#writeRecord}.
+   */
+  private static final class ActivityRecord {
+    private final byte[] data;
+
+    /** users and paths the activity refers to, <code>null</code> for a missing user or path */
+    private final Object[] references;
+
+    /** the offsets in the data at which the references have to be inserted */
+    private final int[] offsets;
+
+    private ActivityRecord(final byte[] data, final Object[] references, final int[] offsets) {
+      this.data = data;
+      this.references = references;
+      this.offsets = offsets;
+    }
+  }
+
+  /** Identifies an activity by its identity, as activities may be equal but encoded differently. */
+  private static final class ActivityKey {
+    private final IActivity activity;
+
+    private ActivityKey(final IActivity activity) {
+      this.activity = activity;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(activity);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof ActivityKey && ((ActivityKey) obj).activity == activity;
+    }
+  }
+
+  /** Identifies a list of activities by the identity of its elements. */
+  private static final class ActivitiesKey {
+    private final IActivity[] activities;
+    private final int hashCode;
+
+    private ActivitiesKey(final List<IActivity> activities) {
+      this.activities = activities.toArray(new IActivity[activities.size()]);
+
+      int result = 1;
+
+      for (final IActivity activity : this.activities)
+        result = 31 * result + System.identityHashCode(activity);
+
+      hashCode = result;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) return true;
+
+      if (!(obj instanceof ActivitiesKey)) return false;
+
+      final ActivitiesKey other = (ActivitiesKey) obj;
+
+      if (hashCode != other.hashCode || activities.length != other.activities.length) return false;
+
+      for (int i = 0; i < activities.length; i++)
+        if (activities[i] != other.activities[i]) return false;
+
+      return true;
+    }
+  }
+
+  /** recently encoded bodies, guarded by its own monitor */
+  private final Map<ActivitiesKey, byte[]> sharedBodies =
+      new LinkedHashMap<ActivitiesKey, byte[]>(SHARED_BODY_CACHE_SIZE, 0.75F, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ActivitiesKey, byte[]> eldest) {
+          return size() > SHARED_BODY_CACHE_SIZE;
+        }
+      };
+
+  /** recently encoded activities, guarded by its own monitor */
+  private final LinkedHashMap<ActivityKey, ActivityRecord> sharedRecords =
+      new LinkedHashMap<ActivityKey, ActivityRecord>(64, 0.75F, true);
+
+  /** total size of the data of the shared records, guarded by the monitor of sharedRecords */
+  private int sharedRecordBytes;
+
+  /** number of activities found in or added to the shared records, guarded likewise */
+  private long recordHits;
+
+  private long recordMisses;
+
+  private final ISarosSession session;
+  private final IPathFactory pathFactory;
+  private final VersionManager versionManager;
+  private final ITransmitter transmitter;
+  private final IReceiver receiver;
+
+  public BinaryActivityCodec(
+      ISarosSession session,
+      IPathFactory pathFactory,
+      VersionManager versionManager,
+      ITransmitter transmitter,
+      IReceiver receiver) {
+    this.session = session;
+    this.pathFactory = pathFactory;
+    this.versionManager = versionManager;
+    this.transmitter = transmitter;
+    this.receiver = receiver;
+  }
+
+  @Override
+  public void start() {
+    transmitter.addPacketExtensionCodec(this);
+    receiver.addPacketExtensionCodec(this);
+  }
+
+  @Override
+  public void stop() {
+    transmitter.removePacketExtensionCodec(this);
+    receiver.removePacketExtensionCodec(this);
+
+    synchronized (sharedBodies) {
+      sharedBodies.clear();
+    }
+
+    synchronized (sharedRecords) {
+      if (LOG.isDebugEnabled())
+        LOG.debug(
+            "shared activity encodings: " + recordHits + " reused, " + recordMisses + " encoded");
+
+      sharedRecords.clear();
+      sharedRecordBytes = 0;
+      recordHits = 0;
+      recordMisses = 0;
+    }
+  }
+
+  @Override
+  public String getElementName() {
+    return ActivitiesExtension.PROVIDER.getElementName();
+  }
+
+  @Override
+  public String getNamespace() {
+    return ActivitiesExtension.PROVIDER.getNamespace();
+  }
+
+  @Override
+  public byte[] encode(JID recipient, PacketExtension extension) throws IOException {
+    final SharedEncoding encoding = encodeShared(recipient, extension);
+
+    return encoding == null ? null : encoding.toByteArray();
+  }
+
+  @Override
+  public SharedEncoding encodeShared(JID recipient, PacketExtension extension) throws IOException {
+    if (!versionManager.isFeatureSupported(recipient, VersionManager.BINARY_ACTIVITIES_FEATURE))
+      return null;
+
+    final ActivitiesExtension payload = ActivitiesExtension.PROVIDER.getPayload(extension);
+
+    if (payload == null) return null;
+
+    return encodeShared(payload);
+  }
+
+  @Override
+  public PacketExtension decode(JID sender, byte[] data, int offset, int length)
+      throws IOException {
+    return ActivitiesExtension.PROVIDER.create(decode(data, offset, length));
+  }
+
+  /**
+   * Encodes the given extension.
+   *
+   * @return the binary representation or <code>null</code> if the extension contains activities
+   *     that are not supported by the binary format
+   */
+  byte[] encode(ActivitiesExtension extension) {
+    final SharedEncoding encoding = encodeShared(extension);
+
+    return encoding == null ? null : encoding.toByteArray();
+  }
+
+  /**
+   * Encodes the given extension, reusing the body of an earlier encoding of the same activities.
+   *
+   * @return the binary representation or <code>null</code> if the extension contains activities
+   *     that are not supported by the binary format
+   */
+  SharedEncoding encodeShared(ActivitiesExtension extension) {
+    final byte[] body = getBody(extension.getActivities());
+
+    if (body == null) return null;
+
+    final Encoder header = new Encoder();
+
+    header.writeByte(FORMAT_VERSION);
+    header.writeString(extension.getSessionID());
+    header.writeSignedVarInt(extension.getSequenceNumber());
+
+    return new SharedEncoding(header.toByteArray(), body);
+  }
+
+  private byte[] getBody(final List<IActivity> activities) {
+    final ActivitiesKey key = new ActivitiesKey(activities);
+
+    synchronized (sharedBodies) {
+      final byte[] body = sharedBodies.get(key);
+
+      if (body != null) return body;
+    }
+
+    final Encoder encoder = new Encoder();
+
+    encoder.writeVarInt(activities.size());
+
+    try {
+      for (final IActivity activity : activities) encoder.writeRecord(getRecord(activity));
+    } catch (UnsupportedTypeException e) {
+      LOG.debug("falling back to XML: " + e.getMessage());
+      return null;
+    }
+
+    final byte[] body = encoder.toByteArray();
+
+    synchronized (sharedBodies) {
+      sharedBodies.put(key, body);
+    }
+
+    return body;
+  }
+
+  private ActivityRecord getRecord(final IActivity activity) throws UnsupportedTypeException {
+    final ActivityKey key = new ActivityKey(activity);
+
+    synchronized (sharedRecords) {
+      final ActivityRecord record = sharedRecords.get(key);
+
+      if (record != null) {
+        recordHits++;
+        return record;
+      }
+    }
+
+    final Encoder encoder = new Encoder();
+
+    encoder.recordReferences();
+    encoder.writeActivity(activity);
+
+    final ActivityRecord record = encoder.toRecord();
+
+    synchronized (sharedRecords) {
+      recordMisses++;
+
+      final ActivityRecord previous = sharedRecords.put(key, record);
+
+      if (previous != null) sharedRecordBytes -= previous.data.length;
+
+      sharedRecordBytes += record.data.length;
+
+      final Iterator<ActivityRecord> eldest = sharedRecords.values().iterator();
+
+      while (sharedRecordBytes > SHARED_RECORD_CACHE_BYTES && eldest.hasNext()) {
+        sharedRecordBytes -= eldest.next().data.length;
+        eldest.remove();
+      }
+    }
+
+    return record;
+  }
+
+  /**
+   * Returns the ratio of the activities whose encoding was reused to all activities that were
+   * encoded as part of an extension since the codec was started.
+   */
+  double getSharedRecordHitRate() {
+    synchronized (sharedRecords) {
+      final long total = recordHits + recordMisses;
+
+      return total == 0 ? 0 : (double) recordHits / total;
+    }
+  }
+
+  /** Decodes an extension that was encoded with {@link #encode(ActivitiesExtension)}. */
+  ActivitiesExtension decode(byte[] data, int offset, int length) throws IOException {
+    final Decoder decoder = new Decoder(data, offset, length);
+
+    final int version = decoder.readUnsignedByte();
+
+    if (version != FORMAT_VERSION)
+      throw new ProtocolException("unsupported format version: " + version);
+
+    final String sessionID = decoder.readString();
+    final int sequenceNumber = decoder.readSignedVarInt();
+    final int count = decoder.readVarInt();
+
+    if (count < 0) throw new ProtocolException("invalid number of activities: " + count);
+
+    final List<IActivity> activities = new ArrayList<IActivity>(Math.min(count, 1024));
+
+    for (int i = 0; i < count; i++) activities.add(decoder.readActivity());
+
+    if (decoder.remaining() != 0)
+      throw new ProtocolException(decoder.remaining() + " trailing byte(s) after activities");
+
+    return new ActivitiesExtension(sessionID, activities, sequenceNumber);
+  }
+
+  @Override
+  public byte[] serialize(final IActivity activity, final List<User> users) {
+    final Encoder encoder = new Encoder();
+
+    encoder.userTable = users;
+
+    try {
+      encoder.writeActivity(activity);
+    } catch (UnsupportedTypeException e) {
+      return null;
+    }
+
+    return encoder.toByteArray();
+  }
+
+  @Override
+  public IActivity deserialize(final byte[] data, final List<User> users) throws IOException {
+    final Decoder decoder = new Decoder(data, 0, data.length);
+
+    // the encoder referred to the users by their index in the list
+    decoder.users.addAll(users);
+
+    final IActivity activity = decoder.readActivity();
+
+    if (decoder.remaining() != 0)
+      throw new ProtocolException(decoder.remaining() + " trailing byte(s) after activity");
+
+    return activity;
+  }
+
+  private final class Encoder {
+    private byte[] buffer = new byte[256];
+    private int count;
+
+    private final Map<User, Integer> users = new HashMap<User, Integer>();
+    private final Map<SPath, Integer> paths = new HashMap<SPath, Integer>();
+
+    /** users that are written as their index in this list instead of their JID, may be null */
+    private List<User> userTable;
+
+    /* the references that are collected instead of written while encoding a record */
+    private List<Object> references;
+    private List<Integer> offsets;
+
+    /**
+     * Makes this encoder collect the references to users and paths instead of writing them, so the
+     * encoded activity can be turned into a {@linkplain #toRecord() record}.
+     */
+    private void recordReferences() {
+      references = new ArrayList<Object>();
+      offsets = new ArrayList<Integer>();
+    }
+
+    /** Writes the given record and resolves its references against the ones already written. */
+    private void writeRecord(final ActivityRecord record) {
+      int offset = 0;
+
+      for (int i = 0; i < record.references.length; i++) {
+        writeRaw(record.data, offset, record.offsets[i] - offset);
+        offset = record.offsets[i];
+
+        final Object reference = record.references[i];
+
+        // a missing user and a missing path are written the same way
+        if (reference instanceof SPath) writePath((SPath) reference);
+        else writeUser((User) reference);
+      }
+
+      writeRaw(record.data, offset, record.data.length - offset);
+    }
+
+    private void writeActivity(final IActivity activity) throws UnsupportedTypeException {
+      final Integer tag = ACTIVITY_TAGS.get(activity.getClass());
+
+      if (tag == null) throw new UnsupportedTypeException(activity);
+
+      writeByte(tag);
+      writeUser(activity.getSource());
+
+      switch (tag) {
+        case CHANGE_COLOR:
+          final ChangeColorActivity changeColor = (ChangeColorActivity) activity;
+          writeUser(changeColor.getTarget());
+          writeUser(changeColor.getAffected());
+          writeSignedVarInt(changeColor.getColorID());
+          break;
+        case CHECKSUM:
+          final ChecksumActivity checksum = (ChecksumActivity) activity;
+          writePath(checksum.getPath());
+          writeSignedVarLong(checksum.getHash());
+          writeSignedVarLong(checksum.getLength());
+          writeTimestamp(checksum.getTimestamp());
+          break;
+        case CHECKSUM_ERROR:
+          final ChecksumErrorActivity checksumError = (ChecksumErrorActivity) activity;
+          writeUser(checksumError.getTarget());
+          writePaths(checksumError.getPaths());
+          writeString(checksumError.getRecoveryID());
+          break;
+        case DELETION_ACKNOWLEDGMENT:
+        case FOLDER_CREATED:
+        case FOLDER_DELETED:
+          writePath(((IResourceActivity) activity).getPath());
+          break;
+        case EDITOR:
+          final EditorActivity editor = (EditorActivity) activity;
+          writeEnum(editor.getType());
+          writePath(editor.getPath());
+          break;
+        case TARGETED_FILE:
+          writeUser(((TargetedFileActivity) activity).getTarget());
+          // $FALL-THROUGH$
+        case FILE:
+          final FileActivity file = (FileActivity) activity;
+          writeEnum(file.getType());
+          writeEnum(
+              file.isRecovery() ? FileActivity.Purpose.RECOVERY : FileActivity.Purpose.ACTIVITY);
+          writePath(file.getPath());
+          writePath(file.getOldPath());
+          writeBytes(file.getContent());
+          writeString(file.getEncoding());
+          break;
+        case JUPITER:
+          final JupiterActivity jupiter = (JupiterActivity) activity;
+          writePath(jupiter.getPath());
+          writeTimestamp(jupiter.getTimestamp());
+          writeOperation(jupiter.getOperation());
+          break;
+        case NOP:
+          final NOPActivity nop = (NOPActivity) activity;
+          writeUser(nop.getTarget());
+          writeSignedVarInt(nop.getID());
+          break;
+        case PERMISSION:
+          final PermissionActivity permission = (PermissionActivity) activity;
+          writeUser(permission.getAffectedUser());
+          writeEnum(permission.getPermission());
+          break;
+        case PROGRESS:
+          final ProgressActivity progress = (ProgressActivity) activity;
+          writeUser(progress.getTarget());
+          writeString(progress.getProgressID());
+          writeSignedVarInt(progress.getWorkCurrent());
+          writeSignedVarInt(progress.getWorkTotal());
+          writeString(progress.getTaskName());
+          writeEnum(progress.getAction());
+          break;
+        case START_FOLLOWING:
+          writeUser(((StartFollowingActivity) activity).getFollowedUser());
+          break;
+        case STOP:
+          final StopActivity stop = (StopActivity) activity;
+          writeUser(stop.getInitiator());
+          writeUser(stop.getAffected());
+          writeEnum(stop.getType());
+          writeEnum(stop.getState());
+          writeString(stop.getActivityID());
+          break;
+        case STOP_FOLLOWING:
+          break;
+        case TEXT_SELECTION:
+          final TextSelectionActivity textSelection = (TextSelectionActivity) activity;
+          writePath(textSelection.getPath());
+          writeSignedVarInt(textSelection.getOffset());
+          writeSignedVarInt(textSelection.getLength());
+          break;
+        case VIEWPORT:
+          final ViewportActivity viewport = (ViewportActivity) activity;
+          writePath(viewport.getPath());
+          writeSignedVarInt(viewport.getStartLine());
+          writeSignedVarInt(viewport.getNumberOfLines());
+          break;
+        default:
+          throw new UnsupportedTypeException(activity);
+      }
+    }
+
+    private void writeOperation(final Operation operation) throws UnsupportedTypeException {
+      final Class<?> clazz = operation.getClass();
+
+      if (clazz == InsertOperation.class) {
+        final InsertOperation insert = (InsertOperation) operation;
+        writeByte(INSERT_OPERATION);
+        writeVarInt(insert.getPosition());
+        writeString(insert.getText());
+        writeVarInt(insert.getOrigin());
+      } else if (clazz == DeleteOperation.class) {
+        final DeleteOperation delete = (DeleteOperation) operation;
+        writeByte(DELETE_OPERATION);
+        writeVarInt(delete.getPosition());
+        writeString(delete.getText());
+      } else if (clazz == SplitOperation.class) {
+        final SplitOperation split = (SplitOperation) operation;
+        writeByte(SPLIT_OPERATION);
+        writeOperation(split.getFirst());
+        writeOperation(split.getSecond());
+      } else if (clazz == NoOperation.class) {
+        writeByte(NO_OPERATION);
+      } else if (clazz == TimestampOperation.class) {
+        writeByte(TIMESTAMP_OPERATION);
+      } else {
+        throw new UnsupportedTypeException(operation);
+      }
+    }
+
+    private void writeTimestamp(final Timestamp timestamp) throws UnsupportedTypeException {
+      if (timestamp == null) {
+        writeByte(0);
+        return;
+      }
+
+      if (timestamp.getClass() != JupiterVectorTime.class)
+        throw new UnsupportedTypeException(timestamp);
+
+      final JupiterVectorTime vectorTime = (JupiterVectorTime) timestamp;
+      writeByte(1);
+      writeVarInt(vectorTime.getLocalOperationCount());
+      writeVarInt(vectorTime.getRemoteOperationCount());
+    }
+
+    // the JID is the only identity of a user that the receiver can resolve
+    @SuppressWarnings("deprecation")
+    private void writeUser(final User user) {
+      if (references != null) {
+        references.add(user);
+        offsets.add(count);
+        return;
+      }
+
+      if (user == null) {
+        writeVarInt(NULL_REFERENCE);
+        return;
+      }
+
+      if (userTable != null) {
+        int index = userTable.indexOf(user);
+
+        if (index < 0) {
+          index = userTable.size();
+          userTable.add(user);
+        }
+
+        writeVarInt(FIRST_REFERENCE + index);
+        return;
+      }
+
+      final Integer index = users.get(user);
+
+      if (index != null) {
+        writeVarInt(FIRST_REFERENCE + index);
+        return;
+      }
+
+      users.put(user, users.size());
+      writeVarInt(NEW_REFERENCE);
+      writeString(user.getJID().toString());
+    }
+
+    private void writePath(final SPath path) {
+      if (references != null) {
+        references.add(path);
+        offsets.add(count);
+        return;
+      }
+
+      if (path == null) {
+        writeVarInt(NULL_REFERENCE);
+        return;
+      }
+
+      final Integer index = paths.get(path);
+
+      if (index != null) {
+        writeVarInt(FIRST_REFERENCE + index);
+        return;
+      }
+
+      final String projectID = session.getProjectID(path.getProject());
+
+      if (projectID == null) {
+        LOG.error(
+            "Could not retrieve project id for project '"
+                + path.getProject().getName()
+                + "'. Make sure you don't create activities for non-shared projects");
+        writeVarInt(NULL_REFERENCE);
+        return;
+      }
+
+      paths.put(path, paths.size());
+      writeVarInt(NEW_REFERENCE);
+      writeString(projectID);
+      writeString(pathFactory.fromPath(path.getProjectRelativePath()));
+    }
+
+    private void writePaths(final List<SPath> paths) {
+      if (paths == null) {
+        writeVarInt(0);
+        return;
+      }
+
+      writeVarInt(paths.size() + 1);
+
+      for (final SPath path : paths) writePath(path);
+    }
+
+    private void writeEnum(final Enum<?> value) {
+      writeByte(value == null ? 0 : value.ordinal() + 1);
+    }
+
+    private void writeBytes(final byte[] bytes) {
+      if (bytes == null) {
+        writeVarInt(0);
+        return;
+      }
+
+      writeVarInt(bytes.length + 1);
+      writeRaw(bytes, 0, bytes.length);
+    }
+
+    private void writeRaw(final byte[] bytes, final int offset, final int length) {
+      ensureCapacity(length);
+      System.arraycopy(bytes, offset, buffer, count, length);
+      count += length;
+    }
+
+    private void writeString(final String string) {
+      if (string == null) {
+        writeVarInt(0);
+        return;
+      }
+
+      final int length = string.length();
+
+      writeVarInt(length + 1);
+      ensureCapacity(length * 3);
+
+      for (int i = 0; i < length; i++) {
+        final char c = string.charAt(i);
+
+        if (c < 0x80) {
+          buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+          buffer[count++] = (byte) (0xC0 | (c >> 6));
+          buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+          buffer[count++] = (byte) (0xE0 | (c >> 12));
+          buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    private void writeSignedVarInt(final int value) {
+      writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    private void writeSignedVarLong(final long value) {
+      long v = (value << 1) ^ (value >> 63);
+
+      ensureCapacity(10);
+
+      while ((v & ~0x7FL) != 0) {
+        buffer[count++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+
+      buffer[count++] = (byte) v;
+    }
+
+    private void writeVarInt(int value) {
+      ensureCapacity(5);
+
+      while ((value & ~0x7F) != 0) {
+        buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+
+      buffer[count++] = (byte) value;
+    }
+
+    private void writeByte(final int value) {
+      ensureCapacity(1);
+      buffer[count++] = (byte) value;
+    }
+
+    private void ensureCapacity(final int additional) {
+      if (count + additional <= buffer.length) return;
+
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + additional));
+    }
+
+    private byte[] toByteArray() {
+      return Arrays.copyOf(buffer, count);
+    }
+
+    private ActivityRecord toRecord() {
+      final int[] recordOffsets = new int[offsets.size()];
+
+      for (int i = 0; i < recordOffsets.length; i++) recordOffsets[i] = offsets.get(i);
+
+      return new ActivityRecord(toByteArray(), references.toArray(), recordOffsets);
+    }
+  }
+
+  private final class Decoder {
+    private final byte[] data;
+    private final int limit;
+    private int position;
+
+    private final List<User> users = new ArrayList<User>();
+    private final List<SPath> paths = new ArrayList<SPath>();
+
+    private Decoder(final byte[] data, final int offset, final int length) {
+      if (offset < 0 || length < 0 || offset + length > data.length)
+        throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length);
+
+      this.data = data;
+      this.position = offset;
+      this.limit = offset + length;
+    }
+
+    private IActivity readActivity() throws IOException {
+      final int tag = readUnsignedByte();
+      final User source = readUser();
+
+      try {
+        return readActivity(tag, source);
+      } catch (IllegalArgumentException e) {
+        if (source == null)
+          throw new ProtocolException("source of activity with type " + tag + " is unknown");
+
+        LOG.warn("could not reconstruct activity with type " + tag + ": " + e.getMessage());
+
+        return new NOPActivity(source, session.getLocalUser(), UNDECODABLE_ACTIVITY_ID);
+      }
+    }
+
+    private IActivity readActivity(final int tag, final User source) throws IOException {
+      switch (tag) {
+        case CHANGE_COLOR:
+          return new ChangeColorActivity(source, readUser(), readUser(), readSignedVarInt());
+        case CHECKSUM:
+          return new ChecksumActivity(
+              source, readPath(), readSignedVarLong(), readSignedVarLong(), readTimestamp());
+        case CHECKSUM_ERROR:
+          return new ChecksumErrorActivity(source, readUser(), readPaths(), readString());
+        case DELETION_ACKNOWLEDGMENT:
+          return new DeletionAcknowledgmentActivity(source, readPath());
+        case EDITOR:
+          final EditorActivity.Type editorType = readEnum(EditorActivity.Type.values());
+          return new EditorActivity(source, editorType, readPath());
+        case FILE:
+          {
+            final FileActivity.Type type = readEnum(FileActivity.Type.values());
+            final FileActivity.Purpose purpose = readEnum(FileActivity.Purpose.values());
+            return new FileActivity(
+                source, type, purpose, readPath(), readPath(), readBytes(), readString());
+          }
+        case FOLDER_CREATED:
+          return new FolderCreatedActivity(source, readPath());
+        case FOLDER_DELETED:
+          return new FolderDeletedActivity(source, readPath());
+        case JUPITER:
+          {
+            final SPath path = readPath();
+            final Timestamp timestamp = readTimestamp();
+            return new JupiterActivity(timestamp, readOperation(), source, path);
+          }
+        case NOP:
+          return new NOPActivity(source, readUser(), readSignedVarInt());
+        case PERMISSION:
+          return new PermissionActivity(source, readUser(), readEnum(User.Permission.values()));
+        case PROGRESS:
+          return new ProgressActivity(
+              source,
+              readUser(),
+              readString(),
+              readSignedVarInt(),
+              readSignedVarInt(),
+              readString(),
+              readEnum(ProgressActivity.ProgressAction.values()));
+        case TARGETED_FILE:
+          {
+            final User target = readUser();
+            final FileActivity.Type type = readEnum(FileActivity.Type.values());
+            final FileActivity.Purpose purpose = readEnum(FileActivity.Purpose.values());
+            return new TargetedFileActivity(
+                source, target, type, readPath(), readPath(), readBytes(), readString(), purpose);
+          }
+        case START_FOLLOWING:
+          return new StartFollowingActivity(source, readUser());
+        case STOP:
+          return new StopActivity(
+              source,
+              readUser(),
+              readUser(),
+              readEnum(StopActivity.Type.values()),
+              readEnum(StopActivity.State.values()),
+              readString());
+        case STOP_FOLLOWING:
+          return new StopFollowingActivity(source);
+        case TEXT_SELECTION:
+          {
+            final SPath path = readPath();
+            return new TextSelectionActivity(source, readSignedVarInt(), readSignedVarInt(), path);
+          }
+        case VIEWPORT:
+          {
+            final SPath path = readPath();
+            return new ViewportActivity(source, readSignedVarInt(), readSignedVarInt(), path);
+          }
+        default:
+          throw new ProtocolException("unknown activity type: " + tag);
+      }
+    }
+
+    private Operation readOperation() throws IOException {
+      final int tag = readUnsignedByte();
+
+      switch (tag) {
+        case INSERT_OPERATION:
+          return new InsertOperation(readVarInt(), readString(), readVarInt());
+        case DELETE_OPERATION:
+          return new DeleteOperation(readVarInt(), readString());
+        case SPLIT_OPERATION:
+          return new SplitOperation(readOperation(), readOperation());
+        case NO_OPERATION:
+          return new NoOperation();
+        case TIMESTAMP_OPERATION:
+          return new TimestampOperation();
+        default:
+          throw new ProtocolException("unknown operation type: " + tag);
+      }
+    }
+
+    private Timestamp readTimestamp() throws IOException {
+      if (readUnsignedByte() == 0) return null;
+
+      return new JupiterVectorTime(readVarInt(), readVarInt());
+    }
+
+    private User readUser() throws IOException {
+      final int reference = readVarInt();
+
+      if (reference == NULL_REFERENCE) return null;
+
+      if (reference == NEW_REFERENCE) {
+        final String jid = readString();
+
+        if (jid == null) throw new ProtocolException("user without JID");
+
+        final User user = session.getUser(new JID(jid));
+        users.add(user);
+        return user;
+      }
+
+      final int index = reference - FIRST_REFERENCE;
+
+      if (index < 0 || index >= users.size())
+        throw new ProtocolException("invalid user reference: " + reference);
+
+      return users.get(index);
+    }
+
+    private SPath readPath() throws IOException {
+      final int reference = readVarInt();
+
+      if (reference == NULL_REFERENCE) return null;
+
+      if (reference == NEW_REFERENCE) {
+        final String projectID = readString();
+        final String path = readString();
+
+        if (path == null) throw new ProtocolException("path without value");
+
+        final IProject project = session.getProject(projectID);
+
+        SPath spath = null;
+
+        if (project == null)
+          LOG.error(
+              "Could not create SPath because there is no shared project for id '"
+                  + projectID
+                  + "'");
+        else spath = new SPath(project, pathFactory.fromString(path));
+
+        paths.add(spath);
+        return spath;
+      }
+
+      final int index = reference - FIRST_REFERENCE;
+
+      if (index < 0 || index >= paths.size())
+        throw new ProtocolException("invalid path reference: " + reference);
+
+      return paths.get(index);
+    }
+
+    private List<SPath> readPaths() throws IOException {
+      final int size = readLength();
+
+      if (size < 0) return null;
+
+      final List<SPath> result = new ArrayList<SPath>(Math.min(size, 1024));
+
+      for (int i = 0; i < size; i++) result.add(readPath());
+
+      return result;
+    }
+
+    private <E extends Enum<E>> E readEnum(final E[] values) throws IOException {
+      final int value = readUnsignedByte();
+
+      if (value == 0) return null;
+
+      if (value > values.length)
+        throw new ProtocolException("invalid enum value " + value + " for " + values[0].getClass());
+
+      return values[value - 1];
+    }
+
+    private byte[] readBytes() throws IOException {
+      final int length = readLength();
+
+      if (length < 0) return null;
+
+      if (length > remaining()) throw new EOFException();
+
+      final byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+      position += length;
+      return bytes;
+    }
+
+    private String readString() throws IOException {
+      final int length = readLength();
+
+      if (length < 0) return null;
+
+      // every character takes at least one byte
+      if (length > remaining()) throw new EOFException();
+
+      final char[] chars = new char[length];
+
+      for (int i = 0; i < length; i++) {
+        final int b = readUnsignedByte();
+
+        if (b < 0x80) {
+          chars[i] = (char) b;
+        } else if ((b & 0xE0) == 0xC0) {
+          chars[i] = (char) (((b & 0x1F) << 6) | readContinuationByte());
+        } else if ((b & 0xF0) == 0xE0) {
+          chars[i] = (char) (((b & 0x0F) << 12) | (readContinuationByte() << 6));
+          chars[i] |= (char) readContinuationByte();
+        } else {
+          throw new ProtocolException("malformed character encoding");
+        }
+      }
+
+      return new String(chars);
+    }
+
+    private int readContinuationByte() throws IOException {
+      final int b = readUnsignedByte();
+
+      if ((b & 0xC0) != 0x80) throw new ProtocolException("malformed character encoding");
+
+      return b & 0x3F;
+    }
+
+    /**
+     * Reads a length that was written with an offset of one to encode <code>null</code> values.
+     *
+     * @return the length or -1 for <code>null</code>
+     */
+    private int readLength() throws IOException {
+      final int value = readVarInt();
+
+      if (value < 0) throw new ProtocolException("invalid length: " + value);
+
+      return value - 1;
+    }
+
+    private int readSignedVarInt() throws IOException {
+      final int value = readVarInt();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readSignedVarLong() throws IOException {
+      long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        final int b = readUnsignedByte();
+        value |= (long) (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) return (value >>> 1) ^ -(value & 1);
+      }
+
+      throw new ProtocolException("malformed variable length integer");
+    }
+
+    private int readVarInt() throws IOException {
+      int value = 0;
+
+      for (int shift = 0; shift < 32; shift += 7) {
+        final int b = readUnsignedByte();
+        value |= (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) return value;
+      }
+
+      throw new ProtocolException("malformed variable length integer");
+    }
+
+    private int readUnsignedByte() throws IOException {
+      if (position >= limit) throw new EOFException();
+
+      return data[position++] & 0xFF;
+    }
+
+    private int remaining() {
+      return limit - position;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package saros.session.internal;
+
+import java.io.IOException;
+import java.util.List;
+import saros.activities.IActivity;
+import saros.session.User;
+
+/** Converts single {@linkplain IActivity activities} into a binary representation and back. */
+interface IActivitySerializer {
+
+  /**
+   * Serializes the given activity. The users of the activity are written as their index in the
+   * given list, so the activity can be deserialized even if they are no longer part of the session.
+   *
+   * @param activity the activity to serialize
+   * @param users the users the serialized activities refer to, users that are not contained yet are
+   *     appended
+   * @return the binary representation or <code>null</code> if the activity cannot be serialized
+   */
+  byte[] serialize(IActivity activity, List<User> users);
+
+  /**
+   * Deserializes an activity that was serialized with {@link #serialize(IActivity, List)}.
+   *
+   * @param data the binary representation
+   * @param users the list of users that was passed when the activity was serialized
+   * @return the activity
+   * @throws IOException if the data is malformed or the activity cannot be reconstructed, e.g.
+   *     because its project is no longer shared
+   */
+  IActivity deserialize(byte[] data, List<User> users) throws IOException;
+}
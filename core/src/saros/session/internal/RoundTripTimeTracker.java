@@ -0,0 +1,105 @@
+package saros.session.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import saros.repackaged.picocontainer.Startable;
+import saros.session.ISarosSession;
+import saros.session.ISessionListener;
+import saros.session.User;
+
+/**
+ * Keeps a smoothed round trip time and its variation (jitter) for every remote user of the session.
+ * The estimates are calculated like the retransmission timer of TCP (RFC 6298) from the samples
+ * that are recorded by the session timeout handling.
+ */
+public final class RoundTripTimeTracker implements Startable {
+
+  private static final class Estimate {
+    private final long roundTripTime;
+    private final long variation;
+
+    private Estimate(final long roundTripTime, final long variation) {
+      this.roundTripTime = roundTripTime;
+      this.variation = variation;
+    }
+  }
+
+  private final ISarosSession session;
+
+  private final Map<User, Estimate> estimates = new ConcurrentHashMap<User, Estimate>();
+
+  private final ISessionListener sessionListener =
+      new ISessionListener() {
+        @Override
+        public void userLeft(final User user) {
+          estimates.remove(user);
+        }
+      };
+
+  public RoundTripTimeTracker(final ISarosSession session) {
+    this.session = session;
+  }
+
+  @Override
+  public void start() {
+    session.addListener(sessionListener);
+  }
+
+  @Override
+  public void stop() {
+    session.removeListener(sessionListener);
+    estimates.clear();
+  }
+
+  /**
+   * Records a measured round trip time to the given user.
+   *
+   * @param user the remote user
+   * @param roundTripTime the measured round trip time in milliseconds
+   */
+  public void record(final User user, final long roundTripTime) {
+    if (roundTripTime < 0) return;
+
+    synchronized (estimates) {
+      final Estimate current = estimates.get(user);
+
+      final Estimate next;
+
+      if (current == null) {
+        next = new Estimate(roundTripTime, roundTripTime / 2);
+      } else {
+        final long deviation = Math.abs(current.roundTripTime - roundTripTime);
+
+        next =
+            new Estimate(
+                (7 * current.roundTripTime + roundTripTime) / 8,
+                (3 * current.variation + deviation) / 4);
+      }
+
+      estimates.put(user, next);
+    }
+  }
+
+  /**
+   * Returns the smoothed round trip time to the given user.
+   *
+   * @param user the remote user
+   * @return the round trip time in milliseconds or <code>-1</code> if it was not measured yet
+   */
+  public long getRoundTripTime(final User user) {
+    final Estimate estimate = estimates.get(user);
+    return estimate == null ? -1 : estimate.roundTripTime;
+  }
+
+  /**
+   * Returns the variation of the round trip time to the given user.
+   *
+   * @param user the remote user
+   * @return the variation in milliseconds or <code>-1</code> if the round trip time was not
+   *     measured yet
+   */
+  public long getRoundTripTimeVariation(final User user) {
+    final Estimate estimate = estimates.get(user);
+    return estimate == null ? -1 : estimate.variation;
+  }
+}
@@ -105,6 +105,25 @@ public final class SarosSession implements ISarosSession {
   private final List<IActivityConsumer> passiveActivityConsumers =
       new CopyOnWriteArrayList<IActivityConsumer>();
 
+  /** The consumers that are interested in an activity type, in the order they are notified. */
+  private static final class ConsumerDispatch {
+    private final IActivityConsumer[] passiveConsumers;
+    private final IActivityConsumer[] activeConsumers;
+
+    private ConsumerDispatch(
+        final IActivityConsumer[] passiveConsumers, final IActivityConsumer[] activeConsumers) {
+      this.passiveConsumers = passiveConsumers;
+      this.activeConsumers = activeConsumers;
+    }
+  }
+
+  /**
+   * dispatch table by activity type, it is cleared whenever a consumer is added or removed while
+   * holding its monitor
+   */
+  private final Map<Class<?>, ConsumerDispatch> consumerDispatchTable =
+      new ConcurrentHashMap<Class<?>, ConsumerDispatch>();
+
   /* Instance fields */
   private final User localUser;
 
@@ -128,6 +147,8 @@ public final class SarosSession implements ISarosSession {
 
   private final UserInformationHandler userListHandler;
 
+  private final RoundTripTimeTracker roundTripTimeTracker;
+
   private final String sessionID;
 
   private boolean started = false;
@@ -183,7 +204,9 @@ public final class SarosSession implements ISarosSession {
            * that should be executed locally. This is the first dispatch: Each activity is
            * dispatched to an array of consumers.
            */
-          for (IActivityConsumer consumer : passiveActivityConsumers) {
+          final ConsumerDispatch dispatch = getConsumerDispatch(activity.getClass());
+
+          for (IActivityConsumer consumer : dispatch.passiveConsumers) {
             try {
               consumer.exec(activity);
             } catch (RuntimeException e) {
@@ -196,7 +219,7 @@ public final class SarosSession implements ISarosSession {
             }
           }
 
-          for (IActivityConsumer consumer : activeActivityConsumers) {
+          for (IActivityConsumer consumer : dispatch.activeConsumers) {
             try {
               consumer.exec(activity);
             } catch (RuntimeException e) {
@@ -359,6 +382,16 @@ public final class SarosSession implements ISarosSession {
     return localUser.isHost();
   }
 
+  @Override
+  public long getRoundTripTime(User user) {
+    return roundTripTimeTracker.getRoundTripTime(user);
+  }
+
+  @Override
+  public long getRoundTripTimeVariation(User user) {
+    return roundTripTimeTracker.getRoundTripTimeVariation(user);
+  }
+
   @Override
   public boolean hasWriteAccess() {
     return localUser.hasWriteAccess();
@@ -628,6 +661,8 @@ public final class SarosSession implements ISarosSession {
     sessionContainer.stop();
     sessionContainer.dispose();
 
+    activityQueuer.clear();
+
     if (reason == SessionEndReason.LOCAL_USER_LEFT) {
       notifyParticipants();
     }
@@ -716,8 +751,7 @@ public final class SarosSession implements ISarosSession {
       else log.error("could not handle incoming activity: " + activity);
     }
 
-    List<IActivity> processed = activityQueuer.process(valid);
-    activityHandler.handleIncomingActivities(processed);
+    activityQueuer.process(valid, activityHandler::handleIncomingActivities);
   }
 
   /*
@@ -942,22 +976,69 @@ public final class SarosSession implements ISarosSession {
   @Override
   public void addActivityConsumer(IActivityConsumer consumer, Priority priority) {
 
-    removeActivityConsumer(consumer);
+    synchronized (consumerDispatchTable) {
+      removeActivityConsumer(consumer);
+
+      switch (priority) {
+        case ACTIVE:
+          activeActivityConsumers.add(consumer);
+          break;
+        case PASSIVE:
+          passiveActivityConsumers.add(consumer);
+          break;
+      }
 
-    switch (priority) {
-      case ACTIVE:
-        activeActivityConsumers.add(consumer);
-        break;
-      case PASSIVE:
-        passiveActivityConsumers.add(consumer);
-        break;
+      consumerDispatchTable.clear();
     }
   }
 
   @Override
   public void removeActivityConsumer(IActivityConsumer consumer) {
-    activeActivityConsumers.remove(consumer);
-    passiveActivityConsumers.remove(consumer);
+    synchronized (consumerDispatchTable) {
+      activeActivityConsumers.remove(consumer);
+      passiveActivityConsumers.remove(consumer);
+
+      consumerDispatchTable.clear();
+    }
+  }
+
+  /** Returns the consumers that handle activities of the given type. */
+  private ConsumerDispatch getConsumerDispatch(final Class<?> activityType) {
+    ConsumerDispatch dispatch = consumerDispatchTable.get(activityType);
+
+    if (dispatch != null) return dispatch;
+
+    synchronized (consumerDispatchTable) {
+      dispatch = consumerDispatchTable.get(activityType);
+
+      if (dispatch == null) {
+        dispatch =
+            new ConsumerDispatch(
+                getConsumers(passiveActivityConsumers, activityType),
+                getConsumers(activeActivityConsumers, activityType));
+
+        consumerDispatchTable.put(activityType, dispatch);
+      }
+
+      return dispatch;
+    }
+  }
+
+  private static IActivityConsumer[] getConsumers(
+      final List<IActivityConsumer> consumers, final Class<?> activityType) {
+
+    final List<IActivityConsumer> result = new ArrayList<IActivityConsumer>();
+
+    for (final IActivityConsumer consumer : consumers) {
+      for (final Class<? extends IActivity> type : consumer.getActivityTypes()) {
+        if (type.isAssignableFrom(activityType)) {
+          result.add(consumer);
+          break;
+        }
+      }
+    }
+
+    return result.toArray(new IActivityConsumer[result.size()]);
   }
 
   @Override
@@ -1065,7 +1146,6 @@ public final class SarosSession implements ISarosSession {
 
     this.sessionID = id;
     this.projectMapper = new SharedProjectMapper();
-    this.activityQueuer = new ActivityQueuer();
     this.containerContext = context;
 
     // FIXME that should be passed in !
@@ -1096,6 +1176,8 @@ public final class SarosSession implements ISarosSession {
     // Force the creation of the components added to the session container.
     sessionContainer.getComponents();
 
+    activityQueuer = new ActivityQueuer(sessionContainer.getComponent(BinaryActivityCodec.class));
+
     concurrentDocumentClient = sessionContainer.getComponent(ConcurrentDocumentClient.class);
 
     activityHandler = sessionContainer.getComponent(ActivityHandler.class);
@@ -1110,6 +1192,8 @@ public final class SarosSession implements ISarosSession {
 
     userListHandler = sessionContainer.getComponent(UserInformationHandler.class);
 
+    roundTripTimeTracker = sessionContainer.getComponent(RoundTripTimeTracker.class);
+
     // ensure that the container uses caching
     assert sessionContainer.getComponent(ActivityHandler.class)
             == sessionContainer.getComponent(ActivityHandler.class)
@@ -28,6 +28,9 @@ public final class ClientSessionTimeoutHandler extends SessionTimeoutHandler {
 
   private long lastPingReceived;
 
+  /** timestamp of the last received ping that is echoed by the next pong */
+  private long lastPingTimestamp;
+
   private Thread workerThread;
 
   private final PacketListener pingPacketListener =
@@ -35,8 +38,11 @@ public final class ClientSessionTimeoutHandler extends SessionTimeoutHandler {
 
         @Override
         public void processPacket(Packet packet) {
+          final PingExtension ping = PingExtension.PROVIDER.getPayload(packet);
+
           synchronized (ClientSessionTimeoutHandler.this) {
             lastPingReceived = System.currentTimeMillis();
+            lastPingTimestamp = ping != null ? ping.getTimestamp() : 0;
             pingReceived = true;
             ClientSessionTimeoutHandler.this.notifyAll();
           }
@@ -51,6 +57,7 @@ public final class ClientSessionTimeoutHandler extends SessionTimeoutHandler {
           while (true) {
 
             boolean abort = false;
+            long pingTimestamp;
 
             synchronized (ClientSessionTimeoutHandler.this) {
               while (!pingReceived && !shutdown) {
@@ -71,6 +78,7 @@ public final class ClientSessionTimeoutHandler extends SessionTimeoutHandler {
               if (shutdown) return;
 
               pingReceived = false;
+              pingTimestamp = lastPingTimestamp;
             }
 
             if (abort) {
@@ -83,7 +91,8 @@ public final class ClientSessionTimeoutHandler extends SessionTimeoutHandler {
               transmitter.send(
                   ISarosSession.SESSION_CONNECTION_ID,
                   session.getHost().getJID(),
-                  PongExtension.PROVIDER.create(new PongExtension(currentSessionID)));
+                  PongExtension.PROVIDER.create(
+                      new PongExtension(currentSessionID, pingTimestamp)));
             } catch (IOException e) {
               LOG.error("failed to send pong", e);
               handleNetworkError(session.getHost().getJID(), "tx");
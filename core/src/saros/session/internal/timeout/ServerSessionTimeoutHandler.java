@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Packet;
@@ -18,10 +19,12 @@ import saros.session.ISarosSessionManager;
 import saros.session.ISessionListener;
 import saros.session.User;
 import saros.session.internal.ActivitySequencer;
+import saros.session.internal.RoundTripTimeTracker;
 import saros.util.ThreadUtils;
 
 /**
- * Component for detecting network errors on the server side of a session.
+ * Component for detecting network errors on the server side of a session. The pongs echo the time
+ * the ping was sent, which is used to measure the round trip time to every user.
  *
  * @author srossbach
  */
@@ -33,6 +36,8 @@ public final class ServerSessionTimeoutHandler extends SessionTimeoutHandler {
 
   private boolean shutdown;
 
+  private final RoundTripTimeTracker roundTripTimeTracker;
+
   /** List containing the current users of the session including their last pong response time. */
   private final List<UserPongStatus> currentUsers = new ArrayList<UserPongStatus>();
 
@@ -52,13 +57,29 @@ public final class ServerSessionTimeoutHandler extends SessionTimeoutHandler {
 
         @Override
         public void processPacket(Packet packet) {
+          final long receivedTime = System.nanoTime();
+
           JID jid = new JID(packet.getFrom());
+          User user = null;
+
           synchronized (ServerSessionTimeoutHandler.this) {
             for (UserPongStatus status : currentUsers) {
-              if (status.user.getJID().strictlyEquals(jid))
+              if (status.user.getJID().strictlyEquals(jid)) {
                 status.lastPongReceivedTime = System.currentTimeMillis();
+                user = status.user;
+              }
             }
           }
+
+          if (user == null) return;
+
+          final PongExtension pong = PongExtension.PROVIDER.getPayload(packet);
+
+          // 0 if the pong was sent by a client that does not echo the timestamp
+          if (pong == null || pong.getTimestamp() == 0) return;
+
+          roundTripTimeTracker.record(
+              user, TimeUnit.NANOSECONDS.toMillis(receivedTime - pong.getTimestamp()));
         }
       };
 
@@ -95,7 +116,8 @@ public final class ServerSessionTimeoutHandler extends SessionTimeoutHandler {
                 transmitter.send(
                     ISarosSession.SESSION_CONNECTION_ID,
                     user.getJID(),
-                    PingExtension.PROVIDER.create(new PingExtension(currentSessionID)));
+                    PingExtension.PROVIDER.create(
+                        new PingExtension(currentSessionID, System.nanoTime())));
               } catch (IOException e) {
 
                 removedUsers.add(user);
@@ -147,8 +169,10 @@ public final class ServerSessionTimeoutHandler extends SessionTimeoutHandler {
       ISarosSessionManager sessionManager,
       ActivitySequencer sequencer,
       ITransmitter transmitter,
-      IReceiver receiver) {
+      IReceiver receiver,
+      RoundTripTimeTracker roundTripTimeTracker) {
     super(session, sessionManager, sequencer, transmitter, receiver);
+    this.roundTripTimeTracker = roundTripTimeTracker;
   }
 
   @Override
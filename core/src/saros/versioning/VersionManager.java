@@ -2,12 +2,16 @@ package saros.versioning;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.filter.AndFilter;
@@ -36,6 +40,29 @@ public class VersionManager {
   private static final String VERSION_KEY = "version";
   private static final String COMPATIBILITY_KEY = "compatibility";
   private static final String ID_KEY = "id";
+  private static final String FEATURES_KEY = "features";
+
+  /**
+   * Feature indicating that activities can be exchanged in the compact binary format instead of
+   * XML. The suffix is the version of the format.
+   */
+  public static final String BINARY_ACTIVITIES_FEATURE = "binary-activities-1";
+
+  /**
+   * Feature indicating that received activities are acknowledged, so the sender may limit the
+   * number of activities that are in flight.
+   */
+  public static final String ACTIVITY_ACKNOWLEDGMENT_FEATURE = "activity-acknowledgment-1";
+
+  /**
+   * Feature indicating that the peer answers requests for its addresses, so it can be reached by
+   * direct TCP connections.
+   */
+  public static final String TCP_TRANSPORT_FEATURE = "tcp-transport-1";
+
+  private static final boolean BINARY_ACTIVITIES_ENABLED =
+      Boolean.valueOf(
+          System.getProperty("saros.versioning.BINARY_ACTIVITIES", Boolean.TRUE.toString()));
 
   private static final Random ID_GENERATOR = new Random();
 
@@ -54,6 +81,11 @@ public class VersionManager {
   private final ITransmitter transmitter;
   private final IReceiver receiver;
 
+  private volatile Set<String> localFeatures = Collections.emptySet();
+
+  /** The features announced by remote peers during the last version exchange with them. */
+  private final Map<JID, Set<String>> remoteFeatures = new ConcurrentHashMap<JID, Set<String>>();
+
   private final PacketListener versionRequestListener =
       new PacketListener() {
         /*
@@ -73,11 +105,15 @@ public class VersionManager {
             return;
           }
 
+          if (packet.getFrom() != null)
+            rememberRemoteFeatures(new JID(packet.getFrom()), versionExchangeRequest);
+
           VersionExchangeExtension versionExchangeResponse = new VersionExchangeExtension();
 
           createResponseData:
           {
             versionExchangeResponse.set(VERSION_KEY, localVersion.toString());
+            versionExchangeResponse.set(FEATURES_KEY, joinFeatures(localFeatures));
             versionExchangeResponse.set(
                 COMPATIBILITY_KEY, String.valueOf(Compatibility.UNKNOWN.getCode()));
 
@@ -126,6 +162,11 @@ public class VersionManager {
 
     setCompatibilityChart(null);
 
+    if (BINARY_ACTIVITIES_ENABLED)
+      setLocalFeatures(
+          ACTIVITY_ACKNOWLEDGMENT_FEATURE, TCP_TRANSPORT_FEATURE, BINARY_ACTIVITIES_FEATURE);
+    else setLocalFeatures(ACTIVITY_ACKNOWLEDGMENT_FEATURE, TCP_TRANSPORT_FEATURE);
+
     this.receiver = receiver;
     this.transmitter = transmitter;
 
@@ -161,6 +202,8 @@ public class VersionManager {
 
     if (versionExchangeResponse == null) return null;
 
+    rememberRemoteFeatures(rqJID, versionExchangeResponse);
+
     Compatibility remoteCompatibility = Compatibility.UNKNOWN;
     Compatibility compatibility = Compatibility.UNKNOWN;
     Version remoteVersion = Version.INVALID;
@@ -204,6 +247,24 @@ public class VersionManager {
     return new VersionCompatibilityResult(compatibility, localVersion, remoteVersion);
   }
 
+  /**
+   * Returns whether the given feature is supported by the local Saros instance and by the given
+   * peer. The features of a peer are only known after a version exchange with it took place, e.g.
+   * during a session negotiation.
+   *
+   * @param rqJID the resource qualified JID of the peer
+   * @param feature the feature, e.g. {@link #BINARY_ACTIVITIES_FEATURE}
+   * @return <code>true</code> if both sides support the feature, <code>false</code> otherwise or if
+   *     no version exchange with the peer took place so far
+   */
+  public boolean isFeatureSupported(final JID rqJID, final String feature) {
+    if (!localFeatures.contains(feature)) return false;
+
+    final Set<String> features = remoteFeatures.get(rqJID);
+
+    return features != null && features.contains(feature);
+  }
+
   /**
    * Sets an compatibility char that contains additional version information. The chart should be
    * loaded from a property file which must use the following syntax:
@@ -267,6 +328,7 @@ public class VersionManager {
 
     versionExchangeRequest.set(VERSION_KEY, localVersion.toString());
     versionExchangeRequest.set(ID_KEY, String.valueOf(exchangeID));
+    versionExchangeRequest.set(FEATURES_KEY, joinFeatures(localFeatures));
 
     IQ request = VersionExchangeExtension.PROVIDER.createIQ(versionExchangeRequest);
 
@@ -303,6 +365,42 @@ public class VersionManager {
     }
   }
 
+  private void rememberRemoteFeatures(final JID jid, final VersionExchangeExtension data) {
+    final String features = data.get(FEATURES_KEY);
+
+    if (features == null || features.isEmpty()) {
+      remoteFeatures.remove(jid);
+      return;
+    }
+
+    final Set<String> featureSet = new HashSet<String>();
+
+    for (final String feature : features.split(",")) {
+      if (!feature.trim().isEmpty()) featureSet.add(feature.trim());
+    }
+
+    remoteFeatures.put(jid, Collections.unmodifiableSet(featureSet));
+  }
+
+  private static String joinFeatures(final Set<String> features) {
+    final StringBuilder builder = new StringBuilder();
+
+    for (final String feature : features) {
+      if (builder.length() > 0) builder.append(',');
+
+      builder.append(feature);
+    }
+
+    return builder.toString();
+  }
+
+  // package protected only for testing purposes !
+  void setLocalFeatures(String... features) {
+    final Set<String> featureSet = new HashSet<String>();
+    Collections.addAll(featureSet, features);
+    localFeatures = Collections.unmodifiableSet(featureSet);
+  }
+
   /**
    * Compares the two given versions for compatibility. The result indicates whether the local
    * version is compatible with the remote version.
@@ -144,6 +144,54 @@ public class ActivityOptimizerTest {
     assertRange(23, 23, optimized, nop);
   }
 
+  @Test
+  public void testMergeTextEdits() {
+
+    SPath foofooSPath = new SPath(fooProject, fooPath);
+
+    List<IActivity> activities = new ArrayList<IActivity>();
+
+    // typing
+    activities.add(new TextEditActivity(alice, 10, "a", "", foofooSPath));
+    activities.add(new TextEditActivity(alice, 11, "b", "", foofooSPath));
+    activities.add(new TextEditActivity(alice, 12, "c", "x", foofooSPath));
+    // forward deletion
+    activities.add(new TextEditActivity(alice, 13, "", "y", foofooSPath));
+    activities.add(nop);
+    // backspaces
+    activities.add(new TextEditActivity(alice, 20, "", "f", foofooSPath));
+    activities.add(new TextEditActivity(alice, 19, "", "e", foofooSPath));
+    activities.add(new TextEditActivity(alice, 17, "g", "cd", foofooSPath));
+
+    List<IActivity> optimized = ActivityOptimizer.optimize(activities);
+
+    assertEquals(3, optimized.size());
+    assertEquals(new TextEditActivity(alice, 10, "abc", "xy", foofooSPath), optimized.get(0));
+    assertSame(nop, optimized.get(1));
+    assertEquals(new TextEditActivity(alice, 17, "g", "cdef", foofooSPath), optimized.get(2));
+  }
+
+  @Test
+  public void testDoNotMergeUnrelatedTextEdits() {
+
+    SPath foofooSPath = new SPath(fooProject, fooPath);
+    SPath foobarSPath = new SPath(fooProject, barPath);
+
+    List<IActivity> activities = new ArrayList<IActivity>();
+
+    activities.add(new TextEditActivity(alice, 10, "a", "", foofooSPath));
+    // other user
+    activities.add(new TextEditActivity(bob, 11, "b", "", foofooSPath));
+    // other file
+    activities.add(new TextEditActivity(bob, 12, "c", "", foobarSPath));
+    // not adjacent
+    activities.add(new TextEditActivity(bob, 14, "d", "", foobarSPath));
+    // deletion in front of an insertion
+    activities.add(new TextEditActivity(bob, 13, "", "e", foobarSPath));
+
+    assertEquals(activities, ActivityOptimizer.optimize(activities));
+  }
+
   private void assertRange(int l, int h, List<IActivity> activities, IActivity activity) {
     for (int i = l; i <= h; i++)
       assertSame("optimization resulted in wrong activity order", activity, activities.get(i));
@@ -2,17 +2,27 @@ package saros.net.internal;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -30,9 +40,28 @@ public class BinaryChannelConnectionTest {
     private InputStream in;
     private OutputStream out;
 
+    private final AtomicLong bytesWritten = new AtomicLong();
+
     public PipedBytestreamSession(PipedInputStream in, PipedOutputStream out) {
       this.in = in;
-      this.out = out;
+      this.out =
+          new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+              out.write(b);
+              bytesWritten.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              out.write(b, off, len);
+              bytesWritten.addAndGet(len);
+            }
+          };
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten.get();
     }
 
     @Override
@@ -81,8 +110,8 @@ public class BinaryChannelConnectionTest {
 
   private final JID bobJID = new JID("bob@baumeister.de");
 
-  private ByteStream aliceStream;
-  private ByteStream bobStream;
+  private PipedBytestreamSession aliceStream;
+  private PipedBytestreamSession bobStream;
 
   @Before
   public void setUp() throws IOException {
@@ -179,6 +208,68 @@ public class BinaryChannelConnectionTest {
         bobJID.toString(), extensions.get(1).getTransferDescription().getRecipient().toString());
   }
 
+  @Test
+  public void testTransferDescriptionFlags() throws Exception {
+
+    final List<BinaryXMPPExtension> extensions =
+        Collections.synchronizedList(new ArrayList<BinaryXMPPExtension>());
+
+    final CountDownLatch received = new CountDownLatch(4);
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    bob.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          extensions.add(e);
+          received.countDown();
+        });
+
+    alice.initialize();
+    bob.initialize();
+
+    try {
+      for (int i = 0; i < 4; i++) {
+        alice.send(
+            TransferDescription.newDescription()
+                .setNamespace("foo-namespace")
+                .setElementName("bar")
+                .setCompressContent((i & 1) != 0)
+                .setBinaryContent((i & 2) != 0),
+            new byte[] {(byte) i});
+      }
+
+      received.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      alice.close();
+      bob.close();
+    }
+
+    assertEquals(4, extensions.size());
+
+    for (final BinaryXMPPExtension extension : extensions) {
+      final int i = extension.getPayload()[0];
+
+      assertEquals((i & 1) != 0, extension.getTransferDescription().compressContent());
+      assertEquals((i & 2) != 0, extension.getTransferDescription().isBinaryContent());
+    }
+  }
+
   @Test
   public void testFragmentationOnLargeDataToBeSend() throws Exception {
 
@@ -204,7 +295,7 @@ public class BinaryChannelConnectionTest {
 
     bob.setBinaryXMPPExtensionReceiver(
         (e) -> {
-          receivedBytes = e.getPayload();
+          receivedBytes = Arrays.copyOf(e.getPayload(), e.getPayloadLength());
           received.countDown();
         });
 
@@ -235,6 +326,508 @@ public class BinaryChannelConnectionTest {
     assertArrayEquals("fragmentation error", bytesToSend, receivedBytes);
   }
 
+  @Test
+  public void testPayloadSizesAtChunkBoundaries() throws Exception {
+
+    final int chunkSize = 32 * 1024 - 1;
+    final int[] sizes = {
+      1, chunkSize - 1, chunkSize, chunkSize + 1, 2 * chunkSize, 4 * 1024 * 1024
+    };
+
+    final List<byte[]> received = new ArrayList<byte[]>();
+    final CountDownLatch receivedAll = new CountDownLatch(sizes.length);
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    bob.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          received.add(Arrays.copyOf(e.getPayload(), e.getPayloadLength()));
+          e.releasePayload();
+          receivedAll.countDown();
+        });
+
+    alice.initialize();
+    bob.initialize();
+
+    final TransferDescription description =
+        TransferDescription.newDescription().setNamespace("foo-namespace").setElementName("bar");
+
+    final List<byte[]> sent = new ArrayList<byte[]>();
+
+    try {
+      for (int size : sizes) {
+        final byte[] bytesToSend = new byte[size];
+
+        for (int i = 0; i < bytesToSend.length; i++) bytesToSend[i] = (byte) (i * 31 + size);
+
+        sent.add(bytesToSend);
+        alice.send(description, bytesToSend);
+      }
+
+      receivedAll.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      alice.close();
+      bob.close();
+    }
+
+    assertEquals(sizes.length, received.size());
+
+    for (int i = 0; i < sizes.length; i++)
+      assertArrayEquals("payload of size " + sizes[i] + " corrupted", sent.get(i), received.get(i));
+  }
+
+  @Test
+  public void testStreamCompressionInOneDirection() throws Exception {
+
+    final List<byte[]> receivedByAlice = new ArrayList<byte[]>();
+    final List<byte[]> receivedByBob = new ArrayList<byte[]>();
+
+    final CountDownLatch received = new CountDownLatch(2 * 100);
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    alice.setStreamCompression(true);
+    bob.setStreamCompression(false);
+
+    alice.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          receivedByAlice.add(Arrays.copyOf(e.getPayload(), e.getPayloadLength()));
+          received.countDown();
+        });
+
+    bob.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          receivedByBob.add(Arrays.copyOf(e.getPayload(), e.getPayloadLength()));
+          received.countDown();
+        });
+
+    alice.initialize();
+    bob.initialize();
+
+    final TransferDescription description =
+        TransferDescription.newDescription().setNamespace("foo-namespace").setElementName("bar");
+
+    final List<byte[]> sent = new ArrayList<byte[]>();
+
+    try {
+      for (int i = 0; i < 100; i++) {
+        final byte[] bytesToSend = createActivityLikePayload(i);
+        sent.add(bytesToSend);
+
+        alice.send(description, bytesToSend);
+        bob.send(description, bytesToSend);
+      }
+
+      received.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      alice.close();
+      bob.close();
+    }
+
+    assertTrue(alice.isStreamCompressed());
+    assertFalse(bob.isStreamCompressed());
+
+    assertEquals(sent.size(), receivedByAlice.size());
+    assertEquals(sent.size(), receivedByBob.size());
+
+    for (int i = 0; i < sent.size(); i++) {
+      assertArrayEquals(sent.get(i), receivedByAlice.get(i));
+      assertArrayEquals(sent.get(i), receivedByBob.get(i));
+    }
+
+    assertTrue(
+        "compressed stream is not smaller than the uncompressed stream: "
+            + aliceStream.getBytesWritten()
+            + " >= "
+            + bobStream.getBytesWritten(),
+        aliceStream.getBytesWritten() < bobStream.getBytesWritten());
+  }
+
+  /**
+   * Compares the stream compression with the per packet compression done by the {@link
+   * XMPPTransmitter} if the stream is not compressed.
+   */
+  @Test
+  public void testStreamCompressionBeatsPacketCompression() throws Exception {
+
+    final int packets = 1000;
+
+    final CountDownLatch received = new CountDownLatch(2 * packets);
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    alice.setStreamCompression(true);
+    bob.setStreamCompression(false);
+
+    alice.setBinaryXMPPExtensionReceiver((e) -> received.countDown());
+    bob.setBinaryXMPPExtensionReceiver((e) -> received.countDown());
+
+    alice.initialize();
+    bob.initialize();
+
+    final TransferDescription streamDescription =
+        TransferDescription.newDescription().setNamespace("foo-namespace").setElementName("bar");
+
+    final TransferDescription packetDescription =
+        TransferDescription.newDescription()
+            .setNamespace("foo-namespace")
+            .setElementName("bar")
+            .setCompressContent(true);
+
+    try {
+      for (int i = 0; i < packets; i++) {
+        final byte[] bytesToSend = createActivityLikePayload(i);
+
+        alice.send(streamDescription, bytesToSend);
+
+        final Deflater deflater = new Deflater();
+        deflater.setInput(bytesToSend);
+        deflater.finish();
+
+        final byte[] buffer = new byte[bytesToSend.length * 2 + 64];
+        final int length = deflater.deflate(buffer);
+        deflater.end();
+
+        bob.send(packetDescription, Arrays.copyOf(buffer, length));
+      }
+
+      received.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      alice.close();
+      bob.close();
+    }
+
+    assertEquals(0, received.getCount());
+
+    assertTrue(
+        "stream compression is not better than packet compression: "
+            + aliceStream.getBytesWritten()
+            + " >= "
+            + bobStream.getBytesWritten(),
+        aliceStream.getBytesWritten() < bobStream.getBytesWritten());
+  }
+
+  private static byte[] createActivityLikePayload(int sequenceNumber) throws IOException {
+    return ("<ADOS xmlns=\"saros\" v=\"2\" sid=\"1337\" seq=\""
+            + sequenceNumber
+            + "\"><activities><textEdit source=\"alice@baumeister.de/Saros\""
+            + " path=\"src/main/java/de/baumeister/Foo.java\" project=\"42\""
+            + " offset=\""
+            + (sequenceNumber * 7 % 1000)
+            + "\" text=\""
+            + (char) ('a' + sequenceNumber % 26)
+            + "\" replacedText=\"\"/></activities></ADOS>")
+        .getBytes("UTF-8");
+  }
+
+  @Test
+  public void testConcurrentSend() throws Exception {
+
+    final int threadCount = 256;
+    final int packetsPerThread = 20;
+
+    final CountDownLatch received = new CountDownLatch(threadCount * packetsPerThread);
+
+    final int[] receivedPerThread = new int[threadCount];
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    bob.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          final byte[] payload = e.getPayload();
+
+          // every packet must arrive in the order it was sent by its thread
+          final int threadId = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+
+          if (receivedPerThread[threadId]++ == payload[2]) received.countDown();
+        });
+
+    alice.initialize();
+    bob.initialize();
+
+    final List<Thread> senders = new ArrayList<Thread>();
+    final List<Exception> errors = new ArrayList<Exception>();
+
+    for (int t = 0; t < threadCount; t++) {
+      final int threadId = t;
+
+      senders.add(
+          new Thread(
+              () -> {
+                final TransferDescription description = TransferDescription.newDescription();
+
+                description.setNamespace("foo-namespace-" + (threadId % 4));
+                description.setElementName("bar-" + (threadId % 3));
+
+                try {
+                  for (int i = 0; i < packetsPerThread; i++) {
+                    final byte[] bytesToSend = new byte[64 + (threadId % 16) * 1024];
+                    bytesToSend[0] = (byte) (threadId >>> 8);
+                    bytesToSend[1] = (byte) threadId;
+                    bytesToSend[2] = (byte) i;
+                    alice.send(description, bytesToSend);
+                  }
+                } catch (Exception e) {
+                  synchronized (errors) {
+                    errors.add(e);
+                  }
+                }
+              }));
+    }
+
+    try {
+      for (Thread sender : senders) sender.start();
+
+      for (Thread sender : senders) sender.join(10000);
+
+      received.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      alice.close();
+      bob.close();
+    }
+
+    assertTrue("send failed: " + errors, errors.isEmpty());
+    assertEquals("not all packets were received in order", 0, received.getCount());
+    assertEquals("outgoing queue is not empty", 0, alice.getOutgoingQueueSize());
+  }
+
+  @Test
+  public void testInteractiveTransferOvertakesBulkTransfer() throws Exception {
+
+    final List<String> received = new ArrayList<String>();
+    final CountDownLatch receivedAll = new CountDownLatch(2);
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    bob.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          received.add(e.getTransferDescription().getElementName());
+          receivedAll.countDown();
+        });
+
+    alice.initialize();
+    bob.initialize();
+
+    final TransferDescription bulk =
+        TransferDescription.newDescription()
+            .setNamespace("foo-namespace")
+            .setElementName("bulk")
+            .setPriority(TransferDescription.Priority.BULK);
+
+    final TransferDescription interactive =
+        TransferDescription.newDescription()
+            .setNamespace("foo-namespace")
+            .setElementName("interactive")
+            .setPriority(TransferDescription.Priority.INTERACTIVE);
+
+    final Thread bulkSender =
+        new Thread(
+            () -> {
+              try {
+                alice.send(bulk, new byte[16 * 1024 * 1024]);
+              } catch (IOException e) {
+                // the assertion below will fail
+              }
+            });
+
+    try {
+      bulkSender.start();
+
+      while (alice.getOutgoingQueueSize() == 0) Thread.yield();
+
+      alice.send(interactive, new byte[16]);
+
+      bulkSender.join(10000);
+
+      receivedAll.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      alice.close();
+      bob.close();
+    }
+
+    assertEquals(Arrays.asList("interactive", "bulk"), received);
+  }
+
+  @Test
+  public void testInteractiveTransfersDoNotStarveBulkTransfer() throws Exception {
+
+    final CountDownLatch bulkReceived = new CountDownLatch(1);
+    final AtomicInteger interactiveReceived = new AtomicInteger();
+
+    BinaryChannelConnection alice =
+        new BinaryChannelConnection(
+            aliceJID,
+            bobJID,
+            "junit",
+            aliceStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    BinaryChannelConnection bob =
+        new BinaryChannelConnection(
+            bobJID,
+            aliceJID,
+            "junit",
+            bobStream,
+            StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener());
+
+    bob.setBinaryXMPPExtensionReceiver(
+        (e) -> {
+          if (e.getTransferDescription().getElementName().equals("bulk")) bulkReceived.countDown();
+          else interactiveReceived.incrementAndGet();
+        });
+
+    alice.initialize();
+    bob.initialize();
+
+    final TransferDescription bulk =
+        TransferDescription.newDescription()
+            .setNamespace("foo-namespace")
+            .setElementName("bulk")
+            .setPriority(TransferDescription.Priority.BULK);
+
+    final TransferDescription interactive =
+        TransferDescription.newDescription()
+            .setNamespace("foo-namespace")
+            .setElementName("interactive")
+            .setPriority(TransferDescription.Priority.INTERACTIVE);
+
+    /*
+     * the interactive transfers consist of many frames and have different
+     * sizes, so they complete at different times and there are always
+     * interactive frames waiting
+     */
+    final List<Thread> interactiveSenders = new ArrayList<Thread>();
+
+    for (int i = 0; i < 8; i++) {
+      final int size = (i + 1) * 128 * 1024;
+
+      interactiveSenders.add(
+          new Thread(
+              () -> {
+                try {
+                  while (bulkReceived.getCount() > 0) alice.send(interactive, new byte[size]);
+                } catch (IOException e) {
+                  // the assertion below will fail
+                }
+              }));
+    }
+
+    final Thread bulkSender =
+        new Thread(
+            () -> {
+              try {
+                alice.send(bulk, new byte[1 << 20]);
+              } catch (IOException e) {
+                // the assertion below will fail
+              }
+            });
+
+    final boolean isBulkReceived;
+
+    try {
+      for (final Thread sender : interactiveSenders) sender.start();
+
+      while (interactiveReceived.get() == 0) Thread.yield();
+
+      bulkSender.start();
+
+      isBulkReceived = bulkReceived.await(10000, TimeUnit.MILLISECONDS);
+    } finally {
+      bulkReceived.countDown();
+
+      for (final Thread sender : interactiveSenders) sender.join(10000);
+
+      bulkSender.join(10000);
+
+      alice.close();
+      bob.close();
+    }
+
+    assertTrue("bulk transfer was starved by interactive transfers", isBulkReceived);
+  }
+
   @Test
   @Ignore(
       "this test consumes much CPU resources and should only executed manually when making changes")
@@ -269,7 +862,7 @@ public class BinaryChannelConnectionTest {
 
     bob.setBinaryXMPPExtensionReceiver(
         (e) -> {
-          receivedBytes = e.getPayload();
+          receivedBytes = Arrays.copyOf(e.getPayload(), e.getPayloadLength());
           received.countDown();
         });
     alice.initialize();
@@ -303,19 +896,108 @@ public class BinaryChannelConnectionTest {
   }
 
   @Test
-  public void testIDPool() {
+  public void testIDPool() throws Exception {
 
     IDPool pool = new IDPool();
 
-    for (int i = 0; i < 32; i++) assertEquals(i, pool.nextID());
+    for (int i = 0; i < IDPool.MAX_IDS; i++) assertEquals(i, pool.nextID());
 
-    assertEquals(-1, pool.nextID());
+    assertEquals(-1, pool.tryNextID());
 
-    pool.freeID(31);
+    pool.freeID(IDPool.MAX_IDS - 1);
     pool.freeID(0);
 
-    assertEquals(0, pool.nextID());
-    assertEquals(31, pool.nextID());
-    assertEquals(-1, pool.nextID());
+    final Set<Integer> ids = new HashSet<Integer>();
+
+    ids.add(pool.tryNextID());
+    ids.add(pool.tryNextID());
+
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, IDPool.MAX_IDS - 1)), ids);
+    assertEquals(-1, pool.tryNextID());
+
+    // freeing unused or invalid IDs must not increase the number of available IDs
+    pool.freeID(42);
+    pool.freeID(42);
+    pool.freeID(-1);
+    pool.freeID(IDPool.MAX_IDS);
+
+    assertEquals(42, pool.tryNextID());
+    assertEquals(-1, pool.tryNextID());
+  }
+
+  @Test
+  public void testIDPoolBlocksUntilIDIsFreed() throws Exception {
+
+    final IDPool pool = new IDPool(3);
+
+    for (int i = 0; i < 3; i++) assertEquals(i, pool.nextID());
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final AtomicInteger id = new AtomicInteger(-1);
+
+    final Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                id.set(pool.nextID());
+                acquired.countDown();
+              } catch (InterruptedException e) {
+                // the assertion below will fail
+              }
+            });
+
+    waiter.start();
+
+    assertFalse("got an ID although none is free", acquired.await(200, TimeUnit.MILLISECONDS));
+
+    pool.freeID(1);
+
+    assertTrue("waiting thread was not woken up", acquired.await(10000, TimeUnit.MILLISECONDS));
+    assertEquals(1, id.get());
+  }
+
+  @Test
+  public void testIDPoolConcurrentAccess() throws Exception {
+
+    final IDPool pool = new IDPool(100);
+
+    final int threadCount = 200;
+    final int iterations = 1000;
+
+    final AtomicIntegerArray owners = new AtomicIntegerArray(100);
+    final AtomicInteger errors = new AtomicInteger();
+
+    final List<Thread> threads = new ArrayList<Thread>();
+
+    for (int t = 0; t < threadCount; t++) {
+      final int threadId = t + 1;
+
+      threads.add(
+          new Thread(
+              () -> {
+                try {
+                  for (int i = 0; i < iterations; i++) {
+                    final int id = pool.nextID();
+
+                    if (!owners.compareAndSet(id, 0, threadId)) errors.incrementAndGet();
+
+                    owners.set(id, 0);
+                    pool.freeID(id);
+                  }
+                } catch (InterruptedException e) {
+                  errors.incrementAndGet();
+                }
+              }));
+    }
+
+    for (Thread thread : threads) thread.start();
+
+    for (Thread thread : threads) thread.join(30000);
+
+    assertEquals("IDs were handed out more than once", 0, errors.get());
+
+    for (int i = 0; i < 100; i++) assertTrue(pool.tryNextID() >= 0);
+
+    assertEquals(-1, pool.tryNextID());
   }
 }
@@ -0,0 +1,76 @@
+package saros.net.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import org.junit.Test;
+import saros.net.stream.StreamMode;
+
+public class BinaryXMPPExtensionTest {
+
+  private static final int CHUNK_SIZE = 32 * 1024 - 1;
+
+  @Test
+  public void testAnnouncedSizeIsNotAllocatedUpFront() throws Exception {
+    final BinaryXMPPExtension extension = createExtension(65536);
+
+    extension.preparePayload(Integer.MAX_VALUE);
+
+    assertNull(extension.getPayload());
+
+    extension.readPayloadChunk(createInput(new byte[CHUNK_SIZE]), CHUNK_SIZE);
+
+    assertTrue(
+        "payload buffer is much larger than the received data",
+        extension.getPayload().length <= 2 * CHUNK_SIZE);
+  }
+
+  @Test
+  public void testPayloadGrowsWithChunks() throws Exception {
+    final byte[] data = new byte[5 * CHUNK_SIZE + 17];
+
+    for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+
+    final int chunks = (data.length - 1) / CHUNK_SIZE + 1;
+
+    final BinaryXMPPExtension extension = createExtension(chunks);
+
+    extension.preparePayload(data.length);
+
+    final DataInputStream in = createInput(data);
+
+    for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+      extension.readPayloadChunk(in, Math.min(CHUNK_SIZE, data.length - offset));
+      extension.isLastChunk();
+    }
+
+    extension.completePayload();
+
+    assertEquals(data.length, extension.getPayloadLength());
+    assertArrayEquals(data, Arrays.copyOf(extension.getPayload(), extension.getPayloadLength()));
+  }
+
+  @Test(expected = ProtocolException.class)
+  public void testChunkExceedingAnnouncedSize() throws Exception {
+    final BinaryXMPPExtension extension = createExtension(1);
+
+    extension.preparePayload(16);
+
+    extension.readPayloadChunk(createInput(new byte[17]), 17);
+  }
+
+  private static BinaryXMPPExtension createExtension(final int chunks) {
+    return new BinaryXMPPExtension(
+        StreamMode.SOCKS5_DIRECT, TransferDescription.newDescription(), chunks);
+  }
+
+  private static DataInputStream createInput(final byte[] data) {
+    return new DataInputStream(new ByteArrayInputStream(data));
+  }
+}
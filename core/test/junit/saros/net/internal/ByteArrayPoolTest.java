@@ -0,0 +1,78 @@
+package saros.net.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ByteArrayPoolTest {
+
+  @Test
+  public void testAcquireRoundsUpToBucketSize() {
+    final ByteArrayPool pool = new ByteArrayPool(1024, 8192, 64 * 1024);
+
+    assertEquals(1024, pool.acquire(0).length);
+    assertEquals(1024, pool.acquire(1).length);
+    assertEquals(1024, pool.acquire(1024).length);
+    assertEquals(2048, pool.acquire(1025).length);
+    assertEquals(8192, pool.acquire(8192).length);
+  }
+
+  @Test
+  public void testLargeArraysAreNotPooled() {
+    final ByteArrayPool pool = new ByteArrayPool(1024, 8192, 64 * 1024);
+
+    final byte[] array = pool.acquire(8193);
+
+    assertEquals(8193, array.length);
+
+    pool.release(array);
+
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void testReleasedArraysAreReused() {
+    final ByteArrayPool pool = new ByteArrayPool(1024, 8192, 64 * 1024);
+
+    final byte[] array = pool.acquire(3000);
+
+    pool.release(array);
+
+    assertEquals(4096, pool.getRetainedBytes());
+    assertSame(array, pool.acquire(2049));
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void testRetentionLimit() {
+    final ByteArrayPool pool = new ByteArrayPool(1024, 8192, 10 * 1024);
+
+    final byte[] a = pool.acquire(8192);
+    final byte[] b = pool.acquire(8192);
+
+    pool.release(a);
+    pool.release(b);
+
+    assertEquals(8192, pool.getRetainedBytes());
+    assertSame(a, pool.acquire(8192));
+    assertNotSame(b, pool.acquire(8192));
+  }
+
+  @Test
+  public void testForeignArraysAreDiscarded() {
+    final ByteArrayPool pool = new ByteArrayPool(1024, 8192, 64 * 1024);
+
+    pool.release(new byte[3000]);
+    pool.release(new byte[512]);
+    pool.release(null);
+
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSizes() {
+    new ByteArrayPool(1000, 8192, 64 * 1024);
+  }
+}
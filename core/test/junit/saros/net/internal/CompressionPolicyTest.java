@@ -0,0 +1,153 @@
+package saros.net.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionPolicyTest {
+
+  private static final String NAMESPACE = "saros";
+  private static final String ELEMENT_NAME = "ados";
+
+  private static final byte[] ACTIVITY =
+      ("<ados xmlns=\"saros\"><ADOS v=\"2\" sid=\"1337\" seq=\"42\">"
+              + "<jupiterActivity source=\"alice@baumeister.de/Saros\">"
+              + "<p>42:src/main/java/Foo.java</p>"
+              + "<t class=\"saros.concurrent.jupiter.internal.JupiterVectorTime\""
+              + " local=\"17\" remote=\"4\"/>"
+              + "<o class=\"insertOp\" position=\"1024\" origin=\"1024\"><text>a</text></o>"
+              + "</jupiterActivity></ADOS></ados>")
+          .getBytes(StandardCharsets.UTF_8);
+
+  private CompressionPolicy policy;
+
+  @Before
+  public void setUp() {
+    policy = new CompressionPolicy();
+    policy.setEnabled(true);
+    policy.setMinimumSize(32);
+    policy.setMaximumRatio(0.9);
+    policy.setLinkBandwidth(1024 * 1024);
+    policy.setLevel(Deflater.DEFAULT_COMPRESSION);
+    policy.setUsePresetDictionary(true);
+  }
+
+  @Test
+  public void testSmallExtensionsAreNotCompressed() {
+    assertFalse(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 32));
+    assertTrue(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 33));
+  }
+
+  @Test
+  public void testDisabled() {
+    policy.setEnabled(false);
+    assertFalse(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 1024));
+  }
+
+  @Test
+  public void testCompressibleExtensionsAreCompressed() {
+    for (int i = 0; i < 100; i++) {
+      assertTrue(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 1000));
+      policy.record(NAMESPACE, ELEMENT_NAME, 1000, 200, 10000);
+    }
+  }
+
+  @Test
+  public void testIncompressibleExtensionsAreSkippedAndProbed() {
+    for (int i = 0; i < 4; i++) {
+      assertTrue("must compress during warmup", policy.shouldCompress(NAMESPACE, "zip", 1000));
+      policy.record(NAMESPACE, "zip", 1000, 1010, 10000);
+    }
+
+    int compressed = 0;
+
+    for (int i = 0; i < 64; i++) if (policy.shouldCompress(NAMESPACE, "zip", 1000)) compressed++;
+
+    assertEquals("incompressible extension must only be probed", 2, compressed);
+
+    // other extensions are not affected
+    assertTrue(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 1000));
+  }
+
+  @Test
+  public void testExpensiveCompressionIsSkippedOnFastLinks() {
+    // saves 500 bytes in 1 ms
+    for (int i = 0; i < 4; i++) policy.record(NAMESPACE, ELEMENT_NAME, 1000, 500, 1000000);
+
+    // sending 500 bytes takes ~0.5 ms
+    policy.setLinkBandwidth(1000 * 1000);
+    assertFalse(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 1000));
+
+    // sending 500 bytes takes ~5 ms
+    policy.setLinkBandwidth(100 * 1000);
+    assertTrue(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 1000));
+
+    policy.setLinkBandwidth(0);
+    assertTrue(policy.shouldCompress(NAMESPACE, ELEMENT_NAME, 1000));
+  }
+
+  @Test
+  public void testReset() {
+    for (int i = 0; i < 4; i++) policy.record(NAMESPACE, "zip", 1000, 1010, 10000);
+
+    policy.reset();
+
+    assertTrue(policy.shouldCompress(NAMESPACE, "zip", 1000));
+  }
+
+  @Test
+  public void testPresetDictionaryImprovesCompression() throws Exception {
+    policy.setUsePresetDictionary(false);
+    final byte[] withoutDictionary = deflate(policy.createDeflater(), ACTIVITY);
+
+    policy.setUsePresetDictionary(true);
+    final byte[] withDictionary = deflate(policy.createDeflater(), ACTIVITY);
+
+    assertTrue(
+        "dictionary does not improve compression: "
+            + withDictionary.length
+            + " >= "
+            + withoutDictionary.length,
+        withDictionary.length < withoutDictionary.length);
+
+    final Inflater inflater = new Inflater();
+    inflater.setInput(withDictionary);
+
+    final byte[] buffer = new byte[ACTIVITY.length * 2];
+
+    assertEquals(0, inflater.inflate(buffer));
+    assertTrue(inflater.needsDictionary());
+
+    inflater.setDictionary(CompressionPolicy.PRESET_DICTIONARY);
+
+    final int length = inflater.inflate(buffer);
+    inflater.end();
+
+    final byte[] inflated = new byte[length];
+    System.arraycopy(buffer, 0, inflated, 0, length);
+
+    assertArrayEquals(ACTIVITY, inflated);
+  }
+
+  private static byte[] deflate(Deflater deflater, byte[] data) {
+    deflater.setInput(data);
+    deflater.finish();
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+
+    while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+
+    deflater.end();
+
+    return out.toByteArray();
+  }
+}
@@ -5,6 +5,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
@@ -19,6 +21,7 @@ import org.easymock.EasyMock;
 import org.jivesoftware.smack.Connection;
 import org.junit.Before;
 import org.junit.Test;
+import saros.context.IContainerContext;
 import saros.net.ConnectionState;
 import saros.net.IConnectionManager;
 import saros.net.stream.IStreamService;
@@ -27,6 +30,7 @@ import saros.net.xmpp.IConnectionListener;
 import saros.net.xmpp.JID;
 import saros.net.xmpp.XMPPConnectionService;
 import saros.test.util.TestThread;
+import saros.versioning.VersionManager;
 
 public class DataTransferManagerTest {
 
@@ -159,6 +163,11 @@ public class DataTransferManagerTest {
       return mode;
     }
 
+    @Override
+    public boolean isStreamCompressed() {
+      return false;
+    }
+
     public int getSendPacketsCount() {
       return sendPackets;
     }
@@ -202,6 +211,21 @@ public class DataTransferManagerTest {
     return net;
   }
 
+  /** Creates a context whose version manager reports TCP support for the given peers only. */
+  private static IContainerContext createContextMock(JID... peersSupportingTCP) {
+    VersionManager versionManager = EasyMock.createNiceMock(VersionManager.class);
+
+    for (JID peer : peersSupportingTCP)
+      EasyMock.expect(versionManager.isFeatureSupported(peer, VersionManager.TCP_TRANSPORT_FEATURE))
+          .andStubReturn(true);
+
+    IContainerContext context = EasyMock.createNiceMock(IContainerContext.class);
+    EasyMock.expect(context.getComponent(VersionManager.class)).andStubReturn(versionManager);
+
+    EasyMock.replay(versionManager, context);
+    return context;
+  }
+
   @Before
   public void setUp() {
     connectionServiceStub = createConnectionsServiceMock(connectionListener);
@@ -305,6 +329,126 @@ public class DataTransferManagerTest {
         dtm.getTransferMode(new JID("foo@bar.com")));
   }
 
+  @Test
+  public void testEstablishConnectionPrefersDirectTransport() throws Exception {
+
+    IStreamService directTransport = new Transport(StreamMode.TCP);
+    IStreamService mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+    IStreamService fallbackTransport = new Transport(StreamMode.IBB);
+
+    IConnectionManager dtm =
+        new DataTransferManager(
+            connectionServiceStub,
+            directTransport,
+            mainTransport,
+            fallbackTransport,
+            createContextMock(new JID("foo@bar.com")));
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtm.connect(new JID("foo@bar.com"));
+    assertEquals(StreamMode.TCP, dtm.getTransferMode(new JID("foo@bar.com")));
+  }
+
+  @Test
+  public void testDirectTransportIsOnlyUsedForPeersSupportingIt() throws Exception {
+
+    IStreamService directTransport = new Transport(StreamMode.TCP);
+    IStreamService mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+
+    IConnectionManager dtm =
+        new DataTransferManager(
+            connectionServiceStub,
+            directTransport,
+            mainTransport,
+            null,
+            createContextMock(new JID("foo@bar.com")));
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtm.connect(new JID("bar@bar.com"));
+
+    assertEquals(
+        "TCP transport must not be used for peers without support for it",
+        StreamMode.SOCKS5_DIRECT,
+        dtm.getTransferMode(new JID("bar@bar.com")));
+
+    IConnectionManager dtmWithoutContext =
+        new DataTransferManager(
+            createConnectionsServiceMock(connectionListener),
+            directTransport,
+            mainTransport,
+            null,
+            null);
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtmWithoutContext.connect(new JID("foo@bar.com"));
+
+    assertEquals(
+        StreamMode.SOCKS5_DIRECT, dtmWithoutContext.getTransferMode(new JID("foo@bar.com")));
+  }
+
+  @Test
+  public void testFailedDirectTransportIsNotRetriedImmediately() throws Exception {
+
+    IStreamService directTransport = EasyMock.createMock(IStreamService.class);
+    IStreamService mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+
+    directTransport.initialize(
+        EasyMock.isA(Connection.class), EasyMock.isA(IByteStreamConnectionListener.class));
+    EasyMock.expectLastCall().once();
+
+    EasyMock.expect(directTransport.connect(EasyMock.isA(String.class), EasyMock.isA(JID.class)))
+        .andThrow(new IOException())
+        .once();
+
+    EasyMock.replay(directTransport);
+
+    IConnectionManager dtm =
+        new DataTransferManager(
+            connectionServiceStub,
+            directTransport,
+            mainTransport,
+            null,
+            createContextMock(new JID("foo@bar.com")));
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtm.connect("first", new JID("foo@bar.com"));
+    dtm.connect("second", new JID("foo@bar.com"));
+
+    EasyMock.verify(directTransport);
+
+    assertEquals(StreamMode.SOCKS5_DIRECT, dtm.getTransferMode("second", new JID("foo@bar.com")));
+  }
+
+  @Test
+  public void testDisableDirectTransport() throws Exception {
+
+    IStreamService directTransport = new Transport(StreamMode.TCP);
+    IStreamService mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+
+    DataTransferManager dtm =
+        new DataTransferManager(
+            connectionServiceStub,
+            directTransport,
+            mainTransport,
+            null,
+            createContextMock(new JID("foo@bar.com")));
+
+    dtm.setServices(IConnectionManager.SOCKS5_SERVICE | IConnectionManager.IBB_SERVICE);
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtm.connect(new JID("foo@bar.com"));
+
+    assertEquals(
+        "TCP transport must not be used",
+        StreamMode.SOCKS5_DIRECT,
+        dtm.getTransferMode(new JID("foo@bar.com")));
+  }
+
   @Test
   public void testConnectionCaching() throws Exception {
 
@@ -483,6 +627,61 @@ public class DataTransferManagerTest {
         mainTransport.getEstablishedConnections().size());
   }
 
+  @Test(timeout = 30000)
+  public void testConcurrentConnectionsToDifferentPeers() throws Exception {
+
+    final CountDownLatch connectsInProgress = new CountDownLatch(2);
+
+    final Transport mainTransport =
+        new Transport(StreamMode.SOCKS5_DIRECT) {
+          @Override
+          public IByteStreamConnection connect(String connectionIdentifier, JID peer)
+              throws IOException, InterruptedException {
+
+            connectsInProgress.countDown();
+
+            if (!connectsInProgress.await(10000, TimeUnit.MILLISECONDS))
+              throw new IOException("connections are not established concurrently");
+
+            return super.connect(connectionIdentifier, peer);
+          }
+        };
+
+    final IConnectionManager dtm =
+        new DataTransferManager(connectionServiceStub, mainTransport, null);
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    TestThread connectThread0 =
+        new TestThread(
+            new TestThread.Runnable() {
+              @Override
+              public void run() throws Exception {
+                dtm.connect(new JID("foo@bar.com"));
+              }
+            });
+
+    TestThread connectThread1 =
+        new TestThread(
+            new TestThread.Runnable() {
+              @Override
+              public void run() throws Exception {
+                dtm.connect(new JID("foo@bar.example"));
+              }
+            });
+
+    connectThread0.start();
+    connectThread1.start();
+
+    connectThread0.join(15000);
+    connectThread1.join(15000);
+
+    connectThread0.verify();
+    connectThread1.verify();
+
+    assertEquals(2, mainTransport.getEstablishedConnections().size());
+  }
+
   @Test
   public void connectWithRemoteSideConnectedFirst() throws Exception {
     Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
@@ -556,6 +755,99 @@ public class DataTransferManagerTest {
         fallbackTransport.getEstablishedConnections().get(0).getSendPacketsCount());
   }
 
+  @Test
+  public void testBulkConnectionIsSeparateConnection() throws Exception {
+    final JID peer = new JID("foo@bar.com");
+
+    Transport mainTransport = new Transport(StreamMode.TCP);
+
+    DataTransferManager dtm = new DataTransferManager(connectionServiceStub, mainTransport, null);
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    assertNull("bulk lane was established without a connection", dtm.getBulkConnection(null, peer));
+
+    IByteStreamConnection connection = dtm.connect(peer);
+    IByteStreamConnection bulkConnection = awaitBulkConnection(dtm, peer);
+
+    assertNotNull("bulk lane was not established", bulkConnection);
+    assertNotSame("bulk lane is the interactive connection", connection, bulkConnection);
+    assertSame("bulk lane was not cached", bulkConnection, dtm.getBulkConnection(null, peer));
+    assertSame("interactive connection was replaced", connection, dtm.connect(peer));
+
+    assertEquals(2, mainTransport.getEstablishedConnections().size());
+
+    dtm.closeConnection(peer);
+
+    assertFalse("interactive connection was not closed", connection.isConnected());
+    assertFalse("bulk lane was not closed", bulkConnection.isConnected());
+  }
+
+  @Test
+  public void testBulkLaneIsEstablishedInBackground() throws Exception {
+    final JID peer = new JID("foo@bar.com");
+
+    final CountDownLatch laneRequested = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+
+    Transport mainTransport =
+        new Transport(StreamMode.TCP) {
+          @Override
+          public IByteStreamConnection connect(String connectionIdentifier, JID peer)
+              throws IOException, InterruptedException {
+
+            if (connectionIdentifier.contains("-bulk-")) {
+              laneRequested.countDown();
+              proceed.await();
+            }
+
+            return super.connect(connectionIdentifier, peer);
+          }
+        };
+
+    DataTransferManager dtm = new DataTransferManager(connectionServiceStub, mainTransport, null);
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtm.connect(peer);
+
+    try {
+      assertNull("caller waited for the bulk lane", dtm.getBulkConnection(null, peer));
+
+      assertTrue(
+          "bulk lane establishment was not started",
+          laneRequested.await(10000, TimeUnit.MILLISECONDS));
+
+      assertNull("caller waited for the bulk lane", dtm.getBulkConnection(null, peer));
+    } finally {
+      proceed.countDown();
+    }
+
+    assertNotNull("bulk lane was not established", awaitBulkConnection(dtm, peer));
+
+    assertEquals(
+        "bulk lane was established more than once",
+        2,
+        mainTransport.getEstablishedConnections().size());
+  }
+
+  @Test
+  public void testNoBulkConnectionOverIBB() throws Exception {
+    final JID peer = new JID("foo@bar.com");
+
+    Transport fallbackTransport = new Transport(StreamMode.IBB);
+
+    DataTransferManager dtm =
+        new DataTransferManager(connectionServiceStub, null, fallbackTransport);
+
+    connectionListener.getValue().connectionStateChanged(connectionMock, ConnectionState.CONNECTED);
+
+    dtm.connect(peer);
+
+    assertNull("bulk lane was established over IBB", dtm.getBulkConnection(null, peer));
+    assertEquals(1, fallbackTransport.getEstablishedConnections().size());
+  }
+
   @Test
   public void testConnectionClosureOnManualClose() throws Exception {
     Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
@@ -605,4 +897,18 @@ public class DataTransferManagerTest {
 
     assertEquals(StreamMode.NONE, dtm.getTransferMode(new JID("fallback@emergency")));
   }
+
+  /** Waits until the bulk lane that is established in the background is available. */
+  private static IByteStreamConnection awaitBulkConnection(DataTransferManager dtm, JID peer)
+      throws InterruptedException {
+
+    final long deadline = System.currentTimeMillis() + 10000;
+
+    IByteStreamConnection connection;
+
+    while ((connection = dtm.getBulkConnection(null, peer)) == null
+        && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+    return connection;
+  }
 }
@@ -0,0 +1,202 @@
+package saros.net.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.junit.Test;
+import saros.net.RoutablePacketFilter;
+
+public class PacketRoutingTableTest {
+
+  private static final String NAMESPACE = "saros";
+
+  private static class RecordingListener implements PacketListener {
+    private final List<Packet> packets = new ArrayList<Packet>();
+
+    @Override
+    public void processPacket(Packet packet) {
+      packets.add(packet);
+    }
+  }
+
+  /** counts the evaluations to ensure that only the filters of matching routes are evaluated */
+  private static class CountingFilter implements PacketFilter {
+    private final PacketFilter filter;
+    private final AtomicInteger evaluations = new AtomicInteger();
+
+    private CountingFilter(PacketFilter filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    public boolean accept(Packet packet) {
+      evaluations.incrementAndGet();
+      return filter.accept(packet);
+    }
+  }
+
+  private final Map<PacketListener, PacketFilter> listeners =
+      new LinkedHashMap<PacketListener, PacketFilter>();
+
+  @Test
+  public void testRoutingByExtension() {
+    final RecordingListener pingListener = new RecordingListener();
+    final RecordingListener pongListener = new RecordingListener();
+
+    final CountingFilter pongFilter = new CountingFilter(createExtensionFilter("pong"));
+
+    listeners.put(pingListener, createFilter("ping", null));
+    listeners.put(pongListener, new RoutablePacketFilter("pong", NAMESPACE, null, pongFilter));
+
+    final PacketRoutingTable table = new PacketRoutingTable(listeners);
+
+    table.dispatch(createPacket("ping", "1"));
+
+    assertEquals(1, pingListener.packets.size());
+    assertEquals(0, pongListener.packets.size());
+    assertEquals("filter of a not matching route was evaluated", 0, pongFilter.evaluations.get());
+
+    table.dispatch(createPacket("pong", "1"));
+
+    assertEquals(1, pingListener.packets.size());
+    assertEquals(1, pongListener.packets.size());
+  }
+
+  @Test
+  public void testRoutingBySession() {
+    final RecordingListener session1Listener = new RecordingListener();
+    final RecordingListener session2Listener = new RecordingListener();
+    final RecordingListener anySessionListener = new RecordingListener();
+
+    final CountingFilter session2Filter = new CountingFilter(createSessionFilter("ping", "2"));
+
+    listeners.put(session1Listener, createFilter("ping", "1"));
+    listeners.put(session2Listener, new SessionFilter("ping", "2", session2Filter));
+    listeners.put(anySessionListener, createFilter("ping", null));
+
+    final PacketRoutingTable table = new PacketRoutingTable(listeners);
+
+    table.dispatch(createPacket("ping", "1"));
+    table.dispatch(createPacket("ping", "3"));
+
+    assertEquals(1, session1Listener.packets.size());
+    assertEquals(0, session2Listener.packets.size());
+    assertEquals(2, anySessionListener.packets.size());
+    assertEquals(
+        "filter of a not matching route was evaluated", 0, session2Filter.evaluations.get());
+  }
+
+  @Test
+  public void testUnroutedFiltersSeeAllPackets() {
+    final RecordingListener allListener = new RecordingListener();
+    final RecordingListener filteredListener = new RecordingListener();
+
+    listeners.put(allListener, null);
+    listeners.put(filteredListener, createExtensionFilter("pong"));
+
+    final PacketRoutingTable table = new PacketRoutingTable(listeners);
+
+    table.dispatch(createPacket("ping", "1"));
+    table.dispatch(createPacket("pong", "1"));
+
+    assertEquals(2, allListener.packets.size());
+    assertEquals(1, filteredListener.packets.size());
+  }
+
+  @Test
+  public void testListenerIsNotifiedOnceForDuplicateExtensions() {
+    final RecordingListener listener = new RecordingListener();
+
+    listeners.put(listener, createFilter("ping", null));
+
+    final Packet packet = createPacket("ping", "1");
+    packet.addExtension(new DefaultPacketExtension("ping", NAMESPACE));
+    packet.addExtension(new DefaultPacketExtension("pong", NAMESPACE));
+
+    new PacketRoutingTable(listeners).dispatch(packet);
+
+    assertEquals(1, listener.packets.size());
+  }
+
+  @Test
+  public void testFilterStillDecides() {
+    final RecordingListener listener = new RecordingListener();
+
+    listeners.put(
+        listener,
+        createFilter("ping", null)
+            .and(
+                new PacketFilter() {
+                  @Override
+                  public boolean accept(Packet packet) {
+                    return false;
+                  }
+                }));
+
+    new PacketRoutingTable(listeners).dispatch(createPacket("ping", "1"));
+
+    assertEquals(0, listener.packets.size());
+  }
+
+  private static class SessionFilter extends RoutablePacketFilter {
+
+    private final String elementName;
+
+    private SessionFilter(String elementName, String sessionID, PacketFilter filter) {
+      super(elementName, NAMESPACE, sessionID, filter);
+      this.elementName = elementName;
+    }
+
+    @Override
+    public String getSessionID(Packet packet) {
+      final DefaultPacketExtension extension =
+          (DefaultPacketExtension) packet.getExtension(elementName, NAMESPACE);
+
+      return extension != null ? extension.getValue("sid") : null;
+    }
+  }
+
+  private static RoutablePacketFilter createFilter(String elementName, String sessionID) {
+    if (sessionID == null)
+      return new RoutablePacketFilter(
+          elementName, NAMESPACE, null, createExtensionFilter(elementName));
+
+    return new SessionFilter(elementName, sessionID, createSessionFilter(elementName, sessionID));
+  }
+
+  private static PacketFilter createExtensionFilter(String elementName) {
+    return new PacketExtensionFilter(elementName, NAMESPACE);
+  }
+
+  private static PacketFilter createSessionFilter(
+      final String elementName, final String sessionID) {
+    return new PacketFilter() {
+      @Override
+      public boolean accept(Packet packet) {
+        final DefaultPacketExtension extension =
+            (DefaultPacketExtension) packet.getExtension(elementName, NAMESPACE);
+
+        return extension != null && sessionID.equals(extension.getValue("sid"));
+      }
+    };
+  }
+
+  private static Packet createPacket(String elementName, String sessionID) {
+    final DefaultPacketExtension extension = new DefaultPacketExtension(elementName, NAMESPACE);
+    extension.setValue("sid", sessionID);
+
+    final Packet packet = new Message();
+    packet.addExtension(extension);
+    return packet;
+  }
+}
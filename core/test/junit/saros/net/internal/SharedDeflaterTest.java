@@ -0,0 +1,112 @@
+package saros.net.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.Test;
+import saros.net.SharedEncoding;
+
+public class SharedDeflaterTest {
+
+  private static final byte[] BODY =
+      ("<jupiterActivity source=\"alice@baumeister.de/Saros\"><p>42:src/main/java/Foo.java</p>"
+              + "<o class=\"insertOp\" position=\"1024\" origin=\"1024\"><text>a</text></o>"
+              + "</jupiterActivity>")
+          .getBytes(StandardCharsets.UTF_8);
+
+  private final SharedDeflater deflater = new SharedDeflater();
+
+  @Test
+  public void testHeadersOfSeveralRecipients() throws Exception {
+    for (int sequenceNumber = 0; sequenceNumber < 5; sequenceNumber++) {
+      final SharedEncoding encoding =
+          new SharedEncoding(("seq=" + sequenceNumber).getBytes(StandardCharsets.UTF_8), BODY);
+
+      assertArrayEquals(
+          encoding.toByteArray(),
+          inflate(deflater.deflate(encoding, Deflater.DEFAULT_COMPRESSION)));
+    }
+  }
+
+  @Test
+  public void testChangedCompressionLevel() throws Exception {
+    final byte[] body = new byte[100000];
+    new Random(4711).nextBytes(body);
+
+    for (final int level : new int[] {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED}) {
+      final SharedEncoding encoding = new SharedEncoding(new byte[] {(byte) level}, body);
+
+      assertArrayEquals(encoding.toByteArray(), inflate(deflater.deflate(encoding, level)));
+    }
+  }
+
+  @Test
+  public void testEmptyAndLargeHeaders() throws Exception {
+    final byte[] largeHeader = new byte[3 * 0xFFFF + 17];
+    new Random(42).nextBytes(largeHeader);
+
+    for (final byte[] header : new byte[][] {new byte[0], largeHeader}) {
+      for (final byte[] body : new byte[][] {new byte[0], BODY}) {
+        final SharedEncoding encoding = new SharedEncoding(header, body);
+
+        assertArrayEquals(
+            encoding.toByteArray(),
+            inflate(deflater.deflate(encoding, Deflater.DEFAULT_COMPRESSION)));
+      }
+    }
+  }
+
+  @Test
+  public void testCombineChecksums() {
+    final byte[] data = new byte[200000];
+    new Random(7).nextBytes(data);
+
+    for (final int split : new int[] {0, 1, 65521, 100000, data.length}) {
+      final Adler32 first = new Adler32();
+      first.update(data, 0, split);
+
+      final Adler32 second = new Adler32();
+      second.update(data, split, data.length - split);
+
+      final Adler32 all = new Adler32();
+      all.update(data);
+
+      assertEquals(
+          (int) all.getValue(),
+          SharedDeflater.combine(
+              (int) first.getValue(), (int) second.getValue(), data.length - split));
+    }
+  }
+
+  private static byte[] inflate(final byte[] data) throws Exception {
+    final Inflater inflater = new Inflater();
+
+    try {
+      inflater.setInput(data);
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+
+      while (!inflater.finished()) {
+        final int count = inflater.inflate(buffer);
+
+        if (count == 0 && !inflater.finished() && inflater.needsInput())
+          throw new IllegalStateException("truncated");
+
+        out.write(buffer, 0, count);
+      }
+
+      assertEquals("trailing data", 0, inflater.getRemaining());
+
+      return out.toByteArray();
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -6,8 +6,14 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
   BinaryChannelConnectionTest.class,
+  BinaryXMPPExtensionTest.class,
+  ByteArrayPoolTest.class,
+  CompressionPolicyTest.class,
   ConnectionPoolTest.class,
-  DataTransferManagerTest.class
+  DataTransferManagerTest.class,
+  PacketRoutingTableTest.class,
+  SharedDeflaterTest.class,
+  XMPPReceiverTest.class
 })
 public class TestSuite {
   // the class remains completely empty,
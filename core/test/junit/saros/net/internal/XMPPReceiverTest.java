@@ -0,0 +1,214 @@
+package saros.net.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import saros.net.DispatchThreadContext;
+import saros.net.IPacketExtensionCodec;
+import saros.net.IPacketInterceptor;
+import saros.net.stream.StreamMode;
+import saros.net.xmpp.JID;
+import saros.net.xmpp.XMPPConnectionService;
+
+public class XMPPReceiverTest {
+
+  private static final String ELEMENT_NAME = "test";
+  private static final String NAMESPACE = "saros:test";
+
+  private static final JID ALICE = new JID("alice@baumeister.de/Saros");
+  private static final JID BOB = new JID("bob@baumeister.de/Saros");
+  private static final JID CARL = new JID("carl@baumeister.de/Saros");
+
+  /** decodes a single byte, the decoding of odd values is delayed */
+  private static class DelayingCodec implements IPacketExtensionCodec {
+
+    @Override
+    public String getElementName() {
+      return ELEMENT_NAME;
+    }
+
+    @Override
+    public String getNamespace() {
+      return NAMESPACE;
+    }
+
+    @Override
+    public byte[] encode(JID recipient, PacketExtension extension) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PacketExtension decode(JID sender, byte[] data, int offset, int length)
+        throws IOException {
+
+      if (length != 1) throw new IOException("malformed data");
+
+      if ((data[offset] & 1) != 0) {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      final DefaultPacketExtension extension = new DefaultPacketExtension(ELEMENT_NAME, NAMESPACE);
+      extension.setValue("value", String.valueOf(data[offset]));
+      return extension;
+    }
+  }
+
+  private DispatchThreadContext dispatchThreadContext;
+  private XMPPReceiver receiver;
+
+  private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+  private CountDownLatch receivedLatch;
+
+  @Before
+  public void setUp() {
+    dispatchThreadContext = new DispatchThreadContext();
+
+    final XMPPConnectionService connectionService = new XMPPConnectionService(null, null);
+
+    receiver =
+        new XMPPReceiver(
+            dispatchThreadContext,
+            connectionService,
+            new DataTransferManager(connectionService, null, null));
+
+    receiver.addPacketExtensionCodec(new DelayingCodec());
+
+    receiver.addPacketListener(
+        new PacketListener() {
+          @Override
+          public void processPacket(Packet packet) {
+            final DefaultPacketExtension extension =
+                (DefaultPacketExtension) packet.getExtension(ELEMENT_NAME, NAMESPACE);
+
+            received.add(new JID(packet.getFrom()).getName() + ":" + extension.getValue("value"));
+            receivedLatch.countDown();
+          }
+        },
+        null);
+  }
+
+  @After
+  public void tearDown() {
+    receiver.dispose();
+    dispatchThreadContext.dispose();
+  }
+
+  @Test
+  public void testPacketsOfSenderAreForwardedInArrivalOrder() throws Exception {
+    receivedLatch = new CountDownLatch(30);
+
+    for (int i = 0; i < 10; i++) {
+      receiver.receive(createExtension(ALICE, i));
+      receiver.receive(createExtension(BOB, i));
+      receiver.receive(createExtension(CARL, i));
+    }
+
+    assertTrue("not all packets were forwarded", receivedLatch.await(10, TimeUnit.SECONDS));
+
+    final List<String> alice = new ArrayList<String>();
+    final List<String> bob = new ArrayList<String>();
+    final List<String> carl = new ArrayList<String>();
+
+    final List<String> expectedAlice = new ArrayList<String>();
+    final List<String> expectedBob = new ArrayList<String>();
+    final List<String> expectedCarl = new ArrayList<String>();
+
+    for (int i = 0; i < 10; i++) {
+      expectedAlice.add("alice:" + i);
+      expectedBob.add("bob:" + i);
+      expectedCarl.add("carl:" + i);
+    }
+
+    synchronized (received) {
+      for (final String value : received) {
+        if (value.startsWith("alice:")) alice.add(value);
+        else if (value.startsWith("bob:")) bob.add(value);
+        else carl.add(value);
+      }
+    }
+
+    assertEquals(expectedAlice, alice);
+    assertEquals(expectedBob, bob);
+    assertEquals(expectedCarl, carl);
+  }
+
+  @Test
+  public void testMalformedPacketDoesNotBlockFollowingPackets() throws Exception {
+    receivedLatch = new CountDownLatch(2);
+
+    final BinaryXMPPExtension malformed = createExtension(ALICE, 0);
+    malformed.setPayload(2, new byte[2]);
+
+    receiver.receive(createExtension(ALICE, 1));
+    receiver.receive(malformed);
+    receiver.receive(createExtension(ALICE, 2));
+
+    assertTrue("not all packets were forwarded", receivedLatch.await(10, TimeUnit.SECONDS));
+    assertEquals(2, received.size());
+    assertEquals("alice:1", received.get(0));
+    assertEquals("alice:2", received.get(1));
+  }
+
+  @Test
+  public void testInterceptedPacketsAreNotForwarded() throws Exception {
+    receivedLatch = new CountDownLatch(1);
+
+    receiver.addPacketInterceptor(
+        new IPacketInterceptor() {
+          @Override
+          public boolean receivedPacket(BinaryXMPPExtension extension) {
+            return !extension.getTransferDescription().getSender().equals(BOB);
+          }
+
+          @Override
+          public boolean sendPacket(String connectionID, JID recipient, PacketExtension extension) {
+            return true;
+          }
+        });
+
+    receiver.receive(createExtension(BOB, 0));
+    receiver.receive(createExtension(ALICE, 0));
+
+    assertTrue("packet was not forwarded", receivedLatch.await(10, TimeUnit.SECONDS));
+
+    // give a wrongly forwarded packet the chance to show up
+    Thread.sleep(100);
+
+    assertEquals(Collections.singletonList("alice:0"), received);
+  }
+
+  private static BinaryXMPPExtension createExtension(final JID sender, final int value) {
+    final TransferDescription description =
+        TransferDescription.newDescription()
+            .setSender(sender)
+            .setRecipient(new JID("dave@baumeister.de/Saros"))
+            .setElementName(ELEMENT_NAME)
+            .setNamespace(NAMESPACE);
+
+    description.setBinaryContent(true);
+
+    final BinaryXMPPExtension extension = new BinaryXMPPExtension(StreamMode.TCP, description, 0);
+
+    extension.setPayload(1, new byte[] {(byte) value});
+
+    return extension;
+  }
+}
@@ -0,0 +1,282 @@
+package saros.net.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.easymock.EasyMock;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import saros.net.IReceiver;
+import saros.net.ITransferListener;
+import saros.net.ITransmitter;
+import saros.net.PacketCollector;
+import saros.net.internal.DataTransferManager;
+import saros.net.internal.IByteStreamConnection;
+import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.stream.StreamMode;
+import saros.net.xmpp.JID;
+import saros.net.xmpp.XMPPConnectionService;
+
+public class TransportMetricsTest {
+
+  private static final JID ALICE = new JID("alice@baumeister.de/Saros");
+  private static final JID BOB = new JID("bob@baumeister.de/Saros");
+
+  private static class Receiver implements IReceiver {
+    private ITransferListener listener;
+
+    @Override
+    public void addTransferListener(ITransferListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void removeTransferListener(ITransferListener listener) {
+      this.listener = null;
+    }
+
+    @Override
+    public void addPacketListener(PacketListener listener, PacketFilter filter) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePacketListener(PacketListener listener) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void processPacket(Packet packet) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PacketCollector createCollector(PacketFilter filter) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class Transmitter implements ITransmitter {
+    private ITransferListener listener;
+
+    @Override
+    public void addTransferListener(ITransferListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void removeTransferListener(ITransferListener listener) {
+      this.listener = null;
+    }
+
+    @Override
+    public void sendPacket(Packet packet) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sendPacketExtension(JID jid, PacketExtension extension) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void send(JID recipient, PacketExtension extension) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void send(String connectionID, JID recipient, PacketExtension extension) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class ConnectionManager extends DataTransferManager {
+    private IByteStreamConnectionListener listener;
+
+    private ConnectionManager() {
+      super(new XMPPConnectionService(null, null), null, null);
+    }
+
+    @Override
+    public void addConnectionListener(IByteStreamConnectionListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void removeConnectionListener(IByteStreamConnectionListener listener) {
+      this.listener = null;
+    }
+  }
+
+  private final Receiver receiver = new Receiver();
+  private final Transmitter transmitter = new Transmitter();
+  private final ConnectionManager connectionManager = new ConnectionManager();
+
+  private TransportMetrics metrics;
+
+  @Before
+  public void setUp() {
+    metrics = new TransportMetrics(receiver, transmitter, connectionManager);
+  }
+
+  @After
+  public void tearDown() {
+    metrics.dispose();
+  }
+
+  @Test
+  public void testMetricsArePerPeerAndMode() {
+    transmitter.listener.sent(ALICE, StreamMode.TCP, 10, 100, 0);
+    transmitter.listener.sent(ALICE, StreamMode.TCP, 20, 200, 3);
+    transmitter.listener.sent(ALICE, StreamMode.IBB, 5, 5, 1000);
+    receiver.listener.received(BOB, StreamMode.TCP, 7, 70, 1);
+
+    final TransportMetricsSnapshot snapshot = metrics.getSnapshot();
+
+    assertEquals(3, snapshot.getLinks().size());
+    assertEquals(35, snapshot.getBytesSent());
+    assertEquals(7, snapshot.getBytesReceived());
+
+    final List<LinkMetrics> alice = snapshot.getLinks(ALICE);
+
+    assertEquals(2, alice.size());
+
+    final LinkMetrics tcp = alice.get(0).getMode() == StreamMode.TCP ? alice.get(0) : alice.get(1);
+
+    assertEquals(StreamMode.TCP, tcp.getMode());
+    assertEquals(30, tcp.getBytesSent());
+    assertEquals(300, tcp.getBytesSentUncompressed());
+    assertEquals(2, tcp.getPacketsSent());
+    assertEquals(0, tcp.getPacketsReceived());
+    assertEquals(1, tcp.getSendLatencies()[0]);
+    assertEquals(1, tcp.getSendLatencies()[2]);
+
+    final LinkMetrics bob = snapshot.getLinks(BOB).get(0);
+
+    assertEquals(7, bob.getBytesReceived());
+    assertEquals(70, bob.getBytesReceivedUncompressed());
+    assertEquals(1, bob.getPacketsReceived());
+  }
+
+  @Test
+  public void testReset() {
+    transmitter.listener.sent(ALICE, StreamMode.TCP, 10, 100, 5);
+
+    metrics.reset();
+
+    final LinkMetrics link = metrics.getSnapshot().getLinks().get(0);
+
+    assertEquals(0, link.getBytesSent());
+    assertEquals(0, link.getPacketsSent());
+    assertArrayEquals(new long[LatencyHistogram.BUCKETS], link.getSendLatencies());
+  }
+
+  @Test
+  public void testDisposeRemovesListeners() {
+    metrics.dispose();
+
+    assertEquals(null, receiver.listener);
+    assertEquals(null, transmitter.listener);
+    assertEquals(null, connectionManager.listener);
+  }
+
+  @Test
+  public void testReconnects() {
+    final IByteStreamConnection first = createConnection("default");
+    final IByteStreamConnection second = createConnection("default");
+
+    connect(first);
+    disconnect(first);
+    connect(second);
+
+    final LinkMetrics link = metrics.getSnapshot().getLinks().get(0);
+
+    assertEquals(2, link.getConnects());
+    assertEquals(1, link.getDisconnects());
+    assertEquals(1, link.getReconnects());
+  }
+
+  @Test
+  public void testAdditionalConnectionsAreNoReconnects() {
+    final IByteStreamConnection connection = createConnection("default");
+    final IByteStreamConnection firstLane = createConnection("default-bulk-0");
+    final IByteStreamConnection secondLane = createConnection("default-bulk-1");
+
+    connect(connection);
+    connect(firstLane);
+    disconnect(firstLane);
+    connect(secondLane);
+
+    final LinkMetrics link = metrics.getSnapshot().getLinks().get(0);
+
+    assertEquals(3, link.getConnects());
+    assertEquals(1, link.getDisconnects());
+    assertEquals(0, link.getReconnects());
+  }
+
+  @Test
+  public void testExposedOverJMX() throws Exception {
+    transmitter.listener.sent(ALICE, StreamMode.SOCKS5_DIRECT, 10, 100, 5);
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(TransportMetrics.OBJECT_NAME);
+
+    assertTrue("metrics are not registered", server.isRegistered(name));
+    assertEquals(10L, server.getAttribute(name, "BytesSent"));
+
+    final CompositeData[] links = (CompositeData[]) server.getAttribute(name, "Links");
+
+    assertEquals(1, links.length);
+    assertEquals(ALICE.toString(), links[0].get("peer"));
+    assertEquals(StreamMode.SOCKS5_DIRECT.name(), links[0].get("mode"));
+
+    metrics.dispose();
+
+    assertTrue("metrics are still registered", !server.isRegistered(name));
+  }
+
+  @Test
+  public void testPercentile() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int i = 0; i < 98; i++) histogram.record(3);
+
+    histogram.record(100);
+    histogram.record(100000);
+
+    assertEquals(4, LatencyHistogram.getPercentile(histogram.getCounts(), 50));
+    assertEquals(128, LatencyHistogram.getPercentile(histogram.getCounts(), 99));
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.getPercentile(histogram.getCounts(), 100));
+    assertEquals(0, LatencyHistogram.getPercentile(new long[LatencyHistogram.BUCKETS], 50));
+  }
+
+  private void connect(final IByteStreamConnection connection) {
+    connectionManager.listener.connectionChanged(connection.getConnectionID(), connection, false);
+  }
+
+  private void disconnect(final IByteStreamConnection connection) {
+    connectionManager.listener.connectionClosed(connection.getConnectionID(), connection);
+  }
+
+  private static IByteStreamConnection createConnection(final String connectionID) {
+    final IByteStreamConnection connection = EasyMock.createNiceMock(IByteStreamConnection.class);
+
+    EasyMock.expect(connection.getConnectionID()).andStubReturn(connectionID);
+    EasyMock.expect(connection.getRemoteAddress()).andStubReturn(ALICE);
+    EasyMock.expect(connection.getMode()).andStubReturn(StreamMode.TCP);
+    EasyMock.replay(connection);
+
+    return connection;
+  }
+}
@@ -0,0 +1,270 @@
+package saros.net.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
+import org.junit.Test;
+
+public class AdaptiveIBBOutputStreamTest {
+
+  private static final String PEER = "bob@baumeister.de/Saros";
+
+  /** records the sent data packets and acknowledges them if requested */
+  private static class IBBConnection extends Connection {
+
+    private final List<Data> sent = new ArrayList<Data>();
+
+    private PacketListener listener;
+
+    private boolean autoAcknowledge;
+
+    private long acknowledgementDelay;
+
+    private IBBConnection() {
+      super(new ConnectionConfiguration("baumeister.de"));
+    }
+
+    @Override
+    public void addPacketListener(PacketListener packetListener, PacketFilter packetFilter) {
+      listener = packetListener;
+    }
+
+    @Override
+    public void removePacketListener(PacketListener packetListener) {
+      if (listener == packetListener) listener = null;
+    }
+
+    @Override
+    public synchronized void sendPacket(Packet packet) {
+      sent.add((Data) packet);
+
+      if (!autoAcknowledge) return;
+
+      if (acknowledgementDelay > 0) {
+        try {
+          Thread.sleep(acknowledgementDelay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      acknowledge(packet, null);
+    }
+
+    private void acknowledge(Packet packet, XMPPError error) {
+      final IQ reply = error == null ? IQ.createResultIQ((IQ) packet) : createError(packet, error);
+      listener.processPacket(reply);
+    }
+
+    private synchronized int getSentCount() {
+      return sent.size();
+    }
+
+    private static IQ createError(Packet packet, XMPPError error) {
+      return IQ.createErrorResponse((IQ) packet, error);
+    }
+
+    @Override
+    public String getUser() {
+      return "alice@baumeister.de/Saros";
+    }
+
+    @Override
+    public String getConnectionID() {
+      return null;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+      return true;
+    }
+
+    @Override
+    public boolean isAnonymous() {
+      return false;
+    }
+
+    @Override
+    public boolean isSecureConnection() {
+      return false;
+    }
+
+    @Override
+    public boolean isUsingCompression() {
+      return false;
+    }
+
+    @Override
+    public void connect() {
+      // NOP
+    }
+
+    @Override
+    public void login(String username, String password, String resource) {
+      // NOP
+    }
+
+    @Override
+    public void loginAnonymously() {
+      // NOP
+    }
+
+    @Override
+    public Roster getRoster() {
+      return null;
+    }
+
+    @Override
+    public void disconnect(Presence unavailablePresence) {
+      // NOP
+    }
+  }
+
+  private final IBBConnection connection = new IBBConnection();
+
+  @Test
+  public void testDataIsSentInSequence() throws Exception {
+    connection.autoAcknowledge = true;
+
+    final byte[] data = new byte[100 * 1024];
+    new Random(42).nextBytes(data);
+
+    final AdaptiveIBBOutputStream out =
+        new AdaptiveIBBOutputStream(connection, PEER, "sid", 4096, 16 * 1024);
+
+    out.write(data, 0, 1000);
+    out.write(data, 1000, data.length - 1000);
+    out.close();
+
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    long sequence = 0;
+
+    for (final Data packet : connection.sent) {
+      assertEquals(PEER, packet.getTo());
+      assertEquals("sid", packet.getDataPacketExtension().getSessionID());
+      assertEquals(sequence++, packet.getDataPacketExtension().getSeq());
+
+      final byte[] block = packet.getDataPacketExtension().getDecodedData();
+
+      assertTrue("block exceeds the maximum block size", block.length <= 16 * 1024);
+      received.write(block);
+    }
+
+    assertArrayEquals(data, received.toByteArray());
+  }
+
+  @Test
+  public void testUnacknowledgedBlocksAreLimitedByWindow() throws Exception {
+    final AdaptiveIBBOutputStream out =
+        new AdaptiveIBBOutputStream(connection, PEER, "sid", 1024, 1024);
+
+    final int window = out.getWindow();
+
+    final Thread writer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  out.write(new byte[10 * 1024]);
+                } catch (IOException e) {
+                  // ignore, the test checks the sent packets
+                }
+              }
+            });
+
+    writer.start();
+
+    Thread.sleep(200);
+
+    assertEquals("more blocks than the window were sent", window, connection.getSentCount());
+
+    connection.acknowledge(connection.sent.get(0), null);
+
+    Thread.sleep(200);
+
+    assertTrue("no block was sent after an acknowledgement", connection.getSentCount() > window);
+
+    writer.interrupt();
+    writer.join(10000);
+  }
+
+  @Test
+  public void testWindowAndBlockSizeGrowWithoutThrottling() throws Exception {
+    connection.autoAcknowledge = true;
+
+    final AdaptiveIBBOutputStream out =
+        new AdaptiveIBBOutputStream(connection, PEER, "sid", 1024, 4096);
+
+    final int window = out.getWindow();
+
+    out.write(new byte[1024 * 1024]);
+    out.close();
+
+    assertTrue("window did not grow", out.getWindow() > window);
+    assertEquals(4096, out.getBlockSize());
+  }
+
+  @Test
+  public void testWindowShrinksIfAcknowledgementsAreDelayed() throws Exception {
+    connection.autoAcknowledge = true;
+
+    final AdaptiveIBBOutputStream out =
+        new AdaptiveIBBOutputStream(connection, PEER, "sid", 1024, 1024);
+
+    out.write(new byte[64 * 1024]);
+    out.flush();
+
+    final int window = out.getWindow();
+
+    assertTrue("window did not grow", window > 2);
+
+    connection.acknowledgementDelay = 50;
+
+    out.write(new byte[2 * 1024]);
+    out.close();
+
+    assertTrue("window did not shrink", out.getWindow() < window);
+  }
+
+  @Test
+  public void testRejectedBlockFailsStream() throws Exception {
+    final AdaptiveIBBOutputStream out =
+        new AdaptiveIBBOutputStream(connection, PEER, "sid", 1024, 1024);
+
+    out.write(new byte[1024]);
+
+    connection.acknowledge(
+        connection.sent.get(0), new XMPPError(XMPPError.Condition.resource_constraint));
+
+    try {
+      out.write(new byte[1024]);
+      fail("write succeeded although a block was rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package saros.net.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import saros.context.CoreContextFactory;
+import saros.context.IContextKeyBindings;
+import saros.net.ConnectionState;
+import saros.net.internal.IByteStreamConnection;
+import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.xmpp.JID;
+import saros.net.xmpp.XMPPConnectionService;
+import saros.repackaged.picocontainer.BindKey;
+import saros.repackaged.picocontainer.DefaultPicoContainer;
+import saros.repackaged.picocontainer.MutablePicoContainer;
+
+public class LoopbackStreamServiceTest {
+
+  private static final long TIMEOUT = 10000;
+
+  private static class Listener implements IByteStreamConnectionListener {
+    private final BlockingQueue<IByteStreamConnection> incoming =
+        new LinkedBlockingQueue<IByteStreamConnection>();
+
+    @Override
+    public void connectionChanged(
+        String connectionId, IByteStreamConnection connection, boolean incomingRequest) {
+      if (incomingRequest) incoming.add(connection);
+    }
+
+    @Override
+    public void connectionClosed(String connectionId, IByteStreamConnection connection) {
+      // NOP
+    }
+  }
+
+  private LoopbackConnection alice;
+  private LoopbackConnection bob;
+
+  @Before
+  public void setUp() throws Exception {
+    final LoopbackConnection.Network network = new LoopbackConnection.Network();
+
+    alice = createConnection(network, "alice");
+    bob = createConnection(network, "bob");
+  }
+
+  @After
+  public void tearDown() {
+    alice.disconnect();
+    bob.disconnect();
+  }
+
+  @Test
+  public void testExchangePackets() throws Exception {
+    final PacketCollector collector =
+        bob.createPacketCollector(new PacketTypeFilter(Message.class));
+
+    final Message message = new Message(bob.getUser());
+    message.setBody("hello");
+
+    alice.sendPacket(message);
+
+    final Message received = (Message) collector.nextResult(TIMEOUT);
+
+    assertNotNull("message was not received", received);
+    assertEquals("hello", received.getBody());
+    assertEquals(alice.getUser(), received.getFrom());
+
+    collector.cancel();
+  }
+
+  @Test
+  public void testRosterContainsOtherUsers() throws Exception {
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while (alice.getRoster().getEntry("bob@loopback") == null
+        || !alice.getRoster().getPresence("bob@loopback").isAvailable()) {
+
+      assertTrue("bob is not in the roster of alice", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testConnect() throws Exception {
+    final LoopbackStreamService aliceService = new LoopbackStreamService();
+    final LoopbackStreamService bobService = new LoopbackStreamService();
+
+    final Listener aliceListener = new Listener();
+    final Listener bobListener = new Listener();
+
+    aliceService.initialize(alice, aliceListener);
+    bobService.initialize(bob, bobListener);
+
+    try {
+      final IByteStreamConnection connection = aliceService.connect("test", new JID(bob.getUser()));
+
+      final IByteStreamConnection incoming =
+          bobListener.incoming.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+
+      assertNotNull("no incoming connection", incoming);
+
+      assertEquals(StreamMode.LOOPBACK, connection.getMode());
+      assertEquals(StreamMode.LOOPBACK, incoming.getMode());
+      assertEquals("test", incoming.getConnectionID());
+      assertEquals(alice.getUser(), incoming.getRemoteAddress().getRAW());
+
+      connection.close();
+      incoming.close();
+    } finally {
+      aliceService.uninitialize();
+      bobService.uninitialize();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testConnectToUnknownPeer() throws Exception {
+    final LoopbackStreamService aliceService = new LoopbackStreamService();
+
+    aliceService.initialize(alice, new Listener());
+
+    try {
+      aliceService.connect("test", new JID("carl@loopback/Saros"));
+    } finally {
+      aliceService.uninitialize();
+    }
+  }
+
+  @Test
+  public void testContextFactoryReplacesNetworkComponents() {
+    final MutablePicoContainer container = new DefaultPicoContainer();
+
+    new CoreContextFactory().createComponents(container);
+    new LoopbackContextFactory().createComponents(container);
+
+    assertEquals(
+        LoopbackStreamService.class,
+        container
+            .getComponentAdapter(
+                BindKey.bindKey(IStreamService.class, IContextKeyBindings.TCPStreamService.class))
+            .getComponentImplementation());
+
+    assertEquals(
+        LoopbackConnectionService.class,
+        container.getComponentAdapter(XMPPConnectionService.class).getComponentImplementation());
+  }
+
+  @Test
+  public void testConnectionService() throws Exception {
+    final LoopbackConnectionService service = new LoopbackConnectionService(null, null);
+
+    service.configure("Saros", false, false, 0, null, null, false, null, 0, false);
+    service.connect(new ConnectionConfiguration("localhost", 5222, "loopback"), "carl", "secret");
+
+    try {
+      assertEquals(ConnectionState.CONNECTED, service.getConnectionState());
+      assertEquals(new JID("carl@loopback/Saros"), service.getJID());
+      assertNotNull(service.getRoster());
+    } finally {
+      service.disconnect();
+    }
+
+    assertFalse(service.isConnected());
+    assertEquals(null, service.getJID());
+  }
+
+  @Test
+  public void testByteStream() throws Exception {
+    final LoopbackByteStream[] streams = LoopbackByteStream.createPair();
+
+    final byte[] data = new byte[200 * 1024];
+
+    for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+    final Thread writer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  streams[0].getOutputStream().write(data);
+                  streams[0].close();
+                } catch (IOException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            });
+
+    writer.start();
+
+    final byte[] received = new byte[data.length];
+
+    final DataInputStream in = new DataInputStream(streams[1].getInputStream());
+
+    in.readFully(received);
+
+    assertArrayEquals(data, received);
+    assertEquals(-1, in.read());
+
+    writer.join(TIMEOUT);
+  }
+
+  private static LoopbackConnection createConnection(
+      LoopbackConnection.Network network, String name) throws Exception {
+
+    final LoopbackConnection connection =
+        new LoopbackConnection(network, new ConnectionConfiguration("localhost", 5222, "loopback"));
+
+    connection.connect();
+    connection.login(name, "secret", "Saros");
+
+    return connection;
+  }
+}
@@ -0,0 +1,272 @@
+package saros.net.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.easymock.EasyMock;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.bytestreams.BytestreamListener;
+import org.jivesoftware.smackx.bytestreams.socks5.Socks5BytestreamManager;
+import org.jivesoftware.smackx.bytestreams.socks5.Socks5BytestreamRequest;
+import org.jivesoftware.smackx.bytestreams.socks5.Socks5BytestreamSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import saros.net.internal.IByteStreamConnection;
+import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.xmpp.JID;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Socks5BytestreamManager.class})
+@PowerMockIgnore({"javax.xml.*", "javax.net.*"})
+public class Socks5StreamServiceTest {
+
+  private static final long TIMEOUT = 10000;
+
+  private static final String RESPONSE_SESSION_ID_PREFIX = "response-socks5";
+
+  private final JID aliceJID = new JID("alice@example.org/Saros");
+  private final JID bobJID = new JID("bob@example.org/Saros");
+
+  /** session IDs the outgoing sessions were requested with */
+  private final BlockingQueue<String> requestedSessionIDs = new LinkedBlockingQueue<String>();
+
+  private Connection connection;
+  private Socks5BytestreamManager manager;
+  private Socks5StreamService service;
+
+  private IByteStreamConnectionListener listener;
+
+  @Before
+  public void setUp() {
+    manager = PowerMock.createNiceMock(Socks5BytestreamManager.class);
+
+    PowerMock.mockStatic(Socks5BytestreamManager.class);
+
+    connection = EasyMock.createNiceMock(Connection.class);
+    EasyMock.expect(connection.getUser()).andStubReturn(aliceJID.toString());
+    EasyMock.replay(connection);
+
+    EasyMock.expect(Socks5BytestreamManager.getBytestreamManager(connection))
+        .andStubReturn(manager);
+
+    listener = EasyMock.createNiceMock(IByteStreamConnectionListener.class);
+    EasyMock.replay(listener);
+
+    service = new Socks5StreamService();
+
+    // the manager is replayed by the tests after the outgoing session is set up
+    PowerMock.replay(Socks5BytestreamManager.class);
+  }
+
+  @After
+  public void tearDown() {
+    service.uninitialize();
+  }
+
+  @Test
+  public void testDirectResponseBeatsSlowOutgoingSession() throws Exception {
+    final CountDownLatch outgoingReleased = new CountDownLatch(1);
+    final CountDownLatch outgoingClosed = new CountDownLatch(1);
+
+    final Socks5BytestreamSession outSession = createSession(true, outgoingClosed);
+    final Socks5BytestreamSession inSession = createSession(true, null);
+
+    expectOutgoingSession(
+        () -> {
+          // the peer connects to us while our attempt to connect is still running
+          deliverResponse(inSession);
+
+          outgoingReleased.await(TIMEOUT, TimeUnit.MILLISECONDS);
+          return outSession;
+        });
+
+    initialize();
+
+    final long start = System.currentTimeMillis();
+
+    final IByteStreamConnection connection = service.connect("test", bobJID);
+
+    try {
+      assertTrue(
+          "did not wait for the outgoing session to be used",
+          System.currentTimeMillis() - start < TIMEOUT);
+
+      assertEquals(StreamMode.SOCKS5_DIRECT, connection.getMode());
+      assertEquals("test", connection.getConnectionID());
+      assertEquals(bobJID, connection.getRemoteAddress());
+
+      assertEquals(
+          "outgoing session was closed before it was established", 1, outgoingClosed.getCount());
+
+      outgoingReleased.countDown();
+
+      assertTrue(
+          "unused outgoing session was not closed",
+          outgoingClosed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    } finally {
+      outgoingReleased.countDown();
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testRemoteRejectAbortsConnect() throws Exception {
+    expectOutgoingSession(
+        () -> {
+          throw new XMPPException(new XMPPError(XMPPError.Condition.no_acceptable));
+        });
+
+    initialize();
+
+    final long start = System.currentTimeMillis();
+
+    try {
+      service.connect("test", bobJID);
+      fail("connect did not fail");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof XMPPException);
+      assertEquals(406, ((XMPPException) e.getCause()).getXMPPError().getCode());
+    }
+
+    // the response timeout is 30 seconds, a rejected connect must not wait for it
+    assertTrue(
+        "connect waited for the response session", System.currentTimeMillis() - start < TIMEOUT);
+  }
+
+  @Test
+  public void testLateResponseIsClosed() throws Exception {
+    final CountDownLatch incomingClosed = new CountDownLatch(1);
+
+    final Socks5BytestreamSession outSession = createSession(true, null);
+    final Socks5BytestreamSession inSession = createSession(true, incomingClosed);
+
+    expectOutgoingSession(() -> outSession);
+
+    initialize();
+
+    final IByteStreamConnection connection = service.connect("test", bobJID);
+
+    try {
+      assertEquals(StreamMode.SOCKS5_DIRECT, connection.getMode());
+
+      // the response of the peer arrives after the direct outgoing session won
+      deliverResponse(inSession);
+
+      assertTrue(
+          "late response session was not closed",
+          incomingClosed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    } finally {
+      connection.close();
+    }
+
+    EasyMock.verify(listener);
+  }
+
+  @Test
+  public void testSessionIDContainsConnectionID() throws Exception {
+    final Socks5BytestreamSession outSession = createSession(true, null);
+
+    expectOutgoingSession(() -> outSession);
+
+    initialize();
+
+    service.connect("test", bobJID).close();
+
+    final String sessionID = requestedSessionIDs.poll();
+
+    assertNotNull(sessionID);
+    assertTrue(sessionID.startsWith("test" + IStreamService.SESSION_ID_DELIMITER));
+    assertFalse(sessionID.startsWith(RESPONSE_SESSION_ID_PREFIX));
+  }
+
+  private interface SessionAnswer {
+    Socks5BytestreamSession answer() throws Exception;
+  }
+
+  private void expectOutgoingSession(final SessionAnswer answer) throws Exception {
+    EasyMock.expect(manager.establishSession(EasyMock.eq(bobJID.toString()), EasyMock.anyString()))
+        .andAnswer(
+            () -> {
+              requestedSessionIDs.add((String) EasyMock.getCurrentArguments()[1]);
+              return answer.answer();
+            })
+        .anyTimes();
+
+    PowerMock.replay(manager);
+  }
+
+  private void initialize() {
+    service.initialize(connection, listener);
+  }
+
+  /**
+   * Simulates the peer connecting to the local side in reply to the outgoing session that was
+   * requested last.
+   */
+  private void deliverResponse(final Socks5BytestreamSession session) throws Exception {
+    final String sessionID = peekLastSessionID();
+
+    final Socks5BytestreamRequest request = EasyMock.createNiceMock(Socks5BytestreamRequest.class);
+
+    EasyMock.expect(request.getFrom()).andStubReturn(bobJID.toString());
+    EasyMock.expect(request.getSessionID())
+        .andStubReturn(
+            RESPONSE_SESSION_ID_PREFIX + IStreamService.SESSION_ID_DELIMITER + sessionID);
+    EasyMock.expect(request.accept()).andStubReturn(session);
+    EasyMock.replay(request);
+
+    ((BytestreamListener) service).incomingBytestreamRequest(request);
+  }
+
+  private String peekLastSessionID() {
+    String sessionID = null;
+
+    for (final String id : requestedSessionIDs) sessionID = id;
+
+    assertNotNull("no outgoing session was requested", sessionID);
+
+    return sessionID;
+  }
+
+  private static Socks5BytestreamSession createSession(
+      final boolean direct, final CountDownLatch closed) throws IOException {
+
+    final Socks5BytestreamSession session = EasyMock.createNiceMock(Socks5BytestreamSession.class);
+
+    EasyMock.expect(session.isDirect()).andStubReturn(direct);
+    EasyMock.expect(session.isMediated()).andStubReturn(!direct);
+    EasyMock.expect(session.getInputStream()).andStubReturn(new ByteArrayInputStream(new byte[0]));
+    EasyMock.expect(session.getOutputStream()).andStubReturn(new ByteArrayOutputStream());
+
+    session.close();
+    EasyMock.expectLastCall()
+        .andAnswer(
+            () -> {
+              if (closed != null) closed.countDown();
+              return null;
+            })
+        .anyTimes();
+
+    EasyMock.replay(session);
+
+    return session;
+  }
+}
@@ -0,0 +1,438 @@
+package saros.net.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.easymock.EasyMock;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import saros.context.IContainerContext;
+import saros.net.internal.IByteStreamConnection;
+import saros.net.internal.IByteStreamConnectionListener;
+import saros.net.xmpp.JID;
+import saros.session.ISarosSession;
+import saros.session.ISarosSessionManager;
+import saros.session.User;
+
+public class TCPTransportTest {
+
+  private static final long TIMEOUT = 10000;
+
+  private static final int HANDSHAKE_MAGIC = 0x53544350;
+
+  private static class Listener implements IByteStreamConnectionListener {
+    private final BlockingQueue<IByteStreamConnection> incoming =
+        new LinkedBlockingQueue<IByteStreamConnection>();
+
+    @Override
+    public void connectionChanged(
+        String connectionId, IByteStreamConnection connection, boolean incomingRequest) {
+      if (incomingRequest) incoming.add(connection);
+    }
+  }
+
+  private LoopbackConnection alice;
+  private LoopbackConnection bob;
+
+  private JID aliceJID;
+  private JID bobJID;
+
+  private TCPTransport aliceTransport;
+  private TCPTransport bobTransport;
+
+  private Listener bobListener;
+
+  @Before
+  public void setUp() throws Exception {
+    final LoopbackConnection.Network network = new LoopbackConnection.Network();
+
+    alice = createConnection(network, "alice");
+    bob = createConnection(network, "bob");
+
+    aliceJID = new JID(alice.getUser());
+    bobJID = new JID(bob.getUser());
+
+    aliceTransport = new TCPTransport();
+    bobTransport = new TCPTransport();
+
+    bobListener = new Listener();
+
+    aliceTransport.initialize(alice, new Listener());
+    bobTransport.initialize(bob, bobListener);
+
+    assertTrue("bob does not accept connections", bobTransport.getLocalPort() > 0);
+  }
+
+  @After
+  public void tearDown() {
+    aliceTransport.uninitialize();
+    bobTransport.uninitialize();
+
+    alice.disconnect();
+    bob.disconnect();
+  }
+
+  @Test
+  public void testConnect() throws Exception {
+    final IByteStreamConnection connection = aliceTransport.connect("test", bobJID);
+
+    try {
+      final IByteStreamConnection incoming =
+          bobListener.incoming.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+
+      assertNotNull("no incoming connection", incoming);
+
+      assertEquals(StreamMode.TCP, connection.getMode());
+      assertEquals(StreamMode.TCP, incoming.getMode());
+      assertEquals("test", incoming.getConnectionID());
+      assertEquals(aliceJID, incoming.getRemoteAddress());
+      assertEquals(bobJID, connection.getRemoteAddress());
+
+      incoming.close();
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testConnectToUnknownPeer() throws Exception {
+    aliceTransport.connect("test", new JID("carl@loopback/Saros"));
+  }
+
+  @Test
+  public void testNoConnectionsAfterUninitialize() throws Exception {
+    final InetSocketAddress address = getBobAddress();
+
+    bobTransport.uninitialize();
+
+    assertEquals(-1, bobTransport.getLocalPort());
+    assertTrue(bobTransport.getLocalAddresses().isEmpty());
+
+    try {
+      TCPTransport.connect(Collections.singletonList(address));
+      fail("connection to uninitialized transport was established");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testHandshake() throws Exception {
+    final String token = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    final SocketChannel channel = connectToBob();
+
+    try {
+      TCPTransport.performConnectHandshake(channel.socket(), aliceJID, bobJID, "test", token);
+
+      final IByteStreamConnection incoming =
+          bobListener.incoming.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+
+      assertNotNull("no incoming connection", incoming);
+      assertEquals("test", incoming.getConnectionID());
+      assertEquals(aliceJID, incoming.getRemoteAddress());
+
+      incoming.close();
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test
+  public void testRejectInvalidMagic() throws Exception {
+    final Socket socket = new Socket(getBobAddress().getAddress(), getBobAddress().getPort());
+
+    try {
+      final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(0x47455420); // "GET "
+      out.writeByte(1);
+      out.flush();
+
+      assertClosed(socket);
+    } finally {
+      socket.close();
+    }
+
+    assertNoIncomingConnection();
+  }
+
+  @Test
+  public void testRejectUnsupportedVersion() throws Exception {
+    final String token = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    final Socket socket = new Socket(getBobAddress().getAddress(), getBobAddress().getPort());
+
+    try {
+      final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(buffer);
+      out.writeInt(HANDSHAKE_MAGIC);
+      out.writeByte(2);
+      out.writeUTF(aliceJID.toString());
+      out.writeUTF(bobJID.toString());
+      out.writeUTF("test");
+      out.writeUTF(token);
+      out.flush();
+
+      socket.getOutputStream().write(buffer.toByteArray());
+
+      assertClosed(socket);
+    } finally {
+      socket.close();
+    }
+
+    assertNoIncomingConnection();
+  }
+
+  @Test
+  public void testRejectUnknownToken() throws Exception {
+    assertRejected(aliceJID, bobJID, "test", "0123456789abcdef");
+  }
+
+  @Test
+  public void testRejectTokenOfOtherUser() throws Exception {
+    final String token = bobTransport.createToken(new JID("carl@loopback/Saros"), TIMEOUT);
+
+    assertRejected(aliceJID, bobJID, "test", token);
+
+    // a rejected attempt consumes the token
+    assertFalse(bobTransport.consumeToken(token, new JID("carl@loopback/Saros")));
+  }
+
+  @Test
+  public void testRejectTokenOfOtherResource() throws Exception {
+    final String token = bobTransport.createToken(new JID("alice@loopback/Other"), TIMEOUT);
+
+    assertRejected(aliceJID, bobJID, "test", token);
+  }
+
+  @Test
+  public void testRejectExpiredToken() throws Exception {
+    final String token = bobTransport.createToken(aliceJID, -1);
+
+    assertRejected(aliceJID, bobJID, "test", token);
+  }
+
+  @Test
+  public void testRejectReusedToken() throws Exception {
+    final String token = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    final SocketChannel channel = connectToBob();
+
+    try {
+      TCPTransport.performConnectHandshake(channel.socket(), aliceJID, bobJID, "test", token);
+
+      final IByteStreamConnection incoming =
+          bobListener.incoming.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+
+      assertNotNull("no incoming connection", incoming);
+
+      incoming.close();
+    } finally {
+      channel.close();
+    }
+
+    assertRejected(aliceJID, bobJID, "test", token);
+  }
+
+  @Test
+  public void testRejectWrongTargetAddress() throws Exception {
+    final String token = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    assertRejected(aliceJID, new JID("bob@loopback/Other"), "test", token);
+  }
+
+  @Test
+  public void testRejectEmptyConnectionID() throws Exception {
+    final String token = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    assertRejected(aliceJID, bobJID, "", token);
+  }
+
+  @Test
+  public void testTokens() {
+    final String token = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    assertFalse(bobTransport.consumeToken(token, bobJID));
+    assertFalse("token was not consumed", bobTransport.consumeToken(token, aliceJID));
+
+    final String other = bobTransport.createToken(aliceJID, TIMEOUT);
+
+    assertFalse(token.equals(other));
+    assertTrue(bobTransport.consumeToken(other, aliceJID));
+    assertFalse(bobTransport.consumeToken(other, aliceJID));
+
+    assertFalse(bobTransport.consumeToken(bobTransport.createToken(aliceJID, -1), aliceJID));
+  }
+
+  @Test
+  public void testContactsAndParticipantsAreAllowedToConnect() throws Exception {
+    final JID carlJID = new JID("carl@loopback/Saros");
+
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while (bob.getRoster().getEntry(aliceJID.getBase()) == null) {
+      assertTrue("alice is not in the roster of bob", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+
+    assertTrue(bobTransport.isContactOrParticipant(bob, aliceJID));
+    assertFalse(bobTransport.isContactOrParticipant(bob, carlJID));
+
+    final ISarosSession session = EasyMock.createNiceMock(ISarosSession.class);
+    EasyMock.expect(session.getUser(carlJID)).andStubReturn(EasyMock.createMock(User.class));
+
+    final ISarosSessionManager sessionManager = EasyMock.createNiceMock(ISarosSessionManager.class);
+    EasyMock.expect(sessionManager.getSession()).andStubReturn(session);
+
+    final IContainerContext context = EasyMock.createNiceMock(IContainerContext.class);
+    EasyMock.expect(context.getComponent(ISarosSessionManager.class)).andStubReturn(sessionManager);
+
+    final Connection stranger = EasyMock.createNiceMock(Connection.class);
+
+    EasyMock.replay(session, sessionManager, context, stranger);
+
+    assertTrue(new TCPTransport(context).isContactOrParticipant(stranger, carlJID));
+    assertFalse(new TCPTransport(context).isContactOrParticipant(stranger, aliceJID));
+    assertFalse(new TCPTransport().isContactOrParticipant(stranger, carlJID));
+  }
+
+  @Test
+  public void testListensOnlyOnLocalAddresses() throws Exception {
+    assertFalse(bobTransport.getLocalAddresses().isEmpty());
+
+    for (final InetSocketAddress address : bobTransport.getLocalAddresses()) {
+      assertFalse(address.getAddress().isAnyLocalAddress());
+      assertEquals(bobTransport.getLocalPort(), address.getPort());
+    }
+  }
+
+  @Test
+  public void testConnectToFirstReachableAddress() throws Exception {
+    final List<InetSocketAddress> addresses =
+        Arrays.asList(loopback(getUnusedPort()), getBobAddress(), loopback(1));
+
+    final SocketChannel channel = TCPTransport.connect(addresses);
+
+    try {
+      assertTrue(channel.isConnected());
+      assertTrue(channel.isBlocking());
+      assertEquals(bobTransport.getLocalPort(), channel.socket().getPort());
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testConnectToUnreachableAddresses() throws Exception {
+    TCPTransport.connect(Arrays.asList(loopback(getUnusedPort()), loopback(getUnusedPort())));
+  }
+
+  @Test
+  public void testParseAddresses() {
+    final List<InetSocketAddress> addresses =
+        TCPTransport.parseAddresses(
+            Arrays.asList(
+                "127.0.0.1/1234", "::1/80", "127.0.0.1", "/1234", "127.0.0.1/", "127.0.0.1/port"));
+
+    assertEquals(Arrays.asList(loopback(1234), new InetSocketAddress("::1", 80)), addresses);
+  }
+
+  private void assertRejected(
+      final JID localAddress,
+      final JID remoteAddress,
+      final String connectionID,
+      final String token)
+      throws Exception {
+
+    final SocketChannel channel = connectToBob();
+
+    try {
+      TCPTransport.performConnectHandshake(
+          channel.socket(), localAddress, remoteAddress, connectionID, token);
+      fail("handshake was not rejected");
+    } catch (IOException expected) {
+      // expected
+    } finally {
+      channel.close();
+    }
+
+    assertNoIncomingConnection();
+  }
+
+  private void assertNoIncomingConnection() throws InterruptedException {
+    assertNull("connection was accepted", bobListener.incoming.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  private SocketChannel connectToBob() throws Exception {
+    return TCPTransport.connect(Collections.singletonList(getBobAddress()));
+  }
+
+  private InetSocketAddress getBobAddress() {
+    return bobTransport.getLocalAddresses().get(0);
+  }
+
+  private static void assertClosed(final Socket socket) throws IOException {
+    socket.setSoTimeout((int) TIMEOUT);
+
+    final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+    try {
+      while (in.read() != -1) {
+        // consume the reply
+      }
+    } catch (SocketTimeoutException e) {
+      fail("connection was not closed");
+    } catch (IOException e) {
+      // connection reset
+    }
+  }
+
+  private static InetSocketAddress loopback(final int port) {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+  }
+
+  private static int getUnusedPort() throws IOException {
+    final ServerSocket socket = new ServerSocket(0);
+
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static LoopbackConnection createConnection(
+      LoopbackConnection.Network network, String name) throws Exception {
+
+    final LoopbackConnection connection =
+        new LoopbackConnection(network, new ConnectionConfiguration("localhost", 5222, "loopback"));
+
+    connection.connect();
+    connection.login(name, "secret", "Saros");
+
+    return connection;
+  }
+}
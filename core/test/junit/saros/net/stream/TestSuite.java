@@ -0,0 +1,16 @@
+package saros.net.stream;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+  AdaptiveIBBOutputStreamTest.class,
+  LoopbackStreamServiceTest.class,
+  Socks5StreamServiceTest.class,
+  TCPTransportTest.class
+})
+public class TestSuite {
+  // the class remains completely empty,
+  // being used only as a holder for the above annotations
+}
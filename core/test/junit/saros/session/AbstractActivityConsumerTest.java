@@ -0,0 +1,63 @@
+package saros.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+import saros.activities.FileActivity;
+import saros.activities.IActivity;
+import saros.activities.TextEditActivity;
+import saros.activities.TextSelectionActivity;
+
+public class AbstractActivityConsumerTest {
+
+  private static class SelectionConsumer extends AbstractActivityConsumer {
+    @Override
+    public void receive(TextSelectionActivity textSelectionActivity) {
+      // NOP
+    }
+  }
+
+  @Test
+  public void testTypesOfOverriddenReceiveMethods() {
+    final IActivityConsumer consumer =
+        new SelectionConsumer() {
+          @Override
+          public void receive(FileActivity fileActivity) {
+            // NOP
+          }
+
+          @Override
+          public void receive(TextEditActivity textEditActivity) {
+            // NOP
+          }
+        };
+
+    assertEquals(
+        new HashSet<Class<? extends IActivity>>(
+            Arrays.asList(TextSelectionActivity.class, FileActivity.class, TextEditActivity.class)),
+        consumer.getActivityTypes());
+  }
+
+  @Test
+  public void testOverriddenExecReceivesAllActivities() {
+    final IActivityConsumer consumer =
+        new SelectionConsumer() {
+          @Override
+          public void exec(IActivity activity) {
+            super.exec(activity);
+          }
+        };
+
+    assertEquals(Collections.singleton(IActivity.class), consumer.getActivityTypes());
+  }
+
+  @Test
+  public void testTypesAreCachedPerClass() {
+    assertSame(
+        new SelectionConsumer().getActivityTypes(), new SelectionConsumer().getActivityTypes());
+  }
+}
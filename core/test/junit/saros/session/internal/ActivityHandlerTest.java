@@ -5,9 +5,12 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.easymock.EasyMock;
@@ -43,6 +46,7 @@ import saros.filesystem.IProject;
 import saros.session.IActivityHandlerCallback;
 import saros.session.ISarosSession;
 import saros.session.User;
+import saros.synchronize.UISynchronizer;
 import saros.test.fakes.synchonize.NonUISynchronizer;
 
 public class ActivityHandlerTest {
@@ -73,11 +77,56 @@ public class ActivityHandlerTest {
   // Needed to compare localActivities
   private volatile CountDownLatch gate;
 
+  // all executed activities in the order of their execution
+  private final List<IActivity> executedActivities =
+      Collections.synchronizedList(new ArrayList<IActivity>());
+
+  // called for every executed activity, e.g. to simulate a modal context
+  private volatile ExecutionHook executionHook;
+
   // Roles of the Users in this Test
   private User target;
   private User source;
   private boolean host;
 
+  private interface ExecutionHook {
+    void executed(IActivity activity);
+  }
+
+  /**
+   * UI synchronizer that runs asynchronous runnables only when the test asks for it. The calling
+   * thread acts as the UI thread.
+   */
+  private static class ManualSynchronizer implements UISynchronizer {
+    private final Queue<Runnable> runnables = new ArrayDeque<Runnable>();
+
+    @Override
+    public void asyncExec(Runnable runnable) {
+      runnables.add(runnable);
+    }
+
+    @Override
+    public void syncExec(Runnable runnable) {
+      runnable.run();
+    }
+
+    @Override
+    public boolean isUIThread() {
+      return true;
+    }
+
+    private int getPendingCount() {
+      return runnables.size();
+    }
+
+    /** Runs the pending runnables including those that are scheduled in the meantime. */
+    private void runAll() {
+      Runnable runnable;
+
+      while ((runnable = runnables.poll()) != null) runnable.run();
+    }
+  }
+
   // Callback that is called from the ActivityHandler
   public IActivityHandlerCallback callback =
       new IActivityHandlerCallback() {
@@ -95,6 +144,12 @@ public class ActivityHandlerTest {
           // As this is called by another Thread we have to inform the caller
           // when we are ready
           localActivity = activity;
+          executedActivities.add(activity);
+
+          ExecutionHook hook = executionHook;
+
+          if (hook != null) hook.executed(activity);
+
           CountDownLatch gateToCountdown = gate;
 
           if (gateToCountdown != null) gateToCountdown.countDown();
@@ -102,6 +157,8 @@ public class ActivityHandlerTest {
       };
   private SPath path;
 
+  private ISarosSession sessionMock;
+
   @Before
   public void setUp() {
 
@@ -161,6 +218,191 @@ public class ActivityHandlerTest {
     }
   }
 
+  @Test
+  public void testIsolatedLocalEditIsSentImmediately() {
+    final List<IActivity> transformed = new ArrayList<IActivity>();
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createRecordingHandler(transformed, ui);
+
+    handler.start();
+
+    handler.handleOutgoingActivities(Collections.singletonList(edit(0, "a")));
+
+    assertEquals(Collections.singletonList(edit(0, "a")), transformed);
+
+    ui.runAll();
+
+    handler.handleOutgoingActivities(Collections.singletonList(edit(1, "b")));
+
+    assertEquals(Arrays.asList(edit(0, "a"), edit(1, "b")), transformed);
+
+    handler.stop();
+  }
+
+  @Test
+  public void testLocalEditsAreMergedWhileFlushIsQueued() {
+    final List<IActivity> transformed = new ArrayList<IActivity>();
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createRecordingHandler(transformed, ui);
+
+    handler.start();
+
+    handler.handleOutgoingActivities(Collections.singletonList(edit(0, "a")));
+    handler.handleOutgoingActivities(Collections.singletonList(edit(1, "b")));
+    handler.handleOutgoingActivities(Collections.singletonList(edit(2, "c")));
+
+    assertEquals(Collections.singletonList(edit(0, "a")), transformed);
+
+    ui.runAll();
+
+    assertEquals(Arrays.asList(edit(0, "a"), edit(1, "bc")), transformed);
+
+    handler.stop();
+  }
+
+  @Test
+  public void testLocalEditIsSentBeforeOtherActivities() {
+    final List<IActivity> transformed = new ArrayList<IActivity>();
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createRecordingHandler(transformed, ui);
+
+    final IActivity other = createActivity();
+
+    handler.start();
+
+    handler.handleOutgoingActivities(
+        Arrays.asList(edit(0, "a"), edit(1, "b"), edit(2, "c"), edit(5, "d"), other));
+
+    // nothing is held back after an activity that is not a text edit
+    assertEquals(Arrays.asList(edit(0, "a"), edit(1, "bc"), edit(5, "d"), other), transformed);
+
+    handler.stop();
+  }
+
+  @Test
+  public void testLocalEditIsSentBeforeRemoteActivitiesAreTransformed() {
+    setParameters(alice, bob, false);
+
+    final List<IActivity> transformed = new ArrayList<IActivity>();
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createRecordingHandler(transformed, ui);
+
+    final IActivity remote = createActivity();
+
+    handler.start();
+
+    // the execution of the remote activity is queued before the flush of the local edits
+    handler.handleIncomingActivities(Collections.singletonList(remote));
+    handler.handleOutgoingActivities(Arrays.asList(edit(0, "a"), edit(1, "b")));
+
+    ui.runAll();
+
+    assertEquals(Arrays.asList(edit(0, "a"), edit(1, "b"), remote), transformed);
+
+    handler.stop();
+  }
+
+  @Test
+  public void testPendingLocalEditIsSentOnStop() {
+    final List<IActivity> transformed = new ArrayList<IActivity>();
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createRecordingHandler(transformed, ui);
+
+    handler.start();
+
+    handler.handleOutgoingActivities(Arrays.asList(edit(0, "a"), edit(1, "b")));
+
+    handler.stop();
+
+    assertEquals(Arrays.asList(edit(0, "a"), edit(1, "b")), transformed);
+
+    // the flush that is still queued must not send anything after the stop
+    ui.runAll();
+
+    assertEquals(2, transformed.size());
+  }
+
+  @Test
+  public void testAsyncExecutionKeepsOrderAcrossBatches() {
+    setParameters(alice, bob, false);
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createAsyncHandler(ui);
+
+    final IActivity a = createActivity();
+    final IActivity b = createActivity();
+    final IActivity c = createActivity();
+
+    handler.handleIncomingActivities(Arrays.asList(a, b));
+    handler.handleIncomingActivities(Collections.singletonList(c));
+
+    assertEquals("batches were not executed together", 1, ui.getPendingCount());
+
+    ui.runAll();
+
+    assertEquals(Arrays.asList(a, b, c), executedActivities);
+  }
+
+  @Test
+  public void testAsyncExecutionIsScheduledAgainAfterQueueIsDrained() {
+    setParameters(alice, bob, false);
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createAsyncHandler(ui);
+
+    final IActivity a = createActivity();
+    final IActivity b = createActivity();
+
+    handler.handleIncomingActivities(Collections.singletonList(a));
+
+    assertEquals(1, ui.getPendingCount());
+
+    ui.runAll();
+
+    assertEquals(Collections.singletonList(a), executedActivities);
+
+    handler.handleIncomingActivities(Collections.singletonList(b));
+
+    assertEquals("execution was not scheduled again", 1, ui.getPendingCount());
+
+    ui.runAll();
+
+    assertEquals(Arrays.asList(a, b), executedActivities);
+  }
+
+  @Test
+  public void testAsyncExecutionIsNotReentered() {
+    setParameters(alice, bob, false);
+
+    final ManualSynchronizer ui = new ManualSynchronizer();
+    final ActivityHandler handler = createAsyncHandler(ui);
+
+    final IActivity a = createActivity();
+    final IActivity b = createActivity();
+    final IActivity c = createActivity();
+
+    // the execution of a opens a modal context that runs the event loop of the UI thread
+    executionHook =
+        activity -> {
+          if (activity != a) return;
+
+          handler.handleIncomingActivities(Collections.singletonList(c));
+          ui.runAll();
+        };
+
+    handler.handleIncomingActivities(Arrays.asList(a, b));
+
+    ui.runAll();
+
+    assertEquals(Arrays.asList(a, b, c), executedActivities);
+    assertEquals(0, ui.getPendingCount());
+  }
+
   /**
    * This tests if the handleIncomingActivities-method at the host produces the right activities to
    * send to others.
@@ -268,6 +510,64 @@ public class ActivityHandlerTest {
     }
   }
 
+  private TextEditActivity edit(final int offset, final String text) {
+    return new TextEditActivity(alice, offset, text, "", path);
+  }
+
+  private ActivityHandler createAsyncHandler(final ManualSynchronizer ui) {
+    ConcurrentDocumentClient client = EasyMock.createNiceMock(ConcurrentDocumentClient.class);
+
+    EasyMock.expect(client.transformFromJupiter(EasyMock.anyObject(IActivity.class)))
+        .andAnswer(() -> Collections.singletonList((IActivity) EasyMock.getCurrentArguments()[0]))
+        .anyTimes();
+
+    EasyMock.replay(client);
+
+    return new ActivityHandler(
+        sessionMock, callback, null, client, ui, ActivityHandler.DISPATCH_MODE_ASYNC);
+  }
+
+  private IActivity createActivity() {
+    IActivity activity = EasyMock.createNiceMock(IActivity.class);
+    EasyMock.expect(activity.getSource()).andStubReturn(source);
+    EasyMock.replay(activity);
+    return activity;
+  }
+
+  /**
+   * Creates a handler whose document client records the activities it transforms, to and from
+   * Jupiter, in the order of the transformation.
+   */
+  private ActivityHandler createRecordingHandler(
+      final List<IActivity> transformed, final ManualSynchronizer ui) {
+    ConcurrentDocumentClient client = EasyMock.createNiceMock(ConcurrentDocumentClient.class);
+
+    EasyMock.expect(client.transformToJupiter(EasyMock.anyObject(IActivity.class)))
+        .andAnswer(
+            () -> {
+              final IActivity activity = (IActivity) EasyMock.getCurrentArguments()[0];
+
+              transformed.add(activity);
+              return activity;
+            })
+        .anyTimes();
+
+    EasyMock.expect(client.transformFromJupiter(EasyMock.anyObject(IActivity.class)))
+        .andAnswer(
+            () -> {
+              final IActivity activity = (IActivity) EasyMock.getCurrentArguments()[0];
+
+              transformed.add(activity);
+              return Collections.singletonList(activity);
+            })
+        .anyTimes();
+
+    EasyMock.replay(client);
+
+    return new ActivityHandler(
+        sessionMock, callback, null, client, ui, ActivityHandler.DISPATCH_MODE_ASYNC);
+  }
+
   /**
    * Specifies the roles of participants in the session. Should be called at the start of every test
    * case
@@ -322,7 +622,7 @@ public class ActivityHandlerTest {
     synchronizer = new NonUISynchronizer();
 
     // Create SessionMock
-    ISarosSession sessionMock = EasyMock.createMock(ISarosSession.class);
+    sessionMock = EasyMock.createMock(ISarosSession.class);
     EasyMock.expect(sessionMock.getLocalUser()).andStubReturn(alice);
     EasyMock.expect(sessionMock.getHost()).andStubReturn(alice);
     // read host-Variable at runtime.
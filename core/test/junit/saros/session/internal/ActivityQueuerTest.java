@@ -4,7 +4,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -319,6 +322,148 @@ public class ActivityQueuerTest {
     assertEquals("wrong (Editor)ADO was inserted", bobExpectedEditorADO, activities.get(2));
   }
 
+  @Test
+  public void testSpillToDisk() {
+    final int count = 5000;
+
+    final List<IActivity> serializedActivities = new ArrayList<IActivity>();
+
+    activityQueuer = new ActivityQueuer(createSerializer(serializedActivities));
+    activityQueuer.enableQueuing(NOT_SHARED_PROJECT);
+
+    final List<IActivity> expectedActivities = new ArrayList<IActivity>();
+
+    expectedActivities.add(
+        new EditorActivity(BOB, EditorActivity.Type.ACTIVATED, PATH_TO_NOT_SHARED_PROJECT));
+
+    for (int i = 0; i < count; i++) {
+      final IActivity activity = createJupiterActivity(PATH_TO_NOT_SHARED_PROJECT);
+
+      expectedActivities.add(activity);
+
+      assertEquals(
+          "activity was not queued",
+          0,
+          activityQueuer.process(Collections.singletonList(activity)).size());
+    }
+
+    assertTrue("queued activities were not spilled", serializedActivities.size() > 0);
+
+    activityQueuer.disableQueuing(NOT_SHARED_PROJECT);
+
+    final IActivity nopActivity = new NOPActivity(ALICE, ALICE, 0);
+    expectedActivities.add(nopActivity);
+
+    final List<List<IActivity>> chunks = new ArrayList<List<IActivity>>();
+
+    activityQueuer.process(Collections.singletonList(nopActivity), chunks::add);
+
+    assertTrue("spilled activities were not replayed in chunks", chunks.size() > 1);
+
+    final List<IActivity> processedActivities = new ArrayList<IActivity>();
+
+    for (final List<IActivity> chunk : chunks) processedActivities.addAll(chunk);
+
+    assertEquals(expectedActivities.size(), processedActivities.size());
+
+    assertEquals("editor ADO was not added", expectedActivities.get(0), processedActivities.get(0));
+
+    for (int i = 1; i < expectedActivities.size(); i++)
+      assertSame("wrong flushing order", expectedActivities.get(i), processedActivities.get(i));
+  }
+
+  @Test
+  public void testNoSpillingOfUnsupportedActivities() {
+    activityQueuer =
+        new ActivityQueuer(
+            new IActivitySerializer() {
+              @Override
+              public byte[] serialize(IActivity activity, List<User> users) {
+                return null;
+              }
+
+              @Override
+              public IActivity deserialize(byte[] data, List<User> users) {
+                throw new AssertionError("nothing was serialized");
+              }
+            });
+
+    activityQueuer.enableQueuing(NOT_SHARED_PROJECT);
+
+    final List<IActivity> activities = new ArrayList<IActivity>();
+
+    for (int i = 0; i < 5000; i++)
+      activities.add(new FolderCreatedActivity(BOB, PATH_TO_NOT_SHARED_PROJECT));
+
+    assertEquals("activities were not queued", 0, activityQueuer.process(activities).size());
+
+    activityQueuer.disableQueuing(NOT_SHARED_PROJECT);
+
+    assertListsAreEqual(activities, activityQueuer.process(Collections.<IActivity>emptyList()));
+  }
+
+  @Test
+  public void testLostSpilledActivitiesFailTheFlush() {
+    activityQueuer =
+        new ActivityQueuer(
+            new IActivitySerializer() {
+              @Override
+              public byte[] serialize(IActivity activity, List<User> users) {
+                return new byte[1];
+              }
+
+              @Override
+              public IActivity deserialize(byte[] data, List<User> users) throws IOException {
+                throw new IOException("corrupted");
+              }
+            });
+
+    activityQueuer.enableQueuing(NOT_SHARED_PROJECT);
+
+    for (int i = 0; i < 5000; i++)
+      activityQueuer.process(
+          Collections.singletonList(createJupiterActivity(PATH_TO_NOT_SHARED_PROJECT)));
+
+    activityQueuer.disableQueuing(NOT_SHARED_PROJECT);
+
+    final IActivity nopActivity = new NOPActivity(ALICE, ALICE, 0);
+
+    final List<IActivity> processedActivities = new ArrayList<IActivity>();
+
+    try {
+      activityQueuer.process(Collections.singletonList(nopActivity), processedActivities::addAll);
+      fail("lost activities were not reported");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertSame(
+        "other activities were not processed",
+        nopActivity,
+        processedActivities.get(processedActivities.size() - 1));
+
+    assertEquals(
+        "flushed queue was not removed",
+        Collections.singletonList(nopActivity),
+        activityQueuer.process(Collections.singletonList(nopActivity)));
+  }
+
+  /** Returns a serializer that stores the activities in the given list and writes their index. */
+  private static IActivitySerializer createSerializer(final List<IActivity> activities) {
+    return new IActivitySerializer() {
+      @Override
+      public byte[] serialize(IActivity activity, List<User> users) {
+        activities.add(activity);
+        return ByteBuffer.allocate(4).putInt(activities.size() - 1).array();
+      }
+
+      @Override
+      public IActivity deserialize(byte[] data, List<User> users) {
+        return activities.get(ByteBuffer.wrap(data).getInt());
+      }
+    };
+  }
+
   private List<IActivity> createSomeActivities() {
     IActivity startFollowingActivity = new StartFollowingActivity(ALICE, BOB);
 
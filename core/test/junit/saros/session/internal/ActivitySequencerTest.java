@@ -10,9 +10,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.junit.After;
 import org.junit.Before;
@@ -26,11 +28,13 @@ import saros.session.ISarosSession;
 import saros.session.User;
 import saros.test.fakes.net.FakeConnectionFactory;
 import saros.test.fakes.net.FakeConnectionFactory.FakeConnectionFactoryResult;
+import saros.versioning.VersionManager;
 
 public class ActivitySequencerTest {
 
   private static final JID ALICE_JID = new JID("alice@test/Saros");
   private static final JID BOB_JID = new JID("bob@test/Saros");
+  private static final JID CARL_JID = new JID("carl@test/Saros");
 
   private final AtomicReference<String> aliceSessionId = new AtomicReference<>();
   private final AtomicReference<String> bobSessionId = new AtomicReference<>();
@@ -40,6 +44,7 @@ public class ActivitySequencerTest {
 
   private final User bobUserInAliceSession = new User(BOB_JID, false, false, null);
   private final User aliceUserInBobSession = new User(ALICE_JID, true, false, null);
+  private final User carlUserInAliceSession = new User(CARL_JID, false, false, null);
 
   private List<IActivity> aliceReceivedActivitiesBuffer;
   private List<IActivity> bobReceivedActivitiesBuffer;
@@ -53,6 +58,8 @@ public class ActivitySequencerTest {
   private IReceiver aliceReceiver;
   private IReceiver bobReceiver;
 
+  private VersionManager versionManager;
+
   private ActivitySequencer aliceSequencer;
   private ActivitySequencer bobSequencer;
 
@@ -80,6 +87,8 @@ public class ActivitySequencerTest {
 
     aliceReceiver = result.getReceiver(ALICE_JID);
     bobReceiver = result.getReceiver(BOB_JID);
+
+    versionManager = createVersionManagerMock(true);
   }
 
   // ENSURE that testStartAndStop works or this will crash the CI !!!!!!
@@ -96,7 +105,8 @@ public class ActivitySequencerTest {
   @Test(timeout = 30000)
   public void testStartAndStop() {
     ActivitySequencer sequencer =
-        new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
     sequencer.start();
     sequencer.stop();
@@ -105,7 +115,8 @@ public class ActivitySequencerTest {
   @Test(timeout = 30000, expected = IllegalStateException.class)
   public void testMultipleStarts() {
     ActivitySequencer sequencer =
-        new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
     for (int i = 0; i < Integer.MAX_VALUE; i++) sequencer.start();
   }
@@ -113,7 +124,8 @@ public class ActivitySequencerTest {
   @Test(timeout = 30000, expected = IllegalStateException.class)
   public void testStopWithoutStart() {
     ActivitySequencer sequencer =
-        new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
     sequencer.stop();
   }
@@ -121,7 +133,8 @@ public class ActivitySequencerTest {
   @Test(timeout = 30000)
   public void testMultipleStops() {
     ActivitySequencer sequencer =
-        new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
     sequencer.start();
     try {
@@ -152,7 +165,8 @@ public class ActivitySequencerTest {
     EasyMock.replay(brokenTransmitter);
 
     aliceSequencer =
-        new ActivitySequencer(sessionStubAlice, brokenTransmitter, aliceReceiver, null);
+        new ActivitySequencer(
+            sessionStubAlice, brokenTransmitter, aliceReceiver, versionManager, null);
 
     aliceSequencer.start();
 
@@ -174,9 +188,12 @@ public class ActivitySequencerTest {
 
     int activityCount = 1000;
 
-    aliceSequencer = new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
-    bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, null);
+    bobSequencer =
+        new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, versionManager, null);
 
     aliceSequencer.start();
     bobSequencer.start();
@@ -199,12 +216,232 @@ public class ActivitySequencerTest {
     }
   }
 
+  @Test(timeout = 30000)
+  public void testSendMoreActivitiesThanTheWindowAllows() {
+
+    // the default window size is 2048 activities
+    int activityCount = 10000;
+
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
+
+    bobSequencer =
+        new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, versionManager, null);
+
+    aliceSequencer.start();
+    bobSequencer.start();
+
+    aliceSequencer.registerUser(bobUserInAliceSession);
+    bobSequencer.registerUser(aliceUserInBobSession);
+
+    for (int i = 0; i < activityCount; i++) {
+      aliceSequencer.sendActivity(
+          Collections.singletonList(bobUserInAliceSession),
+          new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+      // keep the outgoing queue below its limit
+      if (i % 1000 == 0) aliceSequencer.flush(bobUserInAliceSession);
+    }
+
+    aliceSequencer.flush(bobUserInAliceSession);
+
+    assertTrue("user was unregistered", aliceSequencer.isUserRegistered(bobUserInAliceSession));
+
+    assertEquals("not all activies received", activityCount, bobReceivedActivitiesBuffer.size());
+
+    for (int i = 0; i < activityCount; i++) {
+      NOPActivity activity = (NOPActivity) bobReceivedActivitiesBuffer.get(i);
+      assertEquals("activity is out of order", i, activity.getID());
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testStalledUserDoesNotDelayOtherUsers() {
+
+    int activityCount = 100;
+
+    final CountDownLatch carlIsReachable = new CountDownLatch(1);
+
+    final ITransmitter stallingTransmitter =
+        new ITransmitter() {
+
+          @Override
+          public void sendPacket(Packet packet) throws IOException {
+            aliceTransmitter.sendPacket(packet);
+          }
+
+          @Override
+          public void sendPacketExtension(JID jid, PacketExtension extension) {
+            aliceTransmitter.sendPacketExtension(jid, extension);
+          }
+
+          @Override
+          public void send(JID recipient, PacketExtension extension) throws IOException {
+            aliceTransmitter.send(recipient, extension);
+          }
+
+          @Override
+          public void send(String connectionID, JID recipient, PacketExtension extension)
+              throws IOException {
+
+            if (!recipient.equals(CARL_JID)) {
+              aliceTransmitter.send(connectionID, recipient, extension);
+              return;
+            }
+
+            try {
+              carlIsReachable.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+
+            throw new IOException("carl is not connected");
+          }
+        };
+
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, stallingTransmitter, aliceReceiver, versionManager, null);
+
+    bobSequencer =
+        new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, versionManager, null);
+
+    aliceSequencer.start();
+    bobSequencer.start();
+
+    aliceSequencer.registerUser(bobUserInAliceSession);
+    aliceSequencer.registerUser(carlUserInAliceSession);
+    bobSequencer.registerUser(aliceUserInBobSession);
+
+    for (int i = 0; i < activityCount; i++)
+      aliceSequencer.sendActivity(
+          Arrays.asList(carlUserInAliceSession, bobUserInAliceSession),
+          new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+    aliceSequencer.flush(bobUserInAliceSession);
+
+    assertEquals("not all activies received", activityCount, bobReceivedActivitiesBuffer.size());
+
+    assertTrue("Carl is not registered", aliceSequencer.isUserRegistered(carlUserInAliceSession));
+
+    carlIsReachable.countDown();
+
+    aliceSequencer.flush(carlUserInAliceSession);
+
+    assertFalse(
+        "Carl is still registered", aliceSequencer.isUserRegistered(carlUserInAliceSession));
+  }
+
+  @Test(timeout = 30000)
+  public void testOutgoingQueueOverflow() {
+
+    // the default window and maximum queue size are 2048 + 8192 activities
+    int activityCount = 12000;
+
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
+
+    aliceSequencer.start();
+
+    aliceSequencer.registerUser(bobUserInAliceSession);
+
+    // the acknowledgments of the unstarted receiver are missing so the window is never reopened
+    for (int i = 0; i < activityCount; i++)
+      aliceSequencer.sendActivity(
+          Collections.singletonList(bobUserInAliceSession),
+          new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+    // returns as soon as the sender of the user detected the overflow
+    aliceSequencer.flush(bobUserInAliceSession);
+
+    assertTrue(
+        "user should be unregistered after the queue overflowed",
+        !aliceSequencer.isUserRegistered(bobUserInAliceSession));
+  }
+
+  @Test(timeout = 30000)
+  public void testUserWithoutAcknowledgmentsIsNotFlowControlled() {
+
+    // more activities than the default window and maximum queue size of 2048 + 8192 activities
+    int activityCount = 12000;
+
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice,
+            aliceTransmitter,
+            aliceReceiver,
+            createVersionManagerMock(false),
+            null);
+
+    aliceSequencer.start();
+
+    aliceSequencer.registerUser(bobUserInAliceSession);
+
+    // the unstarted receiver never acknowledges, like Saros versions without flow control
+    for (int i = 0; i < activityCount; i++)
+      aliceSequencer.sendActivity(
+          Collections.singletonList(bobUserInAliceSession),
+          new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+    assertTrue("activities were not sent", aliceSequencer.flush(bobUserInAliceSession, 20000));
+
+    assertTrue("Bob is not registered", aliceSequencer.isUserRegistered(bobUserInAliceSession));
+  }
+
+  @Test(timeout = 30000)
+  public void testFlushReturnsAfterTimeout() throws Exception {
+
+    final CountDownLatch bobIsReachable = new CountDownLatch(1);
+
+    final ITransmitter stallingTransmitter = EasyMock.createNiceMock(ITransmitter.class);
+
+    stallingTransmitter.send(
+        EasyMock.anyObject(String.class),
+        EasyMock.anyObject(JID.class),
+        EasyMock.anyObject(PacketExtension.class));
+
+    EasyMock.expectLastCall()
+        .andAnswer(
+            () -> {
+              bobIsReachable.await();
+              return null;
+            })
+        .anyTimes();
+
+    EasyMock.replay(stallingTransmitter);
+
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, stallingTransmitter, aliceReceiver, versionManager, null);
+
+    aliceSequencer.start();
+
+    aliceSequencer.registerUser(bobUserInAliceSession);
+
+    aliceSequencer.sendActivity(
+        Collections.singletonList(bobUserInAliceSession),
+        new NOPActivity(aliceUser, bobUserInAliceSession, 0));
+
+    assertFalse(
+        "flush returned although the activity is not sent",
+        aliceSequencer.flush(bobUserInAliceSession, 100));
+
+    bobIsReachable.countDown();
+
+    assertTrue("activity was not sent", aliceSequencer.flush(bobUserInAliceSession, 20000));
+  }
+
   @Test(timeout = 30000)
   public void testSendWithoutRegisteredUser() {
 
-    aliceSequencer = new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
-    bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, null);
+    bobSequencer =
+        new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, versionManager, null);
 
     aliceSequencer.start();
     bobSequencer.start();
@@ -226,9 +463,12 @@ public class ActivitySequencerTest {
   @Test(timeout = 30000)
   public void testReceiveWithoutRegisteredUser() {
 
-    aliceSequencer = new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
-    bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, null);
+    bobSequencer =
+        new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, versionManager, null);
 
     aliceSequencer.start();
     bobSequencer.start();
@@ -250,10 +490,13 @@ public class ActivitySequencerTest {
   @Test(timeout = 30000)
   public void testSendAndReceiveWithDifferendSessionIDs() {
 
-    aliceSequencer = new ActivitySequencer(sessionStubAlice, aliceTransmitter, aliceReceiver, null);
+    aliceSequencer =
+        new ActivitySequencer(
+            sessionStubAlice, aliceTransmitter, aliceReceiver, versionManager, null);
 
     bobSessionId.set("4711");
-    bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, null);
+    bobSequencer =
+        new ActivitySequencer(sessionStubBob, bobTransmitter, bobReceiver, versionManager, null);
 
     aliceSequencer.start();
     bobSequencer.start();
@@ -273,6 +516,19 @@ public class ActivitySequencerTest {
         bobReceivedActivitiesBuffer.size());
   }
 
+  private static VersionManager createVersionManagerMock(final boolean acknowledgesActivities) {
+    final VersionManager versionManager = EasyMock.createNiceMock(VersionManager.class);
+
+    EasyMock.expect(
+            versionManager.isFeatureSupported(
+                EasyMock.anyObject(JID.class),
+                EasyMock.eq(VersionManager.ACTIVITY_ACKNOWLEDGMENT_FEATURE)))
+        .andStubReturn(acknowledgesActivities);
+
+    EasyMock.replay(versionManager);
+    return versionManager;
+  }
+
   private static ISarosSession createSessionMock(
       final User host,
       final User client,
@@ -287,6 +543,8 @@ public class ActivitySequencerTest {
 
     EasyMock.expect(session.getUsers()).andStubReturn(Arrays.asList(host, client));
 
+    EasyMock.expect(session.getRoundTripTime(EasyMock.anyObject(User.class))).andStubReturn(-1L);
+
     final Capture<List<IActivity>> capture = Capture.newInstance();
 
     session.exec(EasyMock.capture(capture));
@@ -0,0 +1,191 @@
+package saros.session.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchingWindowTest {
+
+  private static final long UNKNOWN = -1;
+
+  private BatchingWindow window;
+
+  @Before
+  public void setUp() {
+    window = new BatchingWindow();
+  }
+
+  @Test
+  public void testFirstActivityIsSentImmediately() {
+    assertTrue(window.getDelay(millis(0), 1, UNKNOWN) <= 0);
+  }
+
+  @Test
+  public void testFirstActivityAfterIdlePeriodIsSentImmediately() {
+    window.sent(micros(0), micros(0), UNKNOWN);
+    window.sent(micros(1000), micros(500), UNKNOWN);
+    window.sent(micros(2000), micros(1500), UNKNOWN);
+
+    assertTrue(window.getWindow() > 0);
+
+    window.sent(millis(1000), millis(1000), UNKNOWN);
+
+    assertEquals(0, window.getWindow());
+    assertTrue(window.getDelay(millis(2000), 1, UNKNOWN) <= 0);
+  }
+
+  @Test
+  public void testWindowWidensUnderLoad() {
+    long now = 0;
+
+    window.sent(now, now, UNKNOWN);
+
+    long previous = window.getWindow();
+
+    for (int i = 0; i < 4; i++) {
+      // the next activity is queued right after the previous send
+      final long queueTime = now + micros(100);
+
+      now = Math.max(queueTime, now + previous);
+      window.sent(now, queueTime, UNKNOWN);
+
+      assertTrue(window.getWindow() > previous);
+      previous = window.getWindow();
+    }
+
+    assertEquals(previous, window.getDelay(now, 1, UNKNOWN));
+  }
+
+  @Test
+  public void testWindowIsNotWidenedByActivitiesQueuedAfterItExpired() {
+    window.sent(millis(0), millis(0), UNKNOWN);
+    window.sent(micros(500), micros(500), UNKNOWN);
+
+    final long current = window.getWindow();
+
+    assertTrue(current > 0);
+
+    // the activity was queued after the window expired, the sender did not hold it back
+    final long queueTime = micros(500) + current + micros(100);
+
+    window.sent(queueTime, queueTime, UNKNOWN);
+
+    assertEquals(0, window.getWindow());
+  }
+
+  @Test
+  public void testWindowIsLimitedByRoundTripTime() {
+    final long roundTripTime = 8;
+
+    for (int i = 0; i < 16; i++) window.sent(millis(i), millis(i) - micros(500), roundTripTime);
+
+    assertEquals(millis(roundTripTime / 4), window.getWindow());
+    assertEquals(millis(roundTripTime / 4), window.getDelay(millis(15), 1, roundTripTime));
+  }
+
+  @Test
+  public void testNoBatchingWithZeroRoundTripTime() {
+    window.sent(millis(0), millis(0), 0);
+    window.sent(millis(0), millis(0), 0);
+
+    assertEquals(0, window.getWindow());
+    assertTrue(window.getDelay(millis(0), 1, 0) <= 0);
+  }
+
+  @Test
+  public void testFullBatchIsSentImmediately() {
+    for (int i = 0; i < 16; i++) window.sent(millis(i), millis(i) - micros(500), UNKNOWN);
+
+    assertTrue(window.getDelay(millis(15), 1, UNKNOWN) > 0);
+    assertTrue(window.getDelay(millis(15), BatchingWindow.MAX_BATCH_SIZE, UNKNOWN) <= 0);
+  }
+
+  @Test
+  public void testWindowStaysOpenUnderSteadyLoad() {
+    final long roundTripTime = 40;
+    final long limit = millis(roundTripTime / 4);
+
+    // one activity every 500 microseconds for one second
+    final long[] queueTimes = new long[2000];
+
+    for (int i = 0; i < queueTimes.length; i++) queueTimes[i] = micros(500L * i);
+
+    final List<Long> windows = replay(queueTimes, roundTripTime);
+
+    final int opened = windows.indexOf(limit);
+
+    assertTrue("window never reached the limit: " + windows, opened >= 0);
+
+    for (final long current : windows.subList(opened, windows.size()))
+      assertEquals("window was reset during the load: " + windows, limit, current);
+
+    assertTrue(
+        "activities were not sent together: " + windows.size() + " sends",
+        windows.size() < queueTimes.length / 10);
+  }
+
+  @Test
+  public void testWindowIsResetAfterLoadStops() {
+    final long[] queueTimes = new long[201];
+
+    for (int i = 0; i < 200; i++) queueTimes[i] = micros(500L * i);
+
+    queueTimes[200] = millis(1000);
+
+    final List<Long> windows = replay(queueTimes, UNKNOWN);
+
+    assertTrue(windows.get(windows.size() - 2) > 0);
+    assertEquals(0L, (long) windows.get(windows.size() - 1));
+  }
+
+  /**
+   * Replays the loop of the sender thread of the {@link ActivitySequencer}: it parks for the delay
+   * of the window unless an activity is queued earlier and sends all queued activities once the
+   * delay has passed.
+   *
+   * @param queueTimes the ascending times the activities are queued at
+   * @return the window after every send
+   */
+  private List<Long> replay(final long[] queueTimes, final long roundTripTime) {
+    final List<Long> windows = new ArrayList<Long>();
+
+    long now = 0;
+    long queueTime = 0;
+    int queued = 0;
+    int next = 0;
+
+    while (next < queueTimes.length || queued > 0) {
+      if (queued == 0) now = Math.max(now, queueTimes[next]);
+
+      for (; next < queueTimes.length && queueTimes[next] <= now; next++) {
+        if (queued++ == 0) queueTime = queueTimes[next];
+      }
+
+      final long delay = window.getDelay(now, queued, roundTripTime);
+
+      if (delay > 0) {
+        now = next < queueTimes.length ? Math.min(now + delay, queueTimes[next]) : now + delay;
+        continue;
+      }
+
+      window.sent(now, queueTime, roundTripTime);
+      windows.add(window.getWindow());
+      queued = 0;
+    }
+
+    return windows;
+  }
+
+  private static long millis(final long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  private static long micros(final long micros) {
+    return TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+}
@@ -0,0 +1,517 @@
+package saros.session.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import saros.activities.AbstractActivity;
+import saros.activities.ChangeColorActivity;
+import saros.activities.ChecksumActivity;
+import saros.activities.ChecksumErrorActivity;
+import saros.activities.DeletionAcknowledgmentActivity;
+import saros.activities.EditorActivity;
+import saros.activities.FileActivity;
+import saros.activities.FolderCreatedActivity;
+import saros.activities.FolderDeletedActivity;
+import saros.activities.IActivity;
+import saros.activities.IActivityReceiver;
+import saros.activities.JupiterActivity;
+import saros.activities.NOPActivity;
+import saros.activities.PermissionActivity;
+import saros.activities.ProgressActivity;
+import saros.activities.SPath;
+import saros.activities.StartFollowingActivity;
+import saros.activities.StopActivity;
+import saros.activities.StopFollowingActivity;
+import saros.activities.TargetedFileActivity;
+import saros.activities.TextSelectionActivity;
+import saros.activities.ViewportActivity;
+import saros.communication.extensions.ActivitiesExtension;
+import saros.concurrent.jupiter.internal.JupiterVectorTime;
+import saros.concurrent.jupiter.internal.text.DeleteOperation;
+import saros.concurrent.jupiter.internal.text.InsertOperation;
+import saros.concurrent.jupiter.internal.text.NoOperation;
+import saros.concurrent.jupiter.internal.text.SplitOperation;
+import saros.concurrent.jupiter.internal.text.TimestampOperation;
+import saros.filesystem.IPath;
+import saros.filesystem.IPathFactory;
+import saros.filesystem.IProject;
+import saros.misc.xstream.SPathConverter;
+import saros.misc.xstream.UserConverter;
+import saros.net.SharedEncoding;
+import saros.net.xmpp.JID;
+import saros.session.ISarosSession;
+import saros.session.User;
+import saros.versioning.VersionManager;
+
+public class BinaryActivityCodecTest {
+
+  private static class CustomActivity extends AbstractActivity {
+    private CustomActivity(User source) {
+      super(source);
+    }
+
+    @Override
+    public void dispatch(IActivityReceiver receiver) {
+      // NOP
+    }
+  }
+
+  private final JID aliceJID = new JID("alice@saros-con.imp.fu-berlin.de/Saros");
+  private final JID bobJID = new JID("bob@saros-con.imp.fu-berlin.de/Saros");
+  private final JID carlJID = new JID("carl@saros-con.imp.fu-berlin.de/Saros");
+
+  private final User alice = new User(aliceJID, true, false, null);
+  private final User bob = new User(bobJID, false, true, null);
+  private final User carl = new User(carlJID, false, false, null);
+
+  private ISarosSession session;
+  private IPathFactory pathFactory;
+  private VersionManager versionManager;
+
+  private SPath fooPath;
+  private SPath barPath;
+
+  private BinaryActivityCodec codec;
+
+  @Before
+  public void setUp() {
+    final IProject project = EasyMock.createNiceMock(IProject.class);
+
+    final IPath foo = EasyMock.createNiceMock(IPath.class);
+    final IPath bar = EasyMock.createNiceMock(IPath.class);
+
+    pathFactory = EasyMock.createMock(IPathFactory.class);
+    EasyMock.expect(pathFactory.fromPath(foo)).andStubReturn("src/saros/Foo.java");
+    EasyMock.expect(pathFactory.fromPath(bar)).andStubReturn("src/saros/Bar.java");
+    EasyMock.expect(pathFactory.fromString("src/saros/Foo.java")).andStubReturn(foo);
+    EasyMock.expect(pathFactory.fromString("src/saros/Bar.java")).andStubReturn(bar);
+
+    session = EasyMock.createNiceMock(ISarosSession.class);
+    EasyMock.expect(session.getUser(aliceJID)).andStubReturn(alice);
+    EasyMock.expect(session.getUser(bobJID)).andStubReturn(bob);
+    EasyMock.expect(session.getLocalUser()).andStubReturn(bob);
+    EasyMock.expect(session.getProjectID(project)).andStubReturn("1234567890");
+    EasyMock.expect(session.getProject("1234567890")).andStubReturn(project);
+
+    versionManager = EasyMock.createNiceMock(VersionManager.class);
+    EasyMock.expect(
+            versionManager.isFeatureSupported(bobJID, VersionManager.BINARY_ACTIVITIES_FEATURE))
+        .andStubReturn(true);
+
+    EasyMock.replay(project, foo, bar, pathFactory, session, versionManager);
+
+    fooPath = new SPath(project, foo);
+    barPath = new SPath(project, bar);
+
+    codec = new BinaryActivityCodec(session, pathFactory, versionManager, null, null);
+  }
+
+  @Test
+  public void testRoundTripOfAllActivityTypes() throws Exception {
+    final JupiterVectorTime timestamp = new JupiterVectorTime(120, 97);
+
+    final List<IActivity> activities =
+        Arrays.<IActivity>asList(
+            new ChangeColorActivity(alice, bob, alice, 3),
+            new ChecksumActivity(alice, fooPath, -123456789L, 4711L, timestamp),
+            new ChecksumActivity(alice, fooPath, 5L, 6L, null),
+            new ChecksumErrorActivity(alice, bob, Arrays.asList(fooPath, barPath), "recovery"),
+            new DeletionAcknowledgmentActivity(alice, fooPath),
+            new EditorActivity(alice, EditorActivity.Type.ACTIVATED, fooPath),
+            new EditorActivity(alice, EditorActivity.Type.ACTIVATED, null),
+            new FileActivity(
+                alice,
+                FileActivity.Type.CREATED,
+                FileActivity.Purpose.RECOVERY,
+                fooPath,
+                null,
+                new byte[] {1, 2, 3},
+                "UTF-8"),
+            new FileActivity(
+                alice,
+                FileActivity.Type.MOVED,
+                FileActivity.Purpose.ACTIVITY,
+                fooPath,
+                barPath,
+                null,
+                null),
+            new FolderCreatedActivity(alice, barPath),
+            new FolderDeletedActivity(alice, barPath),
+            new JupiterActivity(
+                timestamp, new InsertOperation(1234, "a\u00e4\u20ac", 1200), alice, fooPath),
+            new JupiterActivity(
+                timestamp,
+                new SplitOperation(new DeleteOperation(5, "xyz"), new InsertOperation(5, "q")),
+                alice,
+                fooPath),
+            new JupiterActivity(timestamp, new NoOperation(), alice, fooPath),
+            new JupiterActivity(timestamp, new TimestampOperation(), alice, fooPath),
+            new NOPActivity(alice, bob, 42),
+            new PermissionActivity(alice, bob, User.Permission.READONLY_ACCESS),
+            new ProgressActivity(
+                alice, bob, "progress", 3, 10, "task", ProgressActivity.ProgressAction.UPDATE),
+            new TargetedFileActivity(
+                alice,
+                bob,
+                FileActivity.Type.REMOVED,
+                fooPath,
+                null,
+                null,
+                null,
+                FileActivity.Purpose.ACTIVITY),
+            new StartFollowingActivity(alice, bob),
+            new StopActivity(
+                alice,
+                alice,
+                bob,
+                StopActivity.Type.LOCKREQUEST,
+                StopActivity.State.INITIATED,
+                "stop"),
+            new StopFollowingActivity(alice),
+            new TextSelectionActivity(alice, 10, -3, fooPath),
+            new ViewportActivity(alice, 100, 40, barPath));
+
+    final ActivitiesExtension decoded = roundTrip(new ActivitiesExtension("4711", activities, 42));
+
+    assertEquals("4711", decoded.getSessionID());
+    assertEquals(42, decoded.getSequenceNumber());
+    assertEquals(activities, decoded.getActivities());
+
+    for (int i = 0; i < activities.size(); i++) {
+      final IActivity expected = activities.get(i);
+      final IActivity actual = decoded.getActivities().get(i);
+
+      assertSame(expected.getClass(), actual.getClass());
+
+      // these activities only inherit equals() from AbstractActivity
+      if (expected instanceof NOPActivity) {
+        assertEquals(((NOPActivity) expected).getID(), ((NOPActivity) actual).getID());
+        assertEquals(((NOPActivity) expected).getTarget(), ((NOPActivity) actual).getTarget());
+      } else {
+        assertEquals(expected.toString(), actual.toString());
+      }
+    }
+  }
+
+  @Test
+  public void testUnpairedSurrogatesArePreserved() throws Exception {
+    final String text = "\ud83d" + "x" + "\ude00";
+
+    final ActivitiesExtension decoded =
+        roundTrip(
+            new ActivitiesExtension(
+                "4711",
+                Collections.<IActivity>singletonList(
+                    new JupiterActivity(
+                        new JupiterVectorTime(0, 0), new InsertOperation(0, text), alice, fooPath)),
+                0));
+
+    final JupiterActivity activity = (JupiterActivity) decoded.getActivities().get(0);
+
+    assertEquals(text, ((InsertOperation) activity.getOperation()).getText());
+  }
+
+  @Test
+  public void testUsersAndPathsAreOnlyWrittenOnce() {
+    final byte[] single = codec.encode(createSelections(1));
+    final byte[] multiple = codec.encode(createSelections(11));
+
+    // tag, user reference, path reference, offset and length
+    assertTrue((multiple.length - single.length) / 10 <= 6);
+  }
+
+  @Test
+  public void testUnsupportedActivityFallsBackToXML() throws Exception {
+    final ActivitiesExtension extension =
+        new ActivitiesExtension(
+            "4711", Collections.<IActivity>singletonList(new CustomActivity(alice)), 0);
+
+    assertNull(codec.encode(extension));
+    assertNull(codec.encode(bobJID, ActivitiesExtension.PROVIDER.create(extension)));
+  }
+
+  @Test
+  public void testOnlyPeersSupportingTheFormatReceiveIt() throws Exception {
+    final ActivitiesExtension extension = createSelections(1);
+
+    assertNotNull(codec.encode(bobJID, ActivitiesExtension.PROVIDER.create(extension)));
+    assertNull(codec.encode(carlJID, ActivitiesExtension.PROVIDER.create(extension)));
+  }
+
+  @Test
+  public void testBodyIsSharedBetweenRecipients() throws Exception {
+    final List<IActivity> activities = createSelections(3).getActivities();
+
+    final SharedEncoding first = codec.encodeShared(new ActivitiesExtension("4711", activities, 7));
+
+    final SharedEncoding second =
+        codec.encodeShared(
+            new ActivitiesExtension("4711", new ArrayList<IActivity>(activities), 42));
+
+    assertSame(first.getBody(), second.getBody());
+
+    final byte[] data = second.toByteArray();
+    final ActivitiesExtension decoded = codec.decode(data, 0, data.length);
+
+    assertEquals(42, decoded.getSequenceNumber());
+    assertEquals(3, decoded.getActivities().size());
+
+    final SharedEncoding other = codec.encodeShared(createSelections(3));
+
+    assertTrue("body of other activities is reused", other.getBody() != first.getBody());
+  }
+
+  @Test
+  public void testActivitiesAreSharedBetweenIndependentSenders() throws Exception {
+    final List<IActivity> activities = new ArrayList<IActivity>();
+
+    for (int i = 0; i < 12; i++)
+      activities.add(
+          new TextSelectionActivity(
+              i % 3 == 0 ? bob : alice, i, 1, i % 2 == 0 ? fooPath : barPath));
+
+    // every sender splits the activities into different batches
+    final int[][] batchSizes = {{1, 4, 2, 5}, {3, 3, 6}, {12}};
+
+    for (final int[] sizes : batchSizes) {
+      int offset = 0;
+
+      for (int i = 0; i < sizes.length; i++) {
+        final List<IActivity> batch =
+            new ArrayList<IActivity>(activities.subList(offset, offset + sizes[i]));
+
+        final ActivitiesExtension decoded = roundTrip(new ActivitiesExtension("4711", batch, i));
+
+        assertEquals(batch, decoded.getActivities());
+        offset += sizes[i];
+      }
+    }
+
+    // only the first sender encoded the activities
+    assertEquals(2.0 / 3.0, codec.getSharedRecordHitRate(), 0.001);
+  }
+
+  @Test
+  public void testActivityOfUnknownUserIsReplaced() throws Exception {
+    final ActivitiesExtension decoded =
+        roundTrip(
+            new ActivitiesExtension(
+                "4711",
+                Arrays.<IActivity>asList(
+                    new PermissionActivity(alice, carl, User.Permission.WRITE_ACCESS),
+                    new TextSelectionActivity(alice, 1, 2, fooPath)),
+                7));
+
+    assertEquals(2, decoded.getActivities().size());
+    assertSame(NOPActivity.class, decoded.getActivities().get(0).getClass());
+    assertSame(TextSelectionActivity.class, decoded.getActivities().get(1).getClass());
+  }
+
+  @Test
+  public void testSerializationOfSingleActivities() throws Exception {
+    final IActivity activity =
+        new JupiterActivity(
+            new JupiterVectorTime(1, 2), new InsertOperation(3, "saros", 3), alice, fooPath);
+
+    final List<User> users = new ArrayList<User>();
+
+    assertEquals(activity, codec.deserialize(codec.serialize(activity, users), users));
+
+    assertNull(codec.serialize(new CustomActivity(alice), users));
+  }
+
+  @Test
+  public void testSerializedActivityOfUserWhoLeftIsReconstructed() throws Exception {
+    // carl is not known to the session
+    final IActivity activity = new TextSelectionActivity(carl, 1, 2, fooPath);
+
+    final List<User> users = new ArrayList<User>(Collections.singletonList(alice));
+
+    final byte[] data = codec.serialize(activity, users);
+
+    assertEquals(Arrays.asList(alice, carl), users);
+
+    final IActivity deserialized = codec.deserialize(data, users);
+
+    assertEquals(activity, deserialized);
+    assertSame(carl, deserialized.getSource());
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedDataIsRejected() throws Exception {
+    final byte[] data = codec.encode(createSelections(3));
+    codec.decode(data, 0, data.length - 1);
+  }
+
+  @Test
+  public void testBinaryFormatIsMoreCompactThanXML() throws Exception {
+    final ActivitiesExtension extension =
+        new ActivitiesExtension(
+            "4711",
+            Collections.<IActivity>singletonList(
+                new JupiterActivity(
+                    new JupiterVectorTime(120, 97),
+                    new InsertOperation(1234, "a"),
+                    alice,
+                    fooPath)),
+            4711);
+
+    final SPathConverter pathConverter = new SPathConverter(session, pathFactory);
+    final UserConverter userConverter = new UserConverter(session);
+
+    pathConverter.start();
+    userConverter.start();
+
+    final int xmlSize;
+
+    try {
+      xmlSize =
+          ActivitiesExtension.PROVIDER
+              .create(extension)
+              .toXML()
+              .getBytes(StandardCharsets.UTF_8)
+              .length;
+    } finally {
+      pathConverter.stop();
+      userConverter.stop();
+    }
+
+    assertTrue(codec.encode(extension).length * 3 < xmlSize);
+  }
+
+  @Test
+  @Ignore("benchmark, should only be executed manually when making changes to the format")
+  public void testPerformanceAgainstXML() throws Exception {
+    final List<IActivity> keystrokes = new ArrayList<IActivity>();
+
+    for (int i = 0; i < 20; i++)
+      keystrokes.add(
+          new JupiterActivity(
+              new JupiterVectorTime(120 + i, 97),
+              new InsertOperation(1234 + i, String.valueOf((char) ('a' + i))),
+              alice,
+              fooPath));
+
+    final SPathConverter pathConverter = new SPathConverter(session, pathFactory);
+    final UserConverter userConverter = new UserConverter(session);
+
+    pathConverter.start();
+    userConverter.start();
+
+    try {
+      benchmark("single keystroke", new ActivitiesExtension("4711", keystrokes.subList(0, 1), 1));
+
+      benchmark(
+          "single selection",
+          new ActivitiesExtension(
+              "4711",
+              Collections.<IActivity>singletonList(
+                  new TextSelectionActivity(alice, 1234, 5, fooPath)),
+              1));
+
+      benchmark("batch of 20 keystrokes", new ActivitiesExtension("4711", keystrokes, 1));
+    } finally {
+      pathConverter.stop();
+      userConverter.stop();
+    }
+  }
+
+  private void benchmark(final String name, final ActivitiesExtension extension) throws Exception {
+    final int iterations = 100000;
+
+    final XmlPullParser parser = new MXParser();
+
+    final byte[] data = codec.encode(extension);
+    final byte[] xml =
+        ActivitiesExtension.PROVIDER.create(extension).toXML().getBytes(StandardCharsets.UTF_8);
+
+    // distinct copies, so the encoder cannot reuse the bodies it encoded before
+    final ActivitiesExtension[] copies = new ActivitiesExtension[64];
+
+    for (int i = 0; i < copies.length; i++) copies[i] = codec.decode(data, 0, data.length);
+
+    long binaryEncode = 0, binaryDecode = 0, xmlEncode = 0, xmlDecode = 0;
+
+    // the first round only warms up the JIT
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) codec.encode(copies[i % copies.length]);
+
+      binaryEncode = System.nanoTime() - start;
+      start = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) codec.decode(data, 0, data.length);
+
+      binaryDecode = System.nanoTime() - start;
+      start = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++)
+        ActivitiesExtension.PROVIDER
+            .create(copies[i % copies.length])
+            .toXML()
+            .getBytes(StandardCharsets.UTF_8);
+
+      xmlEncode = System.nanoTime() - start;
+      start = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++) {
+        parser.setInput(new ByteArrayInputStream(xml), "UTF-8");
+        parser.next();
+        ActivitiesExtension.PROVIDER.getPayload(
+            ActivitiesExtension.PROVIDER.parseExtension(parser));
+      }
+
+      xmlDecode = System.nanoTime() - start;
+    }
+
+    System.out.println(
+        String.format(
+            "%s (%d activities): binary %d bytes, encode %.2f us, decode %.2f us"
+                + " / XML %d bytes, encode %.2f us, decode %.2f us",
+            name,
+            extension.getActivities().size(),
+            data.length,
+            binaryEncode / 1000.0 / iterations,
+            binaryDecode / 1000.0 / iterations,
+            xml.length,
+            xmlEncode / 1000.0 / iterations,
+            xmlDecode / 1000.0 / iterations));
+  }
+
+  private ActivitiesExtension roundTrip(final ActivitiesExtension extension) throws IOException {
+    final byte[] data = codec.encode(extension);
+
+    assertNotNull(data);
+
+    final byte[] padded = new byte[data.length + 8];
+    System.arraycopy(data, 0, padded, 4, data.length);
+
+    return codec.decode(padded, 4, data.length);
+  }
+
+  private ActivitiesExtension createSelections(final int count) {
+    final List<IActivity> activities = new ArrayList<IActivity>();
+
+    for (int i = 0; i < count; i++)
+      activities.add(new TextSelectionActivity(alice, 100 + i, 0, fooPath));
+
+    return new ActivitiesExtension("4711", activities, 0);
+  }
+}
@@ -0,0 +1,57 @@
+package saros.session.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import saros.net.xmpp.JID;
+import saros.session.User;
+
+public class RoundTripTimeTrackerTest {
+
+  private static final User ALICE = new User(new JID("Alice"), false, false, null);
+  private static final User BOB = new User(new JID("Bob"), false, false, null);
+
+  private RoundTripTimeTracker tracker;
+
+  @Before
+  public void setUp() {
+    tracker = new RoundTripTimeTracker(null);
+  }
+
+  @Test
+  public void testUnknownUser() {
+    assertEquals(-1, tracker.getRoundTripTime(ALICE));
+    assertEquals(-1, tracker.getRoundTripTimeVariation(ALICE));
+  }
+
+  @Test
+  public void testFirstSample() {
+    tracker.record(ALICE, 100);
+
+    assertEquals(100, tracker.getRoundTripTime(ALICE));
+    assertEquals(50, tracker.getRoundTripTimeVariation(ALICE));
+    assertEquals(-1, tracker.getRoundTripTime(BOB));
+  }
+
+  @Test
+  public void testSmoothing() {
+    tracker.record(ALICE, 100);
+    tracker.record(ALICE, 180);
+
+    assertEquals(110, tracker.getRoundTripTime(ALICE));
+    assertEquals(57, tracker.getRoundTripTimeVariation(ALICE));
+
+    for (int i = 0; i < 100; i++) tracker.record(ALICE, 20);
+
+    assertEquals(20, tracker.getRoundTripTime(ALICE), 8);
+    assertEquals(0, tracker.getRoundTripTimeVariation(ALICE), 3);
+  }
+
+  @Test
+  public void testNegativeSampleIsIgnored() {
+    tracker.record(ALICE, -5);
+
+    assertEquals(-1, tracker.getRoundTripTime(ALICE));
+  }
+}
@@ -8,6 +8,9 @@ import org.junit.runners.Suite;
   ActivityHandlerTest.class,
   ActivityQueuerTest.class,
   ActivitySequencerTest.class,
+  BatchingWindowTest.class,
+  BinaryActivityCodecTest.class,
+  RoundTripTimeTrackerTest.class,
   SharedProjectMapperTest.class,
   UserInformationHandlerTest.class
 })
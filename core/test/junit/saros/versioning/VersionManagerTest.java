@@ -22,6 +22,8 @@
 package saros.versioning;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Properties;
 import org.junit.Before;
@@ -171,4 +173,41 @@ public class VersionManagerTest {
 
     assertEquals(resultLocal.getCompatibility(), resultRemote.getCompatibility());
   }
+
+  @Test
+  public void testFeaturesAreExchanged() {
+    Version version = Version.parseVersion("1.1.1.r1");
+
+    init(version, version);
+
+    assertFalse(
+        versionManagerLocal.isFeatureSupported(bobJID, VersionManager.BINARY_ACTIVITIES_FEATURE));
+
+    versionManagerLocal.determineVersionCompatibility(bobJID);
+
+    assertTrue(
+        versionManagerLocal.isFeatureSupported(bobJID, VersionManager.BINARY_ACTIVITIES_FEATURE));
+
+    assertTrue(
+        versionManagerRemote.isFeatureSupported(
+            aliceJID, VersionManager.BINARY_ACTIVITIES_FEATURE));
+  }
+
+  @Test
+  public void testFeatureNotSupportedByRemoteSide() {
+    Version version = Version.parseVersion("1.1.1.r1");
+
+    init(version, version);
+
+    versionManagerRemote.setLocalFeatures();
+
+    versionManagerLocal.determineVersionCompatibility(bobJID);
+
+    assertFalse(
+        versionManagerLocal.isFeatureSupported(bobJID, VersionManager.BINARY_ACTIVITIES_FEATURE));
+
+    assertFalse(
+        versionManagerRemote.isFeatureSupported(
+            aliceJID, VersionManager.BINARY_ACTIVITIES_FEATURE));
+  }
 }
@@ -18,6 +18,7 @@ import saros.preferences.Preferences;
 import saros.repackaged.picocontainer.BindKey;
 import saros.repackaged.picocontainer.MutablePicoContainer;
 import saros.server.console.InviteCommand;
+import saros.server.console.MetricsCommand;
 import saros.server.console.ServerConsole;
 import saros.server.console.ShareCommand;
 import saros.server.dummies.NullRemoteProgressIndicatorFactory;
@@ -93,6 +94,7 @@ public class ServerContextFactory extends AbstractContextFactory {
       c.addComponent(new ServerConsole(System.in, System.out));
       c.addComponent(InviteCommand.class);
       c.addComponent(ShareCommand.class);
+      c.addComponent(MetricsCommand.class);
     }
   }
 
@@ -0,0 +1,70 @@
+package saros.server.console;
+
+import java.io.PrintStream;
+import java.util.List;
+import saros.net.metrics.LinkMetrics;
+import saros.net.metrics.TransportMetrics;
+import saros.net.metrics.TransportMetricsSnapshot;
+import saros.util.CoreUtils;
+
+public class MetricsCommand extends ConsoleCommand {
+  private final TransportMetrics metrics;
+
+  public MetricsCommand(TransportMetrics metrics, ServerConsole console) {
+    this.metrics = metrics;
+    console.registerCommand(this);
+  }
+
+  @Override
+  public String identifier() {
+    return "metrics";
+  }
+
+  @Override
+  public String help() {
+    return "metrics [reset] - Print the transport metrics of all peers or reset them";
+  }
+
+  @Override
+  public void execute(List<String> args, PrintStream out) {
+    if (!args.isEmpty() && args.get(0).equals("reset")) {
+      metrics.reset();
+      out.println("Transport metrics reset");
+      return;
+    }
+
+    TransportMetricsSnapshot snapshot = metrics.getSnapshot();
+
+    if (snapshot.getLinks().isEmpty()) {
+      out.println("No data transferred yet");
+      return;
+    }
+
+    for (LinkMetrics link : snapshot.getLinks()) {
+      out.printf("%s [%s]%n", link.getPeer(), link.getMode());
+      out.printf(
+          "  sent:     %s (%s uncompressed) in %d packets, latency median < %s, p99 < %s%n",
+          CoreUtils.formatByte(link.getBytesSent()),
+          CoreUtils.formatByte(link.getBytesSentUncompressed()),
+          link.getPacketsSent(),
+          formatBound(link.getSendLatencyMedian()),
+          formatBound(link.getSendLatency99thPercentile()));
+      out.printf(
+          "  received: %s (%s uncompressed) in %d packets%n",
+          CoreUtils.formatByte(link.getBytesReceived()),
+          CoreUtils.formatByte(link.getBytesReceivedUncompressed()),
+          link.getPacketsReceived());
+      out.printf(
+          "  queue:    %d (max %d), connects: %d, disconnects: %d, reconnects: %d%n",
+          link.getQueueDepth(),
+          link.getMaxQueueDepth(),
+          link.getConnects(),
+          link.getDisconnects(),
+          link.getReconnects());
+    }
+  }
+
+  private static String formatBound(long bound) {
+    return bound == Long.MAX_VALUE ? "inf" : bound + " ms";
+  }
+}